@@ -0,0 +1,18 @@
+#!/bin/bash
+# Build the benchmark jar and run JMH; extra arguments go to JMH, e.g.
+#   ./run_bench.sh ParseBenchmark -p rows=10000000 -jvmArgsAppend -Xmx16g
+# Synthetic datasets are generated into ./data on first use (about 60 bytes per row).
+
+cd "$(dirname "$0")"
+
+mvn -q -B package || { echo "Build failed!"; exit 1; }
+
+# the blockchain.info and gson jars are system-scoped, so they are not inside benchmarks.jar
+CLASSPATH="target/benchmarks.jar:../libs/api-1.1.0.jar:../libs/gson-2.2.jar"
+
+cmd="java -classpath $CLASSPATH org.openjdk.jmh.Main $*"
+echo "Run command: \"$cmd\" ";
+
+echo "--------------------------";
+
+$cmd
@@ -0,0 +1,59 @@
+package main;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The ClusterAnalyzer statistics: the fused aggregation pass, ranked queries over its result and
+ * flow tracing over the user graph
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AnalysisBenchmark {
+    @Param({ "1000000" })
+    public long rows;
+
+    private UserCluster uc;
+    private long[] received;
+    private FlowTracer tracer;
+    private int busiest;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        uc = BenchData.clustered(rows);
+        received = new AggregationEngine(uc.getTransactions(), uc.getClusters()).run().get(AggregationEngine.RECEIVED);
+        tracer = new FlowTracer(uc.getUserGraph(false));
+        busiest = Rankings.topK(received, 1)[0];
+    }
+
+    @Benchmark
+    public AggregationEngine.Aggregates aggregate() {
+        return new AggregationEngine(uc.getTransactions(), uc.getClusters()).run();
+    }
+
+    @Benchmark
+    public int[] top100() {
+        return Rankings.topK(received, 100);
+    }
+
+    @Benchmark
+    public long[] percentiles() {
+        return Rankings.percentiles(received, 50, 90, 99, 99.9);
+    }
+
+    @Benchmark
+    public FlowTracer.Trace downstream3Hops() {
+        return tracer.downstream(busiest, 3);
+    }
+
+    @Benchmark
+    public FlowTracer.Taint haircut3Hops() {
+        return tracer.taint(busiest, 3, FlowTracer.TaintPolicy.HAIRCUT);
+    }
+}
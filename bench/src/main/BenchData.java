@@ -0,0 +1,28 @@
+package main;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Locates the synthetic datasets the benchmarks run on. They are generated on first use into
+ * -Dbench.data (default ./data) and reused by later runs; -Dbench.seed picks another dataset.
+ */
+final class BenchData {
+    private BenchData() {
+    }
+
+    static File dataset(final long rows) throws IOException {
+        final File dir = new File(System.getProperty("bench.data", "data"));
+        return SyntheticDataset.ensure(dir, rows, Long.getLong("bench.seed", SyntheticDataset.DEFAULT_SEED));
+    }
+
+    /**
+     * A UserCluster with the dataset read and clustered
+     */
+    static UserCluster clustered(final long rows) throws IOException {
+        final UserCluster uc = new UserCluster();
+        uc.readTransactions(dataset(rows).getPath());
+        uc.mergeAddresses();
+        return uc;
+    }
+}
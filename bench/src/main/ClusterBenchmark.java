@@ -0,0 +1,86 @@
+package main;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * UserCluster.mergeAddresses end to end, and the two disjoint-set implementations on the union
+ * pairs it performs (first input with every other input of each transaction)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ClusterBenchmark {
+    @Param({ "1000000" })
+    public long rows;
+
+    private UserCluster uc;
+    private int numAddresses;
+    private int[] left;
+    private int[] right;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        uc = new UserCluster();
+        uc.readTransactions(BenchData.dataset(rows).getPath());
+        final TransactionStore store = uc.getTransactions();
+        numAddresses = store.getAddresses().size();
+        left = new int[store.size()];
+        right = new int[store.size()];
+        int pairs = 0;
+        long tx = Long.MIN_VALUE;
+        int first = -1;
+        final TransactionStore.Cursor cursor = store.cursor();
+        while (cursor.next()) {
+            if (!cursor.isInput()) {
+                continue;
+            }
+            if (cursor.txIndex() != tx) {
+                tx = cursor.txIndex();
+                first = cursor.addressId();
+            } else {
+                left[pairs] = first;
+                right[pairs++] = cursor.addressId();
+            }
+        }
+        left = Arrays.copyOf(left, pairs);
+        right = Arrays.copyOf(right, pairs);
+    }
+
+    @Benchmark
+    public ClusterMembership mergeAddresses() {
+        uc.mergeAddresses();
+        return uc.getClusters();
+    }
+
+    /**
+     * Sequential Uptree: every union, then a find on every element
+     */
+    @Benchmark
+    public int uptreeUnionFind() {
+        final Uptree uptree = new Uptree(numAddresses);
+        for (int k = 0; k < left.length; ++k) {
+            uptree.union(left[k], right[k]);
+        }
+        int sum = 0;
+        for (int i = 0; i < numAddresses; ++i) {
+            sum += uptree.find(i);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int concurrentUptreeUnion() {
+        final ConcurrentUptree uptree = new ConcurrentUptree(numAddresses);
+        for (int k = 0; k < left.length; ++k) {
+            uptree.union(left[k], right[k]);
+        }
+        return uptree.roots().length;
+    }
+}
@@ -0,0 +1,56 @@
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Building and writing the user graph of a clustered dataset
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class GraphBenchmark {
+    @Param({ "1000000" })
+    public long rows;
+
+    private UserCluster uc;
+    private File out;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        uc = BenchData.clustered(rows);
+        out = File.createTempFile("userGraph", ".txt");
+        out.deleteOnExit();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        out.delete();
+    }
+
+    @Benchmark
+    public boolean writeUserGraph() {
+        return uc.writeUserGraph(out.getPath(), false);
+    }
+
+    @Benchmark
+    public boolean writeAggregatedUserGraph() {
+        return uc.writeUserGraph(out.getPath(), true);
+    }
+
+    @Benchmark
+    public UserGraph buildUserGraph() {
+        return uc.getUserGraph(false);
+    }
+
+    @Benchmark
+    public boolean writeUserGraphBinary() {
+        return uc.writeUserGraphBinary(out.getPath(), false);
+    }
+}
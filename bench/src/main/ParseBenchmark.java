@@ -0,0 +1,47 @@
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * UserCluster.readTransactions on the text format, and BinaryDataset.read on the same records
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ParseBenchmark {
+    @Param({ "1000000" })
+    public long rows;
+
+    private String text;
+    private String binary;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        text = BenchData.dataset(rows).getPath();
+        binary = text + ".btx";
+        if (!new File(binary).isFile()) {
+            BinaryDataset.convert(new File(text), new File(binary));
+        }
+    }
+
+    @Benchmark
+    public TransactionStore readTransactions() {
+        final UserCluster uc = new UserCluster();
+        uc.readTransactions(text);
+        return uc.getTransactions();
+    }
+
+    @Benchmark
+    public TransactionStore readBinaryTransactions() {
+        final UserCluster uc = new UserCluster();
+        uc.readBinaryTransactions(binary);
+        return uc.getTransactions();
+    }
+}
@@ -0,0 +1,337 @@
+package main;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Interns bitcoin addresses to dense int ids (0, 1, 2, ... in first-seen order). Addresses are
+ * kept as binary keys in one growing byte slab and the lookup table is open-addressed over plain
+ * int arrays, so interning an address read from a mapped file builds no String.
+ *
+ * <p>A Base58Check address is keyed by its version byte and hash160 (21 bytes), so it hashes on
+ * the hash160 and compares at a fixed width. The checksum is derived from those, so it is verified
+ * whenever address text is turned into a key, a corrupt one is rejected with an
+ * IllegalArgumentException, and it is not stored: text recomputes it. Any other address text
+ * (bech32, test fixtures, version 0xff) is kept as an OPAQUE byte followed by the text. Text is
+ * only rebuilt by get.
+ */
+public class AddressDictionary {
+    private static final int EMPTY = -1;
+    /** First byte of a key holding address text as it is; never a Base58Check key's version */
+    private static final byte OPAQUE = (byte)0xff;
+    /** What key returns for Base58Check text whose checksum does not match */
+    static final int BAD_CHECKSUM = -1;
+
+    private byte[] bytes = new byte[1 << 12];
+    private int[] offsets = new int[1 << 8]; // address id -> start of its key in bytes; offsets[size] is the end
+    private int[] hashes = new int[1 << 8];
+    private int[] table = newTable(1 << 9);
+    private int size;
+    private byte[] key = new byte[64]; // the key being interned; intern is single-threaded
+
+    public AddressDictionary() {
+    }
+
+    /**
+     * Adopt the arrays of a saved dictionary (see ClusterSnapshot) without rehashing. offsets
+     * and hashes may be longer than needed; table must be the saved table.
+     */
+    AddressDictionary(final byte[] bytes, final int[] offsets, final int[] hashes, final int[] table, final int size) {
+        if (offsets.length < size + 2 || hashes.length < size + 1 || Integer.bitCount(table.length) != 1 || table.length < 2 * size) {
+            throw new IllegalArgumentException("Inconsistent dictionary arrays for " + size + " addresses");
+        }
+        this.bytes = bytes;
+        this.offsets = offsets;
+        this.hashes = hashes;
+        this.table = table;
+        this.size = size;
+    }
+
+    private static int[] newTable(final int capacity) {
+        final int[] ret = new int[capacity];
+        Arrays.fill(ret, EMPTY);
+        return ret;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h;
+    }
+
+    private static boolean isBase58Check(final byte[] k, final int off, final int len) {
+        return len == Base58Check.PAYLOAD_BYTES && k[off] != OPAQUE;
+    }
+
+    static int hash(final byte[] k, final int off, final int len) {
+        if (isBase58Check(k, off, len)) {
+            // the hash160 is already uniform
+            return mix((k[off + 1] << 24 | (k[off + 2] & 0xff) << 16 | (k[off + 3] & 0xff) << 8 | (k[off + 4] & 0xff)) ^ k[off]);
+        }
+        int h = 1;
+        for (int i = 0; i < len; ++i) {
+            h = 31 * h + k[off + i];
+        }
+        return mix(h);
+    }
+
+    private boolean matches(final int id, final byte[] k, final int off, final int len) {
+        final int start = offsets[id];
+        if (offsets[id + 1] - start != len) {
+            return false;
+        }
+        for (int i = 0; i < len; ++i) {
+            if (bytes[start + i] != k[off + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Slot of a key in the table: where it is, or the empty slot where it would go
+     */
+    private int slot(final int h, final byte[] k, final int off, final int len) {
+        final int mask = table.length - 1;
+        int slot = h & mask;
+        int id;
+        while ((id = table[slot]) != EMPTY && !(hashes[id] == h && matches(id, k, off, len))) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Most bytes the key of len bytes of address text can take
+     */
+    static int maxKeyLength(final int len) {
+        return Math.max(Base58Check.ADDRESS_BYTES, len + 1);
+    }
+
+    /**
+     * Write the key of the address text buf[off .. off + len - 1] to dst, which must have room
+     * for maxKeyLength(len) bytes: a Base58Check address is decoded there with its checksum,
+     * which is verified and then left out of the key
+     *
+     * @return key length, or BAD_CHECKSUM
+     */
+    static int key(final ByteBuffer buf, final int off, final int len, final byte[] dst, final int dstOff) {
+        if (Base58Check.decode(buf, off, len, dst, dstOff) && dst[dstOff] != OPAQUE) {
+            return Base58Check.checksumValid(dst, dstOff) ? Base58Check.PAYLOAD_BYTES : BAD_CHECKSUM;
+        }
+        dst[dstOff] = OPAQUE;
+        for (int i = 0; i < len; ++i) {
+            dst[dstOff + 1 + i] = buf.get(off + i);
+        }
+        return len + 1;
+    }
+
+    /**
+     * The address text of a key
+     */
+    static String text(final byte[] k, final int off, final int len) {
+        if (isBase58Check(k, off, len)) {
+            final byte[] address = Base58Check.fromPayload(k[off], k, off + 1);
+            return Base58Check.encode(address, 0, address.length);
+        }
+        final char[] chars = new char[len - 1];
+        for (int i = 0; i < chars.length; ++i) {
+            chars[i] = (char)(k[off + 1 + i] & 0xff);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Turn address text into its key in this.key, for intern only
+     *
+     * @return key length
+     */
+    private int keyOf(final ByteBuffer buf, final int off, final int len) {
+        if (key.length < maxKeyLength(len)) {
+            key = new byte[Math.max(maxKeyLength(len), key.length * 2)];
+        }
+        return key(buf, off, len, key, 0);
+    }
+
+    /**
+     * Return the id of an address, adding it if it has not been seen yet
+     *
+     * @param buf
+     * @param off
+     * @param len
+     * @return address id
+     * @throws IllegalArgumentException if the address is Base58Check with a bad checksum
+     */
+    public int intern(final ByteBuffer buf, final int off, final int len) {
+        final int keyLen = keyOf(buf, off, len);
+        if (keyLen == BAD_CHECKSUM) {
+            throw new IllegalArgumentException("bad Base58Check checksum in address " + ascii(buf, off, len));
+        }
+        final int h = hash(key, 0, keyLen);
+        final int slot = slot(h, key, 0, keyLen);
+        return table[slot] != EMPTY ? table[slot] : add(slot, h, key, 0, keyLen);
+    }
+
+    public int intern(final byte[] buf, final int off, final int len) {
+        return intern(ByteBuffer.wrap(buf), off, len);
+    }
+
+    public int intern(final String address) {
+        final byte[] b = ascii(address);
+        return intern(ByteBuffer.wrap(b), 0, b.length);
+    }
+
+    /**
+     * Return the id of a key copied from a dictionary (see copyKey), adding it if it has not been
+     * seen yet. Keys hold no checksum; it was verified when the text was turned into a key.
+     */
+    public int internKey(final byte[] k, final int off, final int len) {
+        if (len == 0 || (k[off] != OPAQUE && len != Base58Check.PAYLOAD_BYTES)) {
+            throw new IllegalArgumentException("Not an address key: " + len + " bytes");
+        }
+        final int h = hash(k, off, len);
+        final int slot = slot(h, k, off, len);
+        return table[slot] != EMPTY ? table[slot] : add(slot, h, k, off, len);
+    }
+
+    /**
+     * Look up an address without adding it. Lookups decode into a buffer of their own, so any
+     * number of threads may call find while nothing is being interned.
+     *
+     * @param address
+     * @return address id, or -1 if the address is unknown
+     */
+    public int find(final String address) {
+        final byte[] b = ascii(address);
+        final byte[] k = new byte[maxKeyLength(b.length)];
+        final int keyLen = key(ByteBuffer.wrap(b), 0, b.length, k, 0);
+        return keyLen == BAD_CHECKSUM ? -1 : table[slot(hash(k, 0, keyLen), k, 0, keyLen)];
+    }
+
+    /**
+     * Decode an address; a new String is built on every call
+     *
+     * @param id
+     * @return the address
+     */
+    public String get(final int id) {
+        if (id < 0 || id >= size) {
+            throw new IndexOutOfBoundsException("address id " + id);
+        }
+        return text(bytes, offsets[id], offsets[id + 1] - offsets[id]);
+    }
+
+    /**
+     * Copy the key of an address into dst, for internKey
+     *
+     * @return number of bytes copied
+     */
+    public int copyKey(final int id, final byte[] dst, final int dstOff) {
+        final int start = offsets[id];
+        final int len = offsets[id + 1] - start;
+        System.arraycopy(bytes, start, dst, dstOff, len);
+        return len;
+    }
+
+    public int keyLength(final int id) {
+        return offsets[id + 1] - offsets[id];
+    }
+
+    /**
+     * True if other holds the same addresses under the same ids
+     */
+    public boolean contentEquals(final AddressDictionary other) {
+        if (other == this) {
+            return true;
+        }
+        if (other.size != size || other.offsets[size] != offsets[size]) {
+            return false;
+        }
+        for (int i = 0; i <= size; ++i) {
+            if (other.offsets[i] != offsets[i]) {
+                return false;
+            }
+        }
+        for (int i = 0; i < offsets[size]; ++i) {
+            if (other.bytes[i] != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Backing arrays, for ClusterSnapshot. Only the first size (+1 for offsets) entries are used.
+     */
+    byte[] rawBytes() {
+        return bytes;
+    }
+
+    int[] rawOffsets() {
+        return offsets;
+    }
+
+    int[] rawHashes() {
+        return hashes;
+    }
+
+    int[] rawTable() {
+        return table;
+    }
+
+    /**
+     * Address text as it was read, for messages
+     */
+    static String ascii(final ByteBuffer buf, final int off, final int len) {
+        final char[] chars = new char[len];
+        for (int i = 0; i < len; ++i) {
+            chars[i] = (char)(buf.get(off + i) & 0xff);
+        }
+        return new String(chars);
+    }
+
+    static byte[] ascii(final String str) {
+        final byte[] ret = new byte[str.length()];
+        for (int i = 0; i < ret.length; ++i) {
+            ret[i] = (byte)str.charAt(i);
+        }
+        return ret;
+    }
+
+    private int add(final int slot, final int h, final byte[] k, final int off, final int len) {
+        final int need = offsets[size] + len;
+        if (need > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(need, bytes.length * 2));
+        }
+        System.arraycopy(k, off, bytes, offsets[size], len);
+        final int id = size++;
+        if (size + 1 > offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            hashes = Arrays.copyOf(hashes, hashes.length * 2);
+        }
+        offsets[size] = need;
+        hashes[id] = h;
+        table[slot] = id;
+        if (size * 2 > table.length) {
+            rehash();
+        }
+        return id;
+    }
+
+    private void rehash() {
+        table = newTable(table.length * 2);
+        final int mask = table.length - 1;
+        for (int id = 0; id < size; ++id) {
+            int slot = hashes[id] & mask;
+            while (table[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = id;
+        }
+    }
+}
@@ -0,0 +1,371 @@
+package main;
+
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * Computes per-user metrics over a TransactionStore in one pass. Every metric is a long[] indexed
+ * by dense user id; the rows are split into one chunk per core, each chunk folds into its own
+ * partial arrays and the partials are merged at the end. A new metric is an {@link Aggregator}
+ * passed to {@link #register}, not another scan.
+ */
+public class AggregationEngine {
+    /**
+     * One per-user metric
+     */
+    public interface Aggregator {
+        String getName();
+
+        /**
+         * Value of a user no row has been folded into
+         */
+        long initialValue();
+
+        /**
+         * Fold one row into values[user]
+         *
+         * @param values the metric of every user, for the current chunk
+         * @param user owner of the row's address
+         * @param row the current row
+         * @param firstInTx true for the first row of this transaction that belongs to user
+         */
+        void accumulate(long[] values, int user, TransactionStore.Cursor row, boolean firstInTx);
+
+        /**
+         * Combine the values of two chunks
+         */
+        long merge(long a, long b);
+    }
+
+    private static abstract class Sum implements Aggregator {
+        private final String name;
+
+        Sum(final String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public long initialValue() {
+            return 0;
+        }
+
+        @Override
+        public long merge(final long a, final long b) {
+            return a + b;
+        }
+    }
+
+    /** Number of outputs received */
+    public static final Aggregator RECEIPTS = new Sum("receipts") {
+        @Override
+        public void accumulate(final long[] values, final int user, final TransactionStore.Cursor row, final boolean firstInTx) {
+            if (!row.isInput()) {
+                values[user]++;
+            }
+        }
+    };
+
+    /** Satoshi received */
+    public static final Aggregator RECEIVED = new Sum("received") {
+        @Override
+        public void accumulate(final long[] values, final int user, final TransactionStore.Cursor row, final boolean firstInTx) {
+            if (!row.isInput()) {
+                values[user] += row.amount();
+            }
+        }
+    };
+
+    /** Satoshi spent by inputs */
+    public static final Aggregator SENT = new Sum("sent") {
+        @Override
+        public void accumulate(final long[] values, final int user, final TransactionStore.Cursor row, final boolean firstInTx) {
+            if (row.isInput()) {
+                values[user] += row.amount();
+            }
+        }
+    };
+
+    /** Number of transactions the user takes part in, on either side */
+    public static final Aggregator TX_COUNT = new Sum("txCount") {
+        @Override
+        public void accumulate(final long[] values, final int user, final TransactionStore.Cursor row, final boolean firstInTx) {
+            if (firstInTx) {
+                values[user]++;
+            }
+        }
+    };
+
+    /** Smallest tx index the user appears in */
+    public static final Aggregator FIRST_TX = new Aggregator() {
+        @Override
+        public String getName() {
+            return "firstTx";
+        }
+
+        @Override
+        public long initialValue() {
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public void accumulate(final long[] values, final int user, final TransactionStore.Cursor row, final boolean firstInTx) {
+            values[user] = Math.min(values[user], row.txIndex());
+        }
+
+        @Override
+        public long merge(final long a, final long b) {
+            return Math.min(a, b);
+        }
+    };
+
+    /** Largest tx index the user appears in */
+    public static final Aggregator LAST_TX = new Aggregator() {
+        @Override
+        public String getName() {
+            return "lastTx";
+        }
+
+        @Override
+        public long initialValue() {
+            return Long.MIN_VALUE;
+        }
+
+        @Override
+        public void accumulate(final long[] values, final int user, final TransactionStore.Cursor row, final boolean firstInTx) {
+            values[user] = Math.max(values[user], row.txIndex());
+        }
+
+        @Override
+        public long merge(final long a, final long b) {
+            return Math.max(a, b);
+        }
+    };
+
+    /**
+     * Earliest block time the user appears at; TransactionParser.UNKNOWN_TIME if none of its rows
+     * has one. Only registered when the store has heights.
+     */
+    public static final Aggregator FIRST_SEEN = new Aggregator() {
+        @Override
+        public String getName() {
+            return "firstSeen";
+        }
+
+        @Override
+        public long initialValue() {
+            return TransactionParser.UNKNOWN_TIME;
+        }
+
+        @Override
+        public void accumulate(final long[] values, final int user, final TransactionStore.Cursor row, final boolean firstInTx) {
+            values[user] = merge(values[user], row.time());
+        }
+
+        @Override
+        public long merge(final long a, final long b) {
+            if (a == TransactionParser.UNKNOWN_TIME) {
+                return b;
+            }
+            return b == TransactionParser.UNKNOWN_TIME ? a : Math.min(a, b);
+        }
+    };
+
+    /**
+     * Latest block time the user appears at; TransactionParser.UNKNOWN_TIME if none of its rows
+     * has one. Only registered when the store has heights.
+     */
+    public static final Aggregator LAST_SEEN = new Aggregator() {
+        @Override
+        public String getName() {
+            return "lastSeen";
+        }
+
+        @Override
+        public long initialValue() {
+            return TransactionParser.UNKNOWN_TIME;
+        }
+
+        @Override
+        public void accumulate(final long[] values, final int user, final TransactionStore.Cursor row, final boolean firstInTx) {
+            // known times are never below UNKNOWN_TIME
+            values[user] = Math.max(values[user], row.time());
+        }
+
+        @Override
+        public long merge(final long a, final long b) {
+            return Math.max(a, b);
+        }
+    };
+
+    /** Below this many rows per chunk the pass is not split */
+    private static final int MIN_CHUNK_ROWS = 1 << 16;
+
+    private final TransactionStore transactions;
+    private final int[] userOfAddress;
+    private final int numUsers;
+    private final List<Aggregator> aggregators = new ArrayList<>();
+
+    /**
+     * An engine with the built-in metrics registered; firstSeen and lastSeen only if the
+     * transactions carry block times
+     *
+     * @param transactions
+     * @param userOfAddress user of every address id of transactions
+     * @param numUsers
+     */
+    public AggregationEngine(final TransactionStore transactions, final int[] userOfAddress, final int numUsers) {
+        this.transactions = transactions;
+        this.userOfAddress = userOfAddress;
+        this.numUsers = numUsers;
+        for (final Aggregator a : Arrays.asList(RECEIPTS, RECEIVED, SENT, TX_COUNT, FIRST_TX, LAST_TX)) {
+            register(a);
+        }
+        if (transactions.hasHeights()) {
+            register(FIRST_SEEN);
+            register(LAST_SEEN);
+        }
+    }
+
+    public AggregationEngine(final TransactionStore transactions, final ClusterMembership clusters) {
+        this(transactions, clusters.getAddrToUser(), clusters.getUserNumber());
+    }
+
+    /**
+     * Add a metric to the pass
+     *
+     * @throws IllegalArgumentException if a metric of that name is already registered
+     */
+    public AggregationEngine register(final Aggregator aggregator) {
+        for (final Aggregator a : aggregators) {
+            if (a.getName().equals(aggregator.getName())) {
+                throw new IllegalArgumentException("Aggregator " + aggregator.getName() + " is already registered");
+            }
+        }
+        aggregators.add(aggregator);
+        return this;
+    }
+
+    /**
+     * Split [0, rows) into chunks that do not cut a transaction in two, so that firstInTx is
+     * exact within each chunk. Rows of a transaction are adjacent in every dataset we read.
+     */
+    private int[] chunkBounds() {
+        final int rows = transactions.size();
+        final int chunks = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), rows / MIN_CHUNK_ROWS));
+        final int[] bounds = new int[chunks + 1];
+        for (int c = 1; c < chunks; ++c) {
+            int b = Math.max(bounds[c - 1], (int)((long)rows * c / chunks));
+            while (b > 0 && b < rows && transactions.txIndex(b) == transactions.txIndex(b - 1)) {
+                b++;
+            }
+            bounds[c] = b;
+        }
+        bounds[chunks] = rows;
+        return bounds;
+    }
+
+    private long[][] newPartial() {
+        final long[][] ret = new long[aggregators.size()][];
+        for (int m = 0; m < ret.length; ++m) {
+            ret[m] = new long[numUsers];
+            Arrays.fill(ret[m], aggregators.get(m).initialValue());
+        }
+        return ret;
+    }
+
+    private long[][] accumulate(final int from, final int to) {
+        final long[][] values = newPartial();
+        final Aggregator[] aggs = aggregators.toArray(new Aggregator[0]);
+        // start row of the transaction in which each user was last seen
+        final int[] lastTxStart = new int[numUsers];
+        Arrays.fill(lastTxStart, -1);
+        int txStart = from;
+        long txIndex = Long.MIN_VALUE;
+        final TransactionStore.Cursor cursor = transactions.cursor(from, to);
+        while (cursor.next()) {
+            if (cursor.row() == from || cursor.txIndex() != txIndex) {
+                txIndex = cursor.txIndex();
+                txStart = cursor.row();
+            }
+            final int user = userOfAddress[cursor.addressId()];
+            final boolean firstInTx = lastTxStart[user] != txStart;
+            lastTxStart[user] = txStart;
+            for (int m = 0; m < aggs.length; ++m) {
+                aggs[m].accumulate(values[m], user, cursor, firstInTx);
+            }
+        }
+        return values;
+    }
+
+    private long[][] merge(final long[][] a, final long[][] b) {
+        for (int m = 0; m < a.length; ++m) {
+            final Aggregator agg = aggregators.get(m);
+            final long[] x = a[m];
+            final long[] y = b[m];
+            for (int u = 0; u < x.length; ++u) {
+                x[u] = agg.merge(x[u], y[u]);
+            }
+        }
+        return a;
+    }
+
+    /**
+     * Run every registered metric in one pass
+     */
+    public Aggregates run() {
+        final int[] bounds = chunkBounds();
+        final long[][] values = IntStream.range(0, bounds.length - 1)
+                                         .parallel()
+                                         .mapToObj(c -> accumulate(bounds[c], bounds[c + 1]))
+                                         .reduce(this::merge)
+                                         .orElseGet(this::newPartial);
+        final Map<String, long[]> byName = new LinkedHashMap<>();
+        for (int m = 0; m < values.length; ++m) {
+            byName.put(aggregators.get(m).getName(), values[m]);
+        }
+        return new Aggregates(numUsers, byName);
+    }
+
+    /**
+     * The result of a pass: one long[] per metric, indexed by user id
+     */
+    public static class Aggregates {
+        private final int numUsers;
+        private final Map<String, long[]> metrics;
+
+        Aggregates(final int numUsers, final Map<String, long[]> metrics) {
+            this.numUsers = numUsers;
+            this.metrics = metrics;
+        }
+
+        public int getUserNumber() {
+            return numUsers;
+        }
+
+        public Set<String> getNames() {
+            return Collections.unmodifiableSet(metrics.keySet());
+        }
+
+        /**
+         * The values of a metric. Do not modify.
+         *
+         * @throws IllegalArgumentException if no such metric was computed
+         */
+        public long[] get(final String name) {
+            final long[] ret = metrics.get(name);
+            if (ret == null) {
+                throw new IllegalArgumentException("No aggregate named " + name);
+            }
+            return ret;
+        }
+
+        public long[] get(final Aggregator aggregator) {
+            return get(aggregator.getName());
+        }
+    }
+}
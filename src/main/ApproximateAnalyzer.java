@@ -0,0 +1,256 @@
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Quick triage of a transaction dump in one streaming pass and fixed memory, instead of
+ * ClusterAnalyzer's clustering and exact per-user tables: distinct counts by HyperLogLog, the
+ * addresses with most receipts and most satoshi received by Space-Saving checked against
+ * count-min sketches, and value quantiles by QuantileSketch. Everything is per address, since
+ * users need the clustering. Every parse thread folds its chunks into sketches of its own (about
+ * 2 MB) and they are merged at the end, so memory does not grow with the input.
+ */
+public class ApproximateAnalyzer {
+    public static final String FLAG = "--approximate";
+    static final int HLL_PRECISION = 14;
+    static final int CM_DEPTH = 5;
+    static final int CM_WIDTH = 1 << 14;
+    static final int HEAVY_HITTERS = 4096;
+    static final double QUANTILE_ACCURACY = 0.01;
+    private static final int TOP_K = 10;
+
+    /**
+     * The sketches of part of the input; parts merge into the sketches of the whole
+     */
+    public static class Sketches implements TransactionParser.RecordHandler {
+        private final HyperLogLog addresses = new HyperLogLog(HLL_PRECISION);
+        private final HyperLogLog receivers = new HyperLogLog(HLL_PRECISION);
+        private final HyperLogLog senders = new HyperLogLog(HLL_PRECISION);
+        private final HyperLogLog transactions = new HyperLogLog(HLL_PRECISION);
+        private final CountMinSketch receipts = new CountMinSketch(CM_DEPTH, CM_WIDTH);
+        private final CountMinSketch received = new CountMinSketch(CM_DEPTH, CM_WIDTH);
+        private final SpaceSaving mostReceipts = new SpaceSaving(HEAVY_HITTERS);
+        private final SpaceSaving mostReceived = new SpaceSaving(HEAVY_HITTERS);
+        private final QuantileSketch outputValues = new QuantileSketch(QUANTILE_ACCURACY);
+        private final QuantileSketch inputValues = new QuantileSketch(QUANTILE_ACCURACY);
+        private long rows;
+        private long inputs;
+
+        @Override
+        public void record(final long txIndex, final ByteBuffer buf, final int hashOff, final int hashLen,
+                           final int addrOff, final int addrLen, final long value, final boolean in) {
+            final long addr = hash(buf, addrOff, addrLen);
+            rows++;
+            addresses.add(addr);
+            transactions.add(mix(txIndex));
+            if (in) {
+                inputs++;
+                senders.add(addr);
+                inputValues.add(value);
+                return;
+            }
+            receivers.add(addr);
+            outputValues.add(value);
+            receipts.add(addr, 1);
+            mostReceipts.add(addr, 1, buf, addrOff, addrLen);
+            if (value > 0) {
+                received.add(addr, value);
+                mostReceived.add(addr, value, buf, addrOff, addrLen);
+            }
+        }
+
+        public void merge(final Sketches other) {
+            addresses.merge(other.addresses);
+            receivers.merge(other.receivers);
+            senders.merge(other.senders);
+            transactions.merge(other.transactions);
+            receipts.merge(other.receipts);
+            received.merge(other.received);
+            mostReceipts.merge(other.mostReceipts);
+            mostReceived.merge(other.mostReceived);
+            outputValues.merge(other.outputValues);
+            inputValues.merge(other.inputValues);
+            rows += other.rows;
+            inputs += other.inputs;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        public long getAddressEstimate() {
+            return addresses.estimate();
+        }
+
+        public long getReceiverEstimate() {
+            return receivers.estimate();
+        }
+
+        public long getSenderEstimate() {
+            return senders.estimate();
+        }
+
+        public long getTransactionEstimate() {
+            return transactions.estimate();
+        }
+
+        /**
+         * Upper bound (with CM_DEPTH confidence) of the receipts of an address
+         */
+        public long estimateReceipts(final String address) {
+            return receipts.estimate(hash(address));
+        }
+
+        public long estimateReceived(final String address) {
+            return received.estimate(hash(address));
+        }
+
+        public QuantileSketch getOutputValues() {
+            return outputValues;
+        }
+
+        public QuantileSketch getInputValues() {
+            return inputValues;
+        }
+
+        /**
+         * Print the sketch answers with their error bounds
+         */
+        public void print(final PrintStream out) {
+            out.println(rows + " rows: " + (rows - inputs) + " outputs, " + inputs + " inputs");
+            out.printf("  ~%d addresses (~%d receiving, ~%d spending) in ~%d transactions, +-%.2f%% (one standard error)%n",
+                       addresses.estimate(), receivers.estimate(), senders.estimate(), transactions.estimate(),
+                       100 * addresses.getStandardError());
+            printTop(out, "receipts", mostReceipts, receipts);
+            printTop(out, "money received", mostReceived, received);
+            printQuantiles(out, "Output", outputValues);
+            printQuantiles(out, "Input", inputValues);
+        }
+
+        private static void printTop(final PrintStream out, final String what, final SpaceSaving top, final CountMinSketch counts) {
+            out.printf("Addresses with most %s: true value in [low, high]; any address missing had at most %d,"
+                       + " and count-min overcounts by at most %d with probability %.3f%n",
+                       what, top.getMissingBound(), counts.getErrorBound(), counts.getConfidence());
+            // rank by the tighter of the two upper bounds
+            final SpaceSaving.Entry[] entries = top.top(Integer.MAX_VALUE);
+            final long[] high = new long[entries.length];
+            for (int i = 0; i < entries.length; ++i) {
+                high[i] = Math.min(entries[i].getCount(), counts.estimate(entries[i].getId()));
+            }
+            final int[] ranked = Rankings.topK(high, TOP_K);
+            for (int r = 0; r < ranked.length; ++r) {
+                final SpaceSaving.Entry e = entries[ranked[r]];
+                out.println("  " + (r + 1) + ". " + e.getLabel() + ": [" + e.getLowerBound() + ", " + high[ranked[r]] + "]");
+            }
+        }
+
+        private static void printQuantiles(final PrintStream out, final String what, final QuantileSketch values) {
+            final long[] q = values.quantiles(0.25, 0.5, 0.75, 0.99);
+            out.printf("%s values: p25=%d p50=%d p75=%d p99=%d, each within %.0f%%%n",
+                       what, q[0], q[1], q[2], q[3], 100 * values.getAccuracy());
+        }
+    }
+
+    /**
+     * 64-bit finalizer of MurmurHash3
+     */
+    static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Hash of the ASCII bytes buf[off .. off + len - 1]
+     */
+    static long hash(final ByteBuffer buf, final int off, final int len) {
+        long h = len * 0x9E3779B97F4A7C15L;
+        int i = 0;
+        for (; i + 8 <= len; i += 8) {
+            h = Long.rotateLeft(h ^ mix(buf.getLong(off + i)), 27) * 5 + 0x52dce729;
+        }
+        long tail = 0;
+        for (; i < len; ++i) {
+            tail = tail << 8 | (buf.get(off + i) & 0xff);
+        }
+        return mix(h ^ mix(tail));
+    }
+
+    static long hash(final String address) {
+        final byte[] b = new byte[address.length()];
+        for (int i = 0; i < b.length; ++i) {
+            b[i] = (byte)address.charAt(i);
+        }
+        return hash(ByteBuffer.wrap(b), 0, b.length);
+    }
+
+    /**
+     * Sketch text transaction files in one pass each, chunks in parallel
+     */
+    public static Sketches run(final List<String> files) throws IOException {
+        final Sketches ret = new Sketches();
+        try (final RunMetrics.Phase phase = RunMetrics.global().begin("approximate")) {
+            for (final String file : files) {
+                // a chunk is parsed by one thread, so its handler can fold into that thread's sketches
+                final Map<Thread, Sketches> perThread = new ConcurrentHashMap<>();
+                new TransactionParser().parse(new File(file), () -> new TransactionParser.RecordHandler() {
+                    private Sketches sketches;
+
+                    @Override
+                    public void record(final long txIndex, final ByteBuffer buf, final int hashOff, final int hashLen,
+                                       final int addrOff, final int addrLen, final long value, final boolean in) {
+                        if (sketches == null) {
+                            sketches = perThread.computeIfAbsent(Thread.currentThread(), t -> new Sketches());
+                        }
+                        sketches.record(txIndex, buf, hashOff, hashLen, addrOff, addrLen, value, in);
+                    }
+                });
+                for (final Sketches part : perThread.values()) {
+                    ret.merge(part);
+                }
+                phase.addBytes(new File(file).length()).count("sketches", perThread.size());
+            }
+            phase.addRows(ret.getRows());
+        }
+        return ret;
+    }
+
+    /**
+     * ApproximateAnalyzer &lt;transactions&gt;... [-- address...]; the addresses after -- get
+     * count-min estimates of their receipts and satoshi received
+     */
+    public static void main(String[] args) throws IOException {
+        final List<String> files = new ArrayList<>();
+        final List<String> addresses = new ArrayList<>();
+        boolean queries = false;
+        for (final String arg : args) {
+            if (arg.equals("--")) {
+                queries = true;
+            } else {
+                (queries ? addresses : files).add(arg);
+            }
+        }
+        if (files.isEmpty()) {
+            files.add("transactions.txt");
+        }
+        final long start = System.nanoTime();
+        final Sketches sketches = run(files);
+        sketches.print(System.out);
+        for (final String address : addresses) {
+            System.out.println(address + ": at most " + sketches.estimateReceipts(address) + " receipts, "
+                               + sketches.estimateReceived(address) + " satoshi");
+        }
+        System.out.println("in " + (System.nanoTime() - start) / 1000000 + " ms");
+        RunMetrics.global().writeReport();
+    }
+}
@@ -0,0 +1,228 @@
+package main;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Base58Check addresses as bytes: a version byte, the 20-byte hash160 and the first 4 bytes of
+ * the double SHA-256 of those 21 bytes. Decoding only checks the shape (base58 digits worth 25
+ * bytes); checksumValid checks the checksum.
+ */
+public final class Base58Check {
+    public static final int ADDRESS_BYTES = 25;
+    public static final int PAYLOAD_BYTES = 21;
+    /** Longest text that can hold 25 bytes; 25 leading zero bytes would be 25 '1's */
+    private static final int MAX_TEXT = 35;
+    private static final char[] ALPHABET = "123456789ABCDEFGHJKLMNPQRSTUVWXYZabcdefghijkmnopqrstuvwxyz".toCharArray();
+    private static final byte[] DIGITS = new byte[128];
+    /** 25 bytes in 32-bit limbs, most significant first; the top limb holds 1 byte */
+    private static final int LIMBS = 7;
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException exp) {
+            throw new IllegalStateException(exp);
+        }
+    });
+
+    static {
+        Arrays.fill(DIGITS, (byte)-1);
+        for (int i = 0; i < ALPHABET.length; ++i) {
+            DIGITS[ALPHABET[i]] = (byte)i;
+        }
+    }
+
+    private Base58Check() {
+    }
+
+    private static int digit(final int c) {
+        return c < 0 || c >= DIGITS.length ? -1 : DIGITS[c];
+    }
+
+    /** Digits folded into one pass over the limbs; 58^5 still fits in 32 bits */
+    private static final int DIGITS_PER_PASS = 5;
+    private static final long[] POW58 = { 1, 58, 58 * 58, 58 * 58 * 58, 58 * 58 * 58 * 58, 58L * 58 * 58 * 58 * 58 };
+
+    /**
+     * value = value * m + d over the limbs; false once the value needs more than 25 bytes
+     */
+    private static boolean multiplyAdd(final long[] limbs, final long m, final long d) {
+        long carry = d;
+        for (int i = LIMBS - 1; i >= 0; --i) {
+            final long x = limbs[i] * m + carry;
+            limbs[i] = x & 0xffffffffL;
+            carry = x >>> 32;
+        }
+        return carry == 0 && limbs[0] < 0x100;
+    }
+
+    /**
+     * Write the 25 bytes of the limbs to dst and check that exactly zeros of them lead with zero
+     */
+    private static boolean toBytes(final long[] limbs, final int zeros, final byte[] dst, final int dstOff) {
+        dst[dstOff] = (byte)limbs[0];
+        for (int i = 1; i < LIMBS; ++i) {
+            final int p = dstOff + 1 + 4 * (i - 1);
+            dst[p] = (byte)(limbs[i] >>> 24);
+            dst[p + 1] = (byte)(limbs[i] >>> 16);
+            dst[p + 2] = (byte)(limbs[i] >>> 8);
+            dst[p + 3] = (byte)limbs[i];
+        }
+        int leading = 0;
+        while (leading < ADDRESS_BYTES && dst[dstOff + leading] == 0) {
+            leading++;
+        }
+        return leading == zeros;
+    }
+
+    /**
+     * Address text to decode, one char at a time
+     */
+    private interface Text {
+        int charAt(int i);
+    }
+
+    /**
+     * Decode the address text buf[off .. off + len - 1] (ASCII, read with absolute gets) into
+     * dst[dstOff .. dstOff + 24]
+     *
+     * @return false if the text is not base58 or is not worth exactly 25 bytes; dst is then
+     * undefined
+     */
+    public static boolean decode(final ByteBuffer buf, final int off, final int len, final byte[] dst, final int dstOff) {
+        return decode(i -> buf.get(off + i), len, dst, dstOff);
+    }
+
+    /**
+     * Decode address text given as chars of a String
+     *
+     * @see #decode(ByteBuffer, int, int, byte[], int)
+     */
+    public static boolean decode(final CharSequence text, final byte[] dst, final int dstOff) {
+        return decode(text::charAt, text.length(), dst, dstOff);
+    }
+
+    private static boolean decode(final Text text, final int len, final byte[] dst, final int dstOff) {
+        if (len > MAX_TEXT || len == 0) {
+            return false;
+        }
+        final long[] limbs = new long[LIMBS];
+        int zeros = 0;
+        while (zeros < len && text.charAt(zeros) == ALPHABET[0]) {
+            zeros++;
+        }
+        long acc = 0;
+        int n = 0;
+        for (int i = zeros; i < len; ++i) {
+            final int d = digit(text.charAt(i));
+            if (d < 0) {
+                return false;
+            }
+            acc = acc * 58 + d;
+            if (++n == DIGITS_PER_PASS) {
+                if (!multiplyAdd(limbs, POW58[n], acc)) {
+                    return false;
+                }
+                acc = 0;
+                n = 0;
+            }
+        }
+        return (n == 0 || multiplyAdd(limbs, POW58[n], acc)) && toBytes(limbs, zeros, dst, dstOff);
+    }
+
+    /**
+     * The 4 checksum bytes of a version byte and hash160
+     */
+    private static byte[] checksum(final byte[] payload, final int off) {
+        final MessageDigest sha256 = SHA256.get();
+        sha256.update(payload, off, PAYLOAD_BYTES);
+        return sha256.digest(sha256.digest());
+    }
+
+    /**
+     * True if the last 4 of the 25 bytes at address[off] are the checksum of the first 21
+     */
+    public static boolean checksumValid(final byte[] address, final int off) {
+        final byte[] check = checksum(address, off);
+        for (int i = 0; i < 4; ++i) {
+            if (check[i] != address[off + PAYLOAD_BYTES + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The 25 bytes of an address with this version and hash160, checksum included
+     */
+    public static byte[] fromPayload(final int version, final byte[] hash160, final int off) {
+        final byte[] ret = new byte[ADDRESS_BYTES];
+        ret[0] = (byte)version;
+        System.arraycopy(hash160, off, ret, 1, PAYLOAD_BYTES - 1);
+        System.arraycopy(checksum(ret, 0), 0, ret, PAYLOAD_BYTES, 4);
+        return ret;
+    }
+
+    /**
+     * Base58 text of data[off .. off + len - 1]; each leading zero byte becomes a '1'
+     */
+    public static String encode(final byte[] data, final int off, final int len) {
+        final char[] ret = new char[maxChars(len)];
+        return new String(ret, 0, encode(data, off, len, ret, 0));
+    }
+
+    /**
+     * Most chars the text of len bytes can take
+     */
+    public static int maxChars(final int len) {
+        return len * 138 / 100 + 1;
+    }
+
+    /**
+     * Write the base58 text of data[off .. off + len - 1] to dst, which must have room for
+     * maxChars(len) chars
+     *
+     * @return number of chars written
+     */
+    public static int encode(final byte[] data, final int off, final int len, final char[] dst, final int dstOff) {
+        int zeros = 0;
+        while (zeros < len && data[off + zeros] == 0) {
+            zeros++;
+        }
+        // the value in 32-bit limbs, most significant first, divided by 58^5 until it is zero
+        final int numLimbs = (len - zeros + 3) / 4;
+        final long[] limbs = new long[numLimbs];
+        for (int k = zeros; k < len; ++k) {
+            final int limb = numLimbs - 1 - (len - 1 - k) / 4;
+            limbs[limb] = limbs[limb] << 8 | (data[off + k] & 0xff);
+        }
+        final char[] digits = new char[maxChars(len)]; // least significant first
+        int length = 0;
+        int top = 0;
+        while (top < numLimbs) {
+            long rem = 0;
+            for (int i = top; i < numLimbs; ++i) {
+                final long x = rem << 32 | limbs[i];
+                limbs[i] = x / POW58[DIGITS_PER_PASS];
+                rem = x % POW58[DIGITS_PER_PASS];
+            }
+            while (top < numLimbs && limbs[top] == 0) {
+                top++;
+            }
+            for (int i = 0; i < DIGITS_PER_PASS && (rem > 0 || top < numLimbs); ++i) {
+                digits[length++] = ALPHABET[(int)(rem % 58)];
+                rem /= 58;
+            }
+        }
+        int p = dstOff;
+        for (int i = 0; i < zeros; ++i) {
+            dst[p++] = ALPHABET[0];
+        }
+        for (int i = length - 1; i >= 0; --i) {
+            dst[p++] = digits[i];
+        }
+        return p - dstOff;
+    }
+}
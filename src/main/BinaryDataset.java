@@ -0,0 +1,547 @@
+package main;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Versioned binary form of the transaction dataset. Layout:
+ *
+ * <pre>
+ * header     "BTXD" magic, int version
+ * blocks     independent runs of transaction groups; a group is the consecutive rows of one
+ *            transaction: zigzag varint tx index delta (from the previous group in the block),
+ *            hash (kind byte 0 + 32 raw bytes, or kind 1 + varint length + ASCII bytes),
+ *            if WITH_HEIGHT (4) is or-ed into the kind zigzag varint height and time deltas (from
+ *            the previous group in the block), varint row count, then per row varint
+ *            (addressId << 1 | in) and varint value
+ * addresses  varint count, then varint length + AddressDictionary key per address, in id order
+ * index      per block: long offset, int rows, int groups
+ * footer     long addresses offset, long index offset, int blocks, long rows, "BTXD" magic
+ * </pre>
+ *
+ * Multi-byte fixed-width fields are big-endian. Blocks are decoded in parallel straight from the
+ * mapped file into the columns of a {@link TransactionStore}.
+ */
+public class BinaryDataset {
+    public static final int MAGIC = 0x42545844; // "BTXD"
+    public static final int VERSION = 1;
+    private static final int HEADER_BYTES = 8;
+    private static final int FOOTER_BYTES = 32;
+    private static final int INDEX_ENTRY_BYTES = 16;
+    private static final int BLOCK_ROWS = 1 << 16;
+
+    private static final int HASH_PACKED = 0;
+    private static final int HASH_RAW = 1;
+    /** Or-ed into the hash kind of a group that has a height and time */
+    private static final int WITH_HEIGHT = 4;
+
+    /**
+     * Growable byte array with varint helpers
+     */
+    static class ByteSink {
+        byte[] buf = new byte[1 << 16];
+        int len;
+
+        private void ensure(final int n) {
+            if (len + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(len + n, buf.length * 2));
+            }
+        }
+
+        void write(final int b) {
+            ensure(1);
+            buf[len++] = (byte)b;
+        }
+
+        void write(final byte[] b, final int off, final int n) {
+            ensure(n);
+            System.arraycopy(b, off, buf, len, n);
+            len += n;
+        }
+
+        void writeInt(final int v) {
+            ensure(4);
+            buf[len++] = (byte)(v >>> 24);
+            buf[len++] = (byte)(v >>> 16);
+            buf[len++] = (byte)(v >>> 8);
+            buf[len++] = (byte)v;
+        }
+
+        void writeLong(final long v) {
+            writeInt((int)(v >>> 32));
+            writeInt((int)v);
+        }
+
+        void writeVarLong(long v) {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                buf[len++] = (byte)((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[len++] = (byte)v;
+        }
+
+        void writeZigZag(final long v) {
+            writeVarLong((v << 1) ^ (v >> 63));
+        }
+
+        void reset() {
+            len = 0;
+        }
+    }
+
+    static long readVarLong(final ByteBuffer buf) {
+        long ret = 0;
+        int shift = 0;
+        byte b;
+        do {
+            if (shift > 63) {
+                throw new RuntimeException("Malformed varint at offset " + buf.position());
+            }
+            b = buf.get();
+            ret |= (long)(b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return ret;
+    }
+
+    static long readZigZag(final ByteBuffer buf) {
+        final long v = readVarLong(buf);
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /**
+     * Streams rows into a binary dataset. Rows are grouped per transaction as they arrive, so the
+     * rows of a transaction should be added consecutively (as DatasetGenerator does).
+     */
+    public static class Writer implements Closeable {
+        private final FileOutputStream out;
+        private final AddressDictionary addresses = new AddressDictionary();
+        private final ByteSink block = new ByteSink();
+        private final ByteSink index = new ByteSink();
+        private long offset;
+        private int blocks;
+        private long rows;
+        private int blockRows;
+        private int blockGroups;
+        private long prevTxIndex;
+        private int prevHeight;
+        private long prevTime;
+
+        // pending group
+        private long groupTxIndex;
+        private int groupHeight;
+        private long groupTime;
+        private String groupHash;
+        private final byte[] groupPacked = new byte[TransactionStore.HASH_BYTES];
+        private boolean groupIsPacked;
+        private int groupRows;
+        private final ByteSink groupBody = new ByteSink();
+
+        public Writer(final File file) throws IOException {
+            out = new FileOutputStream(file);
+            final ByteSink header = new ByteSink();
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+            emit(header);
+        }
+
+        private void emit(final ByteSink sink) throws IOException {
+            out.write(sink.buf, 0, sink.len);
+            offset += sink.len;
+        }
+
+        public void add(final long txIndex, final String hash, final String address, final long value, final boolean in) throws IOException {
+            add(txIndex, hash, address, value, in, TransactionParser.UNKNOWN_HEIGHT, TransactionParser.UNKNOWN_TIME);
+        }
+
+        public void add(final long txIndex, final String hash, final String address, final long value, final boolean in,
+                        final int height, final long time) throws IOException {
+            if (groupRows == 0 || txIndex != groupTxIndex || !hash.equals(groupHash) || height != groupHeight || time != groupTime) {
+                endGroup();
+                groupTxIndex = txIndex;
+                groupHeight = height;
+                groupTime = time;
+                groupHash = hash;
+                groupIsPacked = packHex(hash, groupPacked);
+            }
+            addRow(addresses.intern(address), value, in);
+        }
+
+        /**
+         * Append a row of a store, reusing its packed hash
+         */
+        void add(final TransactionStore store, final int row, final int addrId, final byte[] scratch) throws IOException {
+            final long txIndex = store.txIndex(row);
+            final int height = store.height(row);
+            final long time = store.time(row);
+            final boolean packed = store.hashBytes(row, scratch, 0);
+            final boolean same = groupRows > 0 && txIndex == groupTxIndex && height == groupHeight && time == groupTime
+                                 && packed == groupIsPacked && (packed ? Arrays.equals(scratch, groupPacked) : store.hash(row).equals(groupHash));
+            if (!same) {
+                endGroup();
+                groupTxIndex = txIndex;
+                groupHeight = height;
+                groupTime = time;
+                groupIsPacked = packed;
+                groupHash = null;
+                if (packed) {
+                    System.arraycopy(scratch, 0, groupPacked, 0, TransactionStore.HASH_BYTES);
+                } else {
+                    groupHash = store.hash(row);
+                }
+            }
+            addRow(addrId, store.amount(row), store.isInput(row));
+        }
+
+        private void addRow(final int addrId, final long value, final boolean in) {
+            groupBody.writeVarLong(((long)addrId << 1) | (in ? 1 : 0));
+            groupBody.writeZigZag(value);
+            groupRows++;
+        }
+
+        private void endGroup() throws IOException {
+            if (groupRows == 0) {
+                return;
+            }
+            block.writeZigZag(groupTxIndex - prevTxIndex);
+            prevTxIndex = groupTxIndex;
+            final boolean withHeight = groupHeight != TransactionParser.UNKNOWN_HEIGHT || groupTime != TransactionParser.UNKNOWN_TIME;
+            if (groupIsPacked) {
+                block.write(HASH_PACKED | (withHeight ? WITH_HEIGHT : 0));
+                block.write(groupPacked, 0, groupPacked.length);
+            } else {
+                final byte[] raw = groupHash.getBytes(java.nio.charset.StandardCharsets.ISO_8859_1);
+                block.write(HASH_RAW | (withHeight ? WITH_HEIGHT : 0));
+                block.writeVarLong(raw.length);
+                block.write(raw, 0, raw.length);
+            }
+            if (withHeight) {
+                block.writeZigZag((long)groupHeight - prevHeight);
+                block.writeZigZag(groupTime - prevTime);
+                prevHeight = groupHeight;
+                prevTime = groupTime;
+            }
+            block.writeVarLong(groupRows);
+            block.write(groupBody.buf, 0, groupBody.len);
+            blockRows += groupRows;
+            blockGroups++;
+            groupRows = 0;
+            groupBody.reset();
+            if (blockRows >= BLOCK_ROWS) {
+                endBlock();
+            }
+        }
+
+        private void endBlock() throws IOException {
+            if (blockRows == 0) {
+                return;
+            }
+            index.writeLong(offset);
+            index.writeInt(blockRows);
+            index.writeInt(blockGroups);
+            emit(block);
+            block.reset();
+            rows += blockRows;
+            blocks++;
+            blockRows = 0;
+            blockGroups = 0;
+            prevTxIndex = 0;
+            prevHeight = 0;
+            prevTime = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                endGroup();
+                endBlock();
+                final long addressesOffset = offset;
+                final ByteSink table = new ByteSink();
+                table.writeVarLong(addresses.size());
+                final byte[] scratch = new byte[256];
+                for (int id = 0; id < addresses.size(); ++id) {
+                    final byte[] b = addresses.keyLength(id) > scratch.length ? new byte[addresses.keyLength(id)] : scratch;
+                    final int n = addresses.copyKey(id, b, 0);
+                    table.writeVarLong(n);
+                    table.write(b, 0, n);
+                    if (table.len > (1 << 20)) {
+                        emit(table);
+                        table.reset();
+                    }
+                }
+                emit(table);
+                final long indexOffset = offset;
+                emit(index);
+                final ByteSink footer = new ByteSink();
+                footer.writeLong(addressesOffset);
+                footer.writeLong(indexOffset);
+                footer.writeInt(blocks);
+                footer.writeLong(rows);
+                footer.writeInt(MAGIC);
+                emit(footer);
+            } finally {
+                out.close();
+            }
+        }
+
+        private Writer withAddresses(final AddressDictionary dict) {
+            final byte[] scratch = new byte[256];
+            for (int id = 0; id < dict.size(); ++id) {
+                final byte[] b = dict.keyLength(id) > scratch.length ? new byte[dict.keyLength(id)] : scratch;
+                addresses.internKey(b, 0, dict.copyKey(id, b, 0));
+            }
+            return this;
+        }
+    }
+
+    private static boolean packHex(final String hash, final byte[] dst) {
+        if (hash.length() != TransactionStore.HASH_BYTES * 2) {
+            return false;
+        }
+        for (int i = 0; i < dst.length; ++i) {
+            final int hi = TransactionStore.hexDigit(hash.charAt(2 * i));
+            final int lo = TransactionStore.hexDigit(hash.charAt(2 * i + 1));
+            if (hi < 0 || lo < 0) {
+                return false;
+            }
+            dst[i] = (byte)((hi << 4) | lo);
+        }
+        return true;
+    }
+
+    /**
+     * Write a whole store. The store's address ids are kept as they are.
+     */
+    public static void write(final TransactionStore store, final File file) throws IOException {
+        try (final Writer writer = new Writer(file).withAddresses(store.getAddresses())) {
+            final byte[] scratch = new byte[TransactionStore.HASH_BYTES];
+            for (int row = 0; row < store.size(); ++row) {
+                writer.add(store, row, store.addressId(row), scratch);
+            }
+        }
+    }
+
+    /**
+     * Convert a text dataset (as written by DatasetGenerator.writeTransactions) to binary
+     *
+     * @return number of rows converted
+     */
+    public static int convert(final File text, final File binary) throws IOException {
+        final List<TransactionStore> parts = new ArrayList<>();
+        for (final TransactionStore.Builder chunk : new TransactionParser().parse(text, TransactionStore.Builder::new)) {
+            parts.add(chunk.build());
+        }
+        final TransactionStore store = TransactionStore.concat(parts);
+        write(store, binary);
+        return store.size();
+    }
+
+    /**
+     * Map a binary dataset and decode it into a store
+     */
+    public static TransactionStore read(final File file) throws IOException {
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size < HEADER_BYTES + FOOTER_BYTES) {
+                throw new IOException(file + " is too short to be a binary dataset");
+            }
+            final ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES).order(ByteOrder.BIG_ENDIAN);
+            if (header.getInt() != MAGIC) {
+                throw new IOException(file + " is not a binary dataset");
+            }
+            final int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException(file + " has unsupported version " + version);
+            }
+            final ByteBuffer footer = channel.map(FileChannel.MapMode.READ_ONLY, size - FOOTER_BYTES, FOOTER_BYTES);
+            final long addressesOffset = footer.getLong();
+            final long indexOffset = footer.getLong();
+            final int numBlocks = footer.getInt();
+            final long numRows = footer.getLong();
+            if (footer.getInt() != MAGIC) {
+                throw new IOException(file + " has a corrupt footer");
+            }
+            if (numRows > TransactionStore.MAX_ROWS) {
+                throw new IOException(file + " has too many rows: " + numRows);
+            }
+
+            final ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, (long)numBlocks * INDEX_ENTRY_BYTES);
+            final long[] blockOffset = new long[numBlocks + 1];
+            final int[] blockFirstRow = new int[numBlocks + 1];
+            final int[] blockGroups = new int[numBlocks];
+            for (int b = 0; b < numBlocks; ++b) {
+                blockOffset[b] = index.getLong();
+                blockFirstRow[b + 1] = blockFirstRow[b] + index.getInt();
+                blockGroups[b] = index.getInt();
+            }
+            blockOffset[numBlocks] = addressesOffset;
+
+            final AddressDictionary addresses = new AddressDictionary();
+            final MappedByteBuffer table = channel.map(FileChannel.MapMode.READ_ONLY, addressesOffset, indexOffset - addressesOffset);
+            final long numAddresses = readVarLong(table);
+            byte[] key = new byte[64];
+            for (long i = 0; i < numAddresses; ++i) {
+                final int len = (int)readVarLong(table);
+                if (len > key.length) {
+                    key = new byte[len];
+                }
+                table.get(key, 0, len);
+                addresses.internKey(key, 0, len);
+            }
+
+            final int rows = (int)numRows;
+            final long[] txIndex = new long[rows];
+            final long[] amount = new long[rows];
+            final int[] addr = new int[rows];
+            final HashColumn hashes = new HashColumn(rows);
+            // dropped again below if no group turns out to have a height
+            final int[] height = new int[rows];
+            final long[] time = new long[rows];
+            final BitSet[] blockIn = new BitSet[numBlocks];
+            final boolean[] blockHeights = new boolean[numBlocks];
+            final List<Map<Integer, String>> blockRawHashes = new ArrayList<>();
+            final List<Callable<Void>> tasks = new ArrayList<>();
+            for (int b = 0; b < numBlocks; ++b) {
+                final int block = b;
+                blockIn[b] = new BitSet();
+                blockRawHashes.add(new HashMap<>());
+                tasks.add(() -> {
+                    final ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, blockOffset[block], blockOffset[block + 1] - blockOffset[block]);
+                    blockHeights[block] = decodeBlock(buf, blockGroups[block], blockFirstRow[block], blockFirstRow[block + 1], txIndex, amount,
+                                                      addr, hashes, height, time, blockIn[block], blockRawHashes.get(block), addresses.size());
+                    return null;
+                });
+            }
+            runAll(tasks, file);
+            boolean anyHeights = false;
+            for (final boolean b : blockHeights) {
+                anyHeights |= b;
+            }
+
+            final BitSet in = new BitSet(rows);
+            final Map<Integer, String> rawHashes = new HashMap<>();
+            for (int b = 0; b < numBlocks; ++b) {
+                in.or(blockIn[b]);
+                rawHashes.putAll(blockRawHashes.get(b));
+            }
+            return TransactionStore.wrap(rows, txIndex, amount, in, addr, hashes, rawHashes,
+                                         anyHeights ? height : null, anyHeights ? time : null, addresses);
+        }
+    }
+
+    /**
+     * Decode a block's rows into the columns
+     *
+     * @return true if a group of the block has a height
+     */
+    private static boolean decodeBlock(final ByteBuffer buf, final int groups, final int firstRow, final int endRow,
+                                       final long[] txIndex, final long[] amount, final int[] addr, final HashColumn hashes,
+                                       final int[] height, final long[] time,
+                                       final BitSet in, final Map<Integer, String> rawHashes, final int numAddresses) {
+        int row = firstRow;
+        long prev = 0;
+        long prevHeight = 0;
+        long prevTime = 0;
+        boolean anyHeight = false;
+        final byte[] packed = new byte[TransactionStore.HASH_BYTES];
+        for (int g = 0; g < groups; ++g) {
+            final long tx = prev + readZigZag(buf);
+            prev = tx;
+            int kind = buf.get();
+            final boolean withHeight = (kind & WITH_HEIGHT) != 0;
+            if (withHeight) {
+                kind &= ~WITH_HEIGHT;
+            }
+            String raw = null;
+            if (kind == HASH_PACKED) {
+                buf.get(packed);
+            } else if (kind == HASH_RAW) {
+                final byte[] b = new byte[(int)readVarLong(buf)];
+                buf.get(b);
+                raw = new String(b, java.nio.charset.StandardCharsets.ISO_8859_1);
+            } else {
+                throw new RuntimeException("Unknown hash kind " + kind + " in block at row " + firstRow);
+            }
+            int groupHeight = TransactionParser.UNKNOWN_HEIGHT;
+            long groupTime = TransactionParser.UNKNOWN_TIME;
+            if (withHeight) {
+                prevHeight += readZigZag(buf);
+                prevTime += readZigZag(buf);
+                groupHeight = (int)prevHeight;
+                groupTime = prevTime;
+                anyHeight = true;
+            }
+            final int n = (int)readVarLong(buf);
+            if (row + n > endRow) {
+                throw new RuntimeException("Block at row " + firstRow + " holds more rows than its index says");
+            }
+            if (height != null) {
+                Arrays.fill(height, row, row + n, groupHeight);
+                Arrays.fill(time, row, row + n, groupTime);
+            }
+            for (int i = 0; i < n; ++i, ++row) {
+                final long key = readVarLong(buf);
+                final long id = key >>> 1;
+                if (id >= numAddresses) {
+                    throw new RuntimeException("Address id " + id + " out of range at row " + row);
+                }
+                txIndex[row] = tx;
+                addr[row] = (int)id;
+                amount[row] = readZigZag(buf);
+                if ((key & 1) != 0) {
+                    in.set(row);
+                }
+                if (raw == null) {
+                    hashes.set(row, packed, 0);
+                } else {
+                    rawHashes.put(row, raw);
+                }
+            }
+        }
+        if (row != endRow) {
+            throw new RuntimeException("Block at row " + firstRow + " holds fewer rows than its index says");
+        }
+        return anyHeight;
+    }
+
+    private static void runAll(final List<Callable<Void>> tasks, final File file) throws IOException {
+        final ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(tasks.size(), Runtime.getRuntime().availableProcessors())));
+        try {
+            for (final Future<Void> future : pool.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (final InterruptedException exp) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading " + file, exp);
+        } catch (final ExecutionException exp) {
+            final Throwable cause = exp.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            throw new RuntimeException("Failed to read " + file, cause);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Convert a text dataset to the binary format: BinaryDataset &lt;text file&gt; &lt;binary file&gt;
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: BinaryDataset <transactions.txt> <transactions.btx>");
+            System.exit(1);
+        }
+        final File text = new File(args[0]);
+        final File binary = new File(args[1]);
+        final int rows = convert(text, binary);
+        System.out.println("Converted " + rows + " rows: " + text.length() + " -> " + binary.length() + " bytes");
+    }
+}
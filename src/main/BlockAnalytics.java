@@ -0,0 +1,232 @@
+package main;
+
+import info.blockchain.api.APIException;
+import info.blockchain.api.blockexplorer.Block;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Block statistics over a height range: a BlockStats row per block and rollups over the range.
+ * Heights are fetched through a BlockFetcher whose threads also compute the rows, so the blocks of
+ * a height are dropped as soon as they are summarized and a range from a local cache
+ * (CachingBlockSource with -Dblockcache.offline=true, or FixtureBlockSource) is processed on all
+ * cores.
+ */
+public class BlockAnalytics {
+    private final BlockSource source;
+    private final int threads;
+
+    public BlockAnalytics() {
+        this(CachingBlockSource.standard(), Math.max(BlockFetcher.DEFAULT_MAX_IN_FLIGHT, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * @param source
+     * @param threads heights fetched and summarized at once
+     */
+    public BlockAnalytics(final BlockSource source, final int threads) {
+        this.source = source;
+        this.threads = threads;
+    }
+
+    /**
+     * Summarize heights minHeight..maxHeight (inclusive)
+     */
+    public Result run(final long minHeight, final long maxHeight) throws APIException, IOException {
+        final List<BlockStats> rows = new ArrayList<>();
+        try (final RunMetrics.Phase phase = RunMetrics.global().begin("blockAnalytics")) {
+            final BlockFetcher fetcher = new BlockFetcher(source, threads, BlockFetcher.DEFAULT_MAX_RETRIES, BlockFetcher.DEFAULT_BACKOFF_MILLIS);
+            fetcher.fetch(minHeight, maxHeight, (height, blocks) -> {
+                // the same block can be listed twice at a height; keep the first
+                final List<BlockStats> ret = new ArrayList<>(blocks.size());
+                final Set<String> seen = new HashSet<>();
+                for (final Block block : blocks) {
+                    if (seen.add(block.getHash())) {
+                        ret.add(BlockStats.of(block));
+                    }
+                }
+                return ret;
+            }, (height, stats) -> {
+                rows.addAll(stats);
+                long txs = 0;
+                for (final BlockStats s : stats) {
+                    txs += s.getTxCount();
+                    phase.addBytes(s.getSize());
+                }
+                phase.addRows(stats.size()).count("heights", 1).count("transactions", txs);
+            });
+        }
+        return new Result(minHeight, maxHeight, rows);
+    }
+
+    /**
+     * The rows of a range in height order, and rollups over its main-chain blocks
+     */
+    public static class Result {
+        private final long minHeight, maxHeight;
+        private final List<BlockStats> rows;
+        private int blocks, staleBlocks;
+        private long size, txCount, inputCount, outputCount, coinbaseCount, satoshiGenerated, outputValue, fees;
+        private BlockStats largestBlock, busiestBlock, largestReceipt;
+
+        Result(final long minHeight, final long maxHeight, final List<BlockStats> rows) {
+            this.minHeight = minHeight;
+            this.maxHeight = maxHeight;
+            this.rows = Collections.unmodifiableList(rows);
+            for (final BlockStats s : rows) {
+                if (!s.isMainChain()) {
+                    staleBlocks++;
+                    continue;
+                }
+                blocks++;
+                size += s.getSize();
+                txCount += s.getTxCount();
+                inputCount += s.getInputCount();
+                outputCount += s.getOutputCount();
+                coinbaseCount += s.getCoinbaseCount();
+                satoshiGenerated += s.getSatoshiGenerated();
+                outputValue += s.getOutputValue();
+                fees += s.getFees();
+                if (largestBlock == null || s.getSize() > largestBlock.getSize()) {
+                    largestBlock = s;
+                }
+                if (busiestBlock == null || s.getTxCount() > busiestBlock.getTxCount()) {
+                    busiestBlock = s;
+                }
+                if (s.getLargestReceiver() != null && (largestReceipt == null || s.getLargestReceived() > largestReceipt.getLargestReceived())) {
+                    largestReceipt = s;
+                }
+            }
+        }
+
+        public long getMinHeight() {
+            return minHeight;
+        }
+
+        public long getMaxHeight() {
+            return maxHeight;
+        }
+
+        /**
+         * Every block of the range, main chain or not, in height order
+         */
+        public List<BlockStats> getRows() {
+            return rows;
+        }
+
+        public int getBlockNumber() {
+            return blocks;
+        }
+
+        /**
+         * Blocks off the main chain, left out of the rollups
+         */
+        public int getStaleBlockNumber() {
+            return staleBlocks;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getTxCount() {
+            return txCount;
+        }
+
+        public long getInputCount() {
+            return inputCount;
+        }
+
+        public long getOutputCount() {
+            return outputCount;
+        }
+
+        public long getCoinbaseCount() {
+            return coinbaseCount;
+        }
+
+        public long getSatoshiGenerated() {
+            return satoshiGenerated;
+        }
+
+        public long getOutputValue() {
+            return outputValue;
+        }
+
+        public long getFees() {
+            return fees;
+        }
+
+        /**
+         * The first of the largest blocks, null for an empty range
+         */
+        public BlockStats getLargestBlock() {
+            return largestBlock;
+        }
+
+        /**
+         * The first of the blocks with the most transactions
+         */
+        public BlockStats getBusiestBlock() {
+            return busiestBlock;
+        }
+
+        /**
+         * The block holding the largest single-transaction receipt of the range
+         */
+        public BlockStats getLargestReceipt() {
+            return largestReceipt;
+        }
+
+        /**
+         * Write one tab-separated line per block under a header line
+         */
+        public void writeRows(final File file) throws IOException {
+            try (final BufferedWriter w = new BufferedWriter(new FileWriter(file), 1 << 16)) {
+                w.write("height\thash\tmainChain\ttime\tsize\ttxCount\tinputs\toutputs\tcoinbase\tgenerated\tinputValue\toutputValue\tfees"
+                        + "\tmaxOutputsTx\tmaxOutputs\tmaxInputsTx\tmaxInputs\tlargestReceiver\tlargestReceived\n");
+                for (final BlockStats s : rows) {
+                    w.write(s.getHeight() + "\t" + s.getHash() + "\t" + s.isMainChain() + "\t" + s.getTime() + "\t" + s.getSize()
+                            + "\t" + s.getTxCount() + "\t" + s.getInputCount() + "\t" + s.getOutputCount() + "\t" + s.getCoinbaseCount()
+                            + "\t" + s.getSatoshiGenerated() + "\t" + s.getInputValue() + "\t" + s.getOutputValue() + "\t" + s.getFees()
+                            + "\t" + s.getMaxOutputsTx() + "\t" + s.getOutputAddresses().size()
+                            + "\t" + s.getMaxInputsTx() + "\t" + s.getInputAddresses().size()
+                            + "\t" + s.getLargestReceiver() + "\t" + s.getLargestReceived() + "\n");
+                }
+            }
+        }
+
+        public void print(final PrintStream out) {
+            out.println("Heights " + minHeight + ".." + maxHeight + ": " + blocks + " blocks (" + staleBlocks + " stale), "
+                        + txCount + " transactions, " + size + " bytes");
+            out.println("  " + inputCount + " inputs, " + outputCount + " outputs, " + coinbaseCount + " coinbase transactions");
+            out.println("  " + satoshiGenerated + " satoshi generated, " + outputValue + " satoshi transferred, " + fees + " satoshi in fees");
+            if (blocks > 0) {
+                out.println("  mean " + size / blocks + " bytes and " + txCount / blocks + " transactions per block");
+                out.println("  largest block " + largestBlock.getHeight() + " (" + largestBlock.getSize() + " bytes), busiest "
+                            + busiestBlock.getHeight() + " (" + busiestBlock.getTxCount() + " transactions)");
+            }
+            if (largestReceipt != null) {
+                out.println("  largest receipt " + largestReceipt.getLargestReceived() + " satoshi to "
+                            + largestReceipt.getLargestReceiver() + " at height " + largestReceipt.getHeight());
+            }
+        }
+    }
+
+    /**
+     * BlockAnalytics &lt;minHeight&gt; &lt;maxHeight&gt; [rows file]
+     */
+    public static void main(String[] args) throws APIException, IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: BlockAnalytics <minHeight> <maxHeight> [rows file]");
+            System.exit(1);
+        }
+        final Result result = new BlockAnalytics().run(Long.parseLong(args[0]), Long.parseLong(args[1]));
+        result.print(System.out);
+        if (args.length > 2) {
+            result.writeRows(new File(args[2]));
+        }
+        RunMetrics.global().writeReport();
+    }
+}
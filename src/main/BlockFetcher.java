@@ -0,0 +1,155 @@
+package main;
+
+import info.blockchain.api.APIException;
+import info.blockchain.api.blockexplorer.Block;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Fetches a range of block heights with up to maxInFlight requests outstanding at once, retrying
+ * transient failures (IO errors, HTTP 429 and 5xx) with exponential backoff, and hands the
+ * results back strictly in height order. Anything else, such as a block that is not there, fails
+ * at once.
+ */
+public class BlockFetcher {
+    public static final int DEFAULT_MAX_IN_FLIGHT = 8;
+    public static final int DEFAULT_MAX_RETRIES = 5;
+    public static final long DEFAULT_BACKOFF_MILLIS = 500;
+
+    /**
+     * Receives the blocks of each height, in ascending height order
+     */
+    public interface HeightConsumer {
+        void accept(long height, List<Block> blocks) throws IOException;
+    }
+
+    /**
+     * Turns the blocks of a height into a result; runs on the fetching threads, so heights are
+     * mapped in parallel
+     */
+    public interface HeightMapper<T> {
+        T map(long height, List<Block> blocks) throws IOException;
+    }
+
+    /**
+     * Receives the mapped result of each height, in ascending height order
+     */
+    public interface ResultConsumer<T> {
+        void accept(long height, T result) throws IOException;
+    }
+
+    private final BlockSource source;
+    private final int maxInFlight;
+    private final int maxRetries;
+    private final long backoffMillis;
+
+    public BlockFetcher(final BlockSource source) {
+        this(source, DEFAULT_MAX_IN_FLIGHT, DEFAULT_MAX_RETRIES, DEFAULT_BACKOFF_MILLIS);
+    }
+
+    /**
+     * @param source
+     * @param maxInFlight
+     *            Maximum number of requests outstanding at once
+     * @param maxRetries
+     *            Retries per height after the first attempt fails
+     * @param backoffMillis
+     *            Delay before the first retry; doubled on each further retry
+     */
+    public BlockFetcher(final BlockSource source, final int maxInFlight, final int maxRetries, final long backoffMillis) {
+        if (maxInFlight <= 0 || maxRetries < 0 || backoffMillis < 0) {
+            throw new IllegalArgumentException("maxInFlight must be positive, maxRetries and backoffMillis non-negative");
+        }
+        this.source = source;
+        this.maxInFlight = maxInFlight;
+        this.maxRetries = maxRetries;
+        this.backoffMillis = backoffMillis;
+    }
+
+    private List<Block> fetchWithRetries(final long height) throws APIException, IOException, InterruptedException {
+        long delay = backoffMillis;
+        for (int attempt = 0; ; ++attempt) {
+            try {
+                return source.getBlocksAtHeight(height);
+            } catch (final APIException | IOException exp) {
+                if (attempt >= maxRetries || !isTransient(exp)) {
+                    throw exp;
+                }
+                // jitter so that many failed requests do not retry in lockstep
+                Thread.sleep(delay + ThreadLocalRandom.current().nextLong(delay / 2 + 1));
+                delay = Math.min(delay * 2, TimeUnit.MINUTES.toMillis(1));
+            }
+        }
+    }
+
+    /**
+     * True for failures that a retry may get past
+     */
+    static boolean isTransient(final Exception exp) {
+        if (exp instanceof BlockSourceException) {
+            return ((BlockSourceException)exp).isTransient();
+        }
+        return exp instanceof IOException && !(exp instanceof InterruptedIOException);
+    }
+
+    /**
+     * Fetch heights minHeight..maxHeight (inclusive). At most maxInFlight heights are pending or
+     * buffered at any time, so a slow consumer throttles the requests.
+     */
+    public void fetch(final long minHeight, final long maxHeight, final HeightConsumer consumer) throws APIException, IOException {
+        fetch(minHeight, maxHeight, (height, blocks) -> blocks, consumer::accept);
+    }
+
+    /**
+     * Fetch heights minHeight..maxHeight (inclusive) and map each one on the fetching thread, so
+     * that the blocks can be dropped as soon as they are mapped and the mapping work is spread
+     * over maxInFlight threads; results are handed to the consumer in height order
+     */
+    public <T> void fetch(final long minHeight, final long maxHeight, final HeightMapper<T> mapper, final ResultConsumer<T> consumer) throws APIException, IOException {
+        final ExecutorService pool = Executors.newFixedThreadPool(maxInFlight, runnable -> {
+            final Thread thread = new Thread(runnable, "block-fetcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final Deque<Future<T>> window = new ArrayDeque<>();
+        long nextToSubmit = minHeight;
+        try {
+            for (long height = minHeight; height <= maxHeight; ++height) {
+                while (nextToSubmit <= maxHeight && window.size() < maxInFlight) {
+                    final long h = nextToSubmit++;
+                    window.addLast(pool.submit(() -> mapper.map(h, fetchWithRetries(h))));
+                }
+                consumer.accept(height, window.removeFirst().get());
+            }
+        } catch (final InterruptedException exp) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while fetching blocks");
+        } catch (final ExecutionException exp) {
+            final Throwable cause = exp.getCause();
+            if (cause instanceof APIException) {
+                throw (APIException)cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException)cause;
+            } else if (cause instanceof InterruptedException) {
+                throw new InterruptedIOException("Interrupted while fetching blocks");
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Fetch a range into memory
+     *
+     * @return the blocks of every height, in height order
+     */
+    public List<Block> fetchAll(final long minHeight, final long maxHeight) throws APIException, IOException {
+        final List<Block> ret = new ArrayList<>();
+        fetch(minHeight, maxHeight, (height, blocks) -> ret.addAll(blocks));
+        return ret;
+    }
+}
@@ -0,0 +1,40 @@
+package main;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import info.blockchain.api.APIException;
+import info.blockchain.api.blockexplorer.Block;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Where blocks come from: the blockchain.info API, a local stand-in for it, or a directory of
+ * saved responses. Implementations must be safe to call from several threads at once.
+ */
+public interface BlockSource {
+    List<Block> getBlocksAtHeight(long height) throws APIException, IOException;
+
+    Block getBlock(String hash) throws APIException, IOException;
+
+    /**
+     * Parse a block-height response ({"blocks": [...]})
+     */
+    static List<Block> parseBlocks(final String json) {
+        final List<Block> ret = new ArrayList<>();
+        for (final JsonElement block : new JsonParser().parse(json).getAsJsonObject().get("blocks").getAsJsonArray()) {
+            ret.add(new Block(block.getAsJsonObject()));
+        }
+        return ret;
+    }
+
+    /**
+     * Parse a rawblock response
+     */
+    static Block parseBlock(final String json) {
+        final JsonObject block = new JsonParser().parse(json).getAsJsonObject();
+        return new Block(block);
+    }
+}
@@ -0,0 +1,39 @@
+package main;
+
+import info.blockchain.api.APIException;
+
+/**
+ * An APIException that carries the HTTP status of the failed request, so BlockFetcher can tell
+ * whether trying again may help: a block or height that is not there (404, or not cached offline)
+ * will not turn up on a retry, while an overloaded or failing server (429, 5xx) may answer later.
+ */
+public class BlockSourceException extends APIException {
+    private static final long serialVersionUID = 1L;
+    public static final int NOT_FOUND = 404;
+    public static final int TOO_MANY_REQUESTS = 429;
+
+    private final int status;
+
+    public BlockSourceException(final String message, final int status) {
+        super(message);
+        this.status = status;
+    }
+
+    /**
+     * A block or height that the source does not have
+     */
+    public static BlockSourceException notFound(final String message) {
+        return new BlockSourceException(message, NOT_FOUND);
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * True if the same request may succeed later
+     */
+    public boolean isTransient() {
+        return status == TOO_MANY_REQUESTS || status >= 500;
+    }
+}
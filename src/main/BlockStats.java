@@ -0,0 +1,264 @@
+package main;
+
+import info.blockchain.api.blockexplorer.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The statistics of one block, all taken in a single pass over its transactions: the Checkpoint1
+ * answers (size, transaction count, the transactions with most outputs and most inputs, the
+ * largest receiver, coinbase count and satoshi generated) plus input, output and fee totals.
+ */
+public final class BlockStats {
+    /** Transactions with at most this many outputs sum receipts per address without a map */
+    private static final int SMALL_TX = 16;
+
+    private final long height;
+    private final String hash;
+    private final String previousHash;
+    private final boolean mainChain;
+    private final long time;
+    private final long size;
+    private final int txCount;
+    private final long inputCount;
+    private final long outputCount;
+    private final int coinbaseCount;
+    private final long satoshiGenerated;
+    private final long inputValue;
+    private final long outputValue;
+    private final String maxOutputsTx;
+    private final List<String> outputAddresses;
+    private final String maxInputsTx;
+    private final List<String> inputAddresses;
+    private final String largestReceiver;
+    private final long largestReceived;
+
+    private BlockStats(final Block block, final int txCount, final long inputCount, final long outputCount,
+                       final int coinbaseCount, final long satoshiGenerated, final long inputValue, final long outputValue,
+                       final Transaction maxOutputs, final Transaction maxInputs, final String largestReceiver, final long largestReceived) {
+        this.height = block.getHeight();
+        this.hash = block.getHash();
+        this.previousHash = block.getPreviousBlockHash();
+        this.mainChain = block.isMainChain();
+        this.time = block.getTime();
+        this.size = block.getSize();
+        this.txCount = txCount;
+        this.inputCount = inputCount;
+        this.outputCount = outputCount;
+        this.coinbaseCount = coinbaseCount;
+        this.satoshiGenerated = satoshiGenerated;
+        this.inputValue = inputValue;
+        this.outputValue = outputValue;
+        this.maxOutputsTx = maxOutputs == null ? null : maxOutputs.getHash();
+        final List<String> outputs = new ArrayList<>();
+        if (maxOutputs != null) {
+            for (final Output o : maxOutputs.getOutputs()) {
+                outputs.add(o.getAddress());
+            }
+        }
+        this.outputAddresses = Collections.unmodifiableList(outputs);
+        this.maxInputsTx = maxInputs == null ? null : maxInputs.getHash();
+        final List<String> inputs = new ArrayList<>();
+        if (maxInputs != null) {
+            for (final Input input : maxInputs.getInputs()) {
+                if (input.getPreviousOutput() != null) {
+                    inputs.add(input.getPreviousOutput().getAddress());
+                }
+            }
+        }
+        this.inputAddresses = Collections.unmodifiableList(inputs);
+        this.largestReceiver = largestReceiver;
+        this.largestReceived = largestReceived;
+    }
+
+    private static boolean isCoinbase(final Transaction t) {
+        return t.getInputs().size() == 1 && t.getInputs().get(0).getPreviousOutput() == null;
+    }
+
+    public static BlockStats of(final Block block) {
+        final List<Transaction> transactions = block.getTransactions();
+        long inputCount = 0;
+        long outputCount = 0;
+        int coinbaseCount = 0;
+        long generated = 0;
+        long inputValue = 0;
+        long outputValue = 0;
+        Transaction maxOutputs = null;
+        Transaction maxInputs = null;
+        String largestReceiver = null;
+        long largestReceived = 0;
+        String[] addrs = new String[SMALL_TX];
+        long[] sums = new long[SMALL_TX];
+        final Map<String, Long> received = new HashMap<>();
+        for (final Transaction t : transactions) {
+            final List<Input> ins = t.getInputs();
+            final List<Output> outs = t.getOutputs();
+            if (maxOutputs == null || outs.size() > maxOutputs.getOutputs().size()) {
+                maxOutputs = t;
+            }
+            if (maxInputs == null || ins.size() > maxInputs.getInputs().size()) {
+                maxInputs = t;
+            }
+            inputCount += ins.size();
+            outputCount += outs.size();
+            final boolean coinbase = isCoinbase(t);
+            if (coinbase) {
+                coinbaseCount++;
+            } else {
+                for (final Input input : ins) {
+                    if (input.getPreviousOutput() != null) {
+                        inputValue += input.getPreviousOutput().getValue();
+                    }
+                }
+            }
+            // satoshi received per address in this transaction, in order of first output
+            int n = 0;
+            if (outs.size() <= SMALL_TX) {
+                for (final Output o : outs) {
+                    int k = 0;
+                    while (k < n && !Objects.equals(addrs[k], o.getAddress())) {
+                        k++;
+                    }
+                    if (k == n) {
+                        addrs[n] = o.getAddress();
+                        sums[n++] = 0;
+                    }
+                    sums[k] += o.getValue();
+                }
+            } else {
+                received.clear();
+                if (addrs.length < outs.size()) {
+                    addrs = new String[outs.size()];
+                    sums = new long[outs.size()];
+                }
+                for (final Output o : outs) {
+                    final Long sum = received.get(o.getAddress());
+                    if (sum == null) {
+                        addrs[n++] = o.getAddress();
+                    }
+                    received.put(o.getAddress(), (sum == null ? 0 : sum) + o.getValue());
+                }
+                for (int k = 0; k < n; ++k) {
+                    sums[k] = received.get(addrs[k]);
+                }
+            }
+            for (int k = 0; k < n; ++k) {
+                if (sums[k] > largestReceived) {
+                    largestReceiver = addrs[k];
+                    largestReceived = sums[k];
+                }
+                if (coinbase) {
+                    generated += sums[k];
+                } else {
+                    outputValue += sums[k];
+                }
+            }
+        }
+        return new BlockStats(block, transactions.size(), inputCount, outputCount, coinbaseCount, generated,
+                              inputValue, outputValue, maxOutputs, maxInputs, largestReceiver, largestReceived);
+    }
+
+    public long getHeight() {
+        return height;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public String getPreviousHash() {
+        return previousHash;
+    }
+
+    public boolean isMainChain() {
+        return mainChain;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public int getTxCount() {
+        return txCount;
+    }
+
+    public long getInputCount() {
+        return inputCount;
+    }
+
+    public long getOutputCount() {
+        return outputCount;
+    }
+
+    public int getCoinbaseCount() {
+        return coinbaseCount;
+    }
+
+    public long getSatoshiGenerated() {
+        return satoshiGenerated;
+    }
+
+    /**
+     * Satoshi spent by the inputs of non-coinbase transactions
+     */
+    public long getInputValue() {
+        return inputValue;
+    }
+
+    /**
+     * Satoshi paid to the outputs of non-coinbase transactions
+     */
+    public long getOutputValue() {
+        return outputValue;
+    }
+
+    public long getFees() {
+        return inputValue - outputValue;
+    }
+
+    /**
+     * Hash of the first transaction with the most outputs, null for a block without transactions
+     */
+    public String getMaxOutputsTx() {
+        return maxOutputsTx;
+    }
+
+    /**
+     * Output addresses of getMaxOutputsTx, in output order
+     */
+    public List<String> getOutputAddresses() {
+        return outputAddresses;
+    }
+
+    public String getMaxInputsTx() {
+        return maxInputsTx;
+    }
+
+    /**
+     * Previous output addresses of getMaxInputsTx, in input order
+     */
+    public List<String> getInputAddresses() {
+        return inputAddresses;
+    }
+
+    /**
+     * The address receiving the most satoshi in a single transaction (summed over its outputs in
+     * that transaction); the first one on a tie, null if nothing was received
+     */
+    public String getLargestReceiver() {
+        return largestReceiver;
+    }
+
+    public long getLargestReceived() {
+        return largestReceived;
+    }
+}
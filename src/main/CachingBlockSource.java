@@ -0,0 +1,252 @@
+package main;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import info.blockchain.api.APIException;
+import info.blockchain.api.blockexplorer.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Caches blocks on disk, keyed by block hash, with an LRU of parsed blocks in front. Confirmed
+ * blocks never change, so once a block or a height has been fetched it is served from the cache
+ * forever. Layout under the cache directory:
+ *
+ * <pre>
+ * blocks/ab/abcdef....json.gz   the block as API-shaped JSON, gzipped
+ * heights/265852                hashes of the blocks at that height, one per line
+ * </pre>
+ *
+ * In offline mode there is no upstream and anything not cached fails with a not-found
+ * BlockSourceException, which is not retried, so
+ * reruns and CI never touch the network.
+ */
+public class CachingBlockSource implements BlockSource {
+    public static final String DIR_PROPERTY = "blockcache.dir";
+    public static final String OFFLINE_PROPERTY = "blockcache.offline";
+    public static final String DEFAULT_DIR = "blockcache";
+    public static final int DEFAULT_MEMORY_BLOCKS = 256;
+
+    private final BlockSource upstream;
+    private final File dir;
+    private final Map<String, Block> memory;
+
+    /**
+     * @param upstream
+     *            Source for blocks that are not cached yet, or null for offline mode
+     * @param dir
+     *            Cache directory, created if needed
+     * @param memoryBlocks
+     *            Number of parsed blocks kept in memory
+     */
+    public CachingBlockSource(final BlockSource upstream, final File dir, final int memoryBlocks) {
+        this.upstream = upstream;
+        this.dir = dir;
+        this.memory = new LinkedHashMap<String, Block>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Block> eldest) {
+                return size() > memoryBlocks;
+            }
+        };
+    }
+
+    public static CachingBlockSource offline(final File dir, final int memoryBlocks) {
+        return new CachingBlockSource(null, dir, memoryBlocks);
+    }
+
+    /**
+     * The blockchain.info API behind a cache in ./blockcache; -Dblockcache.dir overrides the
+     * directory and -Dblockcache.offline=true disables the network
+     */
+    public static CachingBlockSource standard() {
+        final File dir = new File(System.getProperty(DIR_PROPERTY, DEFAULT_DIR));
+        return Boolean.getBoolean(OFFLINE_PROPERTY) ? offline(dir, DEFAULT_MEMORY_BLOCKS)
+                                                    : new CachingBlockSource(new HttpBlockSource(), dir, DEFAULT_MEMORY_BLOCKS);
+    }
+
+    public boolean isOffline() {
+        return upstream == null;
+    }
+
+    private File blockFile(final String hash) {
+        final String prefix = hash.length() >= 2 ? hash.substring(0, 2) : "_";
+        return new File(new File(new File(dir, "blocks"), prefix), hash + ".json.gz");
+    }
+
+    private File heightFile(final long height) {
+        return new File(new File(dir, "heights"), Long.toString(height));
+    }
+
+    @Override
+    public Block getBlock(final String hash) throws APIException, IOException {
+        synchronized (memory) {
+            final Block block = memory.get(hash);
+            if (block != null) {
+                return block;
+            }
+        }
+        Block block = readBlock(hash);
+        if (block == null) {
+            if (upstream == null) {
+                throw BlockSourceException.notFound("Block " + hash + " is not cached (offline)");
+            }
+            block = upstream.getBlock(hash);
+            writeBlock(block);
+        }
+        remember(block);
+        return block;
+    }
+
+    @Override
+    public List<Block> getBlocksAtHeight(final long height) throws APIException, IOException {
+        final File index = heightFile(height);
+        if (index.isFile()) {
+            final List<Block> ret = new ArrayList<>();
+            for (final String hash : Files.readAllLines(index.toPath(), StandardCharsets.US_ASCII)) {
+                if (!hash.isEmpty()) {
+                    ret.add(getBlock(hash));
+                }
+            }
+            return ret;
+        }
+        if (upstream == null) {
+            throw BlockSourceException.notFound("Height " + height + " is not cached (offline)");
+        }
+        final List<Block> blocks = upstream.getBlocksAtHeight(height);
+        final StringBuilder hashes = new StringBuilder();
+        for (final Block block : blocks) {
+            writeBlock(block);
+            remember(block);
+            hashes.append(block.getHash()).append('\n');
+        }
+        // the index goes last so that a height is never listed before all its blocks are on disk
+        writeAtomically(index, hashes.toString().getBytes(StandardCharsets.US_ASCII));
+        return blocks;
+    }
+
+    private void remember(final Block block) {
+        synchronized (memory) {
+            memory.put(block.getHash(), block);
+        }
+    }
+
+    private Block readBlock(final String hash) throws IOException {
+        final File file = blockFile(hash);
+        if (!file.isFile()) {
+            return null;
+        }
+        try (final InputStream in = new GZIPInputStream(new FileInputStream(file), 1 << 16)) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buf = new byte[1 << 16];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                out.write(buf, 0, n);
+            }
+            return BlockSource.parseBlock(new String(out.toByteArray(), StandardCharsets.UTF_8));
+        }
+    }
+
+    private void writeBlock(final Block block) throws IOException {
+        final File file = blockFile(block.getHash());
+        if (file.isFile()) {
+            return;
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final Writer w = new OutputStreamWriter(new GZIPOutputStream(bytes), StandardCharsets.UTF_8)) {
+            w.write(toJson(block).toString());
+        }
+        writeAtomically(file, bytes.toByteArray());
+    }
+
+    private static void writeAtomically(final File file, final byte[] data) throws IOException {
+        final File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException("Cannot create " + parent);
+        }
+        final File tmp = File.createTempFile(file.getName(), ".tmp", parent);
+        try {
+            Files.write(tmp.toPath(), data);
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    /**
+     * Rebuild the API JSON of a block from its getters; Block(JsonObject) reads it back unchanged.
+     */
+    static JsonObject toJson(final Block block) {
+        final JsonObject ret = new JsonObject();
+        ret.add("hash", new JsonPrimitive(block.getHash()));
+        ret.add("ver", new JsonPrimitive(block.getVersion()));
+        ret.add("prev_block", new JsonPrimitive(block.getPreviousBlockHash()));
+        ret.add("mrkl_root", new JsonPrimitive(block.getMerkleRoot()));
+        ret.add("time", new JsonPrimitive(block.getTime()));
+        ret.add("bits", new JsonPrimitive(block.getBits()));
+        ret.add("fee", new JsonPrimitive(block.getFees()));
+        ret.add("nonce", new JsonPrimitive(block.getNonce()));
+        ret.add("size", new JsonPrimitive(block.getSize()));
+        ret.add("block_index", new JsonPrimitive(block.getIndex()));
+        ret.add("main_chain", new JsonPrimitive(block.isMainChain()));
+        ret.add("height", new JsonPrimitive(block.getHeight()));
+        ret.add("received_time", new JsonPrimitive(block.getReceivedTime()));
+        if (block.getRelayedBy() != null) {
+            ret.add("relayed_by", new JsonPrimitive(block.getRelayedBy()));
+        }
+        final JsonArray txs = new JsonArray();
+        for (final Transaction t : block.getTransactions()) {
+            txs.add(toJson(t));
+        }
+        ret.add("tx", txs);
+        return ret;
+    }
+
+    private static JsonObject toJson(final Transaction t) {
+        final JsonObject ret = new JsonObject();
+        ret.add("hash", new JsonPrimitive(t.getHash()));
+        ret.add("ver", new JsonPrimitive(t.getVersion()));
+        ret.add("size", new JsonPrimitive(t.getSize()));
+        ret.add("time", new JsonPrimitive(t.getTime()));
+        ret.add("tx_index", new JsonPrimitive(t.getIndex()));
+        ret.add("block_height", new JsonPrimitive(t.getBlockHeight()));
+        ret.add("double_spend", new JsonPrimitive(t.isDoubleSpend()));
+        ret.add("relayed_by", new JsonPrimitive(t.getRelayedBy() == null ? "" : t.getRelayedBy()));
+        final JsonArray inputs = new JsonArray();
+        for (final Input input : t.getInputs()) {
+            final JsonObject in = new JsonObject();
+            if (input.getPreviousOutput() != null) {
+                in.add("prev_out", toJson(input.getPreviousOutput()));
+            }
+            in.add("sequence", new JsonPrimitive(input.getSequence()));
+            in.add("script", new JsonPrimitive(input.getScriptSignature()));
+            inputs.add(in);
+        }
+        ret.add("inputs", inputs);
+        final JsonArray outputs = new JsonArray();
+        for (final Output output : t.getOutputs()) {
+            outputs.add(toJson(output));
+        }
+        ret.add("out", outputs);
+        return ret;
+    }
+
+    private static JsonObject toJson(final Output o) {
+        final JsonObject ret = new JsonObject();
+        ret.add("n", new JsonPrimitive(o.getN()));
+        ret.add("value", new JsonPrimitive(o.getValue()));
+        if (o.getAddress() != null && !o.getAddress().isEmpty()) {
+            ret.add("addr", new JsonPrimitive(o.getAddress()));
+        }
+        ret.add("tx_index", new JsonPrimitive(o.getTxIndex()));
+        ret.add("script", new JsonPrimitive(o.getScript()));
+        ret.add("spent", new JsonPrimitive(o.isSpent()));
+        return ret;
+    }
+}
@@ -7,16 +7,33 @@ import java.io.IOException;
 import java.util.*;
 
 public class Checkpoint1 {
+    private static final String BLOCK_HASH = "000000000000000f5795bfe1de0381a44d4d5ea2ad81c21d77f275bffa03e8b3";
+
     private Block block;
+    private BlockStats stats;
 
     public Checkpoint1() {
+        this(CachingBlockSource.standard());
+    }
+
+    public Checkpoint1(final BlockSource source) {
         try {
-            block = new BlockExplorer().getBlock("000000000000000f5795bfe1de0381a44d4d5ea2ad81c21d77f275bffa03e8b3");
+            block = source.getBlock(BLOCK_HASH);
         } catch (APIException | IOException exp) {
             throw new RuntimeException("getBlock failed", exp);
         }
     }
 
+    /**
+     * Every transaction answer comes from one pass over the block, taken on first use
+     */
+    private BlockStats stats() {
+        if (stats == null) {
+            stats = BlockStats.of(block);
+        }
+        return stats;
+    }
+
 	/**
 	 * Blocks-Q1: What is the size of this block?
 	 * 
@@ -48,7 +65,7 @@ public class Checkpoint1 {
 	 * @return number of transactions in current block
 	 */
 	public int getTxCount() {
-		return block.getTransactions().size();
+		return stats().getTxCount();
 	}
 
 	/**
@@ -61,20 +78,7 @@ public class Checkpoint1 {
 	 * @return list of output addresses
 	 */
 	public List<String> getOutputAddresses() {
-                List<Transaction> transactions = block.getTransactions();
-		Transaction maxTrans = transactions.get(0);
-
-                for (Transaction t : transactions) {
-                    if (t.getOutputs().size() > maxTrans.getOutputs().size()) {
-                        maxTrans = t;
-                    }
-                }
-
-                List<String> ret = new ArrayList<>();
-                for (Output o : maxTrans.getOutputs()) {
-                    ret.add(o.getAddress());
-                }
-		return ret;
+		return new ArrayList<>(stats().getOutputAddresses());
 	}
 
 	/**
@@ -87,22 +91,7 @@ public class Checkpoint1 {
 	 * @return list of input addresses
 	 */
 	public List<String> getInputAddresses() {
-                List<Transaction> transactions = block.getTransactions();
-		Transaction maxTrans = transactions.get(0);
-
-                for (Transaction t : transactions) {
-                    if (t.getInputs().size() > maxTrans.getInputs().size()) {
-                        maxTrans = t;
-                    }
-                }
-
-                List<String> ret = new ArrayList<>();
-                for (Input input : maxTrans.getInputs()) {
-                    if (input.getPreviousOutput() != null) {
-                        ret.add(input.getPreviousOutput().getAddress());
-                    }
-                }
-		return ret;
+		return new ArrayList<>(stats().getInputAddresses());
 	}
 
 	/**
@@ -120,25 +109,7 @@ public class Checkpoint1 {
 	 * @return the bitcoin address that has received the largest amount of Satoshi
 	 */
 	public String getLargestRcv() {
-		String ret = null;
-                long maxAmt = 0;
-
-                for (Transaction t : block.getTransactions()) {
-                    Map<String, Long> outputRecvMap = new HashMap<>();
-                    for (Output o : t.getOutputs()) {
-                        String addr = o.getAddress();
-                        outputRecvMap.put(addr, o.getValue() + outputRecvMap.getOrDefault(addr, 0L));
-                    }
-
-                    for (Map.Entry<String, Long> entry : outputRecvMap.entrySet()) {
-                        if (entry.getValue() > maxAmt) {
-                            ret = entry.getKey();
-                            maxAmt = entry.getValue();
-                        }
-                    }
-                }
-
-		return ret;
+		return stats().getLargestReceiver();
 	}
 
 	/**
@@ -149,13 +120,7 @@ public class Checkpoint1 {
 	 * @return number of coin base transactions
 	 */
 	public int getCoinbaseCount() {
-            int count = 0;
-            for (Transaction t : block.getTransactions()) {
-                if (t.getInputs().size() == 1 && t.getInputs().get(0).getPreviousOutput() == null) {
-                    count++;
-                }
-            }
-            return count;
+		return stats().getCoinbaseCount();
 	}
 
 	/**
@@ -164,15 +129,7 @@ public class Checkpoint1 {
 	 * @return number of Satoshi generated
 	 */
 	public long getSatoshiGen() {
-            long val = 0;
-            for (Transaction t : block.getTransactions()) {
-                if (t.getInputs().size() == 1 && t.getInputs().get(0).getPreviousOutput() == null) {
-                    for (Output o : t.getOutputs()) {
-                        val += o.getValue();
-                    }
-                }
-            }
-            return val;
+		return stats().getSatoshiGenerated();
 	}
 
 }
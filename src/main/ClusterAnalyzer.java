@@ -2,95 +2,164 @@ package main;
 
 import java.io.*;
 import java.util.*;
+import java.util.function.IntPredicate;
 
 public class ClusterAnalyzer {
     private static Map<Long, List<String>> userMap;
     private static Map<String, Long> keyMap;
-    private static List<UserCluster.Transaction> transactions;
+    private static TransactionStore transactions;
+    private static UserGraph graph;
 
-    private static void printMostReceipts() {
-        final Map<Long, Integer> numReceipts = new HashMap<>();
-        for (final UserCluster.Transaction transaction : transactions) {
-            if (!transaction.in) {
-                final long user = keyMap.get(transaction.addr);
-                numReceipts.put(user, 1 + numReceipts.getOrDefault(user, 0));
-            }
+    private static AggregationEngine.Aggregates aggregates;
+
+    private static final String SNAPSHOT_SUFFIX = ".clusters";
+    private static final String GRAPH_SUFFIX = ".ugraph";
+    private static final int TOP_K = 10;
+
+    /**
+     * Print the best users by a metric and its quartiles, then write every user that received
+     * anything to a file as "value user" lines, best first
+     */
+    private static void printRanking(final long[] values, final String what, final String file) {
+        final long[] receipts = aggregates.get(AggregationEngine.RECEIPTS);
+        final IntPredicate received = user -> receipts[user] > 0;
+        final int[] top = Rankings.topK(values, TOP_K, received);
+        System.out.println("User " + (top.length > 0 ? top[0] : -1) + " had most " + what);
+        for (int r = 0; r < top.length; ++r) {
+            System.out.println("  " + (r + 1) + ". User " + top[r] + ": " + values[top[r]]);
         }
-        long maxUser = -1;
-        int maxAmt = 0;
-        for (final Map.Entry<Long, Integer> pair : numReceipts.entrySet()) {
-            if (pair.getValue() > maxAmt) {
-                maxUser = pair.getKey();
-                maxAmt = pair.getValue();
-            }
+        final long[] quartiles = Rankings.percentiles(values, received, 25, 50, 75, 99);
+        System.out.println("  p25=" + quartiles[0] + " p50=" + quartiles[1] + " p75=" + quartiles[2] + " p99=" + quartiles[3]);
+        try {
+            Rankings.writeRanked(values, Integer.MAX_VALUE, received, file);
+        } catch (final IOException exp) {
+            throw new RuntimeException(exp);
         }
-        System.out.println("User " + maxUser + " had most receipts");
-        MapToFile(numReceipts, "NumReceipts.txt");
+    }
+
+    private static void printMostReceipts() {
+        printRanking(aggregates.get(AggregationEngine.RECEIPTS), "receipts", "NumReceipts.txt");
     }
 
     private static void printMostReceived() {
-        final Map<Long, Long> moneyReceived = new HashMap<>();
-        for (final UserCluster.Transaction transaction : transactions) {
-            if (!transaction.in) {
-                final long user = keyMap.get(transaction.addr);
-                moneyReceived.put(user, transaction.amount + moneyReceived.getOrDefault(user, 0L));
-            }
-        }
-        long maxUser = -1;
-        long maxAmt = 0;
-        for (final Map.Entry<Long, Long> pair : moneyReceived.entrySet()) {
-            if (pair.getValue() > maxAmt) {
-                maxUser = pair.getKey();
-                maxAmt = pair.getValue();
-            }
-        }
-        System.out.println("User " + maxUser + " had most money received");
-        MapToFile(moneyReceived, "MoneyReceived.txt");
+        printRanking(aggregates.get(AggregationEngine.RECEIVED), "money received", "MoneyReceived.txt");
     }
 
-    private static <K,V> void MapToFile(final Map<K, V> map, final String name) {
-        try (final FileWriter writer = new FileWriter(name, false)) {
-            for (final Map.Entry<K, V> pair : map.entrySet()) {
-                writer.write(pair.getValue().toString() + " " + pair.getKey().toString() + "\n");
+    /**
+     * The FBI's seizure address; its user id depends on the dataset and the numbering, so it is
+     * looked up in the key map
+     */
+    private static final String FBI_ADDRESS = "1FfmbHfnpaZjKFvyi1okTjJJusN455paPH";
+    private static final int TRACE_HOPS = 3;
+
+    private static void printPaidFBI(final RunMetrics.Phase phase) {
+        final Long fbi = keyMap.get(FBI_ADDRESS);
+        if (fbi == null) {
+            System.out.println("0 Seem to have paid the FBI");
+            return;
+        }
+        final int fbiId = (int)(long)fbi;
+        // direct payers are the sources of the FBI's in-edges, ascending
+        System.out.println(graph.inDegree(fbiId) + " Seem to have paid the FBI");
+        for (int e = graph.inStart(fbiId); e < graph.inEnd(fbiId); ++e) {
+            final long user = graph.source(e);
+            for (final String str : userMap.get(user)) {
+                System.out.println(str + " Paid the FBI with ID " + user);
             }
-        } catch (final IOException exp) {
-            throw new RuntimeException(exp);
         }
+        final FlowTracer.Trace upstream = new FlowTracer(graph).upstream(fbiId, TRACE_HOPS);
+        phase.count("payers", graph.inDegree(fbiId)).count("upstreamUsers", upstream.size() - 1);
+        System.out.println((upstream.size() - 1) + " users reach the FBI within " + TRACE_HOPS + " hops, moving "
+                           + upstream.getTotalValue() + " satoshi");
     }
 
-    private static final long FBI_ID = 31124L;
+    /**
+     * Cache file next to a dataset; clusterings by other than the default heuristics are cached
+     * under their names
+     */
+    private static File cacheFile(final String file, final String suffix) {
+        final String heuristics = ClusteringHeuristic.names(ClusteringHeuristic.fromProperty());
+        return new File(file + (heuristics.equals(ClusteringHeuristic.DEFAULT) ? "" : "." + heuristics) + suffix);
+    }
 
-    private static void printPaidFBI() {
-        final Set<String> addrs = new HashSet<>(userMap.get(FBI_ID));
-        final Set<String> ids = new HashSet<>();
-        for (final UserCluster.Transaction transaction : transactions) {
-            if (!transaction.in && addrs.contains(transaction.addr)) {
-                ids.add(transaction.transId);
-            }
+    /**
+     * Read a dataset and cluster it, reusing the snapshot cached next to it unless the dataset is
+     * newer; a fresh clustering is cached for the next run
+     */
+    static UserCluster loadClusters(final String file) {
+        final File snapshot = cacheFile(file, SNAPSHOT_SUFFIX);
+        final UserCluster uc = new UserCluster();
+        uc.readTransactions(file);
+        final boolean cached = snapshot.lastModified() >= new File(file).lastModified() && uc.readSnapshot(snapshot.getPath());
+        if (!cached) {
+            uc.mergeAddresses();
+            uc.writeSnapshot(snapshot.getPath());
         }
-        final Set<Long> users = new HashSet<>();
-        for (final UserCluster.Transaction transaction : transactions) {
-            if (transaction.in && ids.contains(transaction.transId)) {
-                users.add(keyMap.get(transaction.addr));
+        return uc;
+    }
+
+    /**
+     * The user graph of a clustering from loadClusters, cached the same way; it goes stale with
+     * the clusters
+     */
+    static UserGraph loadUserGraph(final UserCluster uc, final String file) {
+        final RunMetrics metrics = RunMetrics.global();
+        final File snapshot = cacheFile(file, SNAPSHOT_SUFFIX);
+        final File graphFile = cacheFile(file, GRAPH_SUFFIX);
+        if (snapshot.isFile() && graphFile.lastModified() >= snapshot.lastModified()) {
+            try (final RunMetrics.Phase phase = metrics.begin("readUserGraph")) {
+                final UserGraph ret = UserGraph.read(graphFile);
+                phase.addRows(ret.getEdgeNumber()).addBytes(graphFile.length());
+                if (ret.getUserNumber() == uc.getUserNumber()) {
+                    return ret;
+                }
+                System.err.println("Rebuilding user graph: " + graphFile + " has " + ret.getUserNumber() + " users");
+            } catch (IOException exp) {
+                System.err.println("Rebuilding user graph: " + exp.getMessage());
             }
         }
-        System.out.println(users.size() + " Seem to have paid the FBI");
-        for (final Long user : users) {
-            for (final String str : userMap.get(user)) {
-                System.out.println(str + " Paid the FBI with ID " + user);
-            }
+        final UserGraph ret = uc.getUserGraph(false);
+        try (final RunMetrics.Phase phase = metrics.begin("writeUserGraphBinary")) {
+            ret.write(graphFile);
+            phase.addRows(ret.getEdgeNumber()).addBytes(graphFile.length());
+        } catch (IOException exp) {
+            System.err.println("Cannot cache user graph: " + exp.getMessage());
         }
+        return ret;
     }
 
+    /**
+     * ClusterAnalyzer [transactions], or ClusterAnalyzer --approximate &lt;transactions&gt;... for
+     * the sketches of ApproximateAnalyzer instead of exact tables
+     */
     public static void main(String[] args) {
-        UserCluster uc = new UserCluster();
-        uc.readTransactions("transactions.txt");
-        uc.mergeAddresses();
+        if (args.length > 0 && args[0].equals(ApproximateAnalyzer.FLAG)) {
+            try {
+                ApproximateAnalyzer.main(Arrays.copyOfRange(args, 1, args.length));
+            } catch (final IOException exp) {
+                throw new RuntimeException(exp);
+            }
+            return;
+        }
+        final String file = args.length > 0 ? args[0] : "transactions.txt";
+        final RunMetrics metrics = RunMetrics.global();
+        final UserCluster uc = loadClusters(file);
+        graph = loadUserGraph(uc, file);
         userMap = uc.getUserMap();
         keyMap = uc.getKeyMap();
         transactions = uc.getTransactions();
-        printMostReceipts();
-        printMostReceived();
-        printPaidFBI();
+        try (final RunMetrics.Phase phase = metrics.begin("aggregate")) {
+            aggregates = new AggregationEngine(transactions, uc.getClusters()).run();
+            phase.addRows(transactions.size()).count("users", aggregates.getUserNumber());
+        }
+        try (final RunMetrics.Phase phase = metrics.begin("rankings")) {
+            printMostReceipts();
+            printMostReceived();
+            phase.addRows(2L * aggregates.getUserNumber());
+        }
+        try (final RunMetrics.Phase phase = metrics.begin("traceFBI")) {
+            printPaidFBI(phase);
+        }
+        metrics.writeReport();
     }
 }
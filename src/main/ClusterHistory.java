@@ -0,0 +1,287 @@
+package main;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The clustering of a dataset with block heights as of any height, built in one pass over its
+ * rows in height order. An address exists from the height of its first row and the inputs of a
+ * transaction are joined at the height of the transaction; a VersionedUptree keeps the height of
+ * every link, so "which cluster was this address in at height H, how large was it and what did it
+ * hold" is answered without re-clustering the rows up to H.
+ *
+ * Users are the clusters after the last height, numbered as UserCluster numbers them, and
+ * parts(user, height) splits one of them into the clusters its addresses formed at an earlier
+ * height.
+ */
+public class ClusterHistory {
+    private final AddressDictionary addresses;
+    private final VersionedUptree uptree;
+    private final int[] firstHeight; // height of the first row of every address
+    private final int[] sortedFirstHeights;
+    // the largest cluster grew to growthSizes[k] at growthHeights[k]
+    private int[] growthHeights = new int[16];
+    private int[] growthSizes = new int[16];
+    private int numGrowths;
+    private final ClusterMembership clusters;
+
+    /**
+     * @param store rows that all have a block height
+     * @throws IllegalArgumentException if a row has no height
+     * @throws IllegalStateException if -Dcluster.heuristics is not the default
+     */
+    public ClusterHistory(final TransactionStore store) {
+        if (store.size() > 0 && !store.hasHeights()) {
+            throw new IllegalArgumentException("The dataset has no block heights; regenerate it with DatasetGenerator");
+        }
+        // merge heights are recorded for common-input links only
+        ClusteringHeuristic.requireDefault("Cluster history");
+        addresses = store.getAddresses();
+        final int n = addresses.size();
+        uptree = new VersionedUptree(n);
+        firstHeight = new int[n];
+        Arrays.fill(firstHeight, VersionedUptree.NEVER);
+        try (final RunMetrics.Phase phase = RunMetrics.global().begin("clusterHistory")) {
+            final int[] order = heightOrder(store);
+            final LongIntHashMap firstInput = new LongIntHashMap();
+            int largest = 0;
+            for (final int row : order) {
+                final int height = store.height(row);
+                final int addr = store.addressId(row);
+                if (firstHeight[addr] == VersionedUptree.NEVER) {
+                    firstHeight[addr] = height;
+                    if (largest == 0) {
+                        largest = 1;
+                        grow(height, largest);
+                    }
+                }
+                if (store.isInput(row)) {
+                    final int first = firstInput.putIfAbsent(store.txIndex(row), addr);
+                    if (first != addr) {
+                        final int root = uptree.union(first, addr, height);
+                        if (root >= 0 && uptree.getSize(root) > largest) {
+                            largest = uptree.getSize(root);
+                            grow(height, largest);
+                        }
+                    }
+                }
+            }
+            sortedFirstHeights = firstHeight.clone();
+            Arrays.sort(sortedFirstHeights);
+            final int[] roots = new int[n];
+            for (int i = 0; i < n; ++i) {
+                roots[i] = uptree.find(i);
+            }
+            clusters = ClusterMembership.fromRoots(roots, addresses);
+            phase.addRows(store.size()).count("links", uptree.getLinkNumber()).count("users", clusters.getUserNumber());
+        }
+    }
+
+    /**
+     * Rows in nondecreasing height order, stable within a height; sorted only if the store is not
+     * in that order already
+     */
+    private static int[] heightOrder(final TransactionStore store) {
+        final int n = store.size();
+        boolean sorted = true;
+        for (int row = 0; row < n; ++row) {
+            final int height = store.height(row);
+            if (height == TransactionParser.UNKNOWN_HEIGHT) {
+                throw new IllegalArgumentException("Row " + row + " has no block height");
+            }
+            if (row > 0 && height < store.height(row - 1)) {
+                sorted = false;
+            }
+        }
+        final int[] ret = new int[n];
+        if (sorted) {
+            for (int row = 0; row < n; ++row) {
+                ret[row] = row;
+            }
+            return ret;
+        }
+        final long[] keys = new long[n];
+        for (int row = 0; row < n; ++row) {
+            keys[row] = (long)store.height(row) << 32 | row;
+        }
+        Arrays.sort(keys);
+        for (int k = 0; k < n; ++k) {
+            ret[k] = (int)keys[k];
+        }
+        return ret;
+    }
+
+    private void grow(final int height, final int size) {
+        if (numGrowths == growthHeights.length) {
+            growthHeights = Arrays.copyOf(growthHeights, numGrowths * 2);
+            growthSizes = Arrays.copyOf(growthSizes, numGrowths * 2);
+        }
+        growthHeights[numGrowths] = height;
+        growthSizes[numGrowths++] = size;
+    }
+
+    public AddressDictionary getAddresses() {
+        return addresses;
+    }
+
+    /**
+     * The clusters after the last height
+     */
+    public ClusterMembership getClusters() {
+        return clusters;
+    }
+
+    /**
+     * Height of the first row of an address id
+     */
+    public int getFirstHeight(final int addr) {
+        return firstHeight[addr];
+    }
+
+    /**
+     * Number of addresses seen up to and including height
+     */
+    public int getAddressNumber(final int height) {
+        int lo = 0;
+        int hi = sortedFirstHeights.length;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (sortedFirstHeights[mid] <= height) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Number of clusters as of height
+     */
+    public int getUserNumber(final int height) {
+        return getAddressNumber(height) - uptree.getLinkNumber(height);
+    }
+
+    /**
+     * Size of the largest cluster as of height, 0 before the first address
+     */
+    public int getLargestClusterSize(final int height) {
+        int lo = 0;
+        int hi = numGrowths;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (growthHeights[mid] <= height) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo == 0 ? 0 : growthSizes[lo - 1];
+    }
+
+    /**
+     * An address id standing for the cluster of addr as of height, the same for every address of
+     * that cluster
+     *
+     * @return the id, or -1 if addr was not seen by then
+     */
+    public int clusterOf(final int addr, final int height) {
+        return firstHeight[addr] > height ? -1 : uptree.find(addr, height);
+    }
+
+    /**
+     * Size of the cluster of addr as of height, 0 if addr was not seen by then
+     */
+    public int clusterSize(final int addr, final int height) {
+        return firstHeight[addr] > height ? 0 : uptree.getSize(addr, height);
+    }
+
+    /**
+     * Address ids of the cluster of addr as of height, clusterOf first; empty if addr was not
+     * seen by then
+     */
+    public int[] members(final int addr, final int height) {
+        return firstHeight[addr] > height ? new int[0] : uptree.members(addr, height);
+    }
+
+    /**
+     * The clusters that the addresses of a user (see getClusters) formed as of height, in order of
+     * their clusterOf; addresses not seen by then are left out
+     */
+    public List<int[]> parts(final int user, final int height) {
+        final List<int[]> ret = new ArrayList<>();
+        final int[] roots = new int[clusters.clusterSize(user)];
+        int n = 0;
+        for (int k = 0; k < roots.length; ++k) {
+            final int addr = clusters.member(user, k);
+            // a root as of height is seen by then and was not linked below anything up to it
+            if (firstHeight[addr] <= height && uptree.getLinkHeight(addr) > height) {
+                roots[n++] = addr;
+            }
+        }
+        Arrays.sort(roots, 0, n);
+        for (int k = 0; k < n; ++k) {
+            ret.add(uptree.members(roots[k], height));
+        }
+        return ret;
+    }
+
+    private static final int MAX_PRINTED = 20;
+
+    private String describe(final int[] members) {
+        final StringBuilder ret = new StringBuilder();
+        for (int k = 0; k < members.length && k < MAX_PRINTED; ++k) {
+            ret.append(' ').append(addresses.get(members[k]));
+        }
+        if (members.length > MAX_PRINTED) {
+            ret.append(" (+").append(members.length - MAX_PRINTED).append(" more)");
+        }
+        return ret.toString();
+    }
+
+    /**
+     * ClusterHistory &lt;transaction file&gt; &lt;height&gt; [address | user id]...
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: ClusterHistory <transaction file> <height> [address | user id]...");
+            System.exit(1);
+        }
+        final UserCluster uc = new UserCluster();
+        if (!(IncrementalClusterer.isBinaryDataset(args[0]) ? uc.readBinaryTransactions(args[0]) : uc.readTransactions(args[0]))) {
+            System.exit(1);
+        }
+        final ClusterHistory history = new ClusterHistory(uc.getTransactions());
+        final int height = Integer.parseInt(args[1]);
+        System.out.println("As of height " + height + ": " + history.getAddressNumber(height) + " addresses in "
+                           + history.getUserNumber(height) + " users, largest has " + history.getLargestClusterSize(height));
+        for (int i = 2; i < args.length; ++i) {
+            if (args[i].matches("[0-9]+")) {
+                final int user = Integer.parseInt(args[i]);
+                if (user >= history.clusters.getUserNumber()) {
+                    System.out.println("User " + user + ": unknown");
+                    continue;
+                }
+                final List<int[]> parts = history.parts(user, height);
+                System.out.println("User " + user + " (" + history.clusters.clusterSize(user) + " addresses): " + parts.size() + " clusters");
+                for (final int[] part : parts) {
+                    System.out.println("  " + part.length + ":" + history.describe(part));
+                }
+            } else {
+                final int addr = history.addresses.find(args[i]);
+                if (addr < 0) {
+                    System.out.println(args[i] + ": unknown");
+                } else if (history.getFirstHeight(addr) > height) {
+                    System.out.println(args[i] + ": first seen at height " + history.getFirstHeight(addr));
+                } else {
+                    final int[] members = history.members(addr, height);
+                    System.out.println(args[i] + ": " + members.length + " addresses, user "
+                                       + history.clusters.userOf(addr) + " at the last height:" + history.describe(members));
+                }
+            }
+        }
+        RunMetrics.global().writeReport();
+    }
+}
@@ -0,0 +1,269 @@
+package main;
+
+import java.util.*;
+
+/**
+ * Cluster membership in compressed sparse row form. Users are numbered 0..N-1; the addresses of
+ * user u are members[offsets[u]] .. members[offsets[u + 1] - 1] (address ids, ascending) and
+ * addrToUser maps every address id back to its user. Three int arrays replace the per-cluster
+ * boxed sets and the two materialized maps; {@link #userMapView()} and {@link #keyMapView()} give
+ * the old map shapes on top of them without copying.
+ */
+public class ClusterMembership {
+    private final int[] offsets;
+    private final int[] members;
+    private final int[] addrToUser;
+    private final AddressDictionary addresses;
+    private final int largestClusterSize;
+
+    public ClusterMembership(final int[] offsets, final int[] members, final int[] addrToUser, final AddressDictionary addresses) {
+        this.offsets = offsets;
+        this.members = members;
+        this.addrToUser = addrToUser;
+        this.addresses = addresses;
+        int largest = 0;
+        for (int u = 0; u + 1 < offsets.length; ++u) {
+            largest = Math.max(largest, offsets[u + 1] - offsets[u]);
+        }
+        this.largestClusterSize = largest;
+    }
+
+    /**
+     * Build the membership from each address's union-find root. Users are numbered in order of
+     * their smallest address id.
+     *
+     * @param roots root of every address id
+     * @param addresses
+     */
+    public static ClusterMembership fromRoots(final int[] roots, final AddressDictionary addresses) {
+        final int n = roots.length;
+        final int[] addrToUser = new int[n];
+        final int[] userOfRoot = new int[n];
+        Arrays.fill(userOfRoot, -1);
+        int numUsers = 0;
+        for (int i = 0; i < n; ++i) {
+            final int root = roots[i];
+            if (userOfRoot[root] < 0) {
+                userOfRoot[root] = numUsers++;
+            }
+            addrToUser[i] = userOfRoot[root];
+        }
+        return fromUsers(addrToUser, numUsers, addresses);
+    }
+
+    /**
+     * Counting-sort addresses by user
+     *
+     * @param addrToUser user of every address id
+     * @param numUsers
+     * @param addresses
+     */
+    public static ClusterMembership fromUsers(final int[] addrToUser, final int numUsers, final AddressDictionary addresses) {
+        final int[] offsets = new int[numUsers + 1];
+        for (final int user : addrToUser) {
+            offsets[user + 1]++;
+        }
+        for (int u = 0; u < numUsers; ++u) {
+            offsets[u + 1] += offsets[u];
+        }
+        final int[] next = Arrays.copyOf(offsets, numUsers);
+        final int[] members = new int[addrToUser.length];
+        for (int i = 0; i < addrToUser.length; ++i) {
+            members[next[addrToUser[i]]++] = i;
+        }
+        return new ClusterMembership(offsets, members, addrToUser, addresses);
+    }
+
+    public int getUserNumber() {
+        return offsets.length - 1;
+    }
+
+    public int getAddressNumber() {
+        return addrToUser.length;
+    }
+
+    public int getLargestClusterSize() {
+        return largestClusterSize;
+    }
+
+    public AddressDictionary getAddresses() {
+        return addresses;
+    }
+
+    public int userOf(final int addrId) {
+        return addrToUser[addrId];
+    }
+
+    /**
+     * Return the user owning an address
+     *
+     * @param address
+     * @return user id, or -1 if the address is unknown
+     */
+    public int userOf(final String address) {
+        final int id = addresses.find(address);
+        return id < 0 || id >= addrToUser.length ? -1 : addrToUser[id];
+    }
+
+    public int clusterSize(final int user) {
+        return offsets[user + 1] - offsets[user];
+    }
+
+    /**
+     * The k-th address id of a user
+     */
+    public int member(final int user, final int k) {
+        return members[offsets[user] + k];
+    }
+
+    /**
+     * Backing arrays, for scans that want to skip the accessors. Do not modify.
+     */
+    public int[] getAddrToUser() {
+        return addrToUser;
+    }
+
+    public int[] getOffsets() {
+        return offsets;
+    }
+
+    public int[] getMembers() {
+        return members;
+    }
+
+    /**
+     * The addresses of a user, decoded lazily
+     */
+    public List<String> addressesOf(final int user) {
+        final int from = offsets[user];
+        final int size = offsets[user + 1] - from;
+        return new AbstractList<String>() {
+            @Override
+            public String get(final int k) {
+                if (k < 0 || k >= size) {
+                    throw new IndexOutOfBoundsException("index " + k);
+                }
+                return addresses.get(members[from + k]);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    private boolean isUser(final Object key) {
+        return key instanceof Long && (Long)key >= 0 && (Long)key < getUserNumber();
+    }
+
+    /**
+     * Read-only user id -> addresses view
+     */
+    public Map<Long, List<String>> userMapView() {
+        return new AbstractMap<Long, List<String>>() {
+            @Override
+            public int size() {
+                return getUserNumber();
+            }
+
+            @Override
+            public boolean containsKey(final Object key) {
+                return isUser(key);
+            }
+
+            @Override
+            public List<String> get(final Object key) {
+                return isUser(key) ? addressesOf((int)(long)(Long)key) : null;
+            }
+
+            @Override
+            public Set<Map.Entry<Long, List<String>>> entrySet() {
+                return new AbstractSet<Map.Entry<Long, List<String>>>() {
+                    @Override
+                    public int size() {
+                        return getUserNumber();
+                    }
+
+                    @Override
+                    public Iterator<Map.Entry<Long, List<String>>> iterator() {
+                        return new Iterator<Map.Entry<Long, List<String>>>() {
+                            private int user = 0;
+
+                            @Override
+                            public boolean hasNext() {
+                                return user < getUserNumber();
+                            }
+
+                            @Override
+                            public Map.Entry<Long, List<String>> next() {
+                                if (!hasNext()) {
+                                    throw new NoSuchElementException();
+                                }
+                                final int u = user++;
+                                return new AbstractMap.SimpleImmutableEntry<>((long)u, addressesOf(u));
+                            }
+                        };
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Read-only address -> user id view
+     */
+    public Map<String, Long> keyMapView() {
+        return new AbstractMap<String, Long>() {
+            @Override
+            public int size() {
+                return getAddressNumber();
+            }
+
+            @Override
+            public boolean containsKey(final Object key) {
+                return key instanceof String && userOf((String)key) >= 0;
+            }
+
+            @Override
+            public Long get(final Object key) {
+                if (!(key instanceof String)) {
+                    return null;
+                }
+                final int user = userOf((String)key);
+                return user < 0 ? null : (long)user;
+            }
+
+            @Override
+            public Set<Map.Entry<String, Long>> entrySet() {
+                return new AbstractSet<Map.Entry<String, Long>>() {
+                    @Override
+                    public int size() {
+                        return getAddressNumber();
+                    }
+
+                    @Override
+                    public Iterator<Map.Entry<String, Long>> iterator() {
+                        return new Iterator<Map.Entry<String, Long>>() {
+                            private int addr = 0;
+
+                            @Override
+                            public boolean hasNext() {
+                                return addr < getAddressNumber();
+                            }
+
+                            @Override
+                            public Map.Entry<String, Long> next() {
+                                if (!hasNext()) {
+                                    throw new NoSuchElementException();
+                                }
+                                final int a = addr++;
+                                return new AbstractMap.SimpleImmutableEntry<>(addresses.get(a), (long)addrToUser[a]);
+                            }
+                        };
+                    }
+                };
+            }
+        };
+    }
+}
@@ -0,0 +1,380 @@
+package main;
+
+import com.google.gson.*;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Answers cluster queries over HTTP on the loopback interface from state loaded once, so that a
+ * lookup costs a hash probe or an array slice instead of a rerun of ClusterAnalyzer. The state is
+ * never modified after loading, so any number of requests are served concurrently. Every
+ * response is JSON:
+ *
+ * <pre>
+ * GET  /stats                          users, addresses, edges, largest cluster
+ * GET  /address/{address}              user of an address
+ * GET  /user/{id}/addresses            addresses of a user   ?offset=0&amp;limit=100
+ * GET  /user/{id}/aggregates           every AggregationEngine metric of a user
+ * GET  /user/{id}/payers               users who paid it     ?offset=0&amp;limit=100
+ * GET  /user/{id}/payees               users it paid         ?offset=0&amp;limit=100
+ * POST /batch                          a JSON array of the GET paths above, answered in order
+ * </pre>
+ *
+ * Errors come back as {"error": message} with status 400 or 404.
+ */
+public class ClusterServer {
+    public static final int DEFAULT_PORT = 8080;
+    public static final int DEFAULT_LIMIT = 100;
+    public static final int MAX_LIMIT = 10000;
+    public static final int MAX_BATCH = 10000;
+
+    private final ClusterMembership clusters;
+    private final UserGraph graph;
+    private final AggregationEngine.Aggregates aggregates;
+    private final Gson gson = new Gson();
+    private HttpServer server;
+    private ExecutorService executor;
+    private RunMetrics.Phase phase;
+
+    /**
+     * A failed query and the HTTP status that goes with it
+     */
+    private static class QueryException extends Exception {
+        private static final long serialVersionUID = 1L;
+        private final int status;
+
+        QueryException(final int status, final String message) {
+            super(message, null, false, false);
+            this.status = status;
+        }
+    }
+
+    public ClusterServer(final ClusterMembership clusters, final UserGraph graph, final AggregationEngine.Aggregates aggregates) {
+        if (graph.getUserNumber() != clusters.getUserNumber() || aggregates.getUserNumber() != clusters.getUserNumber()) {
+            throw new IllegalArgumentException("Graph and aggregates do not match the clustering");
+        }
+        this.clusters = clusters;
+        this.graph = graph;
+        this.aggregates = aggregates;
+    }
+
+    /**
+     * Load the state for a dataset the way ClusterAnalyzer does, from the caches next to it when
+     * they are fresh
+     */
+    public static ClusterServer load(final String file) {
+        final UserCluster uc = ClusterAnalyzer.loadClusters(file);
+        final UserGraph graph = ClusterAnalyzer.loadUserGraph(uc, file);
+        final AggregationEngine.Aggregates aggregates;
+        try (final RunMetrics.Phase phase = RunMetrics.global().begin("aggregate")) {
+            aggregates = new AggregationEngine(uc.getTransactions(), uc.getClusters()).run();
+            phase.addRows(uc.getTransactions().size()).count("users", aggregates.getUserNumber());
+        }
+        return new ClusterServer(uc.getClusters(), graph, aggregates);
+    }
+
+    /**
+     * Start serving on the loopback interface
+     *
+     * @param port 0 for any free port
+     * @param threads number of requests handled at once
+     * @return the port bound
+     */
+    public synchronized int start(final int port, final int threads) throws IOException {
+        if (server != null) {
+            throw new IllegalStateException("Already started");
+        }
+        // headers and body go out as separate writes; without TCP_NODELAY every response waits
+        // out the client's delayed ACK (~40 ms). Read once, when the server classes first load.
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        executor = Executors.newFixedThreadPool(threads, runnable -> {
+            final Thread thread = new Thread(runnable, "cluster-server");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        phase = RunMetrics.global().begin("serve");
+        server.start();
+        return server.getAddress().getPort();
+    }
+
+    public synchronized void stop() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+            phase.close();
+            server = null;
+        }
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        final long start = System.nanoTime();
+        int status = 200;
+        JsonElement body;
+        try {
+            final URI uri = exchange.getRequestURI();
+            final String method = exchange.getRequestMethod();
+            if (uri.getPath().equals("/batch")) {
+                if (!method.equals("POST")) {
+                    throw new QueryException(405, "POST a JSON array of paths to /batch");
+                }
+                body = batch(readBody(exchange));
+            } else if (method.equals("GET")) {
+                body = query(uri.getRawPath(), uri.getRawQuery());
+            } else {
+                throw new QueryException(405, method + " is not supported");
+            }
+        } catch (final QueryException exp) {
+            status = exp.status;
+            body = error(exp.getMessage());
+        } catch (final RuntimeException exp) {
+            status = 500;
+            body = error(String.valueOf(exp));
+        }
+        final byte[] bytes = gson.toJson(body).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (final OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+        phase.count("requests", 1).count("requestNanos", System.nanoTime() - start);
+        if (status != 200) {
+            phase.count("errors", 1);
+        }
+    }
+
+    private static String readBody(final HttpExchange exchange) throws IOException {
+        final ByteArrayOutputStream ret = new ByteArrayOutputStream();
+        final byte[] buf = new byte[8192];
+        try (final InputStream in = exchange.getRequestBody()) {
+            for (int n; (n = in.read(buf)) > 0; ) {
+                ret.write(buf, 0, n);
+            }
+        }
+        return new String(ret.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static JsonObject error(final String message) {
+        final JsonObject ret = new JsonObject();
+        ret.addProperty("error", message);
+        return ret;
+    }
+
+    private static String decode(final String s) {
+        try {
+            return URLDecoder.decode(s, "UTF-8");
+        } catch (final UnsupportedEncodingException exp) {
+            throw new IllegalStateException(exp);
+        }
+    }
+
+    private static Map<String, String> parameters(final String rawQuery) {
+        final Map<String, String> ret = new HashMap<>();
+        if (rawQuery != null) {
+            for (final String pair : rawQuery.split("&")) {
+                final int eq = pair.indexOf('=');
+                if (eq > 0) {
+                    ret.put(decode(pair.substring(0, eq)), decode(pair.substring(eq + 1)));
+                }
+            }
+        }
+        return ret;
+    }
+
+    private static int intParameter(final Map<String, String> params, final String name, final int fallback, final int max) throws QueryException {
+        final String value = params.get(name);
+        if (value == null) {
+            return fallback;
+        }
+        try {
+            final int ret = Integer.parseInt(value);
+            if (ret < 0 || ret > max) {
+                throw new QueryException(400, name + " must be between 0 and " + max);
+            }
+            return ret;
+        } catch (final NumberFormatException exp) {
+            throw new QueryException(400, name + " is not a number: " + value);
+        }
+    }
+
+    private int user(final String segment) throws QueryException {
+        try {
+            final int user = Integer.parseInt(segment);
+            if (user >= 0 && user < clusters.getUserNumber()) {
+                return user;
+            }
+        } catch (final NumberFormatException exp) {
+            throw new QueryException(400, "Not a user id: " + segment);
+        }
+        throw new QueryException(404, "No user " + segment);
+    }
+
+    /**
+     * Answer a GET path; raw (still URL-encoded) path and query string
+     */
+    private JsonElement query(final String rawPath, final String rawQuery) throws QueryException {
+        final String[] parts = rawPath.split("/");
+        if (parts.length == 2 && parts[1].equals("stats")) {
+            return stats();
+        }
+        if (parts.length == 3 && parts[1].equals("address")) {
+            return address(decode(parts[2]));
+        }
+        if (parts.length == 4 && parts[1].equals("user")) {
+            final int user = user(parts[2]);
+            final Map<String, String> params = parameters(rawQuery);
+            switch (parts[3]) {
+            case "addresses":
+                return addresses(user, intParameter(params, "offset", 0, Integer.MAX_VALUE), intParameter(params, "limit", DEFAULT_LIMIT, MAX_LIMIT));
+            case "aggregates":
+                return aggregates(user);
+            case "payers":
+                return counterparties(user, false, intParameter(params, "offset", 0, Integer.MAX_VALUE), intParameter(params, "limit", DEFAULT_LIMIT, MAX_LIMIT));
+            case "payees":
+                return counterparties(user, true, intParameter(params, "offset", 0, Integer.MAX_VALUE), intParameter(params, "limit", DEFAULT_LIMIT, MAX_LIMIT));
+            default:
+                break;
+            }
+        }
+        throw new QueryException(404, "No such query: " + decode(rawPath));
+    }
+
+    private JsonElement batch(final String body) throws QueryException {
+        final JsonElement parsed;
+        try {
+            parsed = new JsonParser().parse(body);
+        } catch (final JsonParseException exp) {
+            throw new QueryException(400, "Batch body is not JSON: " + exp.getMessage());
+        }
+        if (!parsed.isJsonArray()) {
+            throw new QueryException(400, "Batch body must be a JSON array of paths");
+        }
+        final JsonArray paths = parsed.getAsJsonArray();
+        if (paths.size() > MAX_BATCH) {
+            throw new QueryException(400, "At most " + MAX_BATCH + " queries per batch");
+        }
+        final JsonArray ret = new JsonArray();
+        for (final JsonElement path : paths) {
+            final JsonObject result = new JsonObject();
+            if (!path.isJsonPrimitive()) {
+                result.addProperty("status", 400);
+                result.add("result", error("Not a path: " + path));
+                ret.add(result);
+                continue;
+            }
+            final String text = path.getAsString();
+            result.addProperty("path", text);
+            try {
+                final int q = text.indexOf('?');
+                result.add("result", query(q < 0 ? text : text.substring(0, q), q < 0 ? null : text.substring(q + 1)));
+                result.addProperty("status", 200);
+            } catch (final QueryException exp) {
+                result.addProperty("status", exp.status);
+                result.add("result", error(exp.getMessage()));
+            }
+            ret.add(result);
+        }
+        return ret;
+    }
+
+    private JsonElement stats() {
+        final JsonObject ret = new JsonObject();
+        ret.addProperty("users", clusters.getUserNumber());
+        ret.addProperty("addresses", clusters.getAddressNumber());
+        ret.addProperty("edges", graph.getEdgeNumber());
+        ret.addProperty("largestClusterSize", clusters.getLargestClusterSize());
+        return ret;
+    }
+
+    private JsonElement address(final String address) throws QueryException {
+        final int user = clusters.userOf(address);
+        if (user < 0) {
+            throw new QueryException(404, "Unknown address " + address);
+        }
+        final JsonObject ret = new JsonObject();
+        ret.addProperty("address", address);
+        ret.addProperty("user", user);
+        ret.addProperty("clusterSize", clusters.clusterSize(user));
+        return ret;
+    }
+
+    private JsonElement addresses(final int user, final int offset, final int limit) {
+        final int size = clusters.clusterSize(user);
+        final JsonArray list = new JsonArray();
+        final AddressDictionary dict = clusters.getAddresses();
+        for (int k = offset; k < size && k - offset < limit; ++k) {
+            list.add(new JsonPrimitive(dict.get(clusters.member(user, k))));
+        }
+        final JsonObject ret = new JsonObject();
+        ret.addProperty("user", user);
+        ret.addProperty("size", size);
+        ret.addProperty("offset", offset);
+        ret.add("addresses", list);
+        return ret;
+    }
+
+    private JsonElement aggregates(final int user) {
+        final JsonObject values = new JsonObject();
+        for (final String name : aggregates.getNames()) {
+            values.addProperty(name, aggregates.get(name)[user]);
+        }
+        final JsonObject ret = new JsonObject();
+        ret.addProperty("user", user);
+        ret.add("aggregates", values);
+        return ret;
+    }
+
+    /**
+     * Out-edges (payees) or in-edges (payers) of a user in the user graph, by user id
+     */
+    private JsonElement counterparties(final int user, final boolean out, final int offset, final int limit) {
+        final int start = out ? graph.outStart(user) : graph.inStart(user);
+        final int end = out ? graph.outEnd(user) : graph.inEnd(user);
+        final JsonArray list = new JsonArray();
+        final int from = (int)Math.min(end, (long)start + offset);
+        for (int e = from; e < end && e - from < limit; ++e) {
+            final JsonObject edge = new JsonObject();
+            edge.addProperty("user", out ? graph.target(e) : graph.source(e));
+            edge.addProperty("value", out ? graph.outValue(e) : graph.inValue(e));
+            edge.addProperty("count", out ? graph.outCount(e) : graph.inCount(e));
+            edge.addProperty("txCount", out ? graph.outTxCount(e) : graph.inTxCount(e));
+            list.add(edge);
+        }
+        final JsonObject ret = new JsonObject();
+        ret.addProperty("user", user);
+        ret.addProperty("size", end - start);
+        ret.addProperty("offset", offset);
+        ret.add(out ? "payees" : "payers", list);
+        return ret;
+    }
+
+    /**
+     * ClusterServer [transactions] [port] [threads]
+     */
+    public static void main(String[] args) throws IOException {
+        final String file = args.length > 0 ? args[0] : "transactions.txt";
+        final int port = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT;
+        final int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        final ClusterServer server = load(file);
+        final int bound = server.start(port, threads);
+        System.out.println("Serving " + file + " on http://127.0.0.1:" + bound + "/");
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop();
+            RunMetrics.global().writeReport();
+        }));
+    }
+}
@@ -0,0 +1,120 @@
+package main;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Binary snapshot of a clustering. A load maps each section and bulk-copies it into the heap arrays
+ * of AddressDictionary and ClusterMembership, with no parsing or rehashing; the arrays are copies
+ * rather than views of the mapping because the dictionary keeps growing when more transactions are
+ * read after a load, and ClusterMembership hands its int arrays out. Layout (little-endian):
+ *
+ * <pre>
+ * header   magic "BCSN", version, addresses N, users U, address bytes B, table length T,
+ *          largest cluster size (checked on load), 0                (8 ints)
+ * byte[B]  address keys
+ * int[N+1] address offsets into the bytes
+ * int[N]   address hashes
+ * int[T]   address hash table
+ * int[N]   user of every address
+ * int[U+1] cluster offsets; cluster u holds members[offsets[u]] .. members[offsets[u + 1] - 1],
+ *          so its size is offsets[u + 1] - offsets[u]
+ * int[N]   members
+ * </pre>
+ *
+ * The dictionary's hash table is saved as is, so a snapshot is only valid for the AddressDictionary
+ * hashing it was written with; change VERSION with the hash.
+ */
+public final class ClusterSnapshot {
+    public static final int MAGIC = 0x4243534e; // "BCSN"
+    public static final int VERSION = 1;
+    private static final int HEADER_INTS = 8;
+
+    private ClusterSnapshot() {
+    }
+
+    /**
+     * Write a snapshot; the file is replaced atomically
+     */
+    public static void write(final ClusterMembership clusters, final File file) throws IOException {
+        final AddressDictionary dict = clusters.getAddresses();
+        final int n = dict.size();
+        if (clusters.getAddressNumber() != n) {
+            throw new IllegalArgumentException("Clustering covers " + clusters.getAddressNumber() + " of " + n + " addresses");
+        }
+        final int numUsers = clusters.getUserNumber();
+        final int[] offsets = dict.rawOffsets();
+        final int numBytes = offsets[n];
+        final int[] table = dict.rawTable();
+        final File tmp = new File(file.getPath() + ".tmp");
+        try (final FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            final MappedArrays out = new MappedArrays(channel);
+            out.writeInts(new int[] { MAGIC, VERSION, n, numUsers, numBytes, table.length, clusters.getLargestClusterSize(), 0 }, 0, HEADER_INTS);
+            out.writeBytes(dict.rawBytes(), 0, numBytes);
+            out.writeInts(offsets, 0, n + 1);
+            out.writeInts(dict.rawHashes(), 0, n);
+            out.writeInts(table, 0, table.length);
+            out.writeInts(clusters.getAddrToUser(), 0, n);
+            out.writeInts(clusters.getOffsets(), 0, numUsers + 1);
+            out.writeInts(clusters.getMembers(), 0, n);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static ClusterMembership read(final File file) throws IOException {
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size < HEADER_INTS * 4) {
+                throw new IOException(file + " is too short to be a cluster snapshot");
+            }
+            final int[] header = new int[HEADER_INTS];
+            long pos = MappedArrays.readInts(channel, 0, header, HEADER_INTS);
+            if (header[0] != MAGIC) {
+                throw new IOException(file + " is not a cluster snapshot");
+            }
+            if (header[1] != VERSION) {
+                throw new IOException(file + " has unsupported version " + header[1]);
+            }
+            final int n = header[2];
+            final int numUsers = header[3];
+            final int numBytes = header[4];
+            final int tableLength = header[5];
+            final long expected = HEADER_INTS * 4L + numBytes + 4L * ((n + 1) + n + tableLength + n + (numUsers + 1) + n);
+            if (n < 0 || numUsers < 0 || numBytes < 0 || tableLength <= 0 || size != expected) {
+                throw new IOException(file + " is truncated or corrupt (" + size + " bytes, expected " + expected + ")");
+            }
+            final byte[] bytes = new byte[numBytes];
+            pos = MappedArrays.readBytes(channel, pos, bytes, numBytes);
+            // one spare slot each so that the dictionary can still grow
+            final int[] addrOffsets = new int[n + 2];
+            pos = MappedArrays.readInts(channel, pos, addrOffsets, n + 1);
+            final int[] hashes = new int[n + 1];
+            pos = MappedArrays.readInts(channel, pos, hashes, n);
+            final int[] table = new int[tableLength];
+            pos = MappedArrays.readInts(channel, pos, table, tableLength);
+            final int[] addrToUser = new int[n];
+            pos = MappedArrays.readInts(channel, pos, addrToUser, n);
+            final int[] offsets = new int[numUsers + 1];
+            pos = MappedArrays.readInts(channel, pos, offsets, numUsers + 1);
+            final int[] members = new int[n];
+            MappedArrays.readInts(channel, pos, members, n);
+            if (offsets[0] != 0 || offsets[numUsers] != n) {
+                throw new IOException(file + " has inconsistent cluster offsets");
+            }
+            final AddressDictionary dict;
+            try {
+                dict = new AddressDictionary(bytes, addrOffsets, hashes, table, n);
+            } catch (final IllegalArgumentException exp) {
+                throw new IOException(file + ": " + exp.getMessage());
+            }
+            final ClusterMembership ret = new ClusterMembership(offsets, members, addrToUser, dict);
+            if (ret.getLargestClusterSize() != header[6]) {
+                throw new IOException(file + " has largest cluster size " + ret.getLargestClusterSize() + ", header says " + header[6]);
+            }
+            return ret;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A rule that finds addresses controlled by the same user in one transaction. mergeAddresses
+ * groups the rows by transaction once and shows every transaction to every enabled heuristic,
+ * whose links all go into the same disjoint-set, so another heuristic costs its own work per
+ * transaction and not another scan. Heuristics are called from several threads at once.
+ *
+ * The heuristics of a run are named in -Dcluster.heuristics (default commonInput): built-in
+ * names or the class names of other implementations, which need a public no-argument
+ * constructor.
+ */
+public interface ClusteringHeuristic {
+    String PROPERTY = "cluster.heuristics";
+    String DEFAULT = CommonInputHeuristic.NAME;
+
+    /**
+     * Receives the links of one heuristic
+     */
+    interface Linker {
+        /**
+         * Put two addresses in the same cluster
+         */
+        void link(int address1, int address2);
+    }
+
+    String getName();
+
+    /**
+     * True if apply looks at outputs; if no enabled heuristic does, only inputs are grouped
+     */
+    boolean needsOutputs();
+
+    void apply(TransactionGroups.Group tx, Linker linker);
+
+    /**
+     * A built-in heuristic by name, or an instance of the named class
+     *
+     * @throws IllegalArgumentException for an unknown name
+     */
+    static ClusteringHeuristic byName(final String name) {
+        switch (name) {
+            case CommonInputHeuristic.NAME:
+                return new CommonInputHeuristic();
+            case OneTimeChangeHeuristic.NAME:
+                return new OneTimeChangeHeuristic();
+            default:
+                try {
+                    return (ClusteringHeuristic)Class.forName(name).getConstructor().newInstance();
+                } catch (final ReflectiveOperationException | ClassCastException exp) {
+                    throw new IllegalArgumentException("Unknown clustering heuristic " + name, exp);
+                }
+        }
+    }
+
+    /**
+     * The heuristics named in a comma-separated list
+     */
+    static List<ClusteringHeuristic> parse(final String names) {
+        final List<ClusteringHeuristic> ret = new ArrayList<>();
+        for (final String name : names.split(",")) {
+            if (!name.trim().isEmpty()) {
+                ret.add(byName(name.trim()));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * The heuristics of -Dcluster.heuristics
+     */
+    static List<ClusteringHeuristic> fromProperty() {
+        return parse(System.getProperty(PROPERTY, DEFAULT));
+    }
+
+    /**
+     * For clusterers that only link common inputs: refuse a run whose -Dcluster.heuristics asks
+     * for more, rather than quietly clustering by commonInput alone
+     *
+     * @param clusterer what is clustering, for the message
+     * @throws IllegalStateException if the heuristics are not the default
+     */
+    static void requireDefault(final String clusterer) {
+        final String heuristics = names(fromProperty());
+        if (!heuristics.equals(DEFAULT)) {
+            throw new IllegalStateException(clusterer + " only applies " + DEFAULT + ", not " + heuristics);
+        }
+    }
+
+    /**
+     * Names joined with commas, as in -Dcluster.heuristics
+     */
+    static String names(final List<ClusteringHeuristic> heuristics) {
+        final StringBuilder ret = new StringBuilder();
+        for (final ClusteringHeuristic h : heuristics) {
+            ret.append(ret.length() == 0 ? "" : ",").append(h.getName());
+        }
+        return ret.toString();
+    }
+}
@@ -0,0 +1,30 @@
+package main;
+
+/**
+ * All inputs of a transaction belong to one user, who had to sign for each of them.
+ */
+public class CommonInputHeuristic implements ClusteringHeuristic {
+    public static final String NAME = "commonInput";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean needsOutputs() {
+        return false;
+    }
+
+    @Override
+    public void apply(final TransactionGroups.Group tx, final Linker linker) {
+        final int n = tx.inputCount();
+        if (n < 2) {
+            return;
+        }
+        final int first = tx.inputAddress(0);
+        for (int k = 1; k < n; ++k) {
+            linker.link(first, tx.inputAddress(k));
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package main;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free disjoint-set for unioning from many threads at once. Roots are linked with a CAS on
+ * the parent array, always from the larger index to the smaller one (union by index), so no
+ * cycle can form however unions interleave. find is iterative and halves the path with CAS as it
+ * walks; a failed CAS only means another thread already shortened that link.
+ *
+ * Sizes are not tracked during unions (that would need a second CAS per link); call
+ * {@link #roots()} once all unions are done and count from there.
+ *
+ * A counting tree also tallies finds, the parent links they follow, unions and the unions that
+ * linked two sets, for RunMetrics; the tallies are striped so threads do not contend on them.
+ */
+public class ConcurrentUptree {
+    private final AtomicIntegerArray parents;
+    private final boolean counting;
+    private final LongAdder finds = new LongAdder();
+    private final LongAdder findSteps = new LongAdder();
+    private final LongAdder unions = new LongAdder();
+    private final LongAdder links = new LongAdder();
+
+    public ConcurrentUptree(final int N) {
+        this(N, false);
+    }
+
+    public ConcurrentUptree(final int N, final boolean counting) {
+        parents = new AtomicIntegerArray(N);
+        for (int i = 0; i < N; ++i) {
+            parents.set(i, i);
+        }
+        this.counting = counting;
+    }
+
+    public int size() {
+        return parents.length();
+    }
+
+    public int find(final int i) {
+        int x = i;
+        int steps = 0;
+        while (true) {
+            final int parent = parents.get(x);
+            if (parent == x) {
+                if (counting) {
+                    finds.increment();
+                    findSteps.add(steps);
+                }
+                return x;
+            }
+            final int grandparent = parents.get(parent);
+            if (grandparent != parent) {
+                parents.compareAndSet(x, parent, grandparent);
+                steps++;
+            }
+            steps++;
+            x = grandparent;
+        }
+    }
+
+    /**
+     * Merge the sets of i and j
+     *
+     * @return true if they were in different sets
+     */
+    public boolean union(final int i, final int j) {
+        if (counting) {
+            unions.increment();
+        }
+        while (true) {
+            int ri = find(i);
+            int rj = find(j);
+            if (ri == rj) {
+                return false;
+            }
+            if (ri < rj) {
+                final int tmp = ri;
+                ri = rj;
+                rj = tmp;
+            }
+            if (parents.compareAndSet(ri, ri, rj)) {
+                if (counting) {
+                    links.increment();
+                }
+                return true;
+            }
+        }
+    }
+
+    public long getFindCount() {
+        return finds.sum();
+    }
+
+    /**
+     * Parent links followed by all finds; divided by getFindCount, the average path length
+     */
+    public long getFindSteps() {
+        return findSteps.sum();
+    }
+
+    public long getUnionCount() {
+        return unions.sum();
+    }
+
+    /**
+     * Unions that merged two different sets
+     */
+    public long getLinkCount() {
+        return links.sum();
+    }
+
+    public boolean isCounting() {
+        return counting;
+    }
+
+    /**
+     * Add the tallies to a phase; a tree that does not count adds nothing
+     */
+    public void countInto(final RunMetrics.Phase phase) {
+        if (!counting) {
+            return;
+        }
+        final long n = getFindCount();
+        phase.count("unions", getUnionCount())
+             .count("links", getLinkCount())
+             .count("finds", n)
+             .count("findSteps", getFindSteps())
+             .set("averagePathLength", n == 0 ? 0 : (double)getFindSteps() / n);
+    }
+
+    /**
+     * Resolve every element to its root. Only meaningful once no unions are in flight.
+     *
+     * @return root of each element; a root is always the smallest index in its set
+     */
+    public int[] roots() {
+        final int[] ret = new int[parents.length()];
+        for (int i = 0; i < ret.length; ++i) {
+            final int parent = parents.get(i);
+            // parents always have smaller indexes, so ret[parent] is already final
+            ret[i] = parent == i ? i : ret[parent];
+        }
+        return ret;
+    }
+}
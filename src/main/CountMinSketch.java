@@ -0,0 +1,74 @@
+package main;
+
+/**
+ * Weighted point counts of 64-bit hashes in depth rows of width counters (Cormode and
+ * Muthukrishnan). An estimate never undercounts, and overcounts by at most e / width of the total
+ * weight with probability 1 - e^-depth; sketches of the same shape merge by adding counters.
+ */
+public final class CountMinSketch {
+    private final int depth;
+    private final int width;
+    private final long[] counts;
+    private long total;
+
+    /**
+     * @param depth
+     * @param width a power of two
+     */
+    public CountMinSketch(final int depth, final int width) {
+        if (depth <= 0 || width <= 0 || Integer.bitCount(width) != 1) {
+            throw new IllegalArgumentException("Need a positive depth and a power-of-two width");
+        }
+        this.depth = depth;
+        this.width = width;
+        this.counts = new long[depth * width];
+    }
+
+    /**
+     * Add weight (nonnegative) to a well-mixed 64-bit hash
+     */
+    public void add(final long hash, final long weight) {
+        // row i hashes to h1 + i * h2 (Kirsch and Mitzenmacher)
+        final int h1 = (int)hash;
+        final int h2 = (int)(hash >>> 32) | 1;
+        for (int i = 0; i < depth; ++i) {
+            counts[i * width + ((h1 + i * h2) & (width - 1))] += weight;
+        }
+        total += weight;
+    }
+
+    public long estimate(final long hash) {
+        final int h1 = (int)hash;
+        final int h2 = (int)(hash >>> 32) | 1;
+        long ret = Long.MAX_VALUE;
+        for (int i = 0; i < depth; ++i) {
+            ret = Math.min(ret, counts[i * width + ((h1 + i * h2) & (width - 1))]);
+        }
+        return ret;
+    }
+
+    public void merge(final CountMinSketch other) {
+        if (other.depth != depth || other.width != width) {
+            throw new IllegalArgumentException("Cannot merge a " + other.depth + "x" + other.width + " sketch into " + depth + "x" + width);
+        }
+        for (int i = 0; i < counts.length; ++i) {
+            counts[i] += other.counts[i];
+        }
+        total += other.total;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * Most an estimate exceeds the true count by, with probability getConfidence()
+     */
+    public long getErrorBound() {
+        return (long)Math.ceil(Math.E / width * total);
+    }
+
+    public double getConfidence() {
+        return 1 - Math.exp(-depth);
+    }
+}
@@ -2,53 +2,384 @@ package main;
 
 import info.blockchain.api.blockexplorer.*;
 import info.blockchain.api.APIException;
-import java.io.IOException;
-import java.io.FileWriter;
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 public class DatasetGenerator {
+	/** Number of heights each queue between the pipeline stages may hold */
+	public static final int PIPELINE_DEPTH = 4;
+	public static final String CHECKPOINT_SUFFIX = ".checkpoint";
+
 	String file;
+	final long minHeight, maxHeight;
+	final BlockSource source;
+	final int maxInFlight;
 
 	public DatasetGenerator(String file) {
+		this(file, 265852, 266085);
+	}
+
+	/**
+	 * @param file
+	 *            Output file
+	 * @param minHeight
+	 *            First block height to include
+	 * @param maxHeight
+	 *            Last block height to include; a range past a previous run's
+	 *            last height gives a batch for IncrementalClusterer
+	 */
+	public DatasetGenerator(String file, long minHeight, long maxHeight) {
+		this(file, minHeight, maxHeight, CachingBlockSource.standard(), BlockFetcher.DEFAULT_MAX_IN_FLIGHT);
+	}
+
+	/**
+	 * @param file
+	 *            Output file
+	 * @param minHeight
+	 *            First block height to include
+	 * @param maxHeight
+	 *            Last block height to include
+	 * @param source
+	 *            Where to fetch blocks from
+	 * @param maxInFlight
+	 *            Maximum number of concurrent block requests
+	 */
+	public DatasetGenerator(String file, long minHeight, long maxHeight, BlockSource source, int maxInFlight) {
 		this.file = file;
+		this.minHeight = minHeight;
+		this.maxHeight = maxHeight;
+		this.source = source;
+		this.maxInFlight = maxInFlight;
 	}
 
-        private List<Block> getBlocks() throws APIException, IOException {
-            final BlockExplorer explorer = new BlockExplorer();
-            final Set<Block> result = new HashSet<>();
-            final int MIN_HEIGHT = 265852;
-            final int MAX_HEIGHT = 266085;
-            for (int i = MIN_HEIGHT; i <= MAX_HEIGHT; ++i) {
-                result.addAll(explorer.getBlocksAtHeight(i));
+        private boolean isCoinbase(final Transaction t) {
+            return t.getInputs().size() == 1 && t.getInputs().get(0).getPreviousOutput() == null;
+        }
+
+        /**
+         * Receives the input and output records of every non-coinbase transaction, with the
+         * height and time of its block
+         */
+        private interface RecordSink {
+            void input(long txIndex, String txHash, String address, long value, int height, long time) throws IOException;
+            void output(long txIndex, String txHash, String address, long value, int height, long time) throws IOException;
+        }
+
+        /**
+         * Called by the writer once every record of a height has been handed to the sink
+         */
+        private interface HeightWritten {
+            void written(long height) throws IOException;
+        }
+
+        private static final class HeightBlocks {
+            final long height;
+            final List<Block> blocks;
+
+            HeightBlocks(final long height, final List<Block> blocks) {
+                this.height = height;
+                this.blocks = blocks;
             }
-            return new ArrayList<>(result);
         }
 
-        private boolean isCoinbase(final Transaction t) {
-            return t.getInputs().size() == 1 && t.getInputs().get(0).getPreviousOutput() == null;
+        /**
+         * The records of one height, built by the convert stage and replayed by the writer
+         */
+        private static final class HeightRecords implements RecordSink {
+            final long height;
+            private int size;
+            private long[] txIndex = new long[64];
+            private long[] value = new long[64];
+            private boolean[] in = new boolean[64];
+            private String[] hash = new String[64];
+            private String[] address = new String[64];
+            private long[] time = new long[64]; // blocks of a height may differ in time
+
+            HeightRecords(final long height) {
+                this.height = height;
+            }
+
+            @Override
+            public void input(long txIndex, String txHash, String address, long value, int height, long time) {
+                add(txIndex, txHash, address, value, true, time);
+            }
+
+            @Override
+            public void output(long txIndex, String txHash, String address, long value, int height, long time) {
+                add(txIndex, txHash, address, value, false, time);
+            }
+
+            private void add(long index, String txHash, String addr, long amount, boolean input, long blockTime) {
+                if (size == txIndex.length) {
+                    txIndex = Arrays.copyOf(txIndex, size * 2);
+                    value = Arrays.copyOf(value, size * 2);
+                    in = Arrays.copyOf(in, size * 2);
+                    hash = Arrays.copyOf(hash, size * 2);
+                    address = Arrays.copyOf(address, size * 2);
+                    time = Arrays.copyOf(time, size * 2);
+                }
+                txIndex[size] = index;
+                hash[size] = txHash;
+                address[size] = addr;
+                value[size] = amount;
+                in[size] = input;
+                time[size] = blockTime;
+                size++;
+            }
+
+            int size() {
+                return size;
+            }
+
+            void replay(final RecordSink sink) throws IOException {
+                for (int i = 0; i < size; ++i) {
+                    if (in[i]) {
+                        sink.input(txIndex[i], hash[i], address[i], value[i], (int)height, time[i]);
+                    } else {
+                        sink.output(txIndex[i], hash[i], address[i], value[i], (int)height, time[i]);
+                    }
+                }
+            }
         }
 
-	public boolean writeTransactions() {
-            try (final FileWriter writer = new FileWriter(file, false)) {
-                for (final Block block : getBlocks()) {
-                    for (final Transaction transaction : block.getTransactions()) {
-                        final long index = transaction.getIndex();
-                        final String hash = transaction.getHash();
-                        if (!isCoinbase(transaction)) {
-                            for (final Input input : transaction.getInputs()) {
-                                final Output lastOutput = input.getPreviousOutput();
-                                writer.append(generateInputRecord(index, hash, lastOutput.getAddress(), lastOutput.getValue()) + "\n");
-                            }
-                            for (final Output output : transaction.getOutputs()) {
-                                final String addr = output.getAddress();
-                                if (!addr.isEmpty()) {
-                                    writer.append(generateOutputRecord(index, hash, addr, output.getValue()) + "\n");
+        private static final HeightBlocks END_OF_BLOCKS = new HeightBlocks(Long.MIN_VALUE, null);
+        private static final HeightRecords END_OF_RECORDS = new HeightRecords(Long.MIN_VALUE);
+
+        private void convert(final Block block, final RecordSink sink) throws IOException {
+            final int height = (int)block.getHeight();
+            final long time = block.getTime();
+            for (final Transaction transaction : block.getTransactions()) {
+                final long index = transaction.getIndex();
+                final String hash = transaction.getHash();
+                if (!isCoinbase(transaction)) {
+                    for (final Input input : transaction.getInputs()) {
+                        final Output lastOutput = input.getPreviousOutput();
+                        sink.input(index, hash, lastOutput.getAddress(), lastOutput.getValue(), height, time);
+                    }
+                    for (final Output output : transaction.getOutputs()) {
+                        final String addr = output.getAddress();
+                        if (!addr.isEmpty()) {
+                            sink.output(index, hash, addr, output.getValue(), height, time);
+                        }
+                    }
+                }
+            }
+        }
+
+        private static <T> void put(final BlockingQueue<T> queue, final T item) throws InterruptedIOException {
+            try {
+                queue.put(item);
+            } catch (final InterruptedException exp) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while generating the dataset");
+            }
+        }
+
+        /**
+         * End a stage's output after it failed or was interrupted, without blocking: the stage is
+         * the queue's only producer, so once the queue is cleared the sentinel fits. put could
+         * block for good on a full queue whose consumer has already given up.
+         */
+        private static <T> void endAfterFailure(final BlockingQueue<T> queue, final T end) {
+            queue.clear();
+            queue.offer(end);
+        }
+
+        private static void await(final Future<?> stage) throws APIException, IOException {
+            try {
+                stage.get();
+            } catch (final InterruptedException exp) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while generating the dataset");
+            } catch (final ExecutionException exp) {
+                final Throwable cause = exp.getCause();
+                if (cause instanceof APIException) {
+                    throw (APIException)cause;
+                } else if (cause instanceof IOException) {
+                    throw (IOException)cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException)cause;
+                }
+                throw new RuntimeException(cause);
+            }
+        }
+
+        /**
+         * Run fetch -> convert -> write for heights fromHeight..maxHeight. Fetching and converting
+         * run on their own threads and the caller writes; the stages are joined by queues of
+         * PIPELINE_DEPTH heights, so at most a few heights of blocks and records are held at once
+         * whatever the size of the range. Heights, blocks and records are counted in phase as they
+         * are written.
+         */
+        private void pipeline(final long fromHeight, final RecordSink sink, final HeightWritten written, final RunMetrics.Phase phase) throws APIException, IOException {
+            final BlockFetcher fetcher = new BlockFetcher(source, maxInFlight, BlockFetcher.DEFAULT_MAX_RETRIES, BlockFetcher.DEFAULT_BACKOFF_MILLIS);
+            final BlockingQueue<HeightBlocks> fetched = new ArrayBlockingQueue<>(PIPELINE_DEPTH);
+            final BlockingQueue<HeightRecords> converted = new ArrayBlockingQueue<>(PIPELINE_DEPTH);
+            final ExecutorService stages = Executors.newFixedThreadPool(2, runnable -> {
+                final Thread thread = new Thread(runnable, "dataset-pipeline");
+                thread.setDaemon(true);
+                return thread;
+            });
+            try {
+                final Future<?> fetch = stages.submit(() -> {
+                    try {
+                        fetcher.fetch(fromHeight, maxHeight, (height, blocks) -> put(fetched, new HeightBlocks(height, blocks)));
+                    } catch (final Throwable exp) {
+                        endAfterFailure(fetched, END_OF_BLOCKS);
+                        throw exp;
+                    }
+                    fetched.put(END_OF_BLOCKS);
+                    return null;
+                });
+                final Future<?> convert = stages.submit(() -> {
+                    try {
+                        for (HeightBlocks h; (h = fetched.take()) != END_OF_BLOCKS; ) {
+                            final HeightRecords records = new HeightRecords(h.height);
+                            // the same block can be listed twice at a height; keep the first
+                            final Set<String> seen = new HashSet<>();
+                            for (final Block block : h.blocks) {
+                                if (seen.add(block.getHash())) {
+                                    convert(block, records);
+                                    phase.count("blocks", 1);
                                 }
                             }
+                            converted.put(records);
                         }
+                    } catch (final Throwable exp) {
+                        endAfterFailure(converted, END_OF_RECORDS);
+                        throw exp;
                     }
+                    converted.put(END_OF_RECORDS);
+                    return null;
+                });
+                for (HeightRecords records; (records = converted.take()) != END_OF_RECORDS; ) {
+                    records.replay(sink);
+                    written.written(records.height);
+                    phase.addRows(records.size()).count("heights", 1);
+                }
+                // a failed converter may leave the fetcher blocked, so check it first
+                await(convert);
+                await(fetch);
+            } catch (final InterruptedException exp) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while generating the dataset");
+            } finally {
+                stages.shutdownNow();
+            }
+        }
+
+        /**
+         * The checkpoint file of the text dataset: "minHeight maxHeight lastWrittenHeight
+         * fileLength". It is only present while a run is incomplete.
+         */
+        public File getCheckpointFile() {
+            return new File(file + CHECKPOINT_SUFFIX);
+        }
+
+        /**
+         * @return {lastWrittenHeight, fileLength} of an unfinished run over the same range, or null
+         */
+        private long[] readCheckpoint(final File output) throws IOException {
+            final File checkpoint = getCheckpointFile();
+            if (!checkpoint.isFile() || !output.isFile()) {
+                return null;
+            }
+            final String[] fields = new String(Files.readAllBytes(checkpoint.toPath()), StandardCharsets.US_ASCII).trim().split(" ");
+            try {
+                if (fields.length == 4 && Long.parseLong(fields[0]) == minHeight && Long.parseLong(fields[1]) == maxHeight
+                    && Long.parseLong(fields[3]) <= output.length()) {
+                    return new long[] { Long.parseLong(fields[2]), Long.parseLong(fields[3]) };
+                }
+            } catch (final NumberFormatException exp) {
+                // fall through and start over
+            }
+            System.err.println("Ignoring checkpoint " + checkpoint + " for a different run");
+            return null;
+        }
+
+        private void writeCheckpoint(final long height, final long length) throws IOException {
+            final File checkpoint = getCheckpointFile();
+            final File tmp = new File(checkpoint.getPath() + ".tmp");
+            Files.write(tmp.toPath(), (minHeight + " " + maxHeight + " " + height + " " + length + "\n").getBytes(StandardCharsets.US_ASCII));
+            Files.move(tmp.toPath(), checkpoint.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+	/**
+	 * Write the text dataset. After each height the file is synced and the height recorded in
+	 * the checkpoint file, so a run that dies part way resumes after the last complete height
+	 * (dropping any partly written one) instead of starting over.
+	 * 
+	 * @return true if the dataset was written
+	 */
+	public boolean writeTransactions() {
+            final File output = new File(file);
+            try (final RunMetrics.Phase phase = RunMetrics.global().begin("writeTransactions")) {
+                final long[] checkpoint = readCheckpoint(output);
+                final long fromHeight = checkpoint == null ? minHeight : checkpoint[0] + 1;
+                final long length = checkpoint == null ? 0 : checkpoint[1];
+                if (checkpoint != null) {
+                    System.err.println("Resuming " + file + " at height " + fromHeight);
+                }
+                try (final FileChannel channel = FileChannel.open(output.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                     final Writer writer = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel)), 1 << 16)) {
+                    channel.truncate(length);
+                    channel.position(length);
+                    pipeline(fromHeight, new RecordSink() {
+                        @Override
+                        public void input(long txIndex, String txHash, String address, long value, int height, long time) throws IOException {
+                            writer.append(generateInputRecord(txIndex, txHash, address, value, height, time) + "\n");
+                        }
+
+                        @Override
+                        public void output(long txIndex, String txHash, String address, long value, int height, long time) throws IOException {
+                            writer.append(generateOutputRecord(txIndex, txHash, address, value, height, time) + "\n");
+                        }
+                    }, height -> {
+                        writer.flush();
+                        channel.force(false);
+                        writeCheckpoint(height, channel.position());
+                    }, phase);
+                    writer.flush();
+                    phase.addBytes(channel.position() - length);
+                }
+                Files.deleteIfExists(getCheckpointFile().toPath());
+            } catch (final IOException | APIException exp) {
+                throw new RuntimeException(exp);
+            }
+            return true;
+	}
+
+	/**
+	 * Write the dataset in the binary format read by UserCluster.readBinaryTransactions. The
+	 * address table and block index are only written at the end, so unlike the text dataset
+	 * this cannot resume; BinaryDataset.convert turns a resumed text dataset into one.
+	 * 
+	 * @return true if the dataset was written
+	 */
+	public boolean writeBinaryTransactions() {
+            try (final RunMetrics.Phase phase = RunMetrics.global().begin("writeBinaryTransactions")) {
+                try (final BinaryDataset.Writer writer = new BinaryDataset.Writer(new File(file))) {
+                    pipeline(minHeight, new RecordSink() {
+                        @Override
+                        public void input(long txIndex, String txHash, String address, long value, int height, long time) throws IOException {
+                            writer.add(txIndex, txHash, address, value, true, height, time);
+                        }
+
+                        @Override
+                        public void output(long txIndex, String txHash, String address, long value, int height, long time) throws IOException {
+                            writer.add(txIndex, txHash, address, value, false, height, time);
+                        }
+                    }, height -> { }, phase);
                 }
+                phase.addBytes(new File(file).length());
             } catch (final IOException | APIException exp) {
                 throw new RuntimeException(exp);
             }
@@ -66,11 +397,15 @@ public class DatasetGenerator {
 	 *            Previous output address of the input
 	 * @param value
 	 *            Number of Satoshi transferred
+	 * @param height
+	 *            Height of the block
+	 * @param time
+	 *            Time of the block
 	 * @return A record of the input
 	 */
 	private String generateInputRecord(long txIndex, String txHash,
-			String address, long value) {
-		return txIndex + " " + txHash + " " + address + " " + value + " in";
+			String address, long value, int height, long time) {
+		return txIndex + " " + txHash + " " + address + " " + value + " in " + height + " " + time;
 	}
 
 	/**
@@ -84,11 +419,15 @@ public class DatasetGenerator {
 	 *            Output bitcoin address
 	 * @param value
 	 *            Number of Satoshi transferred
+	 * @param height
+	 *            Height of the block
+	 * @param time
+	 *            Time of the block
 	 * @return A record of the output
 	 */
 	private String generateOutputRecord(long txIndex, String txHash,
-			String address, long value) {
-		return txIndex + " " + txHash + " " + address + " " + value + " out";
+			String address, long value, int height, long time) {
+		return txIndex + " " + txHash + " " + address + " " + value + " out " + height + " " + time;
 	}
 
 }
@@ -0,0 +1,313 @@
+package main;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Clusters datasets whose records, address strings and input groups do not fit in the heap, and
+ * writes the same key map and user map as UserCluster, byte for byte. Nothing is held per record:
+ *
+ * <ol>
+ * <li>readTransactions streams every record into sorted disk runs of (address key, row, tx
+ * index of inputs), keys as in AddressDictionary, so checksums are verified as records are read;</li>
+ * <li>mergeAddresses merges them address by address: an address's first row stands in for the
+ * id UserCluster would give it (ids follow first appearance), and each input becomes a
+ * (tx index, first row) record of a second external sort, which is streamed back grouped by
+ * transaction into a union-find over the distinct addresses;</li>
+ * <li>the writers walk the addresses in first-appearance order from a third sort, and the user
+ * map groups them by user through a fourth. Keys become text again only there.</li>
+ * </ol>
+ *
+ * The sort buffers share the memory budget (-Dcluster.memory in MB, or the constructor); on top
+ * of it come about 20 bytes per distinct address for the union-find and the user ids, and the read
+ * buffers of the runs being merged.
+ */
+public class ExternalClusterer implements Closeable {
+    public static final long DEFAULT_MEMORY_BUDGET = 256L << 20;
+    public static final String MEMORY_PROPERTY = "cluster.memory";
+    /** Tx index recorded for outputs in the address sort */
+    private static final long OUTPUT = Long.MIN_VALUE;
+
+    private final long memoryBudget;
+    private final File tmpDir;
+    private ExternalSorter records; // address, row, tx index or OUTPUT
+    private ExternalSorter addresses; // address, first row; ids are ranks by first row
+    private long numRows;
+    private int numAddresses;
+    private int numUsers;
+    private int largestClusterSize = -1;
+    private int[] addrToUser;
+
+    public ExternalClusterer() {
+        this(Long.getLong(MEMORY_PROPERTY, DEFAULT_MEMORY_BUDGET >> 20) << 20, new File(System.getProperty("java.io.tmpdir")));
+    }
+
+    /**
+     * @param memoryBudget bytes the sort buffers may take together
+     * @param tmpDir where sorted runs are spilled
+     */
+    public ExternalClusterer(final long memoryBudget, final File tmpDir) {
+        if (memoryBudget <= 0) {
+            throw new IllegalArgumentException("Memory budget must be positive");
+        }
+        this.memoryBudget = memoryBudget;
+        this.tmpDir = tmpDir;
+        this.records = new ExternalSorter(ExternalSorter.Order.BYTES, memoryBudget / 2, tmpDir);
+    }
+
+    /**
+     * Read transactions from file; may be called for several files before mergeAddresses, as
+     * with UserCluster
+     *
+     * @param file
+     * @return true if read succeeds; false otherwise
+     */
+    public boolean readTransactions(String file) {
+        if (records == null) {
+            throw new IllegalStateException("Transactions read after mergeAddresses");
+        }
+        try (final RunMetrics.Phase phase = RunMetrics.global().begin("externalScan")) {
+            final long before = numRows;
+            final byte[][] key = { new byte[64] };
+            final TransactionParser.RecordHandler handler = (txIndex, buf, hashOff, hashLen, addrOff, addrLen, value, in) -> {
+                if (key[0].length < AddressDictionary.maxKeyLength(addrLen)) {
+                    key[0] = new byte[AddressDictionary.maxKeyLength(addrLen)];
+                }
+                final int len = AddressDictionary.key(buf, addrOff, addrLen, key[0], 0);
+                if (len == AddressDictionary.BAD_CHECKSUM) {
+                    throw new IllegalArgumentException("bad Base58Check checksum in address " + AddressDictionary.ascii(buf, addrOff, addrLen));
+                }
+                try {
+                    records.add(key[0], 0, len, numRows++, in ? txIndex : OUTPUT);
+                } catch (final IOException exp) {
+                    throw new UncheckedIOException(exp);
+                }
+            };
+            // one thread, so that chunks arrive in file order and rows number records as UserCluster does
+            new TransactionParser(TransactionParser.DEFAULT_CHUNK_SIZE, 1).parse(new File(file), () -> handler);
+            phase.addRows(numRows - before).addBytes(new File(file).length()).count("runs", records.getRunNumber());
+        } catch (final UncheckedIOException exp) {
+            throw new RuntimeException(exp.getCause());
+        } catch (final IOException exp) {
+            throw new RuntimeException(exp);
+        }
+        return true;
+    }
+
+    /**
+     * Merge addresses based on joint control
+     */
+    public void mergeAddresses() {
+        if (records == null) {
+            throw new IllegalStateException("Addresses already merged");
+        }
+        // the sorted passes union inputs only
+        ClusteringHeuristic.requireDefault("External clustering");
+        final RunMetrics metrics = RunMetrics.global();
+        try (final ExternalSorter inputs = new ExternalSorter(ExternalSorter.Order.KEYS, memoryBudget / 4, tmpDir)) {
+            addresses = new ExternalSorter(ExternalSorter.Order.KEYS, memoryBudget / 4, tmpDir);
+            long[] firstRows = new long[1024];
+            int n = 0;
+            try (final RunMetrics.Phase phase = metrics.begin("externalDictionary");
+                 final ExternalSorter.Cursor cursor = records.sorted()) {
+                byte[] last = new byte[64];
+                int lastLength = -1;
+                long firstRow = -1;
+                while (cursor.next()) {
+                    if (!ExternalSorter.equalBytes(cursor.bytes(), cursor.offset(), cursor.length(), last, 0, lastLength)) {
+                        // records of an address come in row order, so this is its first appearance
+                        if (n == Integer.MAX_VALUE - 8) {
+                            throw new IllegalStateException("Too many distinct addresses");
+                        }
+                        firstRow = cursor.a();
+                        addresses.add(cursor.bytes(), cursor.offset(), cursor.length(), firstRow, 0);
+                        if (n == firstRows.length) {
+                            firstRows = Arrays.copyOf(firstRows, (int)Math.min(Integer.MAX_VALUE - 8, 2L * n));
+                        }
+                        firstRows[n++] = firstRow;
+                        if (cursor.length() > last.length) {
+                            last = new byte[Math.max(cursor.length(), last.length * 2)];
+                        }
+                        System.arraycopy(cursor.bytes(), cursor.offset(), last, 0, cursor.length());
+                        lastLength = cursor.length();
+                    }
+                    if (cursor.b() != OUTPUT) {
+                        inputs.add(cursor.b(), firstRow);
+                    }
+                }
+                phase.addRows(records.size()).count("addresses", n).count("inputs", inputs.size())
+                     .count("runs", inputs.getRunNumber() + addresses.getRunNumber());
+            }
+            records.close();
+            records = null;
+            numAddresses = n;
+            firstRows = Arrays.copyOf(firstRows, n);
+            Arrays.sort(firstRows);
+
+            final ConcurrentUptree uptree = new ConcurrentUptree(n, RunMetrics.countsUnionFind());
+            try (final RunMetrics.Phase phase = metrics.begin("externalUnion");
+                 final ExternalSorter.Cursor cursor = inputs.sorted()) {
+                long tx = OUTPUT;
+                int first = -1;
+                while (cursor.next()) {
+                    final int id = Arrays.binarySearch(firstRows, cursor.b());
+                    if (cursor.a() != tx) {
+                        tx = cursor.a();
+                        first = id;
+                    } else {
+                        uptree.union(first, id);
+                    }
+                }
+                phase.addRows(inputs.size());
+                uptree.countInto(phase);
+            }
+
+            try (final RunMetrics.Phase phase = metrics.begin("membership")) {
+                // roots are the smallest id of their set, so numbering roots in id order numbers
+                // users by their smallest address id, as ClusterMembership.fromRoots does
+                addrToUser = uptree.roots();
+                numUsers = 0;
+                for (int i = 0; i < n; ++i) {
+                    final int root = addrToUser[i];
+                    addrToUser[i] = root == i ? numUsers++ : addrToUser[root];
+                }
+                final int[] sizes = new int[numUsers];
+                largestClusterSize = 0;
+                for (int i = 0; i < n; ++i) {
+                    largestClusterSize = Math.max(largestClusterSize, ++sizes[addrToUser[i]]);
+                }
+                phase.addRows(n).count("users", numUsers);
+            }
+        } catch (final IOException exp) {
+            throw new RuntimeException(exp);
+        }
+    }
+
+    /**
+     * Return number of users (i.e., clusters) in the transaction dataset
+     *
+     * @return number of users (i.e., clusters)
+     */
+    public int getUserNumber() {
+        return numUsers;
+    }
+
+    /**
+     * Return the largest cluster size
+     *
+     * @return size of the largest cluster
+     */
+    public int getLargestClusterSize() {
+        return largestClusterSize;
+    }
+
+    public int getAddressNumber() {
+        return numAddresses;
+    }
+
+    /**
+     * User of every address id, ids numbered by first appearance as in UserCluster. Do not modify.
+     */
+    public int[] getAddrToUser() {
+        return addrToUser;
+    }
+
+    private void checkMerged() {
+        if (addrToUser == null) {
+            throw new IllegalStateException("mergeAddresses has not run");
+        }
+    }
+
+    public boolean writeKeyMap(String file) {
+        checkMerged();
+        try (final RunMetrics.Phase phase = RunMetrics.global().begin("writeKeyMap");
+             final ExternalSorter.Cursor cursor = addresses.sorted()) {
+            try (final BufferedWriter w = new BufferedWriter(new FileWriter(file), 1 << 16)) {
+                for (int id = 0; cursor.next(); ++id) {
+                    w.write(AddressDictionary.text(cursor.bytes(), cursor.offset(), cursor.length()) + " " + addrToUser[id]);
+                    w.newLine();
+                }
+            }
+            phase.addRows(numAddresses).addBytes(new File(file).length());
+        } catch (IOException e) {
+            System.err.println("Error in writing key map!");
+            e.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+
+    public boolean writeUserMap(String file) {
+        checkMerged();
+        try (final RunMetrics.Phase phase = RunMetrics.global().begin("writeUserMap");
+             final ExternalSorter byUser = new ExternalSorter(ExternalSorter.Order.KEYS, memoryBudget / 2, tmpDir)) {
+            try (final ExternalSorter.Cursor cursor = addresses.sorted()) {
+                for (int id = 0; cursor.next(); ++id) {
+                    byUser.add(cursor.bytes(), cursor.offset(), cursor.length(), addrToUser[id], id);
+                }
+            }
+            try (final ExternalSorter.Cursor cursor = byUser.sorted();
+                 final BufferedWriter w = new BufferedWriter(new FileWriter(file), 1 << 16)) {
+                long user = -1;
+                while (cursor.next()) {
+                    if (cursor.a() != user) {
+                        if (user >= 0) {
+                            w.newLine();
+                        }
+                        user = cursor.a();
+                        w.write(user + " ");
+                    }
+                    w.write(AddressDictionary.text(cursor.bytes(), cursor.offset(), cursor.length()) + " ");
+                }
+                if (user >= 0) {
+                    w.newLine();
+                }
+            }
+            phase.addRows(numAddresses).addBytes(new File(file).length()).count("runs", byUser.getRunNumber());
+        } catch (IOException e) {
+            System.err.println("Error in writing user list!");
+            e.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Delete the spilled runs
+     */
+    @Override
+    public void close() {
+        if (records != null) {
+            records.close();
+        }
+        if (addresses != null) {
+            addresses.close();
+        }
+    }
+
+    /**
+     * ExternalClusterer &lt;keyMap&gt; &lt;userMap&gt; &lt;transactions&gt;...; the budget is
+     * -Dcluster.memory=&lt;MB&gt;
+     */
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            System.err.println("Usage: ExternalClusterer <keyMap> <userMap> <transactions>...");
+            System.exit(1);
+        }
+        try (final ExternalClusterer clusterer = new ExternalClusterer()) {
+            for (int i = 2; i < args.length; ++i) {
+                clusterer.readTransactions(args[i]);
+            }
+            clusterer.mergeAddresses();
+            System.out.println("1. " + clusterer.getUserNumber());
+            System.out.println("2. " + clusterer.getLargestClusterSize());
+            if (!clusterer.writeKeyMap(args[0])) {
+                System.err.println("Cannot write to " + args[0] + "!");
+            }
+            if (!clusterer.writeUserMap(args[1])) {
+                System.err.println("Cannot write to " + args[1] + "!");
+            }
+        }
+        RunMetrics.global().writeReport();
+    }
+}
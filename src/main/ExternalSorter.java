@@ -0,0 +1,439 @@
+package main;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts more records than fit in memory. Records are buffered up to a byte budget, sorted and
+ * spilled to run files under a temporary directory, and merged MAX_FAN_IN runs at a time when
+ * read back; if everything fits in the budget nothing touches the disk. A record is a byte string
+ * and two longs: BYTES orders by the bytes (unsigned, a prefix first) and then a, KEYS by a and
+ * then b.
+ */
+final class ExternalSorter implements Closeable {
+    enum Order {
+        BYTES, KEYS
+    }
+
+    static final int MAX_FAN_IN = 64;
+    private static final int IO_BUFFER = 1 << 16;
+    /** a, b, data offset, and the two index arrays of the sort */
+    private static final int RECORD_BYTES = 8 + 8 + 4 + 4 + 4;
+    private static final int INITIAL_RECORDS = 1024;
+
+    private final Order order;
+    private final long budget;
+    private final File dir;
+    private final List<File> runs = new ArrayList<>();
+    private final List<Long> runSizes = new ArrayList<>();
+    private long[] as;
+    private long[] bs;
+    private int[] offsets;
+    private byte[] data;
+    private int count;
+    private int[] sorted;
+    private long size;
+    private boolean finished;
+
+    /**
+     * @param order
+     * @param budget bytes the buffered records may take
+     * @param dir where run files go
+     */
+    ExternalSorter(final Order order, final long budget, final File dir) {
+        this.order = order;
+        this.budget = budget;
+        this.dir = dir;
+        // start small enough that a tiny budget still holds a few records per run
+        final int records = (int)Math.max(16, Math.min(INITIAL_RECORDS, budget / (2 * (RECORD_BYTES + 16))));
+        as = new long[records];
+        bs = new long[records];
+        offsets = new int[records + 1];
+        data = new byte[records * 16];
+    }
+
+    long size() {
+        return size;
+    }
+
+    int getRunNumber() {
+        return runs.size();
+    }
+
+    private long memory(final long records, final long bytes) {
+        return records * RECORD_BYTES + bytes;
+    }
+
+    /**
+     * Make room for one more record of len bytes, growing the buffer within the budget or
+     * spilling it
+     */
+    private void reserve(final int len) throws IOException {
+        if (count < as.length && offsets[count] + len <= data.length) {
+            return;
+        }
+        final int records = count < as.length ? as.length : as.length * 2;
+        final int bytes = offsets[count] + len <= data.length ? data.length : Math.max(data.length * 2, offsets[count] + len);
+        if (count > 0 && memory(records, bytes) > budget) {
+            spill();
+        } else if (records != as.length) {
+            as = Arrays.copyOf(as, records);
+            bs = Arrays.copyOf(bs, records);
+            offsets = Arrays.copyOf(offsets, records + 1);
+        }
+        if (offsets[count] + len > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, offsets[count] + len));
+        }
+    }
+
+    void add(final byte[] bytes, final int off, final int len, final long a, final long b) throws IOException {
+        reserve(len);
+        System.arraycopy(bytes, off, data, offsets[count], len);
+        append(len, a, b);
+    }
+
+    /**
+     * Add a record whose bytes are buf[off .. off + len - 1], read with absolute gets
+     */
+    void add(final ByteBuffer buf, final int off, final int len, final long a, final long b) throws IOException {
+        reserve(len);
+        final int start = offsets[count];
+        for (int i = 0; i < len; ++i) {
+            data[start + i] = buf.get(off + i);
+        }
+        append(len, a, b);
+    }
+
+    void add(final long a, final long b) throws IOException {
+        reserve(0);
+        append(0, a, b);
+    }
+
+    private void append(final int len, final long a, final long b) {
+        if (finished) {
+            throw new IllegalStateException("Records added after sorting");
+        }
+        as[count] = a;
+        bs[count] = b;
+        offsets[count + 1] = offsets[count] + len;
+        count++;
+        size++;
+    }
+
+    static int compareBytes(final byte[] x, final int xOff, final int xLen, final byte[] y, final int yOff, final int yLen) {
+        final int n = Math.min(xLen, yLen);
+        for (int i = 0; i < n; ++i) {
+            final int c = (x[xOff + i] & 0xff) - (y[yOff + i] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return xLen - yLen;
+    }
+
+    static boolean equalBytes(final byte[] x, final int xOff, final int xLen, final byte[] y, final int yOff, final int yLen) {
+        return xLen == yLen && compareBytes(x, xOff, xLen, y, yOff, yLen) == 0;
+    }
+
+    private int compare(final byte[] xBytes, final int xOff, final int xLen, final long xa, final long xb,
+                        final byte[] yBytes, final int yOff, final int yLen, final long ya, final long yb) {
+        if (order == Order.BYTES) {
+            final int c = compareBytes(xBytes, xOff, xLen, yBytes, yOff, yLen);
+            return c != 0 ? c : Long.compare(xa, ya);
+        }
+        final int c = Long.compare(xa, ya);
+        return c != 0 ? c : Long.compare(xb, yb);
+    }
+
+    private int compareBuffered(final int i, final int j) {
+        return compare(data, offsets[i], offsets[i + 1] - offsets[i], as[i], bs[i],
+                       data, offsets[j], offsets[j + 1] - offsets[j], as[j], bs[j]);
+    }
+
+    /**
+     * Indexes of the buffered records in order, by a bottom-up merge sort
+     */
+    private int[] sortBuffer() {
+        int[] src = new int[count];
+        int[] dst = new int[count];
+        for (int i = 0; i < count; ++i) {
+            src[i] = i;
+        }
+        for (int width = 1; width < count; width *= 2) {
+            for (int lo = 0; lo < count; lo += 2 * width) {
+                final int mid = Math.min(lo + width, count);
+                final int hi = Math.min(lo + 2 * width, count);
+                int i = lo;
+                int j = mid;
+                int k = lo;
+                while (i < mid && j < hi) {
+                    dst[k++] = compareBuffered(src[j], src[i]) < 0 ? src[j++] : src[i++];
+                }
+                while (i < mid) {
+                    dst[k++] = src[i++];
+                }
+                while (j < hi) {
+                    dst[k++] = src[j++];
+                }
+            }
+            final int[] tmp = src;
+            src = dst;
+            dst = tmp;
+        }
+        return src;
+    }
+
+    private File newRun() throws IOException {
+        final File run = File.createTempFile("sort", ".run", dir);
+        runs.add(run);
+        return run;
+    }
+
+    private static DataOutputStream output(final File run) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), IO_BUFFER));
+    }
+
+    private static void writeRecord(final DataOutputStream out, final byte[] bytes, final int off, final int len,
+                                    final long a, final long b) throws IOException {
+        out.writeLong(a);
+        out.writeLong(b);
+        out.writeInt(len);
+        out.write(bytes, off, len);
+    }
+
+    private void spill() throws IOException {
+        final int[] index = sortBuffer();
+        try (final DataOutputStream out = output(newRun())) {
+            for (final int i : index) {
+                writeRecord(out, data, offsets[i], offsets[i + 1] - offsets[i], as[i], bs[i]);
+            }
+        }
+        runSizes.add((long)count);
+        count = 0;
+    }
+
+    /**
+     * Stop adding records and prepare to read them back in order; merges runs until at most
+     * MAX_FAN_IN are left
+     */
+    private void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        if (runs.isEmpty()) {
+            sorted = sortBuffer();
+        } else {
+            if (count > 0) {
+                spill();
+            }
+            as = null;
+            bs = null;
+            offsets = null;
+            data = null;
+            while (runs.size() > MAX_FAN_IN) {
+                final List<File> group = new ArrayList<>(runs.subList(0, MAX_FAN_IN));
+                final List<Long> groupSizes = new ArrayList<>(runSizes.subList(0, MAX_FAN_IN));
+                runs.subList(0, MAX_FAN_IN).clear();
+                runSizes.subList(0, MAX_FAN_IN).clear();
+                long merged = 0;
+                try (final Cursor cursor = new MergeCursor(group, groupSizes);
+                     final DataOutputStream out = output(newRun())) {
+                    while (cursor.next()) {
+                        writeRecord(out, cursor.bytes(), cursor.offset(), cursor.length(), cursor.a(), cursor.b());
+                        merged++;
+                    }
+                }
+                runSizes.add(merged);
+                for (final File run : group) {
+                    run.delete();
+                }
+            }
+        }
+        finished = true;
+    }
+
+    /**
+     * The records in order. No more can be added once this is called; it may be called again for
+     * another pass.
+     */
+    Cursor sorted() throws IOException {
+        finish();
+        return runs.isEmpty() ? new BufferCursor() : new MergeCursor(runs, runSizes);
+    }
+
+    @Override
+    public void close() {
+        for (final File run : runs) {
+            run.delete();
+        }
+        runs.clear();
+        runSizes.clear();
+        as = null;
+        bs = null;
+        offsets = null;
+        data = null;
+        sorted = null;
+    }
+
+    /**
+     * Walks records in order; the bytes of the current record are bytes()[offset() ..
+     * offset() + length() - 1] and only valid until the next call to next()
+     */
+    abstract static class Cursor implements Closeable {
+        abstract boolean next() throws IOException;
+
+        abstract long a();
+
+        abstract long b();
+
+        abstract byte[] bytes();
+
+        abstract int offset();
+
+        abstract int length();
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+
+    private final class BufferCursor extends Cursor {
+        private int k = -1;
+        private int i;
+
+        @Override
+        boolean next() {
+            if (k + 1 >= count) {
+                return false;
+            }
+            i = sorted[++k];
+            return true;
+        }
+
+        @Override
+        long a() {
+            return as[i];
+        }
+
+        @Override
+        long b() {
+            return bs[i];
+        }
+
+        @Override
+        byte[] bytes() {
+            return data;
+        }
+
+        @Override
+        int offset() {
+            return offsets[i];
+        }
+
+        @Override
+        int length() {
+            return offsets[i + 1] - offsets[i];
+        }
+    }
+
+    private static final class RunReader implements Closeable {
+        private final DataInputStream in;
+        private long left;
+        private long a, b;
+        private byte[] bytes = new byte[64];
+        private int length;
+
+        RunReader(final File run, final long size) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), IO_BUFFER));
+            this.left = size;
+        }
+
+        boolean advance() throws IOException {
+            if (left == 0) {
+                return false;
+            }
+            left--;
+            a = in.readLong();
+            b = in.readLong();
+            length = in.readInt();
+            if (length > bytes.length) {
+                bytes = new byte[Math.max(length, bytes.length * 2)];
+            }
+            in.readFully(bytes, 0, length);
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private final class MergeCursor extends Cursor {
+        private final List<RunReader> readers = new ArrayList<>();
+        private final PriorityQueue<RunReader> heap;
+        private RunReader current;
+
+        MergeCursor(final List<File> files, final List<Long> sizes) throws IOException {
+            heap = new PriorityQueue<>(Math.max(1, files.size()),
+                                       (x, y) -> compare(x.bytes, 0, x.length, x.a, x.b, y.bytes, 0, y.length, y.a, y.b));
+            try {
+                for (int r = 0; r < files.size(); ++r) {
+                    final RunReader reader = new RunReader(files.get(r), sizes.get(r));
+                    readers.add(reader);
+                    if (reader.advance()) {
+                        heap.add(reader);
+                    }
+                }
+            } catch (final IOException exp) {
+                close();
+                throw exp;
+            }
+        }
+
+        @Override
+        boolean next() throws IOException {
+            if (current != null && current.advance()) {
+                heap.add(current);
+            }
+            current = heap.poll();
+            return current != null;
+        }
+
+        @Override
+        long a() {
+            return current.a;
+        }
+
+        @Override
+        long b() {
+            return current.b;
+        }
+
+        @Override
+        byte[] bytes() {
+            return current.bytes;
+        }
+
+        @Override
+        int offset() {
+            return 0;
+        }
+
+        @Override
+        int length() {
+            return current.length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (final RunReader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package main;
+
+import info.blockchain.api.APIException;
+import info.blockchain.api.blockexplorer.Block;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * Serves blocks from saved API responses laid out like the API paths:
+ * dir/block-height/N.json and dir/rawblock/HASH.json. Missing files behave like the API's
+ * "not found" errors.
+ */
+public class FixtureBlockSource implements BlockSource {
+    private final File dir;
+
+    public FixtureBlockSource(final File dir) {
+        this.dir = dir;
+    }
+
+    private String read(final String path) throws APIException, IOException {
+        final File file = new File(dir, path + ".json");
+        if (!file.isFile()) {
+            throw BlockSourceException.notFound("No fixture for " + path);
+        }
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public List<Block> getBlocksAtHeight(final long height) throws APIException, IOException {
+        return BlockSource.parseBlocks(read("block-height/" + height));
+    }
+
+    @Override
+    public Block getBlock(final String hash) throws APIException, IOException {
+        return BlockSource.parseBlock(read("rawblock/" + hash));
+    }
+}
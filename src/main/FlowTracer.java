@@ -0,0 +1,341 @@
+package main;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Multi-hop queries over a UserGraph: who a cluster's money reaches within N hops (downstream),
+ * where a cluster's money came from (upstream), how much satoshi moves along those paths, and how
+ * far taint spreads from a source under the poison or haircut policy. Frontiers of at least
+ * PARALLEL_FRONTIER users are expanded in parallel.
+ */
+public class FlowTracer {
+    /**
+     * How taint passes from a payer to a payee. POISON taints a payee completely as soon as it
+     * receives anything tainted; HAIRCUT taints it by the tainted share of everything it received.
+     */
+    public enum TaintPolicy {
+        POISON, HAIRCUT
+    }
+
+    static final int PARALLEL_FRONTIER = 4096;
+
+    private final UserGraph graph;
+
+    public FlowTracer(final UserGraph graph) {
+        this.graph = graph;
+    }
+
+    public UserGraph getGraph() {
+        return graph;
+    }
+
+    private static void forEach(final int size, final IntConsumer body) {
+        if (size < PARALLEL_FRONTIER) {
+            for (int i = 0; i < size; ++i) {
+                body.accept(i);
+            }
+        } else {
+            IntStream.range(0, size).parallel().forEach(body);
+        }
+    }
+
+    private void checkUser(final int user) {
+        if (user < 0 || user >= graph.getUserNumber()) {
+            throw new IllegalArgumentException("No user " + user + " in a graph of " + graph.getUserNumber() + " users");
+        }
+    }
+
+    /**
+     * Users reached from source by following payments forward, within maxHops
+     */
+    public Trace downstream(final int source, final int maxHops) {
+        return trace(source, maxHops, true);
+    }
+
+    /**
+     * Users whose payments reach target within maxHops
+     */
+    public Trace upstream(final int target, final int maxHops) {
+        return trace(target, maxHops, false);
+    }
+
+    /**
+     * Claim the unvisited neighbours of a frontier for the next level; marks holds hop + 1 of
+     * every visited user, 0 for unvisited ones.
+     */
+    private int[] expand(final int[] frontier, final AtomicIntegerArray marks, final int mark, final boolean forward) {
+        final int chunks = frontier.length < PARALLEL_FRONTIER ? 1 : Math.min(frontier.length / PARALLEL_FRONTIER + 1, 4 * Runtime.getRuntime().availableProcessors());
+        final int[][] claimed = IntStream.range(0, chunks).parallel().mapToObj(c -> {
+            int[] ret = new int[16];
+            int size = 0;
+            for (int i = (int)((long)frontier.length * c / chunks); i < (int)((long)frontier.length * (c + 1) / chunks); ++i) {
+                final int u = frontier[i];
+                final int end = forward ? graph.outEnd(u) : graph.inEnd(u);
+                for (int e = forward ? graph.outStart(u) : graph.inStart(u); e < end; ++e) {
+                    final int v = forward ? graph.target(e) : graph.source(e);
+                    if (marks.get(v) == 0 && marks.compareAndSet(v, 0, mark)) {
+                        if (size == ret.length) {
+                            ret = Arrays.copyOf(ret, size * 2);
+                        }
+                        ret[size++] = v;
+                    }
+                }
+            }
+            return Arrays.copyOf(ret, size);
+        }).toArray(int[][]::new);
+        int total = 0;
+        for (final int[] c : claimed) {
+            total += c.length;
+        }
+        final int[] next = new int[total];
+        int k = 0;
+        for (final int[] c : claimed) {
+            System.arraycopy(c, 0, next, k, c.length);
+            k += c.length;
+        }
+        return next;
+    }
+
+    private Trace trace(final int origin, final int maxHops, final boolean forward) {
+        checkUser(origin);
+        final AtomicIntegerArray marks = new AtomicIntegerArray(graph.getUserNumber());
+        marks.set(origin, 1);
+        int[] users = { origin };
+        int[] hops = { 0 };
+        long[] flows = { 0 };
+        int[] frontier = { origin };
+        for (int hop = 1; hop <= maxHops && frontier.length > 0; ++hop) {
+            final int[] next = expand(frontier, marks, hop + 1, forward);
+            // satoshi on the edges from the previous level into each new user, pulled from the
+            // other side of the adjacency so that no two threads write the same slot
+            final long[] flow = new long[next.length];
+            final int previous = hop;
+            forEach(next.length, i -> {
+                final int v = next[i];
+                long sum = 0;
+                if (forward) {
+                    for (int e = graph.inStart(v); e < graph.inEnd(v); ++e) {
+                        if (marks.get(graph.source(e)) == previous) {
+                            sum += graph.inValue(e);
+                        }
+                    }
+                } else {
+                    for (int e = graph.outStart(v); e < graph.outEnd(v); ++e) {
+                        if (marks.get(graph.target(e)) == previous) {
+                            sum += graph.outValue(e);
+                        }
+                    }
+                }
+                flow[i] = sum;
+            });
+            final int size = users.length;
+            users = Arrays.copyOf(users, size + next.length);
+            hops = Arrays.copyOf(hops, size + next.length);
+            flows = Arrays.copyOf(flows, size + next.length);
+            System.arraycopy(next, 0, users, size, next.length);
+            Arrays.fill(hops, size, size + next.length, hop);
+            System.arraycopy(flow, 0, flows, size, next.length);
+            frontier = next;
+        }
+        return new Trace(origin, forward, users, hops, flows);
+    }
+
+    /**
+     * The users reached by a trace in breadth-first order, the origin first at hop 0. The flow of
+     * a user is the satoshi on the edges linking it to users one hop closer to the origin, so the
+     * flows sum to the value moved along shortest paths.
+     */
+    public static class Trace {
+        private final int origin;
+        private final boolean downstream;
+        private final int[] users;
+        private final int[] hops;
+        private final long[] flows;
+
+        Trace(final int origin, final boolean downstream, final int[] users, final int[] hops, final long[] flows) {
+            this.origin = origin;
+            this.downstream = downstream;
+            this.users = users;
+            this.hops = hops;
+            this.flows = flows;
+        }
+
+        public int getOrigin() {
+            return origin;
+        }
+
+        public boolean isDownstream() {
+            return downstream;
+        }
+
+        /**
+         * Number of users reached, the origin included
+         */
+        public int size() {
+            return users.length;
+        }
+
+        public int user(final int k) {
+            return users[k];
+        }
+
+        public int hops(final int k) {
+            return hops[k];
+        }
+
+        public long flow(final int k) {
+            return flows[k];
+        }
+
+        /**
+         * Users reached within at most the given number of hops
+         */
+        public int countWithin(final int maxHops) {
+            int ret = 0;
+            while (ret < hops.length && hops[ret] <= maxHops) {
+                ret++;
+            }
+            return ret;
+        }
+
+        public long getTotalValue() {
+            long ret = 0;
+            for (final long f : flows) {
+                ret += f;
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * Spread taint from source along payments for at most maxHops rounds. Under HAIRCUT, each
+     * round recomputes the users paid by users whose taint changed in the round before, from the
+     * taint of the previous round, until nothing changes.
+     */
+    public Taint taint(final int source, final int maxHops, final TaintPolicy policy) {
+        checkUser(source);
+        if (policy == TaintPolicy.POISON) {
+            final Trace trace = downstream(source, maxHops);
+            final int[] users = new int[trace.size()];
+            final double[] fractions = new double[trace.size()];
+            for (int k = 0; k < users.length; ++k) {
+                users[k] = trace.user(k);
+                fractions[k] = 1;
+            }
+            return new Taint(policy, users, fractions, graph);
+        }
+        final int n = graph.getUserNumber();
+        final double[] taint = new double[n];
+        final int[] stamp = new int[n];
+        taint[source] = 1;
+        int[] order = new int[16];
+        int numTainted = 0;
+        order[numTainted++] = source;
+        int[] frontier = { source };
+        for (int round = 1; round <= maxHops && frontier.length > 0; ++round) {
+            // users paid by the frontier, each once
+            int[] candidates = new int[16];
+            int numCandidates = 0;
+            for (final int u : frontier) {
+                for (int e = graph.outStart(u); e < graph.outEnd(u); ++e) {
+                    final int v = graph.target(e);
+                    if (v != source && stamp[v] != round) {
+                        stamp[v] = round;
+                        if (numCandidates == candidates.length) {
+                            candidates = Arrays.copyOf(candidates, numCandidates * 2);
+                        }
+                        candidates[numCandidates++] = v;
+                    }
+                }
+            }
+            final int[] cand = candidates;
+            final double[] updated = new double[numCandidates];
+            forEach(numCandidates, i -> {
+                final int v = cand[i];
+                double tainted = 0;
+                long total = 0;
+                for (int e = graph.inStart(v); e < graph.inEnd(v); ++e) {
+                    tainted += graph.inValue(e) * taint[graph.source(e)];
+                    total += graph.inValue(e);
+                }
+                updated[i] = total == 0 ? 0 : Math.min(1, tainted / total);
+            });
+            final int[] changed = new int[numCandidates];
+            int numChanged = 0;
+            for (int i = 0; i < numCandidates; ++i) {
+                final int v = cand[i];
+                if (updated[i] > taint[v]) {
+                    if (taint[v] == 0) {
+                        if (numTainted == order.length) {
+                            order = Arrays.copyOf(order, numTainted * 2);
+                        }
+                        order[numTainted++] = v;
+                    }
+                    taint[v] = updated[i];
+                    changed[numChanged++] = v;
+                }
+            }
+            frontier = Arrays.copyOf(changed, numChanged);
+        }
+        final double[] fractions = new double[numTainted];
+        for (int k = 0; k < numTainted; ++k) {
+            fractions[k] = taint[order[k]];
+        }
+        return new Taint(policy, Arrays.copyOf(order, numTainted), fractions, graph);
+    }
+
+    /**
+     * Tainted users in the order they were first reached, the source first, with the tainted
+     * fraction of each one's receipts
+     */
+    public static class Taint {
+        private final TaintPolicy policy;
+        private final int[] users;
+        private final double[] fractions;
+        private final UserGraph graph;
+
+        Taint(final TaintPolicy policy, final int[] users, final double[] fractions, final UserGraph graph) {
+            this.policy = policy;
+            this.users = users;
+            this.fractions = fractions;
+            this.graph = graph;
+        }
+
+        public TaintPolicy getPolicy() {
+            return policy;
+        }
+
+        public int size() {
+            return users.length;
+        }
+
+        public int user(final int k) {
+            return users[k];
+        }
+
+        public double fraction(final int k) {
+            return fractions[k];
+        }
+
+        /**
+         * Satoshi of the k-th user's receipts that count as tainted
+         */
+        public long taintedValue(final int k) {
+            return Math.round(fractions[k] * graph.inflow(users[k]));
+        }
+
+        /**
+         * Tainted satoshi received by every tainted user but the source
+         */
+        public long getTotalTaintedValue() {
+            long ret = 0;
+            for (int k = 1; k < users.length; ++k) {
+                ret += taintedValue(k);
+            }
+            return ret;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package main;
+
+import java.util.Arrays;
+
+/**
+ * The packed 32-byte hashes of a TransactionStore, one per row, in chunks of CHUNK_ROWS rows so
+ * that no array offset is row * 32 in an int: a single byte[] would overflow past 67M rows. Only
+ * the last chunk may be shorter than the others.
+ */
+public final class HashColumn {
+    public static final int HASH_BYTES = 32;
+    private static final int CHUNK_SHIFT = 20;
+    private static final int CHUNK_ROWS = 1 << CHUNK_SHIFT;
+
+    private byte[][] chunks = new byte[0][];
+    private int capacity;
+
+    public HashColumn(final int rows) {
+        resize(rows);
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Make room for rows rows, keeping the hashes already there; shrinks if rows is smaller
+     */
+    public void resize(final int rows) {
+        if (rows < 0) {
+            throw new IllegalArgumentException("Negative row count " + rows);
+        }
+        final int n = (int)(((long)rows + CHUNK_ROWS - 1) >>> CHUNK_SHIFT);
+        final byte[][] next = new byte[n][];
+        for (int c = 0; c < n; ++c) {
+            final int bytes = Math.min(CHUNK_ROWS, rows - (c << CHUNK_SHIFT)) * HASH_BYTES;
+            if (c < chunks.length) {
+                next[c] = chunks[c].length == bytes ? chunks[c] : Arrays.copyOf(chunks[c], bytes);
+            } else {
+                next[c] = new byte[bytes];
+            }
+        }
+        chunks = next;
+        capacity = rows;
+    }
+
+    /**
+     * The chunk holding a row's hash, which starts at offset(row) in it
+     */
+    byte[] chunk(final int row) {
+        return chunks[row >>> CHUNK_SHIFT];
+    }
+
+    static int offset(final int row) {
+        return (row & (CHUNK_ROWS - 1)) * HASH_BYTES;
+    }
+
+    public void get(final int row, final byte[] dst, final int dstOff) {
+        System.arraycopy(chunk(row), offset(row), dst, dstOff, HASH_BYTES);
+    }
+
+    public void set(final int row, final byte[] src, final int srcOff) {
+        System.arraycopy(src, srcOff, chunk(row), offset(row), HASH_BYTES);
+    }
+
+    public void clear(final int row) {
+        final int off = offset(row);
+        Arrays.fill(chunk(row), off, off + HASH_BYTES, (byte)0);
+    }
+
+    /**
+     * Copy the hashes of rows src[srcRow .. srcRow + rows - 1] to dstRow onwards
+     */
+    public void copy(final HashColumn src, final int srcRow, final int dstRow, final int rows) {
+        int done = 0;
+        while (done < rows) {
+            final int s = srcRow + done;
+            final int d = dstRow + done;
+            // as many rows as fit in both the current source and destination chunk
+            final int n = Math.min(rows - done, Math.min(CHUNK_ROWS - (s & (CHUNK_ROWS - 1)), CHUNK_ROWS - (d & (CHUNK_ROWS - 1))));
+            System.arraycopy(src.chunk(s), offset(s), chunk(d), offset(d), n * HASH_BYTES);
+            done += n;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package main;
+
+import info.blockchain.api.APIException;
+import info.blockchain.api.HttpClient;
+import info.blockchain.api.blockexplorer.Block;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Fetches blocks over HTTP from the blockchain.info API, or from any server answering the same
+ * "block-height/N" and "rawblock/HASH" paths (e.g. a local stand-in in tests).
+ */
+public class HttpBlockSource implements BlockSource {
+    public static final String BLOCKCHAIN_INFO = "https://blockchain.info/";
+
+    private final String baseUrl;
+    private final String apiCode;
+
+    public HttpBlockSource() {
+        this(BLOCKCHAIN_INFO, null);
+    }
+
+    /**
+     * @param baseUrl
+     *            Server root, ending with '/'
+     * @param apiCode
+     *            blockchain.info API code, or null
+     */
+    public HttpBlockSource(final String baseUrl, final String apiCode) {
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl : baseUrl + "/";
+        this.apiCode = apiCode;
+    }
+
+    /**
+     * GET a path with the API parameters; errors carry their HTTP status, see
+     * BlockSourceException
+     */
+    private String get(final String path) throws APIException, IOException {
+        final StringBuilder url = new StringBuilder(baseUrl).append(path).append("?format=json");
+        if (apiCode != null) {
+            url.append("&api_code=").append(URLEncoder.encode(apiCode, "UTF-8"));
+        }
+        final HttpURLConnection connection = (HttpURLConnection)new URL(url.toString()).openConnection();
+        connection.setConnectTimeout(HttpClient.TIMEOUT_MS);
+        connection.setReadTimeout(HttpClient.TIMEOUT_MS);
+        try {
+            final int status = connection.getResponseCode();
+            if (status != HttpURLConnection.HTTP_OK) {
+                final InputStream error = connection.getErrorStream();
+                throw new BlockSourceException(path + ": HTTP " + status + (error == null ? "" : " " + read(error)), status);
+            }
+            return read(connection.getInputStream());
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static String read(final InputStream in) throws IOException {
+        try (final InputStream stream = in) {
+            final ByteArrayOutputStream ret = new ByteArrayOutputStream();
+            final byte[] buf = new byte[8192];
+            for (int n; (n = stream.read(buf)) > 0;) {
+                ret.write(buf, 0, n);
+            }
+            return new String(ret.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    public String getRawBlocksAtHeight(final long height) throws APIException, IOException {
+        return get("block-height/" + height);
+    }
+
+    public String getRawBlock(final String hash) throws APIException, IOException {
+        return get("rawblock/" + hash);
+    }
+
+    @Override
+    public List<Block> getBlocksAtHeight(final long height) throws APIException, IOException {
+        return BlockSource.parseBlocks(getRawBlocksAtHeight(height));
+    }
+
+    @Override
+    public Block getBlock(final String hash) throws APIException, IOException {
+        return BlockSource.parseBlock(getRawBlock(hash));
+    }
+}
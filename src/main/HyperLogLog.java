@@ -0,0 +1,67 @@
+package main;
+
+/**
+ * Distinct count of 64-bit hashes in 2^precision one-byte registers (Flajolet et al., with
+ * linear counting for small cardinalities). The relative standard error is 1.04 / sqrt(2^precision);
+ * sketches of the same precision merge by taking the larger register.
+ */
+public final class HyperLogLog {
+    private final int precision;
+    private final byte[] registers;
+
+    public HyperLogLog(final int precision) {
+        if (precision < 4 || precision > 18) {
+            throw new IllegalArgumentException("Precision " + precision + " is outside 4..18");
+        }
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+    /**
+     * Add a well-mixed 64-bit hash
+     */
+    public void add(final long hash) {
+        final int index = (int)(hash >>> (64 - precision));
+        // the sentinel bit caps the rank at 64 - precision + 1
+        final int rank = Long.numberOfLeadingZeros(hash << precision | 1L << (precision - 1)) + 1;
+        if (rank > registers[index]) {
+            registers[index] = (byte)rank;
+        }
+    }
+
+    public void merge(final HyperLogLog other) {
+        if (other.precision != precision) {
+            throw new IllegalArgumentException("Cannot merge precision " + other.precision + " into " + precision);
+        }
+        for (int i = 0; i < registers.length; ++i) {
+            if (other.registers[i] > registers[i]) {
+                registers[i] = other.registers[i];
+            }
+        }
+    }
+
+    public long estimate() {
+        final int m = registers.length;
+        double sum = 0;
+        int zeros = 0;
+        for (final byte r : registers) {
+            sum += Math.scalb(1.0, -r);
+            if (r == 0) {
+                zeros++;
+            }
+        }
+        final double alpha = 0.7213 / (1 + 1.079 / m);
+        final double raw = alpha * m * m / sum;
+        if (raw <= 2.5 * m && zeros > 0) {
+            return Math.round(m * Math.log((double)m / zeros));
+        }
+        return Math.round(raw);
+    }
+
+    /**
+     * Relative standard error of estimate
+     */
+    public double getStandardError() {
+        return 1.04 / Math.sqrt(registers.length);
+    }
+}
@@ -0,0 +1,646 @@
+package main;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Keeps a clustering up to date as new transaction records arrive, instead of rebuilding it from
+ * the whole dataset. The address table, the union-find and the user ids are kept in a state
+ * directory between runs, one file per column (see StateColumn). Opening maps the columns without
+ * reading them, and a save appends the new addresses and writes back only the values that changed,
+ * so a run costs time proportional to its batches, not to the history.
+ *
+ * A save first appends, then writes the changed values and the new header to a journal, and only
+ * then applies the journal to the columns; a crash leaves either the old state or a journal that
+ * the next open replays.
+ *
+ * User ids are stable: a new address gets a fresh id, and when two clusters merge the larger one
+ * keeps its id (the older id on a tie) while the other id is recorded as an alias of it.
+ */
+public class IncrementalClusterer implements Closeable {
+    private static final int MAGIC = 0x42435354; // "BCST"
+    private static final int VERSION = 1;
+    private static final int JOURNAL_MAGIC = 0x4243534a; // "BCSJ"
+    private static final int COMMIT = 0x434f4d54; // "COMT"
+    private static final String HEADER = "header";
+    private static final String JOURNAL = "journal";
+    private static final String KEYS = "keys";
+    private static final String TABLE = "table";
+    private static final String NEW_TABLE = "table.new";
+    private static final int EMPTY = 0; // table slots hold address index + 1
+    private static final int MAX_TABLE = 1 << 30;
+
+    private final File dir; // where the state was opened from, null if new
+    private final FileChannel savedKeys; // keys of the saved addresses, null if new
+    private final long savedKeyBytes;
+    private final StateColumn parents;
+    private final StateColumn sizes;
+    private final StateColumn users; // user id, only meaningful at roots
+    private final StateColumn hashes;
+    private final StateColumn keyOffsets;
+    private final StateColumn aliases; // user id -> user id it was merged into (itself while live)
+    private StateColumn table;
+    private boolean tableRebuilt;
+    private byte[] newKeys = new byte[1 << 12];
+    private int newKeyBytes;
+    private final ByteBuffer keyBuf = ByteBuffer.allocate(1 << 16);
+    private int numIds;
+    private int numSets;
+    private int maxSize;
+
+    public IncrementalClusterer() {
+        this(null, null, 0, StateColumn.create("parents", 4, 0), StateColumn.create("sizes", 4, 0),
+             StateColumn.create("users", 4, 0), StateColumn.create("hashes", 4, 0), StateColumn.create("keyOffsets", 8, 0),
+             StateColumn.create("aliases", 4, 0), StateColumn.create(TABLE, 4, 16), 0, 0, 0);
+    }
+
+    private IncrementalClusterer(final File dir, final FileChannel savedKeys, final long savedKeyBytes,
+                                 final StateColumn parents, final StateColumn sizes, final StateColumn users,
+                                 final StateColumn hashes, final StateColumn keyOffsets, final StateColumn aliases,
+                                 final StateColumn table, final int numIds, final int numSets, final int maxSize) {
+        this.dir = dir;
+        this.savedKeys = savedKeys;
+        this.savedKeyBytes = savedKeyBytes;
+        this.parents = parents;
+        this.sizes = sizes;
+        this.users = users;
+        this.hashes = hashes;
+        this.keyOffsets = keyOffsets;
+        this.aliases = aliases;
+        this.table = table;
+        this.numIds = numIds;
+        this.numSets = numSets;
+        this.maxSize = maxSize;
+    }
+
+    private StateColumn[] columns() {
+        return new StateColumn[] { parents, sizes, users, hashes, keyOffsets, aliases };
+    }
+
+    private long keyBytes() {
+        return savedKeyBytes + newKeyBytes;
+    }
+
+    /**
+     * Read the key of an address into keyBuf, flipped for reading
+     */
+    private ByteBuffer key(final int id) {
+        final long start = keyOffsets.getLong(id);
+        final int len = (int)((id + 1 < keyOffsets.size() ? keyOffsets.getLong(id + 1) : keyBytes()) - start);
+        keyBuf.clear();
+        if (start >= savedKeyBytes) {
+            keyBuf.put(newKeys, (int)(start - savedKeyBytes), len);
+        } else {
+            keyBuf.limit(len);
+            try {
+                while (keyBuf.hasRemaining()) {
+                    if (savedKeys.read(keyBuf, start + keyBuf.position()) < 0) {
+                        throw new EOFException("keys end before address " + id);
+                    }
+                }
+            } catch (final IOException exp) {
+                throw new UncheckedIOException(exp);
+            }
+        }
+        keyBuf.flip();
+        return keyBuf;
+    }
+
+    private boolean matches(final int id, final byte[] k, final int len) {
+        final ByteBuffer key = key(id);
+        if (key.remaining() != len) {
+            return false;
+        }
+        for (int i = 0; i < len; ++i) {
+            if (key.get(i) != k[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Slot of a key in the table: where it is, or the empty slot where it would go
+     */
+    private int slot(final int h, final byte[] k, final int len) {
+        final int mask = table.size() - 1;
+        int slot = h & mask;
+        int v;
+        while ((v = table.getInt(slot)) != EMPTY && !(hashes.getInt(v - 1) == h && matches(v - 1, k, len))) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Double the table; it is written whole on the next save
+     */
+    private void rehash() {
+        if (table.size() >= MAX_TABLE) {
+            throw new IllegalStateException("Too many addresses for the state table: " + parents.size());
+        }
+        final StateColumn next = StateColumn.create(TABLE, 4, table.size() * 2);
+        final int mask = next.size() - 1;
+        for (int id = 0; id < parents.size(); ++id) {
+            int slot = hashes.getInt(id) & mask;
+            while (next.getInt(slot) != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            next.set(slot, id + 1);
+        }
+        table = next;
+        tableRebuilt = true;
+    }
+
+    /**
+     * Index of an address key, adding the address as a user of its own if it is new
+     */
+    private int addAddress(final byte[] k, final int len) {
+        final int h = AddressDictionary.hash(k, 0, len);
+        final int slot = slot(h, k, len);
+        if (table.getInt(slot) != EMPTY) {
+            return table.getInt(slot) - 1;
+        }
+        final int idx = parents.size();
+        parents.add(idx);
+        sizes.add(1);
+        users.add(numIds);
+        aliases.add(numIds);
+        numIds++;
+        numSets++;
+        maxSize = Math.max(maxSize, 1);
+        hashes.add(h);
+        keyOffsets.add(keyBytes());
+        if (newKeyBytes + len > newKeys.length) {
+            newKeys = Arrays.copyOf(newKeys, Math.max(newKeyBytes + len, newKeys.length * 2));
+        }
+        System.arraycopy(k, 0, newKeys, newKeyBytes, len);
+        newKeyBytes += len;
+        table.set(slot, idx + 1);
+        if (2L * parents.size() > table.size()) {
+            rehash();
+        }
+        return idx;
+    }
+
+    private int find(final int i) {
+        int root = i;
+        while (parents.getInt(root) != root) {
+            root = parents.getInt(root);
+        }
+        int node = i;
+        while (node != root) {
+            final int next = parents.getInt(node);
+            if (next != root) {
+                parents.set(node, root);
+            }
+            node = next;
+        }
+        return root;
+    }
+
+    private int union(final int i, final int j) {
+        final int ri = find(i);
+        final int rj = find(j);
+        if (ri == rj) {
+            return 0;
+        }
+        final int ui = users.getInt(ri);
+        final int uj = users.getInt(rj);
+        final int si = sizes.getInt(ri);
+        final int sj = sizes.getInt(rj);
+        final int kept = si > sj ? ui : sj > si ? uj : Math.min(ui, uj);
+        aliases.set(kept == ui ? uj : ui, kept);
+        // the smaller set goes under the larger, the second under the first on a tie, as in Uptree
+        final int root = si < sj ? rj : ri;
+        parents.set(root == ri ? rj : ri, root);
+        sizes.set(root, si + sj);
+        users.set(root, kept);
+        numSets--;
+        maxSize = Math.max(maxSize, si + sj);
+        return 1;
+    }
+
+    /**
+     * Add a batch of new transaction records to the clustering
+     *
+     * @param batch
+     * @return number of cluster merges the batch caused
+     * @throws IllegalStateException if -Dcluster.heuristics is not the default
+     */
+    public int ingest(final TransactionStore batch) {
+        // only common inputs are linked; other heuristics would need earlier batches' transactions
+        ClusteringHeuristic.requireDefault("Incremental clustering");
+        final AddressDictionary batchAddresses = batch.getAddresses();
+        final int[] remap = new int[batchAddresses.size()];
+        byte[] scratch = new byte[64];
+        for (int id = 0; id < remap.length; ++id) {
+            if (batchAddresses.keyLength(id) > scratch.length) {
+                scratch = new byte[batchAddresses.keyLength(id)];
+            }
+            final int len = batchAddresses.copyKey(id, scratch, 0);
+            remap[id] = addAddress(scratch, len);
+        }
+
+        int merges = 0;
+        final LongIntHashMap firstInput = new LongIntHashMap(); // tx index -> first input address
+        final TransactionStore.Cursor cursor = batch.cursor();
+        while (cursor.next()) {
+            if (cursor.isInput()) {
+                final int addr = remap[cursor.addressId()];
+                final int first = firstInput.putIfAbsent(cursor.txIndex(), addr);
+                if (first != addr) {
+                    merges += union(first, addr);
+                }
+            }
+        }
+        return merges;
+    }
+
+    /**
+     * Ingest a text or binary (see BinaryDataset) transaction file
+     *
+     * @param file
+     * @return number of cluster merges the file caused
+     */
+    public int ingest(final String file) {
+        final UserCluster batch = new UserCluster();
+        if (isBinaryDataset(file)) {
+            batch.readBinaryTransactions(file);
+        } else {
+            batch.readTransactions(file);
+        }
+        return ingest(batch.getTransactions());
+    }
+
+    static boolean isBinaryDataset(final String file) {
+        try (final DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return in.readInt() == BinaryDataset.MAGIC;
+        } catch (final EOFException exp) {
+            return false;
+        } catch (final IOException exp) {
+            throw new RuntimeException(exp);
+        }
+    }
+
+    /**
+     * Return the current id of a user, following aliases left by merges
+     *
+     * @param user
+     * @return current user id, or -1 if the id was never issued
+     */
+    public long resolveUser(final long user) {
+        if (user < 0 || user >= numIds) {
+            return -1;
+        }
+        int u = (int)user;
+        while (aliases.getInt(u) != u) {
+            final int next = aliases.getInt(u);
+            final int skip = aliases.getInt(next);
+            if (skip != next) {
+                aliases.set(u, skip);
+            }
+            u = next;
+        }
+        return u;
+    }
+
+    /**
+     * Return the user owning an address
+     *
+     * @param address
+     * @return user id, or -1 if the address has not been seen
+     */
+    public long getUser(final String address) {
+        final byte[] b = AddressDictionary.ascii(address);
+        final byte[] k = new byte[AddressDictionary.maxKeyLength(b.length)];
+        final int len = AddressDictionary.key(ByteBuffer.wrap(b), 0, b.length, k, 0);
+        if (len == AddressDictionary.BAD_CHECKSUM) {
+            return -1;
+        }
+        final int v = table.getInt(slot(AddressDictionary.hash(k, 0, len), k, len));
+        return v == EMPTY ? -1 : users.getInt(find(v - 1));
+    }
+
+    public int getUserNumber() {
+        return numSets;
+    }
+
+    public int getLargestClusterSize() {
+        return maxSize;
+    }
+
+    public int getAddressNumber() {
+        return parents.size();
+    }
+
+    /**
+     * Map each user id to its addresses
+     */
+    public Map<Long, List<String>> getUserMap() {
+        final Map<Long, List<String>> ret = new HashMap<>();
+        for (int i = 0; i < parents.size(); ++i) {
+            final long user = users.getInt(find(i));
+            List<String> list = ret.get(user);
+            if (list == null) {
+                list = new ArrayList<>();
+                ret.put(user, list);
+            }
+            final ByteBuffer key = key(i);
+            list.add(AddressDictionary.text(key.array(), 0, key.remaining()));
+        }
+        return ret;
+    }
+
+    private static boolean sameFile(final File a, final File b) throws IOException {
+        return a != null && a.getCanonicalFile().equals(b.getCanonicalFile());
+    }
+
+    /**
+     * Save the state to a directory. Saving to the directory the state was loaded from writes only
+     * what this run changed; saving anywhere else writes the whole state next to it and then puts
+     * it in place of the state that was there, if any.
+     */
+    public void save(final File target) throws IOException {
+        if (sameFile(dir, target)) {
+            saveChanges();
+        } else {
+            saveAll(target);
+        }
+    }
+
+    private void writeNewKeys(final File file, final long position) throws IOException {
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            final ByteBuffer buf = ByteBuffer.wrap(newKeys, 0, newKeyBytes);
+            long p = position;
+            while (buf.hasRemaining()) {
+                p += channel.write(buf, p);
+            }
+            channel.truncate(p);
+            channel.force(false);
+        }
+    }
+
+    private void writeHeader(final DataOutputStream out) throws IOException {
+        out.writeInt(parents.size());
+        out.writeInt(numIds);
+        out.writeInt(numSets);
+        out.writeInt(maxSize);
+        out.writeInt(table.size());
+        out.writeLong(keyBytes());
+    }
+
+    /**
+     * Write the header through a temporary file, so that it is always whole
+     */
+    private static void writeHeaderFile(final File dir, final byte[] header) throws IOException {
+        final File tmp = new File(dir, HEADER + ".tmp");
+        try (final FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(header);
+            out.getFD().sync();
+        }
+        Files.move(tmp.toPath(), new File(dir, HEADER).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private byte[] header() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (final DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeHeader(out);
+        }
+        return bytes.toByteArray();
+    }
+
+    private void saveChanges() throws IOException {
+        // new values go past the ends the header gives, so until the journal is complete they are
+        // not part of the state
+        for (final StateColumn column : columns()) {
+            column.writeAdded(new File(dir, column.getName()));
+        }
+        if (tableRebuilt) {
+            table.writeAll(new File(dir, NEW_TABLE));
+        }
+        writeNewKeys(new File(dir, KEYS), savedKeyBytes);
+
+        final File journal = new File(dir, JOURNAL);
+        try (final FileOutputStream file = new FileOutputStream(journal);
+             final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+            out.writeInt(JOURNAL_MAGIC);
+            final byte[] header = header();
+            out.writeInt(header.length);
+            out.write(header);
+            out.writeBoolean(tableRebuilt);
+            final List<StateColumn> changed = new ArrayList<>(Arrays.asList(columns()));
+            if (!tableRebuilt) {
+                changed.add(table);
+            }
+            out.writeInt(changed.size());
+            for (final StateColumn column : changed) {
+                column.journalChanges(out);
+            }
+            out.writeInt(COMMIT);
+            out.flush();
+            file.getFD().sync();
+        }
+        apply(dir);
+        for (final StateColumn column : columns()) {
+            column.clearChanges();
+        }
+        table.clearChanges();
+    }
+
+    /**
+     * Apply a complete journal left by a save that did not finish, or drop an incomplete one with
+     * whatever its save appended
+     */
+    private static void replay(final File dir) throws IOException {
+        final File journal = new File(dir, JOURNAL);
+        if (journal.exists() && journalComplete(journal)) {
+            apply(dir);
+        } else {
+            Files.deleteIfExists(journal.toPath());
+            Files.deleteIfExists(new File(dir, NEW_TABLE).toPath());
+        }
+    }
+
+    /**
+     * Write the journaled changes, the new table and the header to the state, then drop the
+     * journal. Applying a journal twice does no harm.
+     */
+    private static void apply(final File dir) throws IOException {
+        final File journal = new File(dir, JOURNAL);
+        try (final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal), 1 << 16))) {
+            in.readInt();
+            final byte[] header = new byte[in.readInt()];
+            in.readFully(header);
+            final boolean tableRebuilt = in.readBoolean();
+            final int columns = in.readInt();
+            for (int c = 0; c < columns; ++c) {
+                StateColumn.applyChanges(in, dir);
+            }
+            final File newTable = new File(dir, NEW_TABLE);
+            if (tableRebuilt && newTable.exists()) {
+                Files.move(newTable.toPath(), new File(dir, TABLE).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            writeHeaderFile(dir, header);
+        }
+        Files.delete(journal.toPath());
+    }
+
+    private static boolean journalComplete(final File journal) throws IOException {
+        try (final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal), 1 << 16))) {
+            if (in.readInt() != JOURNAL_MAGIC) {
+                return false;
+            }
+            in.readFully(new byte[in.readInt()]);
+            in.readBoolean();
+            final int columns = in.readInt();
+            for (int c = 0; c < columns; ++c) {
+                in.readUTF();
+                in.readByte();
+                // (index, value) pairs
+                for (long left = 12L * in.readInt(); left > 0; ) {
+                    final long skipped = in.skip(left);
+                    if (skipped > 0) {
+                        left -= skipped;
+                    } else if (in.read() >= 0) {
+                        left--;
+                    } else {
+                        return false;
+                    }
+                }
+            }
+            return in.readInt() == COMMIT;
+        } catch (final EOFException exp) {
+            return false;
+        }
+    }
+
+    /**
+     * Refuse to replace anything but a state or an empty directory
+     */
+    private static void checkReplaceable(final File file) throws IOException {
+        if (file.exists() && !new File(file, HEADER).exists() && !(file.isDirectory() && file.list().length == 0)) {
+            throw new IOException(file + " is not a cluster state; not replacing it");
+        }
+    }
+
+    private static void deleteState(final File file) throws IOException {
+        final File[] files = file.listFiles();
+        if (files != null) {
+            for (final File f : files) {
+                Files.delete(f.toPath());
+            }
+        }
+        Files.deleteIfExists(file.toPath());
+    }
+
+    private void saveAll(final File target) throws IOException {
+        final File next = new File(target.getPath() + ".new");
+        checkReplaceable(target);
+        deleteState(next);
+        if (!next.mkdirs()) {
+            throw new IOException("Cannot create " + next);
+        }
+        for (final StateColumn column : columns()) {
+            column.writeAll(new File(next, column.getName()));
+        }
+        table.writeAll(new File(next, TABLE));
+        final File keys = new File(next, KEYS);
+        if (savedKeys != null) {
+            try (final FileChannel channel = FileChannel.open(keys.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                long done = 0;
+                while (done < savedKeyBytes) {
+                    done += savedKeys.transferTo(done, savedKeyBytes - done, channel);
+                }
+            }
+        }
+        writeNewKeys(keys, savedKeyBytes);
+        writeHeaderFile(next, header());
+        deleteState(target);
+        Files.move(next.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * True if there is a state at file to load, possibly one whose save has to be finished
+     */
+    static boolean exists(final File file) {
+        return file.exists() || new File(new File(file.getPath() + ".new"), HEADER).exists();
+    }
+
+    /**
+     * Open a state directory
+     */
+    public static IncrementalClusterer load(final File file) throws IOException {
+        final File next = new File(file.getPath() + ".new");
+        if (!file.exists() && new File(next, HEADER).exists()) {
+            // a whole-state save was interrupted between removing the old state and renaming
+            Files.move(next.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        if (!new File(file, HEADER).exists()) {
+            throw new IOException(file + " is not a cluster state");
+        }
+        replay(file);
+        final int numAddresses, numIds, numSets, maxSize, tableLength;
+        final long keyBytes;
+        try (final DataInputStream in = new DataInputStream(new FileInputStream(new File(file, HEADER)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a cluster state");
+            }
+            final int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException(file + " has unsupported version " + version);
+            }
+            numAddresses = in.readInt();
+            numIds = in.readInt();
+            numSets = in.readInt();
+            maxSize = in.readInt();
+            tableLength = in.readInt();
+            keyBytes = in.readLong();
+        }
+        final FileChannel keys = FileChannel.open(new File(file, KEYS).toPath(), StandardOpenOption.READ);
+        if (keys.size() < keyBytes) {
+            keys.close();
+            throw new IOException(file + " has fewer key bytes than its header says");
+        }
+        return new IncrementalClusterer(file, keys, keyBytes, StateColumn.open(file, "parents", 4, numAddresses),
+                                        StateColumn.open(file, "sizes", 4, numAddresses), StateColumn.open(file, "users", 4, numAddresses),
+                                        StateColumn.open(file, "hashes", 4, numAddresses), StateColumn.open(file, "keyOffsets", 8, numAddresses),
+                                        StateColumn.open(file, "aliases", 4, numIds), StateColumn.open(file, TABLE, 4, tableLength),
+                                        numIds, numSets, maxSize);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (savedKeys != null) {
+            savedKeys.close();
+        }
+    }
+
+    /**
+     * Update a saved clustering with new records:
+     * IncrementalClusterer &lt;state directory&gt; &lt;transaction file&gt;...
+     * The state is created if it does not exist yet.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: IncrementalClusterer <state directory> <transaction file>...");
+            System.exit(1);
+        }
+        final File state = new File(args[0]);
+        try (final IncrementalClusterer clusterer = exists(state) ? load(state) : new IncrementalClusterer()) {
+            for (int i = 1; i < args.length; ++i) {
+                final int merges = clusterer.ingest(args[i]);
+                System.out.println(args[i] + ": " + merges + " merges");
+            }
+            clusterer.save(state);
+            System.out.println(clusterer.getAddressNumber() + " addresses in " + clusterer.getUserNumber() + " users, largest has " + clusterer.getLargestClusterSize());
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package main;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressed long -> int map without boxing, used to key per-transaction state by tx index.
+ */
+public class LongIntHashMap {
+    private long[] keys;
+    private int[] values;
+    private boolean[] used;
+    private int size;
+
+    public LongIntHashMap() {
+        this(16);
+    }
+
+    public LongIntHashMap(final int expected) {
+        int capacity = 16;
+        while (capacity < expected * 2) {
+            capacity <<= 1;
+        }
+        keys = new long[capacity];
+        values = new int[capacity];
+        used = new boolean[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private static int slot(final long key, final int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32)) & mask;
+    }
+
+    public int get(final long key, final int defaultValue) {
+        final int mask = keys.length - 1;
+        int s = slot(key, mask);
+        while (used[s]) {
+            if (keys[s] == key) {
+                return values[s];
+            }
+            s = (s + 1) & mask;
+        }
+        return defaultValue;
+    }
+
+    public boolean containsKey(final long key) {
+        final int mask = keys.length - 1;
+        int s = slot(key, mask);
+        while (used[s]) {
+            if (keys[s] == key) {
+                return true;
+            }
+            s = (s + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * Associate value with key
+     *
+     * @return the previous value, or defaultValue if key was absent
+     */
+    public int put(final long key, final int value, final int defaultValue) {
+        final int mask = keys.length - 1;
+        int s = slot(key, mask);
+        while (used[s]) {
+            if (keys[s] == key) {
+                final int prev = values[s];
+                values[s] = value;
+                return prev;
+            }
+            s = (s + 1) & mask;
+        }
+        used[s] = true;
+        keys[s] = key;
+        values[s] = value;
+        if (++size * 2 > keys.length) {
+            grow();
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Associate value with key unless key is already present
+     *
+     * @return the value now associated with key
+     */
+    public int putIfAbsent(final long key, final int value) {
+        final int mask = keys.length - 1;
+        int s = slot(key, mask);
+        while (used[s]) {
+            if (keys[s] == key) {
+                return values[s];
+            }
+            s = (s + 1) & mask;
+        }
+        used[s] = true;
+        keys[s] = key;
+        values[s] = value;
+        if (++size * 2 > keys.length) {
+            grow();
+        }
+        return value;
+    }
+
+    /**
+     * Remove key
+     *
+     * @return the value it had, or defaultValue if it was absent
+     */
+    public int remove(final long key, final int defaultValue) {
+        final int mask = keys.length - 1;
+        int s = slot(key, mask);
+        while (used[s] && keys[s] != key) {
+            s = (s + 1) & mask;
+        }
+        if (!used[s]) {
+            return defaultValue;
+        }
+        final int ret = values[s];
+        // shift the rest of the probe run back over the hole, keeping each key reachable from its slot
+        int hole = s;
+        int next = (s + 1) & mask;
+        while (used[next]) {
+            final int home = slot(keys[next], mask);
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        used[hole] = false;
+        size--;
+        return ret;
+    }
+
+    private void grow() {
+        final long[] oldKeys = keys;
+        final int[] oldValues = values;
+        final boolean[] oldUsed = used;
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        used = new boolean[oldKeys.length * 2];
+        final int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; ++i) {
+            if (oldUsed[i]) {
+                int s = slot(oldKeys[i], mask);
+                while (used[s]) {
+                    s = (s + 1) & mask;
+                }
+                used[s] = true;
+                keys[s] = oldKeys[i];
+                values[s] = oldValues[i];
+            }
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(used, false);
+        size = 0;
+    }
+}
@@ -0,0 +1,132 @@
+package main;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Little-endian bulk transfer of primitive arrays and buffers to and from a FileChannel, for the
+ * snapshot formats: a section is loaded either by mapping it and copying it into an array in one
+ * call (readInts and friends) or by keeping the mapping as a read-only view (mapInts, mapLongs).
+ */
+final class MappedArrays {
+    private static final int CHUNK = 1 << 20;
+
+    private final FileChannel channel;
+    private final ByteBuffer buf = ByteBuffer.allocateDirect(CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * A writer appending to channel
+     */
+    MappedArrays(final FileChannel channel) {
+        this.channel = channel;
+    }
+
+    private void flush() throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        buf.clear();
+    }
+
+    void writeInts(final int[] values, final int from, final int to) throws IOException {
+        int i = from;
+        while (i < to) {
+            final int n = Math.min(to - i, CHUNK / 4);
+            buf.asIntBuffer().put(values, i, n);
+            buf.position(n * 4);
+            flush();
+            i += n;
+        }
+    }
+
+    void writeLongs(final long[] values, final int from, final int to) throws IOException {
+        int i = from;
+        while (i < to) {
+            final int n = Math.min(to - i, CHUNK / 8);
+            buf.asLongBuffer().put(values, i, n);
+            buf.position(n * 8);
+            flush();
+            i += n;
+        }
+    }
+
+    /**
+     * Write the values of a buffer from 0 to its limit
+     */
+    void writeInts(final IntBuffer values) throws IOException {
+        final IntBuffer src = values.duplicate();
+        src.rewind();
+        while (src.hasRemaining()) {
+            final int n = Math.min(src.remaining(), CHUNK / 4);
+            final IntBuffer chunk = src.slice();
+            chunk.limit(n);
+            buf.asIntBuffer().put(chunk);
+            buf.position(n * 4);
+            flush();
+            src.position(src.position() + n);
+        }
+    }
+
+    void writeLongs(final LongBuffer values) throws IOException {
+        final LongBuffer src = values.duplicate();
+        src.rewind();
+        while (src.hasRemaining()) {
+            final int n = Math.min(src.remaining(), CHUNK / 8);
+            final LongBuffer chunk = src.slice();
+            chunk.limit(n);
+            buf.asLongBuffer().put(chunk);
+            buf.position(n * 8);
+            flush();
+            src.position(src.position() + n);
+        }
+    }
+
+    void writeBytes(final byte[] values, final int from, final int to) throws IOException {
+        final ByteBuffer bytes = ByteBuffer.wrap(values, from, to - from);
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+
+    /**
+     * Copy count ints at position into dst
+     *
+     * @return the position after them
+     */
+    static long readInts(final FileChannel channel, final long position, final int[] dst, final int count) throws IOException {
+        final long length = (long)count * 4;
+        if (count > 0) {
+            channel.map(FileChannel.MapMode.READ_ONLY, position, length).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(dst, 0, count);
+        }
+        return position + length;
+    }
+
+    static long readBytes(final FileChannel channel, final long position, final byte[] dst, final int count) throws IOException {
+        if (count > 0) {
+            channel.map(FileChannel.MapMode.READ_ONLY, position, count).get(dst, 0, count);
+        }
+        return position + count;
+    }
+
+    /**
+     * Map count ints at position read-only; the view stays valid after the channel is closed
+     */
+    static IntBuffer mapInts(final FileChannel channel, final long position, final int count) throws IOException {
+        if (count == 0) {
+            return IntBuffer.allocate(0);
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, (long)count * 4).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+    }
+
+    static LongBuffer mapLongs(final FileChannel channel, final long position, final int count) throws IOException {
+        if (count == 0) {
+            return LongBuffer.allocate(0);
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, (long)count * 8).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+    }
+}
@@ -0,0 +1,55 @@
+package main;
+
+/**
+ * One-time change addresses (Meiklejohn et al., "A Fistful of Bitcoins"): in a transaction with
+ * inputs and at least two outputs, none of them back to an input address, an output address seen
+ * for the first time in the dataset is the sender's change if it is the only such output. It is
+ * linked to the first input. Wallets that reuse addresses or pay fresh addresses make this wrong
+ * far more often than commonInput, so it is off by default.
+ */
+public class OneTimeChangeHeuristic implements ClusteringHeuristic {
+    public static final String NAME = "oneTimeChange";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean needsOutputs() {
+        return true;
+    }
+
+    @Override
+    public void apply(final TransactionGroups.Group tx, final Linker linker) {
+        final int outputs = tx.outputCount();
+        if (tx.inputCount() == 0 || outputs < 2) {
+            return;
+        }
+        int change = -1;
+        for (int k = 0; k < outputs; ++k) {
+            final int address = tx.outputAddress(k);
+            if (isInput(tx, address)) {
+                return; // the change went back to a spending address
+            }
+            if (tx.isFirstAppearance(address) && address != change) {
+                if (change >= 0) {
+                    return; // two fresh outputs: no telling which one is change
+                }
+                change = address;
+            }
+        }
+        if (change >= 0) {
+            linker.link(tx.inputAddress(0), change);
+        }
+    }
+
+    private static boolean isInput(final TransactionGroups.Group tx, final int address) {
+        for (int k = 0; k < tx.inputCount(); ++k) {
+            if (tx.inputAddress(k) == address) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
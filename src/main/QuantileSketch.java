@@ -0,0 +1,100 @@
+package main;
+
+/**
+ * Quantiles of nonnegative long values with bounded relative error (DDSketch, Masson et al.):
+ * value v &gt; 0 is counted in bucket ceil(log_gamma(v)) with gamma = (1 + a) / (1 - a), so any
+ * quantile comes back within a factor 1 +- a of a value of that rank. Every long fits in a few
+ * thousand buckets at a = 1%, so memory is fixed; sketches of the same accuracy merge by adding
+ * buckets.
+ */
+public final class QuantileSketch {
+    private final double accuracy;
+    private final double logGamma;
+    private final long[] buckets;
+    private long zeros; // values <= 0
+    private long count;
+    private long min = Long.MAX_VALUE;
+    private long max = Long.MIN_VALUE;
+
+    /**
+     * @param accuracy relative error a, in (0, 1)
+     */
+    public QuantileSketch(final double accuracy) {
+        if (!(accuracy > 0 && accuracy < 1)) {
+            throw new IllegalArgumentException("Accuracy must be in (0, 1)");
+        }
+        this.accuracy = accuracy;
+        this.logGamma = Math.log((1 + accuracy) / (1 - accuracy));
+        this.buckets = new long[bucket(Long.MAX_VALUE) + 1];
+    }
+
+    private int bucket(final long value) {
+        return (int)Math.ceil(Math.log(value) / logGamma);
+    }
+
+    public void add(final long value) {
+        if (value <= 0) {
+            zeros++;
+        } else {
+            buckets[bucket(value)]++;
+        }
+        count++;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    public void merge(final QuantileSketch other) {
+        if (other.accuracy != accuracy) {
+            throw new IllegalArgumentException("Cannot merge accuracy " + other.accuracy + " into " + accuracy);
+        }
+        for (int i = 0; i < buckets.length; ++i) {
+            buckets[i] += other.buckets[i];
+        }
+        zeros += other.zeros;
+        count += other.count;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getAccuracy() {
+        return accuracy;
+    }
+
+    /**
+     * The value of rank floor(q * (count - 1)), within the relative accuracy; 0 for no values
+     */
+    public long quantile(final double q) {
+        if (count == 0) {
+            return 0;
+        }
+        final long rank = (long)(Math.max(0, Math.min(1, q)) * (count - 1));
+        if (rank < zeros) {
+            return Math.max(min, 0);
+        }
+        long seen = zeros;
+        for (int i = 0; i < buckets.length; ++i) {
+            seen += buckets[i];
+            if (seen > rank) {
+                // the bucket's midpoint in relative terms, kept inside the range seen
+                final double value = 2 * Math.exp(i * logGamma) / (1 + Math.exp(logGamma));
+                return Math.max(min, Math.min(max, Math.round(value)));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * quantile at every q
+     */
+    public long[] quantiles(final double... qs) {
+        final long[] ret = new long[qs.length];
+        for (int i = 0; i < qs.length; ++i) {
+            ret[i] = quantile(qs[i]);
+        }
+        return ret;
+    }
+}
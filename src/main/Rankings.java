@@ -0,0 +1,180 @@
+package main;
+
+import java.io.*;
+import java.util.function.IntPredicate;
+
+/**
+ * Ranked queries over per-user metrics such as those of AggregationEngine. Users are ranked by
+ * descending value, ties going to the smaller user id. Top-K keeps a bounded heap of K users and
+ * percentiles use selection, so neither sorts the whole array.
+ */
+public final class Rankings {
+    private static final IntPredicate ALL = user -> true;
+
+    private Rankings() {
+    }
+
+    /**
+     * @return true if user a ranks below user b
+     */
+    private static boolean worse(final long[] values, final int a, final int b) {
+        return values[a] < values[b] || (values[a] == values[b] && a > b);
+    }
+
+    private static void siftDown(final long[] values, final int[] heap, final int size, int i) {
+        final int user = heap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && worse(values, heap[child + 1], heap[child])) {
+                child++;
+            }
+            if (!worse(values, heap[child], user)) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = user;
+    }
+
+    private static void siftUp(final long[] values, final int[] heap, int i) {
+        final int user = heap[i];
+        while (i > 0) {
+            final int parent = (i - 1) / 2;
+            if (!worse(values, user, heap[parent])) {
+                break;
+            }
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = user;
+    }
+
+    public static int[] topK(final long[] values, final int k) {
+        return topK(values, k, ALL);
+    }
+
+    /**
+     * The k highest ranked users, best first, in O(n log k) time and O(k) space
+     *
+     * @param values metric of every user
+     * @param k
+     * @param include users to consider
+     */
+    public static int[] topK(final long[] values, final int k, final IntPredicate include) {
+        if (k < 0) {
+            throw new IllegalArgumentException("k must not be negative: " + k);
+        }
+        // min-heap on rank: the root is the worst of the best k seen so far
+        final int[] heap = new int[Math.min(k, values.length)];
+        int size = 0;
+        for (int u = 0; u < values.length; ++u) {
+            if (!include.test(u)) {
+                continue;
+            }
+            if (size < heap.length) {
+                heap[size] = u;
+                siftUp(values, heap, size++);
+            } else if (size > 0 && worse(values, heap[0], u)) {
+                heap[0] = u;
+                siftDown(values, heap, size, 0);
+            }
+        }
+        final int[] ret = new int[size];
+        for (int i = size - 1; i >= 0; --i) {
+            ret[i] = heap[0];
+            heap[0] = heap[--size];
+            siftDown(values, heap, size, 0);
+        }
+        return ret;
+    }
+
+    /**
+     * Nearest-rank percentiles of the values of the included users
+     *
+     * @param values metric of every user
+     * @param include users to consider
+     * @param percents each in [0, 100]
+     * @return the value at each percentile; empty input gives zeros
+     */
+    public static long[] percentiles(final long[] values, final IntPredicate include, final double... percents) {
+        final long[] selected = new long[values.length];
+        int n = 0;
+        for (int u = 0; u < values.length; ++u) {
+            if (include.test(u)) {
+                selected[n++] = values[u];
+            }
+        }
+        final long[] ret = new long[percents.length];
+        for (int i = 0; i < percents.length; ++i) {
+            final double p = percents[i];
+            if (!(p >= 0 && p <= 100)) {
+                throw new IllegalArgumentException("Percentile out of range: " + p);
+            }
+            if (n > 0) {
+                final int rank = Math.max(1, (int)Math.ceil(p / 100 * n));
+                ret[i] = select(selected, 0, n - 1, rank - 1);
+            }
+        }
+        return ret;
+    }
+
+    public static long[] percentiles(final long[] values, final double... percents) {
+        return percentiles(values, ALL, percents);
+    }
+
+    /**
+     * Quickselect: the value that would be at index k of a[lo..hi] if sorted ascending. Partially
+     * reorders a.
+     */
+    static long select(final long[] a, int lo, int hi, final int k) {
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            // median of three as pivot
+            final long x = a[lo], y = a[mid], z = a[hi];
+            final long pivot = x < y ? (y < z ? y : Math.max(x, z)) : (x < z ? x : Math.max(y, z));
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (a[i] < pivot) {
+                    i++;
+                }
+                while (a[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    final long t = a[i];
+                    a[i++] = a[j];
+                    a[j--] = t;
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return a[k];
+            }
+        }
+        return a[lo];
+    }
+
+    /**
+     * Write "value user" lines, best ranked first
+     *
+     * @param values metric of every user
+     * @param limit maximum number of lines, e.g. Integer.MAX_VALUE for all
+     * @param include users to write
+     * @param file
+     */
+    public static void writeRanked(final long[] values, final int limit, final IntPredicate include, final String file) throws IOException {
+        final int[] users = topK(values, limit, include);
+        try (final Writer writer = new BufferedWriter(new FileWriter(file, false), 1 << 16)) {
+            for (final int u : users) {
+                writer.write(values[u] + " " + u + "\n");
+            }
+        }
+    }
+}
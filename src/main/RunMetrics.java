@@ -0,0 +1,435 @@
+package main;
+
+import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Per-phase measurements of a run: wall time, rows and bytes processed (and their rates), peak
+ * heap, GC pauses, and any counters a phase adds (union/find counts, path lengths). Phases are
+ * opened with {@link #begin} and closed by try-with-resources:
+ *
+ * <pre>
+ * try (RunMetrics.Phase phase = RunMetrics.global().begin("union")) {
+ *     ...
+ *     phase.addRows(n);
+ * }
+ * </pre>
+ *
+ * While the run is in progress the process-wide instance is visible over JMX as
+ * main:type=RunMetrics; at the end, {@link #writeReport()} writes everything as JSON to the file
+ * named by the metrics.report system property (metrics.json by default, empty for none). The JSON
+ * is written by hand, so the classes that record metrics need nothing beyond the JDK.
+ *
+ * Union-find counts cost an increment on every find, so the disjoint-sets only keep them with
+ * -Dmetrics.unionFind=true (see {@link #countsUnionFind()}).
+ */
+public class RunMetrics implements RunMetricsMXBean {
+    public static final String OBJECT_NAME = "main:type=RunMetrics";
+    public static final String REPORT_PROPERTY = "metrics.report";
+    public static final String DEFAULT_REPORT = "metrics.json";
+    public static final String UNION_FIND_PROPERTY = "metrics.unionFind";
+
+    private static RunMetrics global;
+
+    private final long startMillis = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+    private final List<Phase> phases = new ArrayList<>();
+
+    /**
+     * The instance the pipeline classes record into, registered with the platform MBean server on
+     * first use
+     */
+    public static synchronized RunMetrics global() {
+        if (global == null) {
+            global = new RunMetrics();
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(global, new ObjectName(OBJECT_NAME));
+            } catch (final JMException exp) {
+                System.err.println("Cannot register " + OBJECT_NAME + ": " + exp.getMessage());
+            }
+        }
+        return global;
+    }
+
+    /**
+     * True if union phases should count finds, path steps and unions
+     */
+    public static boolean countsUnionFind() {
+        return Boolean.getBoolean(UNION_FIND_PROPERTY);
+    }
+
+    private static long gcCount() {
+        long ret = 0;
+        for (final GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            ret += Math.max(0, gc.getCollectionCount());
+        }
+        return ret;
+    }
+
+    private static long gcMillis() {
+        long ret = 0;
+        for (final GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            ret += Math.max(0, gc.getCollectionTime());
+        }
+        return ret;
+    }
+
+    /**
+     * Sum of the heap pools' peaks; an upper bound on the peak of the heap as a whole, as the
+     * pools need not peak together
+     */
+    private static long peakHeap() {
+        long ret = 0;
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                ret += pool.getPeakUsage().getUsed();
+            }
+        }
+        return ret;
+    }
+
+    private static void resetPeakHeap() {
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * Start a phase. Heap peaks are reset when a phase starts, so phases that overlap share the
+     * peak of whichever began last.
+     */
+    public Phase begin(final String name) {
+        final Phase phase = new Phase(name);
+        synchronized (phases) {
+            phases.add(phase);
+        }
+        return phase;
+    }
+
+    private List<Phase> phases() {
+        synchronized (phases) {
+            return new ArrayList<>(phases);
+        }
+    }
+
+    public class Phase implements AutoCloseable {
+        private final String name;
+        private final long startNanos;
+        private final long startGcCount;
+        private final long startGcMillis;
+        private final LongAdder rows = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+        private final Map<String, Double> gauges = new ConcurrentSkipListMap<>();
+        private volatile boolean closed;
+        private long wallNanos, gcCount, gcMillis, peakHeapBytes;
+
+        private Phase(final String name) {
+            this.name = name;
+            resetPeakHeap();
+            this.startGcCount = gcCount();
+            this.startGcMillis = gcMillis();
+            this.startNanos = System.nanoTime();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isClosed() {
+            return closed;
+        }
+
+        public Phase addRows(final long n) {
+            rows.add(n);
+            return this;
+        }
+
+        public Phase addBytes(final long n) {
+            bytes.add(n);
+            return this;
+        }
+
+        public long getRows() {
+            return rows.sum();
+        }
+
+        public long getBytes() {
+            return bytes.sum();
+        }
+
+        /**
+         * Add to a named counter; safe to call from several threads
+         */
+        public Phase count(final String counter, final long n) {
+            counters.computeIfAbsent(counter, c -> new LongAdder()).add(n);
+            return this;
+        }
+
+        public long getCount(final String counter) {
+            final LongAdder c = counters.get(counter);
+            return c == null ? 0 : c.sum();
+        }
+
+        /**
+         * Record a derived value such as an average
+         */
+        public Phase set(final String gauge, final double value) {
+            gauges.put(gauge, value);
+            return this;
+        }
+
+        public long getWallMillis() {
+            return (closed ? wallNanos : System.nanoTime() - startNanos) / 1000000;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                wallNanos = System.nanoTime() - startNanos;
+                gcCount = gcCount() - startGcCount;
+                gcMillis = gcMillis() - startGcMillis;
+                peakHeapBytes = peakHeap();
+                closed = true;
+            }
+        }
+
+        private synchronized void write(final Json json) {
+            final long nanos = closed ? wallNanos : System.nanoTime() - startNanos;
+            final double seconds = Math.max(nanos, 1) / 1e9;
+            json.begin('{');
+            json.field("name").value(name);
+            json.field("finished").value(closed);
+            json.field("wallMillis").value(nanos / 1000000);
+            json.field("rows").value(rows.sum());
+            json.field("rowsPerSec").value(Math.round(rows.sum() / seconds));
+            json.field("bytes").value(bytes.sum());
+            json.field("bytesPerSec").value(Math.round(bytes.sum() / seconds));
+            json.field("peakHeapBytes").value(closed ? peakHeapBytes : peakHeap());
+            json.field("gcCount").value(closed ? gcCount : gcCount() - startGcCount);
+            json.field("gcPauseMillis").value(closed ? gcMillis : gcMillis() - startGcMillis);
+            json.field("counters").begin('{');
+            for (final Map.Entry<String, LongAdder> e : counters.entrySet()) {
+                json.field(e.getKey()).value(e.getValue().sum());
+            }
+            for (final Map.Entry<String, Double> e : gauges.entrySet()) {
+                json.field(e.getKey()).value(e.getValue());
+            }
+            json.end('}');
+            json.end('}');
+        }
+    }
+
+    public List<Phase> getPhases() {
+        return phases();
+    }
+
+    /**
+     * Pretty-printed JSON, two spaces per level
+     */
+    private static final class Json {
+        private final StringBuilder out = new StringBuilder();
+        private int depth;
+        private boolean first = true;
+
+        private void next() {
+            if (!first) {
+                out.append(',');
+            }
+            first = false;
+            newline();
+        }
+
+        private void newline() {
+            out.append('\n');
+            for (int i = 0; i < depth; ++i) {
+                out.append("  ");
+            }
+        }
+
+        /**
+         * Open an object or array; inside an array, as its next element
+         */
+        Json begin(final char bracket) {
+            out.append(bracket);
+            depth++;
+            first = true;
+            return this;
+        }
+
+        Json end(final char bracket) {
+            depth--;
+            if (!first) {
+                newline();
+            }
+            out.append(bracket);
+            first = false;
+            return this;
+        }
+
+        /**
+         * The name of the next field of an object, to be followed by its value
+         */
+        Json field(final String name) {
+            next();
+            value(name);
+            out.append(": ");
+            return this;
+        }
+
+        /**
+         * Move to the next element of an array
+         */
+        Json element() {
+            next();
+            return this;
+        }
+
+        void value(final long value) {
+            out.append(value);
+        }
+
+        void value(final double value) {
+            out.append(Double.isNaN(value) || Double.isInfinite(value) ? "null" : Double.toString(value));
+        }
+
+        void value(final boolean value) {
+            out.append(value);
+        }
+
+        void value(final String value) {
+            out.append('"');
+            for (int i = 0; i < value.length(); ++i) {
+                final char c = value.charAt(i);
+                if (c == '"' || c == '\\') {
+                    out.append('\\').append(c);
+                } else if (c < 0x20) {
+                    out.append(String.format("\\u%04x", (int)c));
+                } else {
+                    out.append(c);
+                }
+            }
+            out.append('"');
+        }
+
+        @Override
+        public String toString() {
+            return out.toString();
+        }
+    }
+
+    /**
+     * Write the report to file, replacing it atomically
+     */
+    public void writeReport(final File file) throws IOException {
+        final File tmp = new File(file.getPath() + ".tmp");
+        try (final Writer w = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+            w.write(getReport());
+            w.write("\n");
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Write the report where the metrics.report property says
+     *
+     * @return true if it was written or no report was asked for
+     */
+    public boolean writeReport() {
+        final String file = System.getProperty(REPORT_PROPERTY, DEFAULT_REPORT);
+        if (file.isEmpty()) {
+            return true;
+        }
+        try {
+            writeReport(new File(file));
+        } catch (IOException e) {
+            System.err.println("Error in writing metrics report!");
+            e.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public long getUptimeMillis() {
+        return (System.nanoTime() - startNanos) / 1000000;
+    }
+
+    private Phase activePhase() {
+        final List<Phase> all = phases();
+        for (int i = all.size() - 1; i >= 0; --i) {
+            if (!all.get(i).isClosed()) {
+                return all.get(i);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String getActivePhase() {
+        final Phase phase = activePhase();
+        return phase == null ? "" : phase.getName();
+    }
+
+    @Override
+    public long getActivePhaseMillis() {
+        final Phase phase = activePhase();
+        return phase == null ? 0 : phase.getWallMillis();
+    }
+
+    @Override
+    public long getActivePhaseRows() {
+        final Phase phase = activePhase();
+        return phase == null ? 0 : phase.getRows();
+    }
+
+    @Override
+    public long getActivePhaseBytes() {
+        final Phase phase = activePhase();
+        return phase == null ? 0 : phase.getBytes();
+    }
+
+    @Override
+    public int getCompletedPhaseCount() {
+        int ret = 0;
+        for (final Phase phase : phases()) {
+            if (phase.isClosed()) {
+                ret++;
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public String getReport() {
+        final Runtime runtime = Runtime.getRuntime();
+        final Json json = new Json().begin('{');
+        json.field("startedAtMillis").value(startMillis);
+        json.field("wallMillis").value(getUptimeMillis());
+        json.field("processors").value(runtime.availableProcessors());
+        json.field("maxHeapBytes").value(runtime.maxMemory());
+        json.field("gcCount").value(gcCount());
+        json.field("gcPauseMillis").value(gcMillis());
+        json.field("phases").begin('[');
+        for (final Phase phase : phases()) {
+            phase.write(json.element());
+        }
+        json.end(']');
+        return json.end('}').toString();
+    }
+}
@@ -0,0 +1,26 @@
+package main;
+
+/**
+ * Progress of a run as seen from JMX (jconsole, jcmd), registered as main:type=RunMetrics
+ */
+public interface RunMetricsMXBean {
+    long getUptimeMillis();
+
+    /**
+     * Name of the most recently started phase that has not finished, empty between phases
+     */
+    String getActivePhase();
+
+    long getActivePhaseMillis();
+
+    long getActivePhaseRows();
+
+    long getActivePhaseBytes();
+
+    int getCompletedPhaseCount();
+
+    /**
+     * The JSON report as it would be written now
+     */
+    String getReport();
+}
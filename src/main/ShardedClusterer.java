@@ -0,0 +1,585 @@
+package main;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Clusters text datasets with worker processes, each clustering one shard, and merges their
+ * partial forests into exactly the clustering UserCluster computes in one process, with the same
+ * user numbers:
+ *
+ * <ol>
+ * <li>every file is cut into shards at line starts, moved past the rows of the transaction the
+ * cut falls in, so a file grouped by transaction is split into transaction ranges;</li>
+ * <li>a worker JVM per shard (at most workers at once) reads its lines into a UserCluster of its
+ * own, with its own address dictionary, runs mergeAddresses and writes a shard file: its
+ * addresses in first-appearance order, a link from every address to the first address of its
+ * cluster, and the first input of every transaction with inputs, sorted by tx index;</li>
+ * <li>the merge interns the shard addresses into one dictionary in shard order, which gives
+ * every address the id a single read of the files would, replays the links into an Uptree and
+ * joins the first inputs of tx indexes found in several shards, read back as a k-way merge, so
+ * the files need not be grouped by transaction for the result to be exact.</li>
+ * </ol>
+ *
+ * Workers are started with the JVM options of this process (-Xmx and -D properties included),
+ * and the shard files go to java.io.tmpdir. A worker can also be run by hand:
+ * ShardedClusterer --worker &lt;transactions&gt; &lt;from&gt; &lt;to&gt; &lt;shard file&gt;.
+ */
+public class ShardedClusterer {
+    public static final int MAGIC = 0x42534844; // "BSHD"
+    public static final int VERSION = 1;
+    private static final int HEADER_INTS = 8;
+    public static final String WORKER_FLAG = "--worker";
+
+    private final int workers;
+    private final List<String> files = new ArrayList<>();
+    private UserCluster result;
+
+    /**
+     * @param workers worker processes run at once; every file is cut into about this many
+     * shards in total
+     */
+    public ShardedClusterer(final int workers) {
+        if (workers <= 0) {
+            throw new IllegalArgumentException("Need at least one worker");
+        }
+        this.workers = workers;
+    }
+
+    /**
+     * Add a text transaction file; may be called for several files before mergeAddresses, as
+     * with UserCluster
+     *
+     * @param file
+     * @return true if the file can be read; false otherwise
+     */
+    public boolean readTransactions(String file) {
+        if (!new File(file).canRead()) {
+            System.err.println("Cannot read " + file);
+            return false;
+        }
+        if (IncrementalClusterer.isBinaryDataset(file)) {
+            System.err.println(file + " is a binary dataset; sharded clustering reads text datasets");
+            return false;
+        }
+        files.add(file);
+        return true;
+    }
+
+    /**
+     * One shard: the lines of file that start in from .. to - 1
+     */
+    private static class Shard {
+        private final String file;
+        private final long from, to;
+        private final File out;
+
+        private Shard(final String file, final long from, final long to, final File out) {
+            this.file = file;
+            this.from = from;
+            this.to = to;
+            this.out = out;
+        }
+    }
+
+    /**
+     * Cut offsets of a file into about parts shards: line starts that do not split the rows of a
+     * transaction, from 0 to the file size
+     */
+    static long[] shardBounds(final File file, final int parts) throws IOException {
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final long size = channel.size();
+            final List<Long> bounds = new ArrayList<>();
+            bounds.add(0L);
+            final LineReader lines = new LineReader(channel);
+            for (int k = 1; k < parts; ++k) {
+                final long target = size / parts * k;
+                if (target <= bounds.get(bounds.size() - 1)) {
+                    continue;
+                }
+                // the line after the one holding the target, then past the rest of its transaction
+                lines.seek(target - 1);
+                lines.skipLine();
+                final String tx = lines.firstToken();
+                long cut = lines.position();
+                while (tx != null && tx.equals(lines.firstToken())) {
+                    lines.skipLine();
+                    cut = lines.position();
+                }
+                if (cut >= size) {
+                    break;
+                }
+                if (cut > bounds.get(bounds.size() - 1)) {
+                    bounds.add(cut);
+                }
+            }
+            bounds.add(size);
+            final long[] ret = new long[bounds.size()];
+            for (int i = 0; i < ret.length; ++i) {
+                ret[i] = bounds.get(i);
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * Sequential reads of whole lines from a position, for shardBounds
+     */
+    private static class LineReader {
+        private final FileChannel channel;
+        private final ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+        private long bufStart;
+        private long pos;
+
+        private LineReader(final FileChannel channel) {
+            this.channel = channel;
+            buf.limit(0);
+        }
+
+        private void seek(final long position) {
+            pos = position;
+            buf.limit(0);
+            bufStart = position;
+        }
+
+        private long position() {
+            return pos;
+        }
+
+        /**
+         * Byte at pos, -1 at the end of the file
+         */
+        private int peek() throws IOException {
+            if (pos < bufStart || pos - bufStart >= buf.limit()) {
+                buf.clear();
+                bufStart = pos;
+                if (channel.read(buf, pos) <= 0) {
+                    buf.limit(0);
+                    return -1;
+                }
+                buf.flip();
+            }
+            return buf.get((int)(pos - bufStart)) & 0xff;
+        }
+
+        private void skipLine() throws IOException {
+            int b;
+            while ((b = peek()) >= 0) {
+                pos++;
+                if (b == '\n') {
+                    break;
+                }
+            }
+        }
+
+        /**
+         * First token of the line at pos without moving past it; null at the end of the file
+         */
+        private String firstToken() throws IOException {
+            final long start = pos;
+            final StringBuilder ret = new StringBuilder();
+            int b;
+            while ((b = peek()) == ' ' || b == '\t') {
+                pos++;
+            }
+            while ((b = peek()) >= 0 && b != ' ' && b != '\t' && b != '\r' && b != '\n') {
+                ret.append((char)b);
+                pos++;
+            }
+            pos = start;
+            return b < 0 && ret.length() == 0 ? null : ret.toString();
+        }
+    }
+
+    /**
+     * Cluster every shard in a worker process and merge the shards
+     */
+    public void mergeAddresses() {
+        // the merge only joins shards through shared inputs, and first appearances are per shard
+        ClusteringHeuristic.requireDefault("Sharded clustering");
+        final RunMetrics metrics = RunMetrics.global();
+        File dir = null;
+        try {
+            dir = Files.createTempDirectory("shards").toFile();
+            final List<Shard> shards = new ArrayList<>();
+            long total = 0;
+            for (final String file : files) {
+                total += new File(file).length();
+            }
+            for (final String file : files) {
+                final int parts = (int)Math.max(1, Math.round((double)workers * new File(file).length() / Math.max(1, total)));
+                final long[] bounds = shardBounds(new File(file), parts);
+                for (int k = 0; k + 1 < bounds.length; ++k) {
+                    shards.add(new Shard(file, bounds[k], bounds[k + 1], new File(dir, "shard" + shards.size())));
+                }
+            }
+            try (final RunMetrics.Phase phase = metrics.begin("shardWorkers")) {
+                runWorkers(shards);
+                phase.addBytes(total).count("shards", shards.size()).count("workers", workers);
+            }
+            final List<File> outs = new ArrayList<>();
+            for (final Shard shard : shards) {
+                outs.add(shard.out);
+            }
+            final ClusterMembership clusters = merge(outs);
+            result = new UserCluster();
+            result.setClusters(clusters);
+        } catch (final IOException exp) {
+            throw new RuntimeException(exp);
+        } finally {
+            if (dir != null) {
+                final File[] left = dir.listFiles();
+                if (left != null) {
+                    for (final File f : left) {
+                        f.delete();
+                    }
+                }
+                dir.delete();
+            }
+        }
+    }
+
+    /**
+     * Command line that starts a worker JVM like this one
+     */
+    private static List<String> workerCommand(final Shard shard) {
+        final List<String> command = new ArrayList<>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        for (final String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            // a debugger or agent port can only be taken once
+            if (!arg.startsWith("-agent") && !arg.startsWith("-javaagent") && !arg.startsWith("-Xrun")) {
+                command.add(arg);
+            }
+        }
+        // the report is this process's
+        command.add("-D" + RunMetrics.REPORT_PROPERTY + "=");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(ShardedClusterer.class.getName());
+        command.add(WORKER_FLAG);
+        command.add(shard.file);
+        command.add(Long.toString(shard.from));
+        command.add(Long.toString(shard.to));
+        command.add(shard.out.getPath());
+        return command;
+    }
+
+    private void runWorkers(final List<Shard> shards) throws IOException {
+        final ExecutorService pool = Executors.newFixedThreadPool(Math.min(workers, shards.size()));
+        try {
+            final List<Future<Integer>> exits = new ArrayList<>();
+            for (final Shard shard : shards) {
+                exits.add(pool.submit(() -> {
+                    final Process process = new ProcessBuilder(workerCommand(shard)).inheritIO().start();
+                    try {
+                        return process.waitFor();
+                    } finally {
+                        // still running only if this wait was interrupted
+                        if (process.isAlive()) {
+                            process.destroy();
+                        }
+                    }
+                }));
+            }
+            for (int k = 0; k < shards.size(); ++k) {
+                final int exit = exits.get(k).get();
+                if (exit != 0) {
+                    final Shard shard = shards.get(k);
+                    throw new IOException("Worker for " + shard.file + " bytes " + shard.from + ".." + shard.to + " exited with " + exit);
+                }
+            }
+        } catch (final InterruptedException exp) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for workers", exp);
+        } catch (final ExecutionException exp) {
+            throw new IOException("Cannot run worker", exp.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Cluster one shard in this process and save it for merge; the file is replaced atomically.
+     * Layout (little-endian):
+     *
+     * <pre>
+     * header   magic "BSHD", version, addresses N, address bytes B, links L, transactions T,
+     *          rows, 0                                                  (8 ints)
+     * byte[B]  address keys, in first-appearance order
+     * int[N+1] address offsets into the bytes
+     * int[L]   linked addresses
+     * int[L]   the first address of their cluster
+     * long[T]  tx indexes of the transactions with inputs, ascending
+     * int[T]   their first input address
+     * </pre>
+     */
+    public static void writeShard(final String file, final long from, final long to, final File out) throws IOException {
+        final UserCluster uc = new UserCluster();
+        uc.readTransactions(file, from, to);
+        uc.mergeAddresses();
+        final TransactionStore store = uc.getTransactions();
+        final ClusterMembership clusters = uc.getClusters();
+        final AddressDictionary dict = store.getAddresses();
+        final int n = dict.size();
+        final int numLinks = n - clusters.getUserNumber();
+        final int[] linked = new int[numLinks];
+        final int[] firsts = new int[numLinks];
+        int l = 0;
+        for (int u = 0; u < clusters.getUserNumber(); ++u) {
+            final int first = clusters.member(u, 0);
+            for (int k = 1; k < clusters.clusterSize(u); ++k) {
+                linked[l] = clusters.member(u, k);
+                firsts[l++] = first;
+            }
+        }
+        final LongIntHashMap firstInput = new LongIntHashMap();
+        long[] txs = new long[16];
+        int numTx = 0;
+        for (int row = 0; row < store.size(); ++row) {
+            if (!store.isInput(row)) {
+                continue;
+            }
+            final int before = firstInput.size();
+            firstInput.putIfAbsent(store.txIndex(row), store.addressId(row));
+            if (firstInput.size() > before) {
+                if (numTx == txs.length) {
+                    txs = Arrays.copyOf(txs, numTx * 2);
+                }
+                txs[numTx++] = store.txIndex(row);
+            }
+        }
+        Arrays.sort(txs, 0, numTx);
+        final int[] txFirsts = new int[numTx];
+        for (int k = 0; k < numTx; ++k) {
+            txFirsts[k] = firstInput.get(txs[k], -1);
+        }
+        final int[] offsets = dict.rawOffsets();
+        final File tmp = new File(out.getPath() + ".tmp");
+        try (final FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            final MappedArrays w = new MappedArrays(channel);
+            w.writeInts(new int[] { MAGIC, VERSION, n, offsets[n], numLinks, numTx, store.size(), 0 }, 0, HEADER_INTS);
+            w.writeBytes(dict.rawBytes(), 0, offsets[n]);
+            w.writeInts(offsets, 0, n + 1);
+            w.writeInts(linked, 0, numLinks);
+            w.writeInts(firsts, 0, numLinks);
+            w.writeLongs(txs, 0, numTx);
+            w.writeInts(txFirsts, 0, numTx);
+        }
+        Files.move(tmp.toPath(), out.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * The transactions of one shard file, read in order through a small buffer
+     */
+    private static class TxCursor implements Closeable {
+        private final FileChannel channel;
+        private final int[] map; // shard address id to merged id
+        private final ByteBuffer txBuf = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        private final ByteBuffer idBuf = ByteBuffer.allocateDirect(1 << 15).order(ByteOrder.LITTLE_ENDIAN);
+        private long txPos, idPos;
+        private int left;
+        private long tx;
+        private int addr;
+
+        private TxCursor(final FileChannel channel, final long txPos, final int numTx, final int[] map) {
+            this.channel = channel;
+            this.map = map;
+            this.txPos = txPos;
+            this.idPos = txPos + 8L * numTx;
+            this.left = numTx;
+            txBuf.limit(0);
+            idBuf.limit(0);
+        }
+
+        private long fill(final ByteBuffer buf, final long pos, final int bytes) throws IOException {
+            buf.clear();
+            buf.limit((int)Math.min(buf.capacity(), (long)bytes * left));
+            long p = pos;
+            while (buf.hasRemaining()) {
+                final int n = channel.read(buf, p);
+                if (n < 0) {
+                    throw new EOFException("Shard file is truncated");
+                }
+                p += n;
+            }
+            buf.flip();
+            return p;
+        }
+
+        /**
+         * Move to the next transaction
+         *
+         * @return false after the last one
+         */
+        private boolean next() throws IOException {
+            if (left == 0) {
+                return false;
+            }
+            if (!txBuf.hasRemaining()) {
+                txPos = fill(txBuf, txPos, 8);
+            }
+            if (!idBuf.hasRemaining()) {
+                idPos = fill(idBuf, idPos, 4);
+            }
+            tx = txBuf.getLong();
+            addr = map[idBuf.getInt()];
+            left--;
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Merge shard files, in file order, into one clustering
+     */
+    static ClusterMembership merge(final List<File> shards) throws IOException {
+        final AddressDictionary dict = new AddressDictionary();
+        final Uptree uptree = new Uptree(0);
+        final List<TxCursor> cursors = new ArrayList<>();
+        try (final RunMetrics.Phase phase = RunMetrics.global().begin("shardMerge")) {
+            long rows = 0;
+            long bytes = 0;
+            long joined = 0;
+            try {
+                for (final File shard : shards) {
+                    final FileChannel channel = FileChannel.open(shard.toPath(), StandardOpenOption.READ);
+                    final int[] header = new int[HEADER_INTS];
+                    try {
+                        long pos = MappedArrays.readInts(channel, 0, header, HEADER_INTS);
+                        if (header[0] != MAGIC || header[1] != VERSION) {
+                            throw new IOException(shard + " is not a shard file of version " + VERSION);
+                        }
+                        final int n = header[2];
+                        final int numLinks = header[4];
+                        final byte[] keys = new byte[header[3]];
+                        pos = MappedArrays.readBytes(channel, pos, keys, keys.length);
+                        final int[] offsets = new int[n + 1];
+                        pos = MappedArrays.readInts(channel, pos, offsets, n + 1);
+                        final int[] linked = new int[numLinks];
+                        pos = MappedArrays.readInts(channel, pos, linked, numLinks);
+                        final int[] firsts = new int[numLinks];
+                        pos = MappedArrays.readInts(channel, pos, firsts, numLinks);
+                        final int[] map = new int[n];
+                        for (int i = 0; i < n; ++i) {
+                            map[i] = dict.internKey(keys, offsets[i], offsets[i + 1] - offsets[i]);
+                        }
+                        while (uptree.size() < dict.size()) {
+                            uptree.add();
+                        }
+                        for (int k = 0; k < numLinks; ++k) {
+                            uptree.union(map[linked[k]], map[firsts[k]]);
+                        }
+                        cursors.add(new TxCursor(channel, pos, header[5], map));
+                    } catch (final IOException | RuntimeException exp) {
+                        channel.close();
+                        throw exp;
+                    }
+                    rows += header[6];
+                    bytes += shard.length();
+                }
+                // k-way merge by tx index: a transaction found in several shards joins their first inputs
+                final PriorityQueue<TxCursor> queue = new PriorityQueue<>((a, b) -> Long.compare(a.tx, b.tx));
+                for (final TxCursor cursor : cursors) {
+                    if (cursor.next()) {
+                        queue.add(cursor);
+                    }
+                }
+                while (!queue.isEmpty()) {
+                    final TxCursor head = queue.poll();
+                    while (!queue.isEmpty() && queue.peek().tx == head.tx) {
+                        final TxCursor same = queue.poll();
+                        if (uptree.union(head.addr, same.addr) >= 0) {
+                            joined++;
+                        }
+                        if (same.next()) {
+                            queue.add(same);
+                        }
+                    }
+                    if (head.next()) {
+                        queue.add(head);
+                    }
+                }
+            } finally {
+                for (final TxCursor cursor : cursors) {
+                    cursor.close();
+                }
+            }
+            final ClusterMembership ret = ClusterMembership.fromRoots(uptree.roots(), dict);
+            phase.addRows(rows).addBytes(bytes).count("shards", shards.size()).count("crossShardJoins", joined).count("users", ret.getUserNumber());
+            return ret;
+        }
+    }
+
+    private void checkMerged() {
+        if (result == null) {
+            throw new IllegalStateException("mergeAddresses has not been called");
+        }
+    }
+
+    public ClusterMembership getClusters() {
+        checkMerged();
+        return result.getClusters();
+    }
+
+    public int getUserNumber() {
+        checkMerged();
+        return result.getUserNumber();
+    }
+
+    public int getLargestClusterSize() {
+        checkMerged();
+        return result.getLargestClusterSize();
+    }
+
+    public boolean writeKeyMap(String file) {
+        checkMerged();
+        return result.writeKeyMap(file);
+    }
+
+    public boolean writeUserMap(String file) {
+        checkMerged();
+        return result.writeUserMap(file);
+    }
+
+    /**
+     * ShardedClusterer &lt;workers&gt; &lt;keyMap&gt; &lt;userMap&gt; &lt;transactions&gt;...
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 5 && args[0].equals(WORKER_FLAG)) {
+            writeShard(args[1], Long.parseLong(args[2]), Long.parseLong(args[3]), new File(args[4]));
+            return;
+        }
+        if (args.length < 4) {
+            System.err.println("Usage: ShardedClusterer <workers> <keyMap> <userMap> <transactions>...");
+            System.exit(1);
+        }
+        final ShardedClusterer clusterer = new ShardedClusterer(Integer.parseInt(args[0]));
+        for (int i = 3; i < args.length; ++i) {
+            if (!clusterer.readTransactions(args[i])) {
+                System.exit(1);
+            }
+        }
+        clusterer.mergeAddresses();
+        System.out.println("1. " + clusterer.getUserNumber());
+        System.out.println("2. " + clusterer.getLargestClusterSize());
+        if (!clusterer.writeKeyMap(args[1])) {
+            System.err.println("Cannot write to " + args[1] + "!");
+        }
+        if (!clusterer.writeUserMap(args[2])) {
+            System.err.println("Cannot write to " + args[2] + "!");
+        }
+        RunMetrics.global().writeReport();
+    }
+}
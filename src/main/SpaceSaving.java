@@ -0,0 +1,237 @@
+package main;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Weighted heavy hitters in k counters (Space-Saving, Metwally et al.). Items are told apart by a
+ * 64-bit hash and keep the ASCII label they were last admitted with. An item not in the summary
+ * takes over the smallest counter and inherits its count as error, so every counter brackets its
+ * item's true weight as [count - error, count], the error is at most total / k, and every item
+ * heavier than total / k is in the summary. Summaries merge as in Agarwal et al., "Mergeable
+ * Summaries": an item missing from one side is charged that side's smallest count.
+ */
+public final class SpaceSaving {
+    private final int k;
+    private final long[] ids;
+    private final long[] counts;
+    private final long[] errors;
+    private final byte[][] labels;
+    private final int[] labelLengths;
+    private int size;
+    // min-heap of slots by count, and the heap position of every slot
+    private final int[] heap;
+    private final int[] heapPos;
+    private final LongIntHashMap slots;
+    private long total;
+
+    public SpaceSaving(final int k) {
+        if (k <= 0) {
+            throw new IllegalArgumentException("Need at least one counter");
+        }
+        this.k = k;
+        ids = new long[k];
+        counts = new long[k];
+        errors = new long[k];
+        labels = new byte[k][];
+        labelLengths = new int[k];
+        heap = new int[k];
+        heapPos = new int[k];
+        slots = new LongIntHashMap(k);
+    }
+
+    /**
+     * Add weight (nonnegative) to the item with this hash, labelled buf[off .. off + len - 1]
+     */
+    public void add(final long id, final long weight, final ByteBuffer buf, final int off, final int len) {
+        total += weight;
+        int slot = slots.get(id, -1);
+        if (slot >= 0) {
+            counts[slot] += weight;
+            siftDown(heapPos[slot]);
+            return;
+        }
+        if (size < k) {
+            slot = size++;
+            counts[slot] = weight;
+            errors[slot] = 0;
+            heap[slot] = slot;
+            heapPos[slot] = slot;
+        } else {
+            slot = heap[0];
+            slots.remove(ids[slot], -1);
+            errors[slot] = counts[slot];
+            counts[slot] += weight;
+        }
+        ids[slot] = id;
+        slots.put(id, slot, -1);
+        if (labels[slot] == null || labels[slot].length < len) {
+            labels[slot] = new byte[Math.max(len, 36)];
+        }
+        for (int i = 0; i < len; ++i) {
+            labels[slot][i] = buf.get(off + i);
+        }
+        labelLengths[slot] = len;
+        siftUp(heapPos[slot]);
+        siftDown(heapPos[slot]);
+    }
+
+    private void swap(final int a, final int b) {
+        final int sa = heap[a];
+        final int sb = heap[b];
+        heap[a] = sb;
+        heap[b] = sa;
+        heapPos[sb] = a;
+        heapPos[sa] = b;
+    }
+
+    private void siftUp(int i) {
+        while (i > 0 && counts[heap[i]] < counts[heap[(i - 1) / 2]]) {
+            swap(i, (i - 1) / 2);
+            i = (i - 1) / 2;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                return;
+            }
+            if (child + 1 < size && counts[heap[child + 1]] < counts[heap[child]]) {
+                child++;
+            }
+            if (counts[heap[child]] >= counts[heap[i]]) {
+                return;
+            }
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    /**
+     * Count an item missing from the summary can have at most
+     */
+    public long getMissingBound() {
+        return size < k ? 0 : counts[heap[0]];
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * Fold other into this summary
+     */
+    public void merge(final SpaceSaving other) {
+        final long mine = getMissingBound();
+        final long theirs = other.getMissingBound();
+        final int n = size + other.size;
+        final long[] mergedIds = new long[n];
+        final long[] mergedCounts = new long[n];
+        final long[] mergedErrors = new long[n];
+        final byte[][] mergedLabels = new byte[n][];
+        final int[] mergedLengths = new int[n];
+        int m = 0;
+        for (int s = 0; s < size; ++s) {
+            final int o = other.slots.get(ids[s], -1);
+            mergedIds[m] = ids[s];
+            mergedCounts[m] = counts[s] + (o >= 0 ? other.counts[o] : theirs);
+            mergedErrors[m] = errors[s] + (o >= 0 ? other.errors[o] : theirs);
+            mergedLabels[m] = labels[s];
+            mergedLengths[m++] = labelLengths[s];
+        }
+        for (int s = 0; s < other.size; ++s) {
+            if (slots.get(other.ids[s], -1) < 0) {
+                mergedIds[m] = other.ids[s];
+                mergedCounts[m] = other.counts[s] + mine;
+                mergedErrors[m] = other.errors[s] + mine;
+                mergedLabels[m] = Arrays.copyOf(other.labels[s], other.labelLengths[s]);
+                mergedLengths[m++] = other.labelLengths[s];
+            }
+        }
+        // keep the k largest counts
+        final Integer[] order = new Integer[m];
+        for (int i = 0; i < m; ++i) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(mergedCounts[b], mergedCounts[a]));
+        slots.clear();
+        size = Math.min(k, m);
+        for (int slot = 0; slot < size; ++slot) {
+            final int i = order[slot];
+            ids[slot] = mergedIds[i];
+            counts[slot] = mergedCounts[i];
+            errors[slot] = mergedErrors[i];
+            labels[slot] = mergedLabels[i];
+            labelLengths[slot] = mergedLengths[i];
+            slots.put(ids[slot], slot, -1);
+            heap[slot] = slot;
+            heapPos[slot] = slot;
+        }
+        for (int i = size / 2 - 1; i >= 0; --i) {
+            siftDown(i);
+        }
+        total += other.total;
+    }
+
+    /**
+     * One counter of the summary
+     */
+    public static final class Entry {
+        private final long id;
+        private final String label;
+        private final long count;
+        private final long error;
+
+        private Entry(final long id, final String label, final long count, final long error) {
+            this.id = id;
+            this.label = label;
+            this.count = count;
+            this.error = error;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        /**
+         * Upper bound of the item's weight
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Lower bound of the item's weight
+         */
+        public long getLowerBound() {
+            return count - error;
+        }
+    }
+
+    /**
+     * The n items with the largest counts, largest first
+     */
+    public Entry[] top(final int n) {
+        final Integer[] order = new Integer[size];
+        for (int i = 0; i < size; ++i) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(counts[b], counts[a]));
+        final Entry[] ret = new Entry[Math.min(n, size)];
+        for (int r = 0; r < ret.length; ++r) {
+            final int s = order[r];
+            final char[] label = new char[labelLengths[s]];
+            for (int i = 0; i < label.length; ++i) {
+                label[i] = (char)(labels[s][i] & 0xff);
+            }
+            ret[r] = new Entry(ids[s], new String(label), counts[s], errors[s]);
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,229 @@
+package main;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * One column of fixed-width values (ints or longs, little-endian) of an IncrementalClusterer state
+ * directory. The values saved by earlier runs are mapped copy-on-write, so opening a column reads
+ * nothing up front and changing a value does not touch the file; values added in this run go to
+ * an array. The column remembers which saved values changed, so that a save writes only those (by
+ * way of the journal) and the added ones. Saved values are mapped in chunks of CHUNK_VALUES, as
+ * one mapping cannot pass 2 GB.
+ */
+final class StateColumn {
+    private static final int BUFFER = 1 << 16;
+    private static final int CHUNK_SHIFT = 24;
+    private static final int CHUNK_VALUES = 1 << CHUNK_SHIFT;
+
+    private final String name;
+    private final int width;
+    private final ByteBuffer[] saved;
+    private final int savedSize;
+    private final BitSet changed = new BitSet();
+    private int[] addedInts;
+    private long[] addedLongs;
+    private int size;
+
+    private StateColumn(final String name, final int width, final ByteBuffer[] saved, final int savedSize) {
+        if (width != 4 && width != 8) {
+            throw new IllegalArgumentException("Column width must be 4 or 8, not " + width);
+        }
+        this.name = name;
+        this.width = width;
+        this.saved = saved;
+        this.savedSize = savedSize;
+        this.size = savedSize;
+        if (width == 4) {
+            addedInts = new int[16];
+        } else {
+            addedLongs = new long[16];
+        }
+    }
+
+    /**
+     * A column of size zeros, none of them saved
+     */
+    static StateColumn create(final String name, final int width, final int size) {
+        final StateColumn ret = new StateColumn(name, width, new ByteBuffer[0], 0);
+        ret.grow(size);
+        ret.size = size;
+        return ret;
+    }
+
+    /**
+     * Map the first size values of dir/name
+     */
+    static StateColumn open(final File dir, final String name, final int width, final int size) throws IOException {
+        final File file = new File(dir, name);
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (channel.size() < (long)size * width) {
+                throw new IOException(file + " is shorter than the state header says");
+            }
+            final ByteBuffer[] saved = new ByteBuffer[(int)(((long)size + CHUNK_VALUES - 1) >>> CHUNK_SHIFT)];
+            for (int c = 0; c < saved.length; ++c) {
+                final long first = (long)c << CHUNK_SHIFT;
+                final long values = Math.min(CHUNK_VALUES, size - first);
+                saved[c] = channel.map(FileChannel.MapMode.PRIVATE, first * width, values * width).order(ByteOrder.LITTLE_ENDIAN);
+            }
+            return new StateColumn(name, width, saved, size);
+        }
+    }
+
+    String getName() {
+        return name;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int getInt(final int i) {
+        return (int)getLong(i);
+    }
+
+    long getLong(final int i) {
+        if (i < savedSize) {
+            final ByteBuffer chunk = saved[i >>> CHUNK_SHIFT];
+            final int off = (i & (CHUNK_VALUES - 1)) * width;
+            return width == 4 ? chunk.getInt(off) : chunk.getLong(off);
+        }
+        return width == 4 ? addedInts[i - savedSize] : addedLongs[i - savedSize];
+    }
+
+    void set(final int i, final long value) {
+        if (i < savedSize) {
+            final ByteBuffer chunk = saved[i >>> CHUNK_SHIFT];
+            final int off = (i & (CHUNK_VALUES - 1)) * width;
+            if (width == 4) {
+                chunk.putInt(off, (int)value);
+            } else {
+                chunk.putLong(off, value);
+            }
+            changed.set(i);
+        } else if (width == 4) {
+            addedInts[i - savedSize] = (int)value;
+        } else {
+            addedLongs[i - savedSize] = value;
+        }
+    }
+
+    private void grow(final int added) {
+        if (width == 4 && added > addedInts.length) {
+            addedInts = Arrays.copyOf(addedInts, Math.max(added, addedInts.length * 2));
+        } else if (width == 8 && added > addedLongs.length) {
+            addedLongs = Arrays.copyOf(addedLongs, Math.max(added, addedLongs.length * 2));
+        }
+    }
+
+    void add(final long value) {
+        grow(size - savedSize + 1);
+        size++;
+        set(size - 1, value);
+    }
+
+    /**
+     * Write values from..size-1 at their places in file, which may be longer than size from a
+     * save that did not finish; it is cut at size
+     */
+    private void write(final File file, final int from) throws IOException {
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            final ByteBuffer buf = ByteBuffer.allocate(BUFFER).order(ByteOrder.LITTLE_ENDIAN);
+            long position = (long)from * width;
+            for (int i = from; i < size; ++i) {
+                if (buf.remaining() < width) {
+                    position += flush(channel, buf, position);
+                }
+                if (width == 4) {
+                    buf.putInt(getInt(i));
+                } else {
+                    buf.putLong(getLong(i));
+                }
+            }
+            position += flush(channel, buf, position);
+            if (channel.size() > position) {
+                channel.truncate(position);
+            }
+            channel.force(false);
+        }
+    }
+
+    private static int flush(final FileChannel channel, final ByteBuffer buf, final long position) throws IOException {
+        buf.flip();
+        final int ret = buf.remaining();
+        long p = position;
+        while (buf.hasRemaining()) {
+            p += channel.write(buf, p);
+        }
+        buf.clear();
+        return ret;
+    }
+
+    /**
+     * Write the values added since the column was opened to the end of file; the saved values
+     * in it are left alone
+     */
+    void writeAdded(final File file) throws IOException {
+        write(file, savedSize);
+    }
+
+    /**
+     * Write every value to file
+     */
+    void writeAll(final File file) throws IOException {
+        write(file, 0);
+    }
+
+    /**
+     * Journal the saved values that changed, as the column name, width, count and (index, value)
+     * pairs
+     */
+    void journalChanges(final DataOutputStream out) throws IOException {
+        out.writeUTF(name);
+        out.writeByte(width);
+        out.writeInt(changed.cardinality());
+        for (int i = changed.nextSetBit(0); i >= 0; i = changed.nextSetBit(i + 1)) {
+            out.writeInt(i);
+            out.writeLong(getLong(i));
+        }
+    }
+
+    /**
+     * The changes are in the file once the journal has been applied
+     */
+    void clearChanges() {
+        changed.clear();
+    }
+
+    /**
+     * Apply the changes of one column written by journalChanges to its file in dir
+     */
+    static void applyChanges(final DataInputStream in, final File dir) throws IOException {
+        final String name = in.readUTF();
+        final int width = in.readByte();
+        final int count = in.readInt();
+        try (final FileChannel channel = FileChannel.open(new File(dir, name).toPath(), StandardOpenOption.WRITE)) {
+            final ByteBuffer buf = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            for (int k = 0; k < count; ++k) {
+                final long position = (long)in.readInt() * width;
+                final long value = in.readLong();
+                buf.clear();
+                if (width == 4) {
+                    buf.putInt((int)value);
+                } else {
+                    buf.putLong(value);
+                }
+                flush(channel, buf, position);
+            }
+            channel.force(false);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package main;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.SplittableRandom;
+
+/**
+ * Writes deterministic synthetic transaction datasets in the record format of DatasetGenerator,
+ * for benchmarks. The same seed and row count always give the same file. Addresses are valid
+ * P2PKH Base58Check strings; which address a record uses follows a power law, so a few addresses
+ * (exchanges, pools) appear in a large share of transactions and most appear once or twice, and
+ * change often goes back to a fresh address so that common-input clustering has work to do.
+ * Transactions are packed TX_PER_BLOCK to a block, ten minutes apart.
+ */
+public class SyntheticDataset {
+    public static final long DEFAULT_SEED = 42;
+    /** Larger values concentrate reuse on fewer addresses */
+    private static final double REUSE_SKEW = 3;
+    private static final int CACHED_ADDRESSES = 1 << 20;
+    private static final long FIRST_TX_INDEX = 100000000L;
+    private static final int FIRST_HEIGHT = 250000;
+    private static final long FIRST_TIME = 1375000000L;
+    private static final int TX_PER_BLOCK = 2000;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final long seed;
+    private final SplittableRandom random;
+    private final MessageDigest sha256;
+    private final String[] cache = new String[CACHED_ADDRESSES];
+    private int numAddresses;
+
+    public SyntheticDataset(final long seed) {
+        this.seed = seed;
+        this.random = new SplittableRandom(seed);
+        try {
+            this.sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException exp) {
+            throw new IllegalStateException(exp);
+        }
+    }
+
+    /**
+     * The P2PKH address of an address id: version 0, a hash160 derived from the seed and id, and
+     * the double-SHA-256 checksum
+     */
+    private String address(final int id) {
+        if (id < CACHED_ADDRESSES && cache[id] != null) {
+            return cache[id];
+        }
+        final byte[] key = new byte[12];
+        for (int i = 0; i < 8; ++i) {
+            key[i] = (byte)(seed >>> (8 * i));
+        }
+        for (int i = 0; i < 4; ++i) {
+            key[8 + i] = (byte)(id >>> (8 * i));
+        }
+        final String ret = Base58Check.encode(Base58Check.fromPayload(0, sha256.digest(key), 0), 0, Base58Check.ADDRESS_BYTES);
+        if (id < CACHED_ADDRESSES) {
+            cache[id] = ret;
+        }
+        return ret;
+    }
+
+    private int newAddress() {
+        return numAddresses++;
+    }
+
+    /**
+     * An address seen before, low (old, popular) ids far more likely than recent ones
+     */
+    private int reusedAddress() {
+        return numAddresses == 0 ? newAddress() : (int)(numAddresses * Math.pow(random.nextDouble(), REUSE_SKEW));
+    }
+
+    private int numInputs() {
+        if (random.nextDouble() < 0.01) {
+            return 20 + random.nextInt(180); // consolidation
+        }
+        int n = 1;
+        while (n < 50 && random.nextDouble() < 0.4) {
+            n++;
+        }
+        return n;
+    }
+
+    private int numOutputs() {
+        final double r = random.nextDouble();
+        return r < 0.2 ? 1 : r < 0.9 ? 2 : 3 + random.nextInt(8);
+    }
+
+    private String txHash() {
+        final char[] ret = new char[64];
+        for (int i = 0; i < 64; i += 16) {
+            long bits = random.nextLong();
+            for (int j = 0; j < 16; ++j) {
+                ret[i + j] = HEX[(int)(bits & 0xf)];
+                bits >>>= 4;
+            }
+        }
+        return new String(ret);
+    }
+
+    private static void record(final Writer w, final long txIndex, final String hash, final String address, final long value, final boolean in,
+                               final int height) throws IOException {
+        w.write(txIndex + " " + hash + " " + address + " " + value + (in ? " in " : " out ") + height + " "
+                + (FIRST_TIME + 600L * (height - FIRST_HEIGHT)) + "\n");
+    }
+
+    /**
+     * Write whole transactions until at least rows records have been written
+     *
+     * @return number of records written
+     */
+    public long write(final Writer w, final long rows) throws IOException {
+        long written = 0;
+        long txIndex = FIRST_TX_INDEX;
+        final int[] inputs = new int[200];
+        for (long tx = 0; written < rows; ++tx) {
+            final int height = FIRST_HEIGHT + (int)(tx / TX_PER_BLOCK);
+            txIndex += 1 + random.nextInt(3);
+            final String hash = txHash();
+            final int numIn = numInputs();
+            long total = 0;
+            for (int i = 0; i < numIn; ++i) {
+                // mostly spending coins of known addresses
+                inputs[i] = random.nextDouble() < 0.15 ? newAddress() : reusedAddress();
+                final long value = (long)Math.exp(random.nextDouble() * 20);
+                total += value;
+                record(w, txIndex, hash, address(inputs[i]), value, true, height);
+            }
+            final int numOut = numOutputs();
+            long left = total - Math.min(total / 2, 10000); // fee
+            for (int o = 0; o < numOut; ++o) {
+                final boolean change = o == numOut - 1 && numOut > 1;
+                final int addr = change ? (random.nextDouble() < 0.3 ? inputs[0] : newAddress())
+                                        : (random.nextDouble() < 0.5 ? newAddress() : reusedAddress());
+                final long value = o == numOut - 1 ? left : (long)(left * random.nextDouble());
+                left -= value;
+                record(w, txIndex, hash, address(addr), value, false, height);
+            }
+            written += numIn + numOut;
+        }
+        return written;
+    }
+
+    public long write(final File file, final long rows) throws IOException {
+        try (final Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.US_ASCII), 1 << 16)) {
+            return write(w, rows);
+        }
+    }
+
+    /**
+     * The dataset of rows records for a seed under dir, generated on first use
+     */
+    public static File ensure(final File dir, final long rows, final long seed) throws IOException {
+        final File file = new File(dir, "synthetic-" + rows + "-" + seed + ".txt");
+        if (!file.isFile()) {
+            if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+                throw new IOException("Cannot create " + dir);
+            }
+            final File tmp = new File(dir, file.getName() + ".tmp");
+            new SyntheticDataset(seed).write(tmp, rows);
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        return file;
+    }
+
+    /**
+     * SyntheticDataset &lt;file&gt; &lt;rows&gt; [seed]
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: SyntheticDataset <file> <rows> [seed]");
+            System.exit(1);
+        }
+        final long seed = args.length > 2 ? Long.parseLong(args[2]) : DEFAULT_SEED;
+        final long rows = new SyntheticDataset(seed).write(new File(args[0]), Long.parseLong(args[1]));
+        System.out.println("Wrote " + rows + " records to " + args[0]);
+    }
+}
@@ -0,0 +1,167 @@
+package main;
+
+import java.util.Arrays;
+
+/**
+ * The rows of a TransactionStore grouped by tx index in one scan, for the clustering heuristics:
+ * group g holds the input rows inRows[inOffsets[g]] .. inRows[inOffsets[g + 1] - 1] and likewise
+ * the output rows, both in store order. Groups are numbered by first appearance. Outputs are only
+ * grouped when asked for; without them only transactions with inputs get a group, and with them
+ * the scan also notes the first row of every address.
+ */
+public final class TransactionGroups {
+    private final TransactionStore store;
+    private final int[] inOffsets;
+    private final int[] inRows;
+    private final int[] outOffsets;
+    private final int[] outRows;
+    private final int[] firstRows;
+
+    private TransactionGroups(final TransactionStore store, final int[] inOffsets, final int[] inRows,
+                              final int[] outOffsets, final int[] outRows, final int[] firstRows) {
+        this.store = store;
+        this.inOffsets = inOffsets;
+        this.inRows = inRows;
+        this.outOffsets = outOffsets;
+        this.outRows = outRows;
+        this.firstRows = firstRows;
+    }
+
+    public static TransactionGroups of(final TransactionStore store, final boolean withOutputs) {
+        final LongIntHashMap groups = new LongIntHashMap(); // tx index -> group
+        int[] inCounts = new int[1024];
+        int[] outCounts = new int[withOutputs ? 1024 : 0];
+        int[] firstRows = null;
+        if (withOutputs) {
+            firstRows = new int[store.getAddresses().size()];
+            Arrays.fill(firstRows, -1);
+        }
+        int numInputs = 0;
+        int numOutputs = 0;
+        TransactionStore.Cursor cursor = store.cursor();
+        while (cursor.next()) {
+            final boolean in = cursor.isInput();
+            if (!in && !withOutputs) {
+                continue;
+            }
+            final int group = groups.putIfAbsent(cursor.txIndex(), groups.size());
+            if (group == inCounts.length) {
+                inCounts = Arrays.copyOf(inCounts, inCounts.length * 2);
+                if (withOutputs) {
+                    outCounts = Arrays.copyOf(outCounts, outCounts.length * 2);
+                }
+            }
+            if (in) {
+                inCounts[group]++;
+                numInputs++;
+            } else {
+                outCounts[group]++;
+                numOutputs++;
+            }
+            if (withOutputs && firstRows[cursor.addressId()] < 0) {
+                firstRows[cursor.addressId()] = cursor.row();
+            }
+        }
+        final int n = groups.size();
+        final int[] inOffsets = offsets(inCounts, n);
+        final int[] outOffsets = withOutputs ? offsets(outCounts, n) : new int[n + 1];
+        final int[] inNext = Arrays.copyOf(inOffsets, n);
+        final int[] outNext = Arrays.copyOf(outOffsets, n);
+        final int[] inRows = new int[numInputs];
+        final int[] outRows = new int[numOutputs];
+        cursor = store.cursor();
+        while (cursor.next()) {
+            if (cursor.isInput()) {
+                inRows[inNext[groups.get(cursor.txIndex(), -1)]++] = cursor.row();
+            } else if (withOutputs) {
+                outRows[outNext[groups.get(cursor.txIndex(), -1)]++] = cursor.row();
+            }
+        }
+        return new TransactionGroups(store, inOffsets, inRows, outOffsets, outRows, firstRows);
+    }
+
+    private static int[] offsets(final int[] counts, final int n) {
+        final int[] ret = new int[n + 1];
+        for (int g = 0; g < n; ++g) {
+            ret[g + 1] = ret[g] + counts[g];
+        }
+        return ret;
+    }
+
+    public int size() {
+        return inOffsets.length - 1;
+    }
+
+    public int getInputNumber() {
+        return inRows.length;
+    }
+
+    public int getOutputNumber() {
+        return outRows.length;
+    }
+
+    public boolean hasOutputs() {
+        return firstRows != null;
+    }
+
+    /**
+     * A movable view of one group; each thread uses its own
+     */
+    public final class Group {
+        private int group;
+
+        /**
+         * Move to group g
+         */
+        public Group at(final int g) {
+            group = g;
+            return this;
+        }
+
+        public long txIndex() {
+            return store.txIndex(inOffsets[group] < inOffsets[group + 1] ? inRows[inOffsets[group]] : outRows[outOffsets[group]]);
+        }
+
+        public int inputCount() {
+            return inOffsets[group + 1] - inOffsets[group];
+        }
+
+        public int inputAddress(final int k) {
+            return store.addressId(inRows[inOffsets[group] + k]);
+        }
+
+        public long inputAmount(final int k) {
+            return store.amount(inRows[inOffsets[group] + k]);
+        }
+
+        /**
+         * 0 unless the groups were built with outputs
+         */
+        public int outputCount() {
+            return outOffsets[group + 1] - outOffsets[group];
+        }
+
+        public int outputAddress(final int k) {
+            return store.addressId(outRows[outOffsets[group] + k]);
+        }
+
+        public long outputAmount(final int k) {
+            return store.amount(outRows[outOffsets[group] + k]);
+        }
+
+        /**
+         * True if the first row of address belongs to this transaction; only known when the
+         * groups were built with outputs
+         */
+        public boolean isFirstAppearance(final int address) {
+            if (firstRows == null) {
+                throw new IllegalStateException("Transactions were grouped without outputs");
+            }
+            return store.txIndex(firstRows[address]) == txIndex();
+        }
+    }
+
+    public Group group() {
+        return new Group();
+    }
+}
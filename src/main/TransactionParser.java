@@ -0,0 +1,386 @@
+package main;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+/**
+ * Parses a transaction dataset ("txIndex hash address value in|out [height time]" per line; the
+ * block height and time columns are optional, see DatasetGenerator) straight out of a
+ * memory-mapped file. The file is cut into newline-aligned chunks that are scanned byte by byte
+ * on all cores; no regex is involved and no String is built per token. Every chunk feeds its own
+ * {@link RecordHandler}, so handlers never need to be thread-safe.
+ */
+public class TransactionParser {
+    /**
+     * Receives the records of one chunk, in file order. Hash and address are passed as ranges of
+     * {@code buf}; they are only valid for the duration of the call. A handler rejects a record
+     * by throwing IllegalArgumentException, which fails the parse with the record's line number.
+     */
+    public interface RecordHandler {
+        void record(long txIndex, ByteBuffer buf, int hashOff, int hashLen,
+                    int addrOff, int addrLen, long value, boolean in);
+
+        /**
+         * A record with its block height and time, UNKNOWN_HEIGHT and UNKNOWN_TIME on lines
+         * without those columns. Handlers that keep them override this one.
+         */
+        default void record(long txIndex, ByteBuffer buf, int hashOff, int hashLen,
+                            int addrOff, int addrLen, long value, boolean in, int height, long time) {
+            record(txIndex, buf, hashOff, hashLen, addrOff, addrLen, value, in);
+        }
+    }
+
+    public static final int UNKNOWN_HEIGHT = -1;
+    public static final long UNKNOWN_TIME = -1;
+
+    static final int DEFAULT_CHUNK_SIZE = 64 << 20;
+    private static final int MAX_CHUNK_SIZE = Integer.MAX_VALUE - 1024;
+
+    private final int chunkSize;
+    private final int threads;
+
+    public TransactionParser() {
+        this(DEFAULT_CHUNK_SIZE, Runtime.getRuntime().availableProcessors());
+    }
+
+    public TransactionParser(final int chunkSize, final int threads) {
+        if (chunkSize <= 0 || threads <= 0) {
+            throw new IllegalArgumentException("chunkSize and threads must be positive");
+        }
+        this.chunkSize = Math.min(chunkSize, MAX_CHUNK_SIZE);
+        this.threads = threads;
+    }
+
+    /**
+     * Thrown while scanning a chunk; carries the absolute file offset of the offending line so
+     * the caller can turn it into a line number.
+     */
+    private static class MalformedLine extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        private final long offset;
+
+        MalformedLine(final long offset, final String message) {
+            super(message, null, false, false);
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * Parse a whole file
+     *
+     * @param file
+     * @param handlers creates one handler per chunk
+     * @return the handlers in chunk (i.e., file) order
+     */
+    public <H extends RecordHandler> List<H> parse(final File file, final Supplier<H> handlers) throws IOException {
+        return parse(file, 0, Long.MAX_VALUE, handlers);
+    }
+
+    /**
+     * Parse the lines of a file that start in from .. to - 1, e.g. one shard of it (see
+     * ShardedClusterer)
+     *
+     * @param file
+     * @param from offset of a line start
+     * @param to offset of a line start, or past the end of the file
+     * @param handlers creates one handler per chunk
+     * @return the handlers in chunk (i.e., file) order
+     */
+    public <H extends RecordHandler> List<H> parse(final File file, final long from, final long to, final Supplier<H> handlers) throws IOException {
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final long[] bounds = chunkBounds(channel, from, Math.min(to, channel.size()));
+            final int numChunks = bounds.length - 1;
+            final List<H> result = new ArrayList<>(numChunks);
+            final List<Callable<Void>> tasks = new ArrayList<>(numChunks);
+            for (int c = 0; c < numChunks; ++c) {
+                final H handler = handlers.get();
+                final long start = bounds[c];
+                final long end = bounds[c + 1];
+                result.add(handler);
+                tasks.add(() -> {
+                    final MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+                    parseChunk(buf, start, handler);
+                    return null;
+                });
+            }
+            runAll(tasks, file, channel);
+            return result;
+        }
+    }
+
+    private void runAll(final List<Callable<Void>> tasks, final File file, final FileChannel channel) throws IOException {
+        if (tasks.size() <= 1 || threads == 1) {
+            try {
+                for (final Callable<Void> task : tasks) {
+                    task.call();
+                }
+            } catch (final MalformedLine exp) {
+                throw malformed(file, channel, exp);
+            } catch (final IOException | RuntimeException exp) {
+                throw exp;
+            } catch (final Exception exp) {
+                throw new RuntimeException(exp);
+            }
+            return;
+        }
+        final ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, tasks.size()));
+        try {
+            for (final Future<Void> future : pool.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (final InterruptedException exp) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading " + file, exp);
+        } catch (final ExecutionException exp) {
+            final Throwable cause = exp.getCause();
+            if (cause instanceof MalformedLine) {
+                throw malformed(file, channel, (MalformedLine)cause);
+            } else if (cause instanceof IOException) {
+                throw (IOException)cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private RuntimeException malformed(final File file, final FileChannel channel, final MalformedLine exp) throws IOException {
+        return new RuntimeException("Failed to read file " + file + ", line " + lineNumber(channel, exp.offset) + ": " + exp.getMessage());
+    }
+
+    /**
+     * Count the newlines before offset. Only used on the error path, so it is fine to rescan.
+     */
+    private static long lineNumber(final FileChannel channel, final long offset) throws IOException {
+        long line = 1;
+        final ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+        long pos = 0;
+        while (pos < offset) {
+            buf.clear();
+            buf.limit((int)Math.min(buf.capacity(), offset - pos));
+            final int n = channel.read(buf, pos);
+            if (n <= 0) {
+                break;
+            }
+            for (int i = 0; i < n; ++i) {
+                if (buf.get(i) == '\n') {
+                    line++;
+                }
+            }
+            pos += n;
+        }
+        return line;
+    }
+
+    /**
+     * Split from .. size - 1 of the file into chunks of roughly chunkSize bytes (smaller when that
+     * keeps every core busy), each ending just after a newline.
+     */
+    private long[] chunkBounds(final FileChannel channel, final long from, final long size) throws IOException {
+        final long target = Math.max(Math.min(chunkSize, 1 << 20), Math.min(chunkSize, (size - from + threads - 1) / threads));
+        final List<Long> bounds = new ArrayList<>();
+        bounds.add(from);
+        final ByteBuffer probe = ByteBuffer.allocate(4096);
+        long pos = from;
+        while (size - pos > target) {
+            long cut = pos + target;
+            boolean found = false;
+            while (!found && cut < size) {
+                probe.clear();
+                final int n = channel.read(probe, cut);
+                if (n <= 0) {
+                    break;
+                }
+                for (int i = 0; i < n; ++i) {
+                    if (probe.get(i) == '\n') {
+                        cut += i + 1;
+                        found = true;
+                        break;
+                    }
+                }
+                if (!found) {
+                    cut += n;
+                }
+                if (cut - pos > MAX_CHUNK_SIZE) {
+                    throw new IOException("Line longer than " + MAX_CHUNK_SIZE + " bytes near offset " + pos);
+                }
+            }
+            if (!found || cut >= size) {
+                break;
+            }
+            bounds.add(cut);
+            pos = cut;
+        }
+        bounds.add(size);
+        final long[] ret = new long[bounds.size()];
+        for (int i = 0; i < ret.length; ++i) {
+            ret[i] = bounds.get(i);
+        }
+        return ret;
+    }
+
+    private static boolean isSpace(final byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    private static void parseChunk(final ByteBuffer buf, final long base, final RecordHandler handler) {
+        final int end = buf.limit();
+        int pos = 0;
+        while (pos < end) {
+            final int lineStart = pos;
+            int lineEnd = pos;
+            while (lineEnd < end && buf.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            pos = lineEnd + 1;
+
+            int p = lineStart;
+            while (p < lineEnd && isSpace(buf.get(p))) {
+                p++;
+            }
+            if (p == lineEnd) {
+                continue; // blank line
+            }
+
+            // txIndex
+            final int idxOff = p;
+            while (p < lineEnd && !isSpace(buf.get(p))) {
+                p++;
+            }
+            final long txIndex = parseLong(buf, idxOff, p, base + lineStart, "transaction index");
+
+            // hash
+            while (p < lineEnd && isSpace(buf.get(p))) {
+                p++;
+            }
+            final int hashOff = p;
+            while (p < lineEnd && !isSpace(buf.get(p))) {
+                p++;
+            }
+            final int hashLen = p - hashOff;
+
+            // address
+            while (p < lineEnd && isSpace(buf.get(p))) {
+                p++;
+            }
+            final int addrOff = p;
+            while (p < lineEnd && !isSpace(buf.get(p))) {
+                p++;
+            }
+            final int addrLen = p - addrOff;
+
+            // value
+            while (p < lineEnd && isSpace(buf.get(p))) {
+                p++;
+            }
+            final int valueOff = p;
+            while (p < lineEnd && !isSpace(buf.get(p))) {
+                p++;
+            }
+            if (hashLen == 0 || addrLen == 0 || valueOff == p) {
+                throw new MalformedLine(base + lineStart, "expected 5 fields");
+            }
+            final long value = parseLong(buf, valueOff, p, base + lineStart, "value");
+
+            // in/out
+            while (p < lineEnd && isSpace(buf.get(p))) {
+                p++;
+            }
+            final int dirOff = p;
+            while (p < lineEnd && !isSpace(buf.get(p))) {
+                p++;
+            }
+            final boolean in = parseInOut(buf, dirOff, p, base + lineStart);
+
+            // height and time
+            int height = UNKNOWN_HEIGHT;
+            long time = UNKNOWN_TIME;
+            while (p < lineEnd && isSpace(buf.get(p))) {
+                p++;
+            }
+            if (p < lineEnd) {
+                final int heightOff = p;
+                while (p < lineEnd && !isSpace(buf.get(p))) {
+                    p++;
+                }
+                final long h = parseLong(buf, heightOff, p, base + lineStart, "height");
+                if (h < 0 || h > Integer.MAX_VALUE) {
+                    throw new MalformedLine(base + lineStart, "read " + h + " as height");
+                }
+                height = (int)h;
+                while (p < lineEnd && isSpace(buf.get(p))) {
+                    p++;
+                }
+                final int timeOff = p;
+                while (p < lineEnd && !isSpace(buf.get(p))) {
+                    p++;
+                }
+                if (timeOff == p) {
+                    throw new MalformedLine(base + lineStart, "expected 5 or 7 fields");
+                }
+                time = parseLong(buf, timeOff, p, base + lineStart, "time");
+            }
+
+            try {
+                handler.record(txIndex, buf, hashOff, hashLen, addrOff, addrLen, value, in, height, time);
+            } catch (final IllegalArgumentException exp) {
+                // e.g. a corrupt address rejected by AddressDictionary
+                throw new MalformedLine(base + lineStart, exp.getMessage());
+            }
+        }
+    }
+
+    private static long parseLong(final ByteBuffer buf, final int from, final int to, final long lineOffset, final String what) {
+        int p = from;
+        boolean negative = false;
+        if (p < to && buf.get(p) == '-') {
+            negative = true;
+            p++;
+        }
+        if (p == to || to - p > 19) {
+            throw new MalformedLine(lineOffset, "read " + ascii(buf, from, to - from) + " as " + what);
+        }
+        long ret = 0;
+        for (; p < to; ++p) {
+            final int d = buf.get(p) - '0';
+            if (d < 0 || d > 9) {
+                throw new MalformedLine(lineOffset, "read " + ascii(buf, from, to - from) + " as " + what);
+            }
+            ret = ret * 10 + d;
+            if (ret < 0) {
+                throw new MalformedLine(lineOffset, "read " + ascii(buf, from, to - from) + " as " + what);
+            }
+        }
+        return negative ? -ret : ret;
+    }
+
+    private static boolean parseInOut(final ByteBuffer buf, final int from, final int to, final long lineOffset) {
+        final int len = to - from;
+        if (len == 2 && buf.get(from) == 'i' && buf.get(from + 1) == 'n') {
+            return true;
+        } else if (len == 3 && buf.get(from) == 'o' && buf.get(from + 1) == 'u' && buf.get(from + 2) == 't') {
+            return false;
+        } else {
+            throw new MalformedLine(lineOffset, "read " + ascii(buf, from, to - from) + " as in/out");
+        }
+    }
+
+    /**
+     * Decode a byte range of buf; the dataset is plain ASCII.
+     */
+    public static String ascii(final ByteBuffer buf, final int off, final int len) {
+        final char[] chars = new char[len];
+        for (int i = 0; i < len; ++i) {
+            chars[i] = (char)(buf.get(off + i) & 0xff);
+        }
+        return new String(chars);
+    }
+}
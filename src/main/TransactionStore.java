@@ -0,0 +1,418 @@
+package main;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Column-oriented transaction table. Each row is one input or output record of the dataset; the
+ * columns are primitive arrays (tx index, amount, address id, packed 32-byte hash) plus a BitSet
+ * for in/out, and addresses are interned in an {@link AddressDictionary}. Block height and time
+ * columns are only there if the dataset carried them (see {@link #hasHeights()}). Scans should go through
+ * {@link #cursor()}; the {@link List} view materializes a {@link UserCluster.Transaction} per
+ * {@link #get(int)} and is only there for callers that still want objects.
+ */
+public class TransactionStore extends AbstractList<UserCluster.Transaction> {
+    public static final int HASH_BYTES = HashColumn.HASH_BYTES;
+    /** Rows are numbered by int, and no column array can be longer */
+    public static final int MAX_ROWS = Integer.MAX_VALUE - 8;
+
+    private final int size;
+    private final long[] txIndex;
+    private final long[] amount;
+    private final BitSet in;
+    private final int[] addr;
+    private final HashColumn hashes;
+    private final Map<Integer, String> rawHashes; // rows whose hash is not 64 lowercase hex digits
+    private final int[] height; // null if no row has one
+    private final long[] time;
+    private final AddressDictionary addresses;
+
+    private TransactionStore(final int size, final long[] txIndex, final long[] amount, final BitSet in, final int[] addr,
+                             final HashColumn hashes, final Map<Integer, String> rawHashes, final int[] height, final long[] time,
+                             final AddressDictionary addresses) {
+        this.size = size;
+        this.txIndex = txIndex;
+        this.amount = amount;
+        this.in = in;
+        this.addr = addr;
+        this.hashes = hashes;
+        this.rawHashes = rawHashes;
+        this.height = height;
+        this.time = time;
+        this.addresses = addresses;
+    }
+
+    /**
+     * Wrap already filled columns; used by readers that decode straight into arrays. height and
+     * time are both null for a dataset without them.
+     */
+    static TransactionStore wrap(final int size, final long[] txIndex, final long[] amount, final BitSet in, final int[] addr,
+                                 final HashColumn hashes, final Map<Integer, String> rawHashes, final int[] height, final long[] time,
+                                 final AddressDictionary addresses) {
+        return new TransactionStore(size, txIndex, amount, in, addr, hashes, rawHashes, height, time, addresses);
+    }
+
+    public static TransactionStore empty() {
+        return new Builder().build();
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    public AddressDictionary getAddresses() {
+        return addresses;
+    }
+
+    public long txIndex(final int row) {
+        return txIndex[row];
+    }
+
+    public long amount(final int row) {
+        return amount[row];
+    }
+
+    public boolean isInput(final int row) {
+        return in.get(row);
+    }
+
+    public int addressId(final int row) {
+        return addr[row];
+    }
+
+    /**
+     * True if rows carry block heights and times; rows read without them still have
+     * UNKNOWN_HEIGHT and UNKNOWN_TIME
+     */
+    public boolean hasHeights() {
+        return height != null;
+    }
+
+    /**
+     * Block height of a row, TransactionParser.UNKNOWN_HEIGHT if the dataset did not have one
+     */
+    public int height(final int row) {
+        return height == null ? TransactionParser.UNKNOWN_HEIGHT : height[row];
+    }
+
+    /**
+     * Block time of a row (seconds since the epoch), TransactionParser.UNKNOWN_TIME if the
+     * dataset did not have one
+     */
+    public long time(final int row) {
+        return time == null ? TransactionParser.UNKNOWN_TIME : time[row];
+    }
+
+    public String address(final int row) {
+        return addresses.get(addr[row]);
+    }
+
+    public String hash(final int row) {
+        final String raw = rawHashes.get(row);
+        return raw != null ? raw : toHex(hashes.chunk(row), HashColumn.offset(row));
+    }
+
+    /**
+     * Copy the packed hash of a row into dst
+     *
+     * @return false if the row's hash is not a 32-byte hex hash (see {@link #hash(int)})
+     */
+    public boolean hashBytes(final int row, final byte[] dst, final int dstOff) {
+        if (rawHashes.containsKey(row)) {
+            return false;
+        }
+        hashes.get(row, dst, dstOff);
+        return true;
+    }
+
+    @Override
+    public UserCluster.Transaction get(final int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("row " + row);
+        }
+        return new UserCluster.Transaction(Long.toString(txIndex[row]), hash(row), address(row), amount[row], in.get(row));
+    }
+
+    /**
+     * Forward-only view of the rows; cheaper than {@link #iterator()} since nothing is allocated
+     * per row.
+     */
+    public Cursor cursor() {
+        return new Cursor(0, size);
+    }
+
+    /**
+     * Cursor over rows [from, to)
+     */
+    public Cursor cursor(final int from, final int to) {
+        if (from < 0 || to > size || from > to) {
+            throw new IndexOutOfBoundsException("rows " + from + ".." + to);
+        }
+        return new Cursor(from, to);
+    }
+
+    public class Cursor {
+        private final int end;
+        private int row;
+
+        private Cursor(final int from, final int to) {
+            this.row = from - 1;
+            this.end = to;
+        }
+
+        public boolean next() {
+            return ++row < end;
+        }
+
+        public int row() {
+            return row;
+        }
+
+        public long txIndex() {
+            return txIndex[row];
+        }
+
+        public long amount() {
+            return amount[row];
+        }
+
+        public boolean isInput() {
+            return in.get(row);
+        }
+
+        public int addressId() {
+            return addr[row];
+        }
+
+        public int height() {
+            return TransactionStore.this.height(row);
+        }
+
+        public long time() {
+            return TransactionStore.this.time(row);
+        }
+
+        public String address() {
+            return addresses.get(addr[row]);
+        }
+
+        public String hash() {
+            return TransactionStore.this.hash(row);
+        }
+    }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static String toHex(final byte[] b, final int off) {
+        final char[] ret = new char[HASH_BYTES * 2];
+        for (int i = 0; i < HASH_BYTES; ++i) {
+            ret[2 * i] = HEX[(b[off + i] >> 4) & 0xf];
+            ret[2 * i + 1] = HEX[b[off + i] & 0xf];
+        }
+        return new String(ret);
+    }
+
+    /**
+     * Value of a lowercase hex digit, or -1. Uppercase hex is not packed: hashes are written back
+     * in lowercase, so such a hash is kept as text to come back as it was read.
+     */
+    static int hexDigit(final int c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return -1;
+    }
+
+    /**
+     * Concatenate stores, in order, re-interning their addresses into one dictionary. Only the
+     * distinct addresses of each part are looked up, not every row.
+     */
+    public static TransactionStore concat(final List<TransactionStore> parts) {
+        if (parts.size() == 1) {
+            return parts.get(0);
+        }
+        long rows = 0;
+        for (final TransactionStore part : parts) {
+            rows += part.size;
+        }
+        if (rows > MAX_ROWS) {
+            throw new IllegalStateException("Cannot hold " + rows + " rows in one store; at most " + MAX_ROWS);
+        }
+        final int total = (int)rows;
+        final long[] txIndex = new long[total];
+        final long[] amount = new long[total];
+        final BitSet in = new BitSet(total);
+        final int[] addr = new int[total];
+        final HashColumn hashes = new HashColumn(total);
+        final Map<Integer, String> rawHashes = new HashMap<>();
+        boolean heights = false;
+        for (final TransactionStore part : parts) {
+            heights |= part.hasHeights();
+        }
+        final int[] height = heights ? new int[total] : null;
+        final long[] time = heights ? new long[total] : null;
+        final AddressDictionary addresses = new AddressDictionary();
+        final byte[] scratch = new byte[256];
+        int base = 0;
+        for (final TransactionStore part : parts) {
+            final AddressDictionary dict = part.addresses;
+            final int[] remap = new int[dict.size()];
+            byte[] buf = scratch;
+            for (int id = 0; id < remap.length; ++id) {
+                if (dict.keyLength(id) > buf.length) {
+                    buf = new byte[dict.keyLength(id)];
+                }
+                final int len = dict.copyKey(id, buf, 0);
+                remap[id] = addresses.internKey(buf, 0, len);
+            }
+            System.arraycopy(part.txIndex, 0, txIndex, base, part.size);
+            System.arraycopy(part.amount, 0, amount, base, part.size);
+            hashes.copy(part.hashes, 0, base, part.size);
+            for (int row = 0; row < part.size; ++row) {
+                addr[base + row] = remap[part.addr[row]];
+            }
+            for (int row = part.in.nextSetBit(0); row >= 0 && row < part.size; row = part.in.nextSetBit(row + 1)) {
+                in.set(base + row);
+            }
+            for (final Map.Entry<Integer, String> pair : part.rawHashes.entrySet()) {
+                rawHashes.put(base + pair.getKey(), pair.getValue());
+            }
+            if (part.hasHeights()) {
+                System.arraycopy(part.height, 0, height, base, part.size);
+                System.arraycopy(part.time, 0, time, base, part.size);
+            } else if (heights) {
+                Arrays.fill(height, base, base + part.size, TransactionParser.UNKNOWN_HEIGHT);
+                Arrays.fill(time, base, base + part.size, TransactionParser.UNKNOWN_TIME);
+            }
+            base += part.size;
+        }
+        return new TransactionStore(total, txIndex, amount, in, addr, hashes, rawHashes, height, time, addresses);
+    }
+
+    /**
+     * Appends rows to growing columns. A Builder is also a parser handler so that every parser
+     * chunk can fill its own builder; combine the results with {@link #concat(List)}.
+     */
+    public static class Builder implements TransactionParser.RecordHandler {
+        private int size;
+        private long[] txIndex = new long[1024];
+        private long[] amount = new long[1024];
+        private final BitSet in = new BitSet();
+        private int[] addr = new int[1024];
+        private final HashColumn hashes = new HashColumn(1024);
+        private final Map<Integer, String> rawHashes = new HashMap<>();
+        private int[] height; // allocated with the first row that has a height
+        private long[] time;
+        private final AddressDictionary addresses = new AddressDictionary();
+
+        public int size() {
+            return size;
+        }
+
+        private void grow() {
+            if (size == txIndex.length) {
+                if (size == MAX_ROWS) {
+                    throw new IllegalStateException("Cannot hold more than " + MAX_ROWS + " rows in one store");
+                }
+                final int capacity = (int)Math.min(MAX_ROWS, 2L * size);
+                txIndex = Arrays.copyOf(txIndex, capacity);
+                amount = Arrays.copyOf(amount, capacity);
+                addr = Arrays.copyOf(addr, capacity);
+                hashes.resize(capacity);
+                if (height != null) {
+                    height = Arrays.copyOf(height, capacity);
+                    time = Arrays.copyOf(time, capacity);
+                }
+            }
+        }
+
+        private void set(final long txIndex, final int addrId, final long amount, final boolean in, final int height, final long time) {
+            this.txIndex[size] = txIndex;
+            this.amount[size] = amount;
+            this.addr[size] = addrId;
+            if (in) {
+                this.in.set(size);
+            }
+            if (this.height == null && (height != TransactionParser.UNKNOWN_HEIGHT || time != TransactionParser.UNKNOWN_TIME)) {
+                this.height = new int[this.txIndex.length];
+                this.time = new long[this.txIndex.length];
+                Arrays.fill(this.height, 0, size, TransactionParser.UNKNOWN_HEIGHT);
+                Arrays.fill(this.time, 0, size, TransactionParser.UNKNOWN_TIME);
+            }
+            if (this.height != null) {
+                this.height[size] = height;
+                this.time[size] = time;
+            }
+            size++;
+        }
+
+        @Override
+        public void record(final long txIndex, final ByteBuffer buf, final int hashOff, final int hashLen,
+                           final int addrOff, final int addrLen, final long value, final boolean in) {
+            record(txIndex, buf, hashOff, hashLen, addrOff, addrLen, value, in, TransactionParser.UNKNOWN_HEIGHT, TransactionParser.UNKNOWN_TIME);
+        }
+
+        @Override
+        public void record(final long txIndex, final ByteBuffer buf, final int hashOff, final int hashLen,
+                           final int addrOff, final int addrLen, final long value, final boolean in, final int height, final long time) {
+            grow();
+            if (!packHash(buf, hashOff, hashLen)) {
+                rawHashes.put(size, TransactionParser.ascii(buf, hashOff, hashLen));
+            }
+            set(txIndex, addresses.intern(buf, addrOff, addrLen), value, in, height, time);
+        }
+
+        public void add(final long txIndex, final String hash, final String address, final long amount, final boolean in) {
+            add(txIndex, hash, address, amount, in, TransactionParser.UNKNOWN_HEIGHT, TransactionParser.UNKNOWN_TIME);
+        }
+
+        public void add(final long txIndex, final String hash, final String address, final long amount, final boolean in,
+                        final int height, final long time) {
+            grow();
+            final ByteBuffer buf = ByteBuffer.wrap(hash.getBytes(java.nio.charset.StandardCharsets.ISO_8859_1));
+            if (!packHash(buf, 0, buf.limit())) {
+                rawHashes.put(size, hash);
+            }
+            set(txIndex, addresses.intern(address), amount, in, height, time);
+        }
+
+        /**
+         * Append a row whose hash is already packed
+         */
+        public void add(final long txIndex, final byte[] hash, final int hashOff, final String address, final long amount, final boolean in) {
+            grow();
+            hashes.set(size, hash, hashOff);
+            set(txIndex, addresses.intern(address), amount, in, TransactionParser.UNKNOWN_HEIGHT, TransactionParser.UNKNOWN_TIME);
+        }
+
+        private boolean packHash(final ByteBuffer buf, final int off, final int len) {
+            if (len != HASH_BYTES * 2) {
+                return false;
+            }
+            final byte[] chunk = hashes.chunk(size);
+            final int dst = HashColumn.offset(size);
+            for (int i = 0; i < HASH_BYTES; ++i) {
+                final int hi = hexDigit(buf.get(off + 2 * i));
+                final int lo = hexDigit(buf.get(off + 2 * i + 1));
+                if (hi < 0 || lo < 0) {
+                    hashes.clear(size);
+                    return false;
+                }
+                chunk[dst + i] = (byte)((hi << 4) | lo);
+            }
+            return true;
+        }
+
+        public TransactionStore build() {
+            final HashColumn packed = new HashColumn(size);
+            packed.copy(hashes, 0, 0, size);
+            return new TransactionStore(size, Arrays.copyOf(txIndex, size), Arrays.copyOf(amount, size), in,
+                                        Arrays.copyOf(addr, size), packed, rawHashes,
+                                        height == null ? null : Arrays.copyOf(height, size), time == null ? null : Arrays.copyOf(time, size),
+                                        addresses);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package main;
+
+import java.util.Arrays;
+
+class Uptree {
+    // Implements a disjoint-set datastructure with path compression & Union-by-size as described on wikipedia here: https://en.wikipedia.org/wiki/Disjoint-set_data_structure
+    private int[] parents;
+    private int[] sizes;
+    private int length;
+    private int maxSize = 1;
+    private int maxIdx = 0;
+    private int numSets;
+
+    public Uptree(final int N) {
+        parents = new int[N];
+        sizes = new int[N];
+        length = N;
+        numSets = N;
+        for (int i = 0; i < N; ++i) {
+            parents[i] = i;
+            sizes[i] = 1;
+        }
+    }
+
+    /**
+     * Add a new singleton set
+     *
+     * @return the index of the new element
+     */
+    public int add() {
+        if (length == parents.length) {
+            final int capacity = Math.max(16, parents.length * 2);
+            parents = Arrays.copyOf(parents, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+        }
+        parents[length] = length;
+        sizes[length] = 1;
+        numSets++;
+        return length++;
+    }
+
+    public int size() {
+        return length;
+    }
+
+    public int find(final int i) {
+        int root = i;
+        while (parents[root] != root) {
+            root = parents[root];
+        }
+        int node = i;
+        while (parents[node] != root) {
+            final int next = parents[node];
+            parents[node] = root;
+            node = next;
+        }
+        return root;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getMaxIdx() {
+        return maxIdx;
+    }
+
+    /**
+     * Size of the set rooted at root
+     */
+    public int getSize(final int root) {
+        return sizes[root];
+    }
+
+    /**
+     * Merge the sets of i and j
+     *
+     * @return the root of the merged set, or -1 if i and j were already in the same set
+     */
+    public int union(final int i, final int j) {
+        final int ri = find(i);
+        final int rj = find(j);
+        if (ri == rj) {
+            return -1;
+        }
+        numSets--;
+        if (sizes[ri] < sizes[rj]) {
+            parents[ri] = rj;
+            sizes[rj] += sizes[ri];
+            if (sizes[rj] > maxSize) {
+                maxSize = sizes[rj];
+                maxIdx = rj;
+            }
+            return rj;
+        } else {
+            parents[rj] = ri;
+            sizes[ri] += sizes[rj];
+            if (sizes[ri] > maxSize) {
+                maxSize = sizes[ri];
+                maxIdx = ri;
+            }
+            return ri;
+        }
+    }
+
+    /**
+     * Resolve every element to its root; see ClusterMembership.fromRoots
+     */
+    public int[] roots() {
+        final int[] ret = new int[length];
+        for (int i = 0; i < length; ++i) {
+            ret[i] = find(i);
+        }
+        return ret;
+    }
+
+    public int getNumSets() {
+        return numSets;
+    }
+}
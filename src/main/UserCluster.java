@@ -2,24 +2,27 @@ package main;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
 
 public class UserCluster {
     public static class Transaction {
         public final String transId, hash, addr;
-        public final Long amount;
-        public final Boolean in;
+        public final long amount;
+        public final boolean in;
 
         public Transaction(final String transId, final String hash, final String addr, final long amount, final boolean in) {
             this.transId = transId;
             this.hash = hash;
             this.addr = addr;
-            this.amount = new Long(amount);
-            this.in = new Boolean(in);
+            this.amount = amount;
+            this.in = in;
         }
 
         @Override
         public int hashCode() {
-            return transId.hashCode() ^ hash.hashCode() ^ addr.hashCode() ^ amount.hashCode() ^ in.hashCode();
+            return transId.hashCode() ^ hash.hashCode() ^ addr.hashCode() ^ Long.hashCode(amount) ^ Boolean.hashCode(in);
         }
 
         @Override
@@ -29,93 +32,28 @@ public class UserCluster {
                 return RHS.transId.equals(this.transId) &&
                        RHS.hash.equals(this.hash) &&
                        RHS.addr.equals(this.addr) &&
-                       RHS.amount.equals(this.amount) &&
-                       RHS.in.equals(this.in);
+                       RHS.amount == this.amount &&
+                       RHS.in == this.in;
             } else {
                 return false;
             }
         }
     }
 
-    private static class Uptree { 
-        // Implements a disjoint-set datastructure with path compression & Union-by-size as described on wikipedia here: https://en.wikipedia.org/wiki/Disjoint-set_data_structure
-        private final int[] parents;
-        private final int[] sizes;
-        private int maxSize = 1;
-        private int maxIdx = 0;
-        private int numSets;
-
-        public Uptree(final int N) {
-            parents = new int[N];
-            sizes = new int[N];
-            numSets = N;
-            for (int i = 0; i < N; ++i) {
-                parents[i] = i;
-                sizes[i] = 1;
-            }
-        }
-
-        public int find(final int i) {
-            final int parent = parents[i];
-            if (parent == i) {
-                return parent;
-            } else {
-                parents[i] = find(parent);
-                return parents[i];
-            }
-        }
-
-        public int getMaxSize() {
-            return maxSize;
-        }
-
-        public int getMaxIdx() {
-            return maxIdx;
-        }
-
-        public void union(final int i, final int j) {
-            final int ri = find(i);
-            final int rj = find(j);
-            if (ri != rj) {
-                if (sizes[ri] < sizes[rj]) {
-                    parents[ri] = rj;
-                    sizes[rj] += sizes[ri];
-                    if (sizes[rj] > maxSize) {
-                        maxSize = sizes[rj];
-                        maxIdx = rj;
-                    }
-                } else {
-                    parents[rj] = ri;
-                    sizes[ri] += sizes[rj];
-                    if (sizes[ri] > maxSize) {
-                        maxSize = sizes[ri];
-                        maxIdx = ri;
-                    }
-                }
-                numSets--;
-            }
-        }
-
-        private Map<Integer, Set<Integer>> getSets() {
-            final Map<Integer, Set<Integer>> ret = new HashMap<>();
-            for (int i = 0; i < parents.length; ++i) {
-                final int ri = find(i);
-                final Set<Integer> set = ret.getOrDefault(ri, new HashSet<>());
-                set.add(i);
-                ret.putIfAbsent(ri, set);
-            }
-            return ret;
-        }
+    private ClusterMembership clusters = ClusterMembership.fromRoots(new int[0], new AddressDictionary());
+    private Map<Long, List<String>> userMap = clusters.userMapView(); // Map a user id to a list of bitcoin addresses
+    private Map<String, Long> keyMap = clusters.keyMapView(); // Map a bitcoin address to a user id
+    private TransactionStore transactions = TransactionStore.empty();
+    private final Set<String> loadedFiles = new HashSet<>();
 
-        public int getNumSets() {
-            return numSets;
+    private static String canonicalPath(final String file) {
+        try {
+            return new File(file).getCanonicalPath();
+        } catch (IOException exp) {
+            return new File(file).getAbsolutePath();
         }
     }
 
-    private final Map<Long, List<String>> userMap = new HashMap<>(); // Map a user id to a list of bitcoin addresses
-    private final Map<String, Long> keyMap = new HashMap<>(); // Map a bitcoin address to a user id
-    private final List<Transaction> transactions = new ArrayList<>();
-
     public Map<Long, List<String>> getUserMap() {
         return userMap;
     }
@@ -124,21 +62,16 @@ public class UserCluster {
         return keyMap;
     }
 
-    public List<Transaction> getTransactions() {
-        return transactions;
+    /**
+     * Return the clustering computed by mergeAddresses; address ids are those of
+     * getTransactions().getAddresses()
+     */
+    public ClusterMembership getClusters() {
+        return clusters;
     }
 
-    private static final String IN = "in";
-    private static final String OUT = "out";
- 
-    private boolean parseInOut(final String str) {
-       if (IN.equals(str)) {
-            return true;
-        } else if (OUT.equals(str)) {
-            return false;
-        } else {
-            throw new RuntimeException("Failed to read file, read " + str + " as in/out");
-        }
+    public TransactionStore getTransactions() {
+        return transactions;
     }
 
     /**
@@ -148,84 +81,220 @@ public class UserCluster {
      * @return true if read succeeds; false otherwise
      */
     public boolean readTransactions(String file) {
-        try (final Scanner scanner = new Scanner(new File(file))) {
-            while (scanner.hasNextLine()) {
-                final String transId = scanner.next();
-                final String hash = scanner.next();
-                final String addr = scanner.next();
-                final long amount = scanner.nextLong();
-                final boolean in = parseInOut(scanner.next());
-                transactions.add(new Transaction(transId, hash, addr, amount, in));
-                scanner.nextLine();
+        readTransactions(file, 0, Long.MAX_VALUE);
+        loadedFiles.add(canonicalPath(file));
+        return true;
+    }
+
+    /**
+     * Read the lines of file that start in from .. to - 1, one shard of it (see ShardedClusterer)
+     * 
+     * @param file
+     * @param from offset of a line start
+     * @param to offset of a line start, or past the end of the file
+     * @return true if read succeeds; false otherwise
+     */
+    public boolean readTransactions(String file, long from, long to) {
+        try (final RunMetrics.Phase phase = RunMetrics.global().begin("readTransactions")) {
+            final int before = transactions.size();
+            final List<TransactionStore> parts = new ArrayList<>();
+            if (!transactions.isEmpty()) {
+                parts.add(transactions);
             }
+            for (final TransactionStore.Builder chunk : new TransactionParser().parse(new File(file), from, to, TransactionStore.Builder::new)) {
+                parts.add(chunk.build());
+            }
+            transactions = TransactionStore.concat(parts);
+            phase.addRows(transactions.size() - before).addBytes(Math.min(to, new File(file).length()) - from);
         } catch (IOException exp) {
             throw new RuntimeException(exp);
-        } catch (InputMismatchException exp) {
-            throw new RuntimeException("Could not parse input", exp);
         }
         return true;
     }
 
-    private List<String> getAddresses() {
-        final Set<String> addresses = new HashSet<>();
-        for (final Transaction transaction : transactions) {
-            addresses.add(transaction.addr);
+    /**
+     * Read transactions from a binary dataset (see BinaryDataset)
+     * 
+     * @param file
+     * @return true if read succeeds; false otherwise
+     */
+    public boolean readBinaryTransactions(String file) {
+        try (final RunMetrics.Phase phase = RunMetrics.global().begin("readBinaryTransactions")) {
+            final TransactionStore store = BinaryDataset.read(new File(file));
+            transactions = transactions.isEmpty() ? store : TransactionStore.concat(Arrays.asList(transactions, store));
+            loadedFiles.add(canonicalPath(file));
+            phase.addRows(store.size()).addBytes(new File(file).length());
+        } catch (IOException exp) {
+            throw new RuntimeException(exp);
         }
-        return new ArrayList<>(addresses);
+        return true;
     }
 
-    private <T> Map<T, Integer> indexMapFromList(final List<T> list) {
-        final Map<T, Integer> ret = new HashMap<>();
-        for (int i = 0; i < list.size(); ++i) {
-            ret.put(list.get(i), i);
+    /**
+     * Shows a range of transaction groups to every heuristic, splitting the range across the
+     * fork-join pool
+     */
+    private static class ScanTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private static final int THRESHOLD = 1 << 12;
+        private final TransactionGroups groups;
+        private final ClusteringHeuristic[] heuristics;
+        private final ClusteringHeuristic.Linker[] linkers;
+        private final int from, to;
+
+        private ScanTask(final TransactionGroups groups, final ClusteringHeuristic[] heuristics,
+                         final ClusteringHeuristic.Linker[] linkers, final int from, final int to) {
+            this.groups = groups;
+            this.heuristics = heuristics;
+            this.linkers = linkers;
+            this.from = from;
+            this.to = to;
         }
-        return ret;
-    }
 
-    private Map<String, Set<String>> makeIdAddrMap() {
-        final Map<String, Set<String>> ret = new HashMap<>();
-        for (final Transaction transaction : transactions) {
-            if (transaction.in) {
-                final Set<String> set = ret.getOrDefault(transaction.transId, new HashSet<>());
-                set.add(transaction.addr);
-                ret.putIfAbsent(transaction.transId, set);
+        @Override
+        protected void compute() {
+            if (to - from <= THRESHOLD) {
+                final TransactionGroups.Group tx = groups.group();
+                for (int g = from; g < to; ++g) {
+                    tx.at(g);
+                    for (int h = 0; h < heuristics.length; ++h) {
+                        heuristics[h].apply(tx, linkers[h]);
+                    }
+                }
+            } else {
+                final int mid = (from + to) >>> 1;
+                invokeAll(new ScanTask(groups, heuristics, linkers, from, mid), new ScanTask(groups, heuristics, linkers, mid, to));
             }
         }
-        return ret;
     }
 
-
     private int largestClusterSize = -1;
 
+    private List<ClusteringHeuristic> heuristics = ClusteringHeuristic.fromProperty();
+    private final Map<String, Long> heuristicMerges = new LinkedHashMap<>();
+
+    /**
+     * Choose the heuristics of mergeAddresses, by default those of -Dcluster.heuristics
+     */
+    public void setHeuristics(final List<ClusteringHeuristic> heuristics) {
+        if (heuristics.isEmpty()) {
+            throw new IllegalArgumentException("Need at least one clustering heuristic");
+        }
+        this.heuristics = new ArrayList<>(heuristics);
+    }
+
+    public List<ClusteringHeuristic> getHeuristics() {
+        return Collections.unmodifiableList(heuristics);
+    }
+
+    /**
+     * Merges (links between two clusters) each heuristic made in the last mergeAddresses, by
+     * name. When two heuristics would join the same clusters the one that got there first counts
+     * the merge, so with several heuristics the split can vary between runs; the sum cannot.
+     */
+    public Map<String, Long> getHeuristicMerges() {
+        return Collections.unmodifiableMap(heuristicMerges);
+    }
+
     /**
-     * Merge addresses based on joint control
+     * Merge addresses based on joint control, as found by the clustering heuristics (see
+     * ClusteringHeuristic) in one shared scan of the transactions
      */
     public void mergeAddresses() {
-        final List<String> addresses = getAddresses();
-        final Map<String, Integer> indexMap = indexMapFromList(addresses);
-        final Uptree uptree = new Uptree(addresses.size());
-        for (final Map.Entry<String, Set<String>> pair : makeIdAddrMap().entrySet()) {
-            final Iterator<String> iterator = pair.getValue().iterator();
-            final String firstAddr = iterator.next();
-            final int firstIdx = indexMap.get(firstAddr);
-            while (iterator.hasNext()) {
-                uptree.union(firstIdx, indexMap.get(iterator.next()));
+        final RunMetrics metrics = RunMetrics.global();
+        final AddressDictionary addresses = transactions.getAddresses();
+        final ConcurrentUptree uptree = new ConcurrentUptree(addresses.size(), RunMetrics.countsUnionFind());
+        boolean withOutputs = false;
+        for (final ClusteringHeuristic h : heuristics) {
+            withOutputs |= h.needsOutputs();
+        }
+        final TransactionGroups groups;
+        try (final RunMetrics.Phase phase = metrics.begin("groupTransactions")) {
+            groups = TransactionGroups.of(transactions, withOutputs);
+            phase.addRows(transactions.size())
+                 .count("transactions", groups.size())
+                 .count("inputs", groups.getInputNumber())
+                 .count("outputs", groups.getOutputNumber());
+        }
+        try (final RunMetrics.Phase phase = metrics.begin("union")) {
+            final ClusteringHeuristic[] applied = heuristics.toArray(new ClusteringHeuristic[0]);
+            final LongAdder[] merges = new LongAdder[applied.length];
+            final ClusteringHeuristic.Linker[] linkers = new ClusteringHeuristic.Linker[applied.length];
+            for (int h = 0; h < applied.length; ++h) {
+                final LongAdder merged = merges[h] = new LongAdder();
+                linkers[h] = (a, b) -> {
+                    if (uptree.union(a, b)) {
+                        merged.increment();
+                    }
+                };
+            }
+            ForkJoinPool.commonPool().invoke(new ScanTask(groups, applied, linkers, 0, groups.size()));
+            heuristicMerges.clear();
+            for (int h = 0; h < applied.length; ++h) {
+                heuristicMerges.merge(applied[h].getName(), merges[h].sum(), Long::sum);
+                phase.count("merges." + applied[h].getName(), merges[h].sum());
             }
+            phase.addRows(groups.getInputNumber() + groups.getOutputNumber());
+            uptree.countInto(phase);
         }
+        try (final RunMetrics.Phase phase = metrics.begin("membership")) {
+            setClusters(ClusterMembership.fromRoots(uptree.roots(), addresses));
+            phase.addRows(addresses.size()).count("users", clusters.getUserNumber());
+        }
+    }
 
-        largestClusterSize = uptree.getMaxSize();
+    void setClusters(final ClusterMembership clusters) {
+        this.clusters = clusters;
+        userMap = clusters.userMapView();
+        keyMap = clusters.keyMapView();
+        largestClusterSize = clusters.getLargestClusterSize();
+    }
 
-        long idx = 0L;
-        for (final Map.Entry<Integer, Set<Integer>> pair : uptree.getSets().entrySet()) {
-            final List<String> addressesForIndex = new ArrayList<>();
-            for (Integer i : pair.getValue()) {
-                final String address = addresses.get(i);
-                addressesForIndex.add(address);
-                keyMap.put(address, idx);
-            }
-            userMap.put(idx, addressesForIndex);
-            idx++;
+    /**
+     * Save the clustering computed by mergeAddresses (see ClusterSnapshot)
+     * 
+     * @param file
+     * @return true if the snapshot was written
+     */
+    public boolean writeSnapshot(String file) {
+        try (final RunMetrics.Phase phase = RunMetrics.global().begin("writeSnapshot")) {
+            ClusterSnapshot.write(clusters, new File(file));
+            phase.addRows(clusters.getAddressNumber()).addBytes(new File(file).length());
+        } catch (IOException e) {
+            System.err.println("Error in writing cluster snapshot!");
+            e.printStackTrace();
+            return false;
         }
+        return true;
+    }
+
+    /**
+     * Load a clustering saved by writeSnapshot instead of calling mergeAddresses. Without
+     * transactions loaded this is all the user and key maps need; with transactions loaded, the
+     * snapshot must have been taken over the same addresses.
+     * 
+     * @param file
+     * @return true if the snapshot was loaded
+     */
+    public boolean readSnapshot(String file) {
+        final ClusterMembership loaded;
+        try (final RunMetrics.Phase phase = RunMetrics.global().begin("readSnapshot")) {
+            loaded = ClusterSnapshot.read(new File(file));
+            phase.addRows(loaded.getAddressNumber()).addBytes(new File(file).length());
+        } catch (IOException e) {
+            System.err.println("Error in reading cluster snapshot: " + e.getMessage());
+            return false;
+        }
+        if (transactions.isEmpty()) {
+            setClusters(loaded);
+        } else if (loaded.getAddresses().contentEquals(transactions.getAddresses())) {
+            // share the transactions' dictionary so address ids line up with the store
+            setClusters(new ClusterMembership(loaded.getOffsets(), loaded.getMembers(), loaded.getAddrToUser(), transactions.getAddresses()));
+        } else {
+            System.err.println("Cluster snapshot " + file + " was not taken over the loaded transactions");
+            return false;
+        }
+        return true;
     }
 
     /**
@@ -234,7 +303,7 @@ public class UserCluster {
      * @return number of users (i.e., clusters)
      */
     public int getUserNumber() {
-        return userMap.size();
+        return clusters.getUserNumber();
     }
 
     /**
@@ -247,7 +316,7 @@ public class UserCluster {
     }
 
     public boolean writeUserMap(String file) {
-        try {
+        try (final RunMetrics.Phase phase = RunMetrics.global().begin("writeUserMap")) {
             BufferedWriter w = new BufferedWriter(new FileWriter(file));
             for (long user : userMap.keySet()) {
                 List<String> keys = userMap.get(user);
@@ -259,6 +328,7 @@ public class UserCluster {
             }
             w.flush();
             w.close();
+            phase.addRows(userMap.size()).addBytes(new File(file).length());
         } catch (IOException e) {
             System.err.println("Error in writing user list!");
             e.printStackTrace();
@@ -269,14 +339,15 @@ public class UserCluster {
     }
 
     public boolean writeKeyMap(String file) {
-        try {
+        try (final RunMetrics.Phase phase = RunMetrics.global().begin("writeKeyMap")) {
             BufferedWriter w = new BufferedWriter(new FileWriter(file));
             for (String key : keyMap.keySet()) {
-                w.write(key + " " + keyMap.get(key) + "\n");
+                w.write(key + " " + keyMap.get(key));
                 w.newLine();
             }
             w.flush();
             w.close();
+            phase.addRows(keyMap.size()).addBytes(new File(file).length());
         } catch (IOException e) {
             System.err.println("Error in writing key map!");
             e.printStackTrace();
@@ -286,66 +357,79 @@ public class UserCluster {
         return true;
     }
 
+    /**
+     * Write the user graph of the transactions read into this object
+     * 
+     * @param userGraphFile
+     * @param aggregate merge parallel edges, summing their satoshi (adds a count column)
+     * @return true if the graph was written
+     */
+    public boolean writeUserGraph(String userGraphFile, boolean aggregate) {
+        return writeUserGraph(new UserGraphBuilder(transactions, clusters), userGraphFile, aggregate);
+    }
+
     public boolean writeUserGraph(String txFile, String userGraphFile) {
+        if (loadedFiles.size() == 1 && loadedFiles.contains(canonicalPath(txFile))) {
+            return writeUserGraph(userGraphFile, false);
+        }
+        // a file other than the loaded one: read it and resolve its addresses through our clusters
+        final UserCluster other = new UserCluster();
+        other.readTransactions(txFile);
+        final AddressDictionary otherAddresses = other.transactions.getAddresses();
+        final int[] userOfAddress = new int[otherAddresses.size()];
+        for (int id = 0; id < userOfAddress.length; ++id) {
+            userOfAddress[id] = clusters.userOf(otherAddresses.get(id));
+        }
+        return writeUserGraph(new UserGraphBuilder(other.transactions, userOfAddress), userGraphFile, false);
+    }
+
+    /**
+     * Build the aggregated user graph of the transactions read into this object
+     * 
+     * @param stripSelfLoops drop edges from a user to itself
+     */
+    public UserGraph getUserGraph(boolean stripSelfLoops) {
+        try (final RunMetrics.Phase phase = RunMetrics.global().begin("buildUserGraph")) {
+            final UserGraph graph = UserGraph.build(transactions, clusters, stripSelfLoops);
+            phase.addRows(transactions.size()).count("edges", graph.getEdgeNumber());
+            return graph;
+        }
+    }
+
+    /**
+     * Write the aggregated user graph in the binary CSR format loaded by UserGraph.read
+     * 
+     * @param userGraphFile
+     * @param stripSelfLoops drop edges from a user to itself
+     * @return true if the graph was written
+     */
+    public boolean writeUserGraphBinary(String userGraphFile, boolean stripSelfLoops) {
         try {
-            BufferedReader r1 = new BufferedReader(new FileReader(txFile));
-            Map<String, Long> txUserMap = new HashMap<String, Long>();
-            String nextLine;
-            while ((nextLine = r1.readLine()) != null) {
-                String[] s = nextLine.split(" ");
-                if (s.length < 5) {
-                    System.err.println("Invalid format: " + nextLine);
-                    r1.close();
-                    return false;
-                }
-                if (s[4].equals("in") && !txUserMap.containsKey(s[0])) { // new transaction 
-                    Long user;
-                    if ((user=keyMap.get(s[2])) == null) {
-                        System.err.println(s[2] + " is not in the key map!");
-                        r1.close();
-                        return false;
-                    }
-                    txUserMap.put(s[0], user);
-                } 
+            final UserGraph graph = getUserGraph(stripSelfLoops);
+            try (final RunMetrics.Phase phase = RunMetrics.global().begin("writeUserGraphBinary")) {
+                graph.write(new File(userGraphFile));
+                phase.addRows(graph.getEdgeNumber()).addBytes(new File(userGraphFile).length());
             }
-            r1.close();
-
-            BufferedReader r2 = new BufferedReader(new FileReader(txFile));
-            BufferedWriter w = new BufferedWriter(new FileWriter(userGraphFile));
-            while ((nextLine = r2.readLine()) != null) {
-                String[] s = nextLine.split(" ");
-                if (s.length < 5) {
-                    System.err.println("Invalid format: " + nextLine);
-                    r2.close();
-                    w.flush();
-                    w.close();
-                    return false;
-                }
-                if (s[4].equals("out")) {
-                    if(txUserMap.get(s[0]) == null) {
-                        System.err.println("Did not find input transaction for Tx: " + s[0]);
-                        r2.close();
-                        w.flush();
-                        w.close();
-                        return false;
-                    }
-                    long inputUser = txUserMap.get(s[0]);
-                    Long outputUser;
-                    if ((outputUser=keyMap.get(s[2])) == null) {
-                        System.err.println(s[2] + " is not in the key map!");
-                        r2.close();
-                        w.flush();
-                        w.close();
-                        return false;
-                    }
-                    w.write(inputUser + "," + outputUser + "," + s[3] + "\n");
-                } 
-            }
-            r2.close();
-            w.flush();
-            w.close();
+        } catch (IllegalStateException e) {
+            System.err.println(e.getMessage());
+            return false;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean writeUserGraph(final UserGraphBuilder builder, final String userGraphFile, final boolean aggregate) {
+        try (final RunMetrics.Phase phase = RunMetrics.global().begin("writeUserGraph")) {
+            builder.write(userGraphFile, aggregate);
+            phase.addBytes(new File(userGraphFile).length());
+        } catch (IllegalStateException e) {
+            System.err.println(e.getMessage());
+            return false;
         } catch (IOException e) {
             e.printStackTrace();
+            return false;
         }
         return true;
     }
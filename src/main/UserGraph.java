@@ -0,0 +1,305 @@
+package main;
+
+import java.io.*;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * The aggregated user graph in compressed sparse row form, with both directions. The out-edges of
+ * user u are outOffsets[u] .. outOffsets[u + 1] - 1, each with its target, summed satoshi, the
+ * number of outputs merged into it and the number of transactions they came from; in-edges mirror
+ * them with sources ascending.
+ *
+ * A built graph wraps its arrays; a saved one is read by mapping each section and keeping the
+ * mapping as the section's buffer (see {@link #read}), so a load copies nothing and pages edges in
+ * as they are visited. One section must fit in a mapping, which caps a saved graph at about 268
+ * million edges. Layout (little-endian):
+ *
+ * <pre>
+ * header    magic "BUGR", version, users U, edges E, flags (1 = self-loops stripped), 0 (6 ints)
+ * int[U+1]  out offsets      int[E] targets  long[E] values  int[E] counts  int[E] tx counts
+ * int[U+1]  in offsets       int[E] sources  long[E] values  int[E] counts  int[E] tx counts
+ * </pre>
+ */
+public class UserGraph {
+    public static final int MAGIC = 0x42554752; // "BUGR"
+    public static final int VERSION = 1;
+    private static final int HEADER_INTS = 6;
+    private static final int SELF_LOOPS_STRIPPED = 1;
+
+    private final int numUsers;
+    private final boolean selfLoopsStripped;
+    private final IntBuffer outOffsets;
+    private final IntBuffer outTargets;
+    private final LongBuffer outValues;
+    private final IntBuffer outCounts;
+    private final IntBuffer outTxCounts;
+    private final IntBuffer inOffsets;
+    private final IntBuffer inSources;
+    private final LongBuffer inValues;
+    private final IntBuffer inCounts;
+    private final IntBuffer inTxCounts;
+
+    private UserGraph(final int numUsers, final boolean selfLoopsStripped,
+                      final IntBuffer outOffsets, final IntBuffer outTargets, final LongBuffer outValues, final IntBuffer outCounts, final IntBuffer outTxCounts,
+                      final IntBuffer inOffsets, final IntBuffer inSources, final LongBuffer inValues, final IntBuffer inCounts, final IntBuffer inTxCounts) {
+        this.numUsers = numUsers;
+        this.selfLoopsStripped = selfLoopsStripped;
+        this.outOffsets = outOffsets;
+        this.outTargets = outTargets;
+        this.outValues = outValues;
+        this.outCounts = outCounts;
+        this.outTxCounts = outTxCounts;
+        this.inOffsets = inOffsets;
+        this.inSources = inSources;
+        this.inValues = inValues;
+        this.inCounts = inCounts;
+        this.inTxCounts = inTxCounts;
+    }
+
+    public static UserGraph fromEdges(final UserGraphBuilder.EdgeList edges, final int numUsers) {
+        return fromEdges(edges, numUsers, false);
+    }
+
+    /**
+     * Counting-sort aggregated edges into forward and reverse CSR
+     *
+     * @param edges an aggregated edge list
+     * @param numUsers
+     * @param stripSelfLoops drop edges from a user to itself (change going back to the payer)
+     */
+    public static UserGraph fromEdges(final UserGraphBuilder.EdgeList edges, final int numUsers, final boolean stripSelfLoops) {
+        if (!edges.isAggregated()) {
+            throw new IllegalArgumentException("UserGraph needs an aggregated edge list");
+        }
+        final int[] outOffsets = new int[numUsers + 1];
+        final int[] inOffsets = new int[numUsers + 1];
+        int m = 0;
+        for (int e = 0; e < edges.size(); ++e) {
+            if (!stripSelfLoops || edges.from(e) != edges.to(e)) {
+                outOffsets[edges.from(e) + 1]++;
+                inOffsets[edges.to(e) + 1]++;
+                m++;
+            }
+        }
+        for (int u = 0; u < numUsers; ++u) {
+            outOffsets[u + 1] += outOffsets[u];
+            inOffsets[u + 1] += inOffsets[u];
+        }
+        final int[] outTargets = new int[m];
+        final long[] outValues = new long[m];
+        final int[] outCounts = new int[m];
+        final int[] outTxCounts = new int[m];
+        final int[] next = Arrays.copyOf(outOffsets, numUsers);
+        for (int e = 0; e < edges.size(); ++e) {
+            if (!stripSelfLoops || edges.from(e) != edges.to(e)) {
+                final int k = next[edges.from(e)]++;
+                outTargets[k] = edges.to(e);
+                outValues[k] = edges.value(e);
+                outCounts[k] = edges.count(e);
+                outTxCounts[k] = edges.txCount(e);
+            }
+        }
+        // filling the reverse side in source order leaves every in-list sorted by source
+        final int[] inSources = new int[m];
+        final long[] inValues = new long[m];
+        final int[] inCounts = new int[m];
+        final int[] inTxCounts = new int[m];
+        System.arraycopy(inOffsets, 0, next, 0, numUsers);
+        for (int u = 0; u < numUsers; ++u) {
+            for (int k = outOffsets[u]; k < outOffsets[u + 1]; ++k) {
+                final int j = next[outTargets[k]]++;
+                inSources[j] = u;
+                inValues[j] = outValues[k];
+                inCounts[j] = outCounts[k];
+                inTxCounts[j] = outTxCounts[k];
+            }
+        }
+        return new UserGraph(numUsers, stripSelfLoops, IntBuffer.wrap(outOffsets), IntBuffer.wrap(outTargets), LongBuffer.wrap(outValues),
+                             IntBuffer.wrap(outCounts), IntBuffer.wrap(outTxCounts), IntBuffer.wrap(inOffsets), IntBuffer.wrap(inSources),
+                             LongBuffer.wrap(inValues), IntBuffer.wrap(inCounts), IntBuffer.wrap(inTxCounts));
+    }
+
+    public static UserGraph build(final TransactionStore transactions, final ClusterMembership clusters) {
+        return build(transactions, clusters, false);
+    }
+
+    public static UserGraph build(final TransactionStore transactions, final ClusterMembership clusters, final boolean stripSelfLoops) {
+        return fromEdges(new UserGraphBuilder(transactions, clusters).buildEdgeList(true), clusters.getUserNumber(), stripSelfLoops);
+    }
+
+    /**
+     * Save the graph; the file is replaced atomically
+     */
+    public void write(final File file) throws IOException {
+        final int m = getEdgeNumber();
+        final File tmp = new File(file.getPath() + ".tmp");
+        try (final FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            final MappedArrays out = new MappedArrays(channel);
+            out.writeInts(new int[] { MAGIC, VERSION, numUsers, m, selfLoopsStripped ? SELF_LOOPS_STRIPPED : 0, 0 }, 0, HEADER_INTS);
+            out.writeInts(outOffsets);
+            out.writeInts(outTargets);
+            out.writeLongs(outValues);
+            out.writeInts(outCounts);
+            out.writeInts(outTxCounts);
+            out.writeInts(inOffsets);
+            out.writeInts(inSources);
+            out.writeLongs(inValues);
+            out.writeInts(inCounts);
+            out.writeInts(inTxCounts);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Load a graph saved by write. Each section is mapped read-only and used as it is, so the
+     * graph stays valid after the file is closed but must not be replaced in place while in use;
+     * write replaces it by a rename, which leaves the mapped file alone.
+     */
+    public static UserGraph read(final File file) throws IOException {
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size < HEADER_INTS * 4) {
+                throw new IOException(file + " is too short to be a user graph");
+            }
+            final int[] header = new int[HEADER_INTS];
+            long pos = MappedArrays.readInts(channel, 0, header, HEADER_INTS);
+            if (header[0] != MAGIC) {
+                throw new IOException(file + " is not a user graph");
+            }
+            if (header[1] != VERSION) {
+                throw new IOException(file + " has unsupported version " + header[1]);
+            }
+            final int n = header[2];
+            final int m = header[3];
+            final long expected = HEADER_INTS * 4L + 2 * (4L * (n + 1) + 20L * m);
+            if (n < 0 || m < 0 || size != expected) {
+                throw new IOException(file + " is truncated or corrupt (" + size + " bytes, expected " + expected + ")");
+            }
+            if (8L * m > Integer.MAX_VALUE) {
+                throw new IOException(file + " has " + m + " edges, too many to map");
+            }
+            final IntBuffer outOffsets = MappedArrays.mapInts(channel, pos, n + 1);
+            pos += 4L * (n + 1);
+            final IntBuffer outTargets = MappedArrays.mapInts(channel, pos, m);
+            pos += 4L * m;
+            final LongBuffer outValues = MappedArrays.mapLongs(channel, pos, m);
+            pos += 8L * m;
+            final IntBuffer outCounts = MappedArrays.mapInts(channel, pos, m);
+            pos += 4L * m;
+            final IntBuffer outTxCounts = MappedArrays.mapInts(channel, pos, m);
+            pos += 4L * m;
+            final IntBuffer inOffsets = MappedArrays.mapInts(channel, pos, n + 1);
+            pos += 4L * (n + 1);
+            final IntBuffer inSources = MappedArrays.mapInts(channel, pos, m);
+            pos += 4L * m;
+            final LongBuffer inValues = MappedArrays.mapLongs(channel, pos, m);
+            pos += 8L * m;
+            final IntBuffer inCounts = MappedArrays.mapInts(channel, pos, m);
+            pos += 4L * m;
+            final IntBuffer inTxCounts = MappedArrays.mapInts(channel, pos, m);
+            if (outOffsets.get(n) != m || inOffsets.get(n) != m) {
+                throw new IOException(file + " has inconsistent offsets");
+            }
+            return new UserGraph(n, (header[4] & SELF_LOOPS_STRIPPED) != 0, outOffsets, outTargets, outValues, outCounts, outTxCounts,
+                                 inOffsets, inSources, inValues, inCounts, inTxCounts);
+        }
+    }
+
+    /**
+     * Write "inputUser,outputUser,value,count,txCount" lines, grouped by input user
+     */
+    public void writeText(final String file) throws IOException {
+        try (final BufferedWriter w = new BufferedWriter(new FileWriter(file), 1 << 16)) {
+            for (int u = 0; u < numUsers; ++u) {
+                for (int e = outOffsets.get(u); e < outOffsets.get(u + 1); ++e) {
+                    w.write(u + "," + outTargets.get(e) + "," + outValues.get(e) + "," + outCounts.get(e) + "," + outTxCounts.get(e) + "\n");
+                }
+            }
+        }
+    }
+
+    public boolean isSelfLoopsStripped() {
+        return selfLoopsStripped;
+    }
+
+    public int getUserNumber() {
+        return numUsers;
+    }
+
+    public int getEdgeNumber() {
+        return outTargets.limit();
+    }
+
+    public int outStart(final int user) {
+        return outOffsets.get(user);
+    }
+
+    public int outEnd(final int user) {
+        return outOffsets.get(user + 1);
+    }
+
+    public int outDegree(final int user) {
+        return outOffsets.get(user + 1) - outOffsets.get(user);
+    }
+
+    public int target(final int e) {
+        return outTargets.get(e);
+    }
+
+    public long outValue(final int e) {
+        return outValues.get(e);
+    }
+
+    public int outCount(final int e) {
+        return outCounts.get(e);
+    }
+
+    public int outTxCount(final int e) {
+        return outTxCounts.get(e);
+    }
+
+    public int inStart(final int user) {
+        return inOffsets.get(user);
+    }
+
+    public int inEnd(final int user) {
+        return inOffsets.get(user + 1);
+    }
+
+    public int inDegree(final int user) {
+        return inOffsets.get(user + 1) - inOffsets.get(user);
+    }
+
+    public int source(final int e) {
+        return inSources.get(e);
+    }
+
+    public long inValue(final int e) {
+        return inValues.get(e);
+    }
+
+    public int inCount(final int e) {
+        return inCounts.get(e);
+    }
+
+    public int inTxCount(final int e) {
+        return inTxCounts.get(e);
+    }
+
+    /**
+     * Satoshi received by a user over all its in-edges
+     */
+    public long inflow(final int user) {
+        long ret = 0;
+        for (int e = inOffsets.get(user); e < inOffsets.get(user + 1); ++e) {
+            ret += inValues.get(e);
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,208 @@
+package main;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Builds the user graph (one edge per transaction output, from the user owning the transaction's
+ * first input to the user owning the output address) in a single pass over a TransactionStore.
+ * Users are resolved through int arrays; no address or tx index is turned into a String.
+ */
+public class UserGraphBuilder {
+    /**
+     * Receives edges in the order of the outputs in the store
+     */
+    public interface EdgeSink {
+        void edge(int inputUser, int outputUser, long value) throws IOException;
+
+        /**
+         * An edge together with the index of the transaction it comes from
+         */
+        default void edge(long txIndex, int inputUser, int outputUser, long value) throws IOException {
+            edge(inputUser, outputUser, value);
+        }
+    }
+
+    private final TransactionStore transactions;
+    private final int[] userOfAddress;
+
+    /**
+     * @param transactions
+     * @param userOfAddress user of every address id of transactions, or -1 for unknown addresses
+     */
+    public UserGraphBuilder(final TransactionStore transactions, final int[] userOfAddress) {
+        this.transactions = transactions;
+        this.userOfAddress = userOfAddress;
+    }
+
+    public UserGraphBuilder(final TransactionStore transactions, final ClusterMembership clusters) {
+        this(transactions, clusters.getAddrToUser());
+    }
+
+    private int user(final int addrId) {
+        final int user = addrId < userOfAddress.length ? userOfAddress[addrId] : -1;
+        if (user < 0) {
+            throw new IllegalStateException(transactions.getAddresses().get(addrId) + " is not in the key map!");
+        }
+        return user;
+    }
+
+    /**
+     * Emit every edge. Outputs are normally preceded by their transaction's inputs; the rare
+     * output that comes first is held back until the end of the pass.
+     *
+     * @throws IllegalStateException if an address has no user or a transaction has no input
+     */
+    public void build(final EdgeSink sink) throws IOException {
+        final LongIntHashMap inputUser = new LongIntHashMap();
+        int[] deferred = new int[16];
+        int numDeferred = 0;
+        final TransactionStore.Cursor cursor = transactions.cursor();
+        while (cursor.next()) {
+            if (cursor.isInput()) {
+                if (!inputUser.containsKey(cursor.txIndex())) {
+                    inputUser.put(cursor.txIndex(), user(cursor.addressId()), -1);
+                }
+            } else {
+                final int from = inputUser.get(cursor.txIndex(), -1);
+                if (from >= 0) {
+                    sink.edge(cursor.txIndex(), from, user(cursor.addressId()), cursor.amount());
+                } else {
+                    if (numDeferred == deferred.length) {
+                        deferred = Arrays.copyOf(deferred, deferred.length * 2);
+                    }
+                    deferred[numDeferred++] = cursor.row();
+                }
+            }
+        }
+        for (int k = 0; k < numDeferred; ++k) {
+            final int row = deferred[k];
+            final int from = inputUser.get(transactions.txIndex(row), -1);
+            if (from < 0) {
+                throw new IllegalStateException("Did not find input transaction for Tx: " + transactions.txIndex(row));
+            }
+            sink.edge(transactions.txIndex(row), from, user(transactions.addressId(row)), transactions.amount(row));
+        }
+    }
+
+    /**
+     * Edges held in parallel arrays. When aggregated, each (input user, output user) pair appears
+     * once with the summed satoshi, the number of outputs merged into it and the number of
+     * distinct transactions those outputs belong to (outputs of a transaction are adjacent).
+     */
+    public static class EdgeList implements EdgeSink {
+        private final boolean aggregate;
+        private final LongIntHashMap index;
+        private int size;
+        private int[] from = new int[1024];
+        private int[] to = new int[1024];
+        private long[] value = new long[1024];
+        private int[] count = new int[1024];
+        private int[] txCount = new int[1024];
+        private long[] lastTx = new long[1024];
+
+        public EdgeList(final boolean aggregate) {
+            this.aggregate = aggregate;
+            this.index = aggregate ? new LongIntHashMap() : null;
+        }
+
+        /**
+         * An edge of unknown transaction, counted as a transaction of its own
+         */
+        @Override
+        public void edge(final int inputUser, final int outputUser, final long amount) {
+            add(0, false, inputUser, outputUser, amount);
+        }
+
+        @Override
+        public void edge(final long txIndex, final int inputUser, final int outputUser, final long amount) {
+            add(txIndex, true, inputUser, outputUser, amount);
+        }
+
+        private void add(final long txIndex, final boolean knownTx, final int inputUser, final int outputUser, final long amount) {
+            if (aggregate) {
+                final long key = ((long)inputUser << 32) | (outputUser & 0xffffffffL);
+                final int e = index.putIfAbsent(key, size);
+                if (e < size) {
+                    value[e] += amount;
+                    count[e]++;
+                    if (!knownTx || lastTx[e] != txIndex) {
+                        txCount[e]++;
+                        lastTx[e] = txIndex;
+                    }
+                    return;
+                }
+            }
+            if (size == from.length) {
+                from = Arrays.copyOf(from, size * 2);
+                to = Arrays.copyOf(to, size * 2);
+                value = Arrays.copyOf(value, size * 2);
+                count = Arrays.copyOf(count, size * 2);
+                txCount = Arrays.copyOf(txCount, size * 2);
+                lastTx = Arrays.copyOf(lastTx, size * 2);
+            }
+            from[size] = inputUser;
+            to[size] = outputUser;
+            value[size] = amount;
+            count[size] = 1;
+            txCount[size] = 1;
+            lastTx[size] = txIndex;
+            size++;
+        }
+
+        public boolean isAggregated() {
+            return aggregate;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public int from(final int e) {
+            return from[e];
+        }
+
+        public int to(final int e) {
+            return to[e];
+        }
+
+        public long value(final int e) {
+            return value[e];
+        }
+
+        public int count(final int e) {
+            return count[e];
+        }
+
+        public int txCount(final int e) {
+            return txCount[e];
+        }
+    }
+
+    public EdgeList buildEdgeList(final boolean aggregate) {
+        final EdgeList edges = new EdgeList(aggregate);
+        try {
+            build(edges);
+        } catch (final IOException exp) {
+            throw new UncheckedIOException(exp); // EdgeList never throws
+        }
+        return edges;
+    }
+
+    /**
+     * Write "inputUser,outputUser,value" lines; aggregated graphs add the number of merged
+     * outputs as a fourth column.
+     */
+    public void write(final String file, final boolean aggregate) throws IOException {
+        try (final BufferedWriter w = new BufferedWriter(new FileWriter(file), 1 << 16)) {
+            if (aggregate) {
+                final EdgeList edges = buildEdgeList(true);
+                for (int e = 0; e < edges.size(); ++e) {
+                    w.write(edges.from(e) + "," + edges.to(e) + "," + edges.value(e) + "," + edges.count(e) + "\n");
+                }
+            } else {
+                build((inputUser, outputUser, value) -> w.write(inputUser + "," + outputUser + "," + value + "\n"));
+            }
+        }
+    }
+}
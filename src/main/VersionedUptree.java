@@ -0,0 +1,236 @@
+package main;
+
+import java.util.Arrays;
+
+/**
+ * A disjoint-set that remembers the height at which every link was made, so that it can be
+ * asked about any earlier height: which set an element was in, how large the set was and what it
+ * held. Unions have to come in nondecreasing height order.
+ *
+ * Roots are linked by size and paths are never compressed, so every tree is at most log2(n) deep
+ * and find as of a height, which stops at the first link made after that height, takes
+ * O(log n). Links are never undone: a set as of height h is the subtree of its root that is
+ * joined by links no later than h. For sizes and members the children of every element are
+ * indexed in link order (rebuilt on the first query after new unions) together with running
+ * totals of their subtree sizes, which stop changing once a subtree is linked, so a size as of a
+ * height is one binary search.
+ */
+class VersionedUptree {
+    /** Link height of a root */
+    static final int NEVER = Integer.MAX_VALUE;
+
+    private int[] parents;
+    private int[] sizes;
+    private int[] linkHeights; // height at which an element was linked below its parent
+    private int length;
+    private int[] links = new int[16]; // linked elements in link order
+    private int numLinks;
+    private int lastHeight = Integer.MIN_VALUE;
+
+    // children of element i, in link order: children[childStart[i] .. childStart[i + 1] - 1];
+    // below[k] sums the subtree sizes of children[childStart[i] .. k]
+    private int[] childStart;
+    private int[] children;
+    private long[] below;
+    private boolean indexed;
+
+    public VersionedUptree(final int N) {
+        parents = new int[Math.max(16, N)];
+        sizes = new int[parents.length];
+        linkHeights = new int[parents.length];
+        for (int i = 0; i < N; ++i) {
+            add();
+        }
+    }
+
+    /**
+     * Add a new singleton set
+     *
+     * @return the index of the new element
+     */
+    public int add() {
+        if (length == parents.length) {
+            final int capacity = parents.length * 2;
+            parents = Arrays.copyOf(parents, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+            linkHeights = Arrays.copyOf(linkHeights, capacity);
+        }
+        parents[length] = length;
+        sizes[length] = 1;
+        linkHeights[length] = NEVER;
+        indexed = false;
+        return length++;
+    }
+
+    public int size() {
+        return length;
+    }
+
+    /**
+     * Root of i now
+     */
+    public int find(int i) {
+        while (parents[i] != i) {
+            i = parents[i];
+        }
+        return i;
+    }
+
+    /**
+     * Root of i as of height: the root it had once every union up to that height was made
+     */
+    public int find(int i, final int height) {
+        while (linkHeights[i] <= height) {
+            i = parents[i];
+        }
+        return i;
+    }
+
+    /**
+     * Merge the sets of i and j at height
+     *
+     * @return the root of the merged set, or -1 if i and j were already in the same set
+     * @throws IllegalArgumentException if height is below that of an earlier union
+     */
+    public int union(final int i, final int j, final int height) {
+        if (height < lastHeight) {
+            throw new IllegalArgumentException("Union at height " + height + " after one at " + lastHeight);
+        }
+        if (height == NEVER) {
+            throw new IllegalArgumentException("Height " + height + " is reserved");
+        }
+        lastHeight = height;
+        int root = find(i);
+        int child = find(j);
+        if (root == child) {
+            return -1;
+        }
+        if (sizes[child] > sizes[root] || (sizes[child] == sizes[root] && child < root)) {
+            final int tmp = root;
+            root = child;
+            child = tmp;
+        }
+        parents[child] = root;
+        linkHeights[child] = height;
+        sizes[root] += sizes[child];
+        if (numLinks == links.length) {
+            links = Arrays.copyOf(links, links.length * 2);
+        }
+        links[numLinks++] = child;
+        indexed = false;
+        return root;
+    }
+
+    /**
+     * Number of links made up to and including height; the number of sets as of height is the
+     * number of elements then minus this
+     */
+    public int getLinkNumber(final int height) {
+        int lo = 0;
+        int hi = numLinks;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (linkHeights[links[mid]] <= height) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    public int getLinkNumber() {
+        return numLinks;
+    }
+
+    /**
+     * Height at which i was linked below its parent, NEVER if it is a root
+     */
+    public int getLinkHeight(final int i) {
+        return linkHeights[i];
+    }
+
+    private void index() {
+        if (indexed) {
+            return;
+        }
+        childStart = new int[length + 1];
+        for (int k = 0; k < numLinks; ++k) {
+            childStart[parents[links[k]] + 1]++;
+        }
+        for (int i = 0; i < length; ++i) {
+            childStart[i + 1] += childStart[i];
+        }
+        children = new int[numLinks];
+        below = new long[numLinks];
+        final int[] fill = Arrays.copyOf(childStart, length);
+        for (int k = 0; k < numLinks; ++k) {
+            final int child = links[k];
+            final int parent = parents[child];
+            final int pos = fill[parent]++;
+            children[pos] = child;
+            below[pos] = (pos == childStart[parent] ? 0 : below[pos - 1]) + sizes[child];
+        }
+        indexed = true;
+    }
+
+    /**
+     * Position after the last child of element that was linked no later than height
+     */
+    private int childrenEnd(final int element, final int height) {
+        int lo = childStart[element];
+        int hi = childStart[element + 1];
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (linkHeights[children[mid]] <= height) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Size of the set of i as of height
+     */
+    public int getSize(final int i, final int height) {
+        index();
+        final int root = find(i, height);
+        final int end = childrenEnd(root, height);
+        return 1 + (int)(end == childStart[root] ? 0 : below[end - 1]);
+    }
+
+    /**
+     * Elements of the set of i as of height, the root first
+     */
+    public int[] members(final int i, final int height) {
+        index();
+        final int[] ret = new int[getSize(i, height)];
+        ret[0] = find(i, height);
+        // the members found so far double as the queue of elements whose children are next
+        int n = 1;
+        for (int k = 0; k < n; ++k) {
+            final int element = ret[k];
+            final int end = childrenEnd(element, height);
+            for (int c = childStart[element]; c < end; ++c) {
+                ret[n++] = children[c];
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Size of the set of i now
+     */
+    public int getSize(final int i) {
+        return sizes[find(i)];
+    }
+
+    /**
+     * Elements of the set of i now, the root first
+     */
+    public int[] members(final int i) {
+        return members(i, NEVER - 1);
+    }
+}
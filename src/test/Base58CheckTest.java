@@ -0,0 +1,118 @@
+package test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import main.AddressDictionary;
+import main.Base58Check;
+
+/**
+ * Round-trips addresses through Base58Check and checks the text that must not decode: leading
+ * '1's that do not match the leading zero bytes, text too long or worth too much, characters
+ * outside the alphabet and bad checksums. Exits with 1 on a failure.
+ */
+public class Base58CheckTest {
+	private static int failures = 0;
+
+	private static void check(String what, boolean ok) {
+		if (!ok) {
+			System.out.println("FAILED " + what);
+			failures++;
+		}
+	}
+
+	/**
+	 * Decode through both the String and the ByteBuffer entry points, which must agree
+	 *
+	 * @return the 25 bytes, or null if the text does not decode
+	 */
+	private static byte[] decode(String text) {
+		byte[] fromChars = new byte[Base58Check.ADDRESS_BYTES];
+		byte[] fromBytes = new byte[Base58Check.ADDRESS_BYTES + 3];
+		boolean chars = Base58Check.decode(text, fromChars, 0);
+		byte[] ascii = ("xy" + text).getBytes(StandardCharsets.ISO_8859_1);
+		boolean bytes = Base58Check.decode(ByteBuffer.wrap(ascii), 2, text.length(), fromBytes, 3);
+		check("String and ByteBuffer decoding agree on " + text, chars == bytes
+		      && (!chars || Arrays.equals(fromChars, Arrays.copyOfRange(fromBytes, 3, fromBytes.length))));
+		return chars ? fromChars : null;
+	}
+
+	private static String encode(byte[] address) {
+		return Base58Check.encode(address, 0, address.length);
+	}
+
+	public static void main(String[] args) {
+		Random random = new Random(7);
+		for (int k = 0; k < 10000; ++k) {
+			byte[] hash160 = new byte[20];
+			random.nextBytes(hash160);
+			// zero the first few bytes now and then, for leading '1's
+			Arrays.fill(hash160, 0, random.nextInt(4) == 0 ? random.nextInt(6) : 0, (byte)0);
+			int version = k % 3 == 0 ? 0 : k % 3 == 1 ? 5 : random.nextInt(255);
+			byte[] address = Base58Check.fromPayload(version, hash160, 0);
+			String text = encode(address);
+			byte[] back = decode(text);
+			check("round trip of " + text, back != null && Arrays.equals(back, address));
+			check("checksum of " + text, Base58Check.checksumValid(address, 0));
+		}
+
+		// the all-zero hash160 of version 0 is 1 + 20 zero bytes + checksum: 21 leading '1's
+		byte[] zeros = Base58Check.fromPayload(0, new byte[20], 0);
+		String burn = encode(zeros);
+		check("21 leading 1s in " + burn, burn.startsWith("111111111111111111111") && burn.charAt(21) != '1');
+		check("decode " + burn, Arrays.equals(decode(burn), zeros));
+		check("well-known address decodes", decode("1FfmbHfnpaZjKFvyi1okTjJJusN455paPH") != null);
+
+		// non-canonical: one '1' too many or too few for the leading zero bytes
+		String valid = encode(Base58Check.fromPayload(0, new byte[] { 0, 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18 }, 0));
+		check("extra leading 1 rejected", decode("1" + valid) == null);
+		check("missing leading 1 rejected", decode(valid.substring(1)) == null);
+
+		// over-long and too-large text
+		check("36 chars rejected", decode("111111111111111111111111111111111111") == null);
+		check("35 z's rejected", decode("zzzzzzzzzzzzzzzzzzzzzzzzzzzzzzzzzzz") == null);
+		check("empty text rejected", decode("") == null);
+		check("short text rejected", decode("1abc") == null);
+		for (char c : "0OIl+/ \u00e9".toCharArray()) {
+			check("'" + c + "' rejected", decode(valid.substring(0, 10) + c + valid.substring(11)) == null);
+		}
+
+		// bad checksum: the shape decodes but the checksum does not match, and interning refuses it
+		byte[] corrupt = Base58Check.fromPayload(0, new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20 }, 0);
+		corrupt[24] ^= 1;
+		String bad = encode(corrupt);
+		byte[] decoded = decode(bad);
+		check("bad checksum still decodes", decoded != null && Arrays.equals(decoded, corrupt));
+		check("bad checksum detected", !Base58Check.checksumValid(corrupt, 0));
+		try {
+			new AddressDictionary().intern(bad);
+			check("bad checksum refused by intern", false);
+		} catch (IllegalArgumentException exp) {
+			// expected
+		}
+		AddressDictionary dict = new AddressDictionary();
+		int id = dict.intern(burn);
+		check("dictionary round trip", dict.get(id).equals(burn) && dict.find(burn) == id);
+
+		// keys leave the checksum out, so text that only differs from a known address there must
+		// still be refused rather than taken for it
+		corrupt[24] ^= 1;
+		String good = encode(corrupt);
+		int goodId = dict.intern(good);
+		check("known address round trip", dict.get(goodId).equals(good) && dict.find(good) == goodId);
+		check("bad checksum of a known address not found", dict.find(bad) == -1);
+		try {
+			dict.intern(bad);
+			check("bad checksum of a known address refused by intern", false);
+		} catch (IllegalArgumentException exp) {
+			// expected
+		}
+
+		System.out.println(failures == 0 ? "All Base58Check checks passed" : failures + " Base58Check checks failed");
+		if (failures > 0) {
+			System.exit(1);
+		}
+	}
+}
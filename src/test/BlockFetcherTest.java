@@ -0,0 +1,203 @@
+package test;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import info.blockchain.api.APIException;
+import info.blockchain.api.blockexplorer.Block;
+import main.BlockFetcher;
+import main.BlockSourceException;
+import main.HttpBlockSource;
+
+/**
+ * Runs BlockFetcher against a throwaway localhost server that answers block-height requests after
+ * a delay that makes later heights answer first, and fails chosen heights with 429 or 5xx a set
+ * number of times, or with 404. Checks that heights are delivered in order, that transient
+ * failures are retried until they pass or the retries run out and others are not retried, and
+ * that no more requests than the limit are outstanding at once. Exits with 1 on a failure.
+ */
+public class BlockFetcherTest {
+	private static int failures = 0;
+
+	private static void check(String what, boolean ok) {
+		if (!ok) {
+			System.out.println("FAILED " + what);
+			failures++;
+		}
+	}
+
+	/** Status to fail each height with, and how many times */
+	private static final Map<Long, int[]> plan = new ConcurrentHashMap<>();
+	private static final Map<Long, AtomicInteger> attempts = new ConcurrentHashMap<>();
+	private static final AtomicInteger inFlight = new AtomicInteger();
+	private static final AtomicInteger maxInFlight = new AtomicInteger();
+
+	/**
+	 * Forget the last run once the server has been idle for a while: a fetch that failed leaves
+	 * the other requests of its window to finish on their own
+	 */
+	private static void reset() throws InterruptedException {
+		for (long idleSince = System.nanoTime(); System.nanoTime() - idleSince < TimeUnit.MILLISECONDS.toNanos(200); ) {
+			Thread.sleep(10);
+			if (inFlight.get() > 0) {
+				idleSince = System.nanoTime();
+			}
+		}
+		plan.clear();
+		attempts.clear();
+		maxInFlight.set(0);
+	}
+
+	private static void fail(long height, int status, int times) {
+		plan.put(height, new int[] { status, times });
+	}
+
+	private static int attempts(long height) {
+		AtomicInteger n = attempts.get(height);
+		return n == null ? 0 : n.get();
+	}
+
+	private static String block(long height) {
+		String hash = String.format("%064x", height);
+		return "{\"hash\": \"" + hash + "\", \"ver\": 2, \"prev_block\": \"" + String.format("%064x", height - 1)
+		       + "\", \"mrkl_root\": \"" + hash + "\", \"time\": " + (1380000000 + height) + ", \"bits\": 1, \"fee\": 0, \"nonce\": 0, "
+		       + "\"n_tx\": 0, \"size\": 80, \"block_index\": " + height + ", \"main_chain\": true, \"height\": " + height
+		       + ", \"received_time\": " + (1380000000 + height) + ", \"relayed_by\": \"0.0.0.0\", \"tx\": []}";
+	}
+
+	private static void handle(HttpExchange exchange) throws IOException {
+		String path = exchange.getRequestURI().getPath();
+		long height = Long.parseLong(path.substring(path.lastIndexOf('/') + 1));
+		int attempt = attempts.computeIfAbsent(height, h -> new AtomicInteger()).incrementAndGet();
+		int now = inFlight.incrementAndGet();
+		maxInFlight.accumulateAndGet(now, Math::max);
+		try {
+			// the last of every four heights answers first
+			Thread.sleep(10 * (3 - height % 4));
+		} catch (InterruptedException exp) {
+			Thread.currentThread().interrupt();
+		} finally {
+			// before answering, so that a client free to send its next request never sees it counted
+			inFlight.decrementAndGet();
+		}
+		int[] failure = plan.get(height);
+		int status = failure != null && attempt <= failure[1] ? failure[0] : 200;
+		byte[] body = (status == 200 ? "{\"blocks\": [" + block(height) + "]}" : "HTTP " + status).getBytes(StandardCharsets.UTF_8);
+		exchange.sendResponseHeaders(status, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	/**
+	 * Fetch minHeight..maxHeight, returning the heights delivered, in delivery order; the
+	 * failure, if any, goes to error[0]
+	 */
+	private static List<Long> fetch(BlockFetcher fetcher, long minHeight, long maxHeight, Exception[] error) {
+		List<Long> ret = new ArrayList<>();
+		try {
+			fetcher.fetch(minHeight, maxHeight, (height, blocks) -> {
+				check("height " + height + " holds its own block", blocks.size() == 1 && blocks.get(0).getHeight() == height);
+				ret.add(height);
+			});
+		} catch (APIException | IOException exp) {
+			error[0] = exp;
+		}
+		return ret;
+	}
+
+	private static boolean inOrder(List<Long> heights, long from, long to) {
+		if (heights.size() != to - from + 1) {
+			return false;
+		}
+		for (int i = 0; i < heights.size(); ++i) {
+			if (heights.get(i) != from + i) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int status(Exception exp) {
+		return exp instanceof BlockSourceException ? ((BlockSourceException) exp).getStatus() : -1;
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+		ExecutorService executor = Executors.newCachedThreadPool();
+		server.setExecutor(executor);
+		server.createContext("/", BlockFetcherTest::handle);
+		server.start();
+		HttpBlockSource source = new HttpBlockSource("http://127.0.0.1:" + server.getAddress().getPort() + "/", null);
+		try {
+			Exception[] error = new Exception[1];
+
+			reset();
+			fail(105, 429, 2);
+			fail(110, 503, 1);
+			fail(120, 500, 3);
+			List<Long> heights = fetch(new BlockFetcher(source, 4, 3, 1), 100, 139, error);
+			check("transient failures within the retries pass: " + error[0], error[0] == null);
+			check("heights delivered in order", inOrder(heights, 100, 139));
+			check("429 retried twice", attempts(105) == 3);
+			check("503 retried once", attempts(110) == 2);
+			check("500 retried up to the limit", attempts(120) == 4);
+			check("heights that did not fail asked once", attempts(100) == 1 && attempts(139) == 1);
+			check("at most 4 requests in flight, saw " + maxInFlight.get(), maxInFlight.get() <= 4);
+			check("requests overlap", maxInFlight.get() > 1);
+
+			reset();
+			error[0] = null;
+			fail(125, 503, 10);
+			heights = fetch(new BlockFetcher(source, 4, 2, 1), 120, 130, error);
+			check("retries run out with the last status", status(error[0]) == 503);
+			check("503 asked 1 + 2 times", attempts(125) == 3);
+			check("heights before the failure delivered in order", inOrder(heights, 120, 124));
+
+			reset();
+			error[0] = null;
+			fail(132, 404, 10);
+			heights = fetch(new BlockFetcher(source, 4, 5, 1), 130, 139, error);
+			check("404 fails at once", status(error[0]) == 404);
+			check("404 not retried", attempts(132) == 1);
+			check("heights before the 404 delivered in order", inOrder(heights, 130, 131));
+
+			reset();
+			error[0] = null;
+			heights = fetch(new BlockFetcher(source, 1, 0, 1), 100, 109, error);
+			check("one at a time: " + error[0], error[0] == null && inOrder(heights, 100, 109));
+			check("one request in flight, saw " + maxInFlight.get(), maxInFlight.get() == 1);
+
+			reset();
+			error[0] = null;
+			List<Block> blocks = new ArrayList<>();
+			try {
+				blocks = new BlockFetcher(source, 8, 0, 1).fetchAll(100, 115);
+			} catch (APIException exp) {
+				error[0] = exp;
+			}
+			boolean ordered = blocks.size() == 16;
+			for (int i = 0; ordered && i < blocks.size(); ++i) {
+				ordered = blocks.get(i).getHeight() == 100 + i;
+			}
+			check("fetchAll in order: " + error[0], error[0] == null && ordered);
+			check("at most 8 requests in flight, saw " + maxInFlight.get(), maxInFlight.get() <= 8);
+		} finally {
+			server.stop(0);
+			executor.shutdownNow();
+		}
+
+		System.out.println(failures == 0 ? "All BlockFetcher checks passed" : failures + " BlockFetcher checks failed");
+		if (failures > 0) {
+			System.exit(1);
+		}
+	}
+}
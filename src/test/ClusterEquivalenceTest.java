@@ -0,0 +1,143 @@
+package test;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+import main.ClusterMembership;
+import main.ExternalClusterer;
+import main.RunMetrics;
+import main.ShardedClusterer;
+import main.TransactionStore;
+import main.UserCluster;
+
+/**
+ * Clusters the same transaction files with UserCluster, a plain sequential union-find,
+ * ExternalClusterer (with a budget small enough to spill) and ShardedClusterer, and checks that
+ * they all give every address the same user. The files are also clustered shuffled, so that the
+ * rows of a transaction land in different sort runs and shards. Exits with 1 on a mismatch.
+ */
+public class ClusterEquivalenceTest {
+	private static int failures = 0;
+
+	private static void check(String what, boolean ok) {
+		System.out.println((ok ? "OK       " : "MISMATCH ") + what);
+		if (!ok) {
+			failures++;
+		}
+	}
+
+	private static byte[] read(File file) throws IOException {
+		return Files.readAllBytes(file.toPath());
+	}
+
+	/**
+	 * Common-input clustering the way the original single-threaded code did it: union each
+	 * transaction's inputs with its first input, one row at a time
+	 */
+	private static ClusterMembership sequential(TransactionStore transactions) {
+		int[] parents = new int[transactions.getAddresses().size()];
+		for (int i = 0; i < parents.length; ++i) {
+			parents[i] = i;
+		}
+		Map<Long, Integer> firstInput = new HashMap<>();
+		TransactionStore.Cursor cursor = transactions.cursor();
+		while (cursor.next()) {
+			if (cursor.isInput()) {
+				Integer first = firstInput.putIfAbsent(cursor.txIndex(), cursor.addressId());
+				if (first != null) {
+					parents[find(parents, first)] = find(parents, cursor.addressId());
+				}
+			}
+		}
+		int[] roots = new int[parents.length];
+		for (int i = 0; i < parents.length; ++i) {
+			roots[i] = find(parents, i);
+		}
+		return ClusterMembership.fromRoots(roots, transactions.getAddresses());
+	}
+
+	private static int find(int[] parents, int i) {
+		while (parents[i] != i) {
+			parents[i] = parents[parents[i]];
+			i = parents[i];
+		}
+		return i;
+	}
+
+	private static File shuffled(String file, File dir) throws IOException {
+		List<String> lines = Files.readAllLines(new File(file).toPath(), StandardCharsets.ISO_8859_1);
+		Collections.shuffle(lines, new Random(42));
+		File ret = new File(dir, new File(file).getName() + ".shuffled");
+		Files.write(ret.toPath(), lines, StandardCharsets.ISO_8859_1);
+		return ret;
+	}
+
+	private static void compare(String name, List<String> files, File dir) throws IOException {
+		UserCluster uc = new UserCluster();
+		for (String file : files) {
+			uc.readTransactions(file);
+		}
+		uc.mergeAddresses();
+		File keyMap = new File(dir, "keyMap.txt");
+		File userMap = new File(dir, "userMap.txt");
+		uc.writeKeyMap(keyMap.getPath());
+		uc.writeUserMap(userMap.getPath());
+
+		ClusterMembership expected = sequential(uc.getTransactions());
+		boolean same = expected.getAddressNumber() == uc.getClusters().getAddressNumber();
+		for (int i = 0; same && i < expected.getAddressNumber(); ++i) {
+			same = expected.userOf(i) == uc.getClusters().userOf(i);
+		}
+		check(name + ": UserCluster = sequential union-find (" + uc.getUserNumber() + " users)", same);
+
+		try (ExternalClusterer ec = new ExternalClusterer(64 << 10, dir)) {
+			for (String file : files) {
+				ec.readTransactions(file);
+			}
+			ec.mergeAddresses();
+			File ecKeyMap = new File(dir, "keyMap.external.txt");
+			File ecUserMap = new File(dir, "userMap.external.txt");
+			ec.writeKeyMap(ecKeyMap.getPath());
+			ec.writeUserMap(ecUserMap.getPath());
+			check(name + ": ExternalClusterer key map", Arrays.equals(read(keyMap), read(ecKeyMap)));
+			check(name + ": ExternalClusterer user map", Arrays.equals(read(userMap), read(ecUserMap)));
+		}
+
+		ShardedClusterer sc = new ShardedClusterer(3);
+		for (String file : files) {
+			sc.readTransactions(file);
+		}
+		sc.mergeAddresses();
+		File scKeyMap = new File(dir, "keyMap.sharded.txt");
+		File scUserMap = new File(dir, "userMap.sharded.txt");
+		sc.writeKeyMap(scKeyMap.getPath());
+		sc.writeUserMap(scUserMap.getPath());
+		check(name + ": ShardedClusterer key map", Arrays.equals(read(keyMap), read(scKeyMap)));
+		check(name + ": ShardedClusterer user map", Arrays.equals(read(userMap), read(scUserMap)));
+	}
+
+	public static void main(String[] args) throws IOException {
+		List<String> files = args.length > 0 ? Arrays.asList(args) : Arrays.asList("transactions_eg.txt", "transactions_other.txt");
+		File dir = Files.createTempDirectory("equivalence").toFile();
+		try {
+			compare("as given", files, dir);
+			List<String> shuffled = new ArrayList<>();
+			for (String file : files) {
+				shuffled.add(shuffled(file, dir).getPath());
+			}
+			compare("shuffled", shuffled, dir);
+		} finally {
+			for (File f : dir.listFiles()) {
+				f.delete();
+			}
+			dir.delete();
+		}
+		RunMetrics.global().writeReport();
+		if (failures > 0) {
+			System.err.println(failures + " mismatches");
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package test;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import main.ClusterServer;
+import main.RunMetrics;
+
+/**
+ * Starts a ClusterServer on a free localhost port, runs each kind of query against it and prints
+ * the answers and the mean latency of repeated lookups
+ */
+public class ClusterServerTest {
+	private static String request(int port, String method, String path, String body) throws IOException {
+		HttpURLConnection c = (HttpURLConnection) new URL("http://127.0.0.1:" + port + path).openConnection();
+		c.setRequestMethod(method);
+		if (body != null) {
+			c.setDoOutput(true);
+			try (OutputStream out = c.getOutputStream()) {
+				out.write(body.getBytes(StandardCharsets.UTF_8));
+			}
+		}
+		InputStream in = c.getResponseCode() < 400 ? c.getInputStream() : c.getErrorStream();
+		ByteArrayOutputStream ret = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		for (int n; (n = in.read(buf)) > 0;) {
+			ret.write(buf, 0, n);
+		}
+		in.close();
+		return c.getResponseCode() + " " + new String(ret.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	public static void main(String[] args) throws IOException {
+		String file = args.length > 0 ? args[0] : "transactions.txt";
+		ClusterServer server = ClusterServer.load(file);
+		int port = server.start(0, 4);
+		try {
+			System.out.println(request(port, "GET", "/stats", null));
+			System.out.println(request(port, "GET", "/user/0/addresses?limit=3", null));
+			System.out.println(request(port, "GET", "/user/0/aggregates", null));
+			System.out.println(request(port, "GET", "/user/0/payers?limit=3", null));
+			System.out.println(request(port, "GET", "/user/0/payees?limit=3", null));
+			System.out.println(request(port, "GET", "/address/no-such-address", null));
+			System.out.println(request(port, "POST", "/batch", "[\"/user/0/aggregates\", \"/user/-1/payers\", \"/stats\"]"));
+			int n = 5000;
+			for (int i = 0; i < n; ++i) {
+				request(port, "GET", "/user/" + (i % 4) + "/aggregates", null); // warm up
+			}
+			long start = System.nanoTime();
+			for (int i = 0; i < n; ++i) {
+				request(port, "GET", "/user/" + (i % 4) + "/aggregates", null);
+			}
+			System.out.println("Mean latency over " + n + " requests: " + (System.nanoTime() - start) / n / 1000 + " us");
+		} finally {
+			server.stop();
+		}
+		RunMetrics.global().writeReport();
+	}
+}
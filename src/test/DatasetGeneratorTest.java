@@ -1,6 +1,7 @@
 package test;
 
 import main.DatasetGenerator;
+import main.RunMetrics;
 
 public class DatasetGeneratorTest {
 	public static void main(String[] args) {
@@ -8,5 +9,6 @@ public class DatasetGeneratorTest {
 		if (!dw.writeTransactions()) {
 			System.err.println("Cannot generate transaction dataset!");
 		}
+		RunMetrics.global().writeReport();
 	}
 }
@@ -0,0 +1,143 @@
+package test;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+import main.Base58Check;
+import main.IncrementalClusterer;
+
+/**
+ * Feeds IncrementalClusterer two batches through a saved state and checks that user ids stay
+ * put: untouched clusters keep their ids across runs, a merge keeps the id of the larger cluster
+ * (the older one on a tie) and the other id resolves to it, and new addresses get fresh ids.
+ * Exits with 1 on a failure.
+ */
+public class IncrementalClustererTest {
+	private static int failures = 0;
+
+	private static void check(String what, boolean ok) {
+		if (!ok) {
+			System.out.println("FAILED " + what);
+			failures++;
+		}
+	}
+
+	private static String[] addresses(int n) {
+		String[] ret = new String[n];
+		for (int i = 0; i < n; ++i) {
+			byte[] hash160 = new byte[20];
+			hash160[0] = (byte)(i + 1);
+			byte[] address = Base58Check.fromPayload(0, hash160, 0);
+			ret[i] = Base58Check.encode(address, 0, address.length);
+		}
+		return ret;
+	}
+
+	private static String row(long tx, String address, String direction) {
+		return tx + " " + String.format("%064x", tx) + " " + address + " 1000 " + direction;
+	}
+
+	private static String write(File dir, String name, String... rows) throws IOException {
+		File file = new File(dir, name);
+		Files.write(file.toPath(), Arrays.asList(rows), StandardCharsets.ISO_8859_1);
+		return file.getPath();
+	}
+
+	private static void checkUser(IncrementalClusterer clusterer, String when, String[] a, int address, long user) {
+		check(when + ": address " + address + " belongs to user " + user, clusterer.getUser(a[address]) == user);
+	}
+
+	/**
+	 * State after the first batch: {0, 1} as user 0, {2, 3, 4} as user 2, and 5 and 6 on their own
+	 */
+	private static void checkFirst(IncrementalClusterer clusterer, String when, String[] a) {
+		checkUser(clusterer, when, a, 0, 0);
+		checkUser(clusterer, when, a, 1, 0);
+		for (int i = 2; i <= 4; ++i) {
+			checkUser(clusterer, when, a, i, 2);
+		}
+		checkUser(clusterer, when, a, 5, 5);
+		checkUser(clusterer, when, a, 6, 6);
+		check(when + ": user 1 resolves to 0 (tie, older id kept)", clusterer.resolveUser(1) == 0);
+		check(when + ": users 3 and 4 resolve to 2", clusterer.resolveUser(3) == 2 && clusterer.resolveUser(4) == 2);
+		check(when + ": 7 addresses in 4 users, largest 3", clusterer.getAddressNumber() == 7 && clusterer.getUserNumber() == 4
+		      && clusterer.getLargestClusterSize() == 3);
+		check(when + ": address 7 unknown", clusterer.getUser(a[7]) == -1);
+	}
+
+	/**
+	 * State after the second batch: {0, 1} merged into the larger {2, 3, 4}, 7 joined 6, 8 is new
+	 */
+	private static void checkSecond(IncrementalClusterer clusterer, String when, String[] a) {
+		for (int i = 0; i <= 4; ++i) {
+			checkUser(clusterer, when, a, i, 2);
+		}
+		checkUser(clusterer, when, a, 5, 5);
+		checkUser(clusterer, when, a, 6, 6);
+		checkUser(clusterer, when, a, 7, 6);
+		checkUser(clusterer, when, a, 8, 8);
+		check(when + ": user 0 resolves to 2 (larger cluster kept)", clusterer.resolveUser(0) == 2);
+		check(when + ": user 1 resolves to 2 through 0", clusterer.resolveUser(1) == 2);
+		check(when + ": user 7 resolves to 6 (tie, older id kept)", clusterer.resolveUser(7) == 6);
+		check(when + ": live ids resolve to themselves", clusterer.resolveUser(2) == 2 && clusterer.resolveUser(5) == 5
+		      && clusterer.resolveUser(8) == 8);
+		check(when + ": id 9 never issued", clusterer.resolveUser(9) == -1);
+		check(when + ": 9 addresses in 4 users, largest 5", clusterer.getAddressNumber() == 9 && clusterer.getUserNumber() == 4
+		      && clusterer.getLargestClusterSize() == 5);
+		Map<Long, List<String>> users = clusterer.getUserMap();
+		check(when + ": user map", users.keySet().equals(new HashSet<>(Arrays.asList(2L, 5L, 6L, 8L)))
+		      && users.get(2L).size() == 5 && users.get(6L).containsAll(Arrays.asList(a[6], a[7])));
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				delete(f);
+			}
+		}
+		file.delete();
+	}
+
+	public static void main(String[] args) throws IOException {
+		String[] a = addresses(9);
+		File dir = Files.createTempDirectory("incremental").toFile();
+		File state = new File(dir, "state");
+		try {
+			String first = write(dir, "first.txt",
+			                     row(1, a[0], "in"), row(1, a[1], "in"),
+			                     row(2, a[2], "in"), row(2, a[3], "in"), row(2, a[4], "in"),
+			                     row(3, a[5], "in"), row(3, a[6], "out"));
+			String second = write(dir, "second.txt",
+			                      row(10, a[1], "in"), row(10, a[3], "in"),
+			                      row(11, a[6], "in"), row(11, a[7], "in"),
+			                      row(12, a[5], "in"), row(12, a[8], "out"));
+
+			try (IncrementalClusterer clusterer = new IncrementalClusterer()) {
+				check("first batch merges", clusterer.ingest(first) == 3);
+				checkFirst(clusterer, "first batch", a);
+				clusterer.save(state);
+			}
+			try (IncrementalClusterer clusterer = IncrementalClusterer.load(state)) {
+				checkFirst(clusterer, "first batch reloaded", a);
+				check("second batch merges", clusterer.ingest(second) == 2);
+				checkSecond(clusterer, "second batch", a);
+				clusterer.save(state);
+			}
+			try (IncrementalClusterer clusterer = IncrementalClusterer.load(state)) {
+				checkSecond(clusterer, "second batch reloaded", a);
+				check("second batch again merges nothing", clusterer.ingest(second) == 0);
+				checkSecond(clusterer, "second batch again", a);
+			}
+		} finally {
+			delete(dir);
+		}
+
+		System.out.println(failures == 0 ? "All IncrementalClusterer checks passed" : failures + " IncrementalClusterer checks failed");
+		if (failures > 0) {
+			System.exit(1);
+		}
+	}
+}
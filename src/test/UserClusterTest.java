@@ -5,6 +5,7 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.util.List;
 
+import main.RunMetrics;
 import main.UserCluster;
 
 public class UserClusterTest {
@@ -33,6 +34,7 @@ public class UserClusterTest {
 		if (!uc.writeUserGraph("transactions.txt", "userGraph.txt")){
 			System.err.println("Cannot write user graph!");
 		}
+		RunMetrics.global().writeReport();
 
 	}
 }